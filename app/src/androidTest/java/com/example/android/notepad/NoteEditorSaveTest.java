@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.app.Activity;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.test.InstrumentationTestCase;
+import android.widget.EditText;
+
+/**
+ * Opens and closes the editors on a note, and counts the updates that they send to the
+ * provider. Leaving a note unchanged must not write it. The updates are counted with the
+ * provider's metrics, so the editors run against the application's own provider.
+ */
+public class NoteEditorSaveTest extends InstrumentationTestCase {
+
+    // The package of the activities under test
+    private static final String PACKAGE = "com.example.android.notepad";
+
+    // The number of times an editor is opened and closed in each test
+    private static final int CYCLES = 3;
+
+    // How long to wait for an activity to be destroyed, in milliseconds
+    private static final long DESTROY_TIMEOUT_MILLIS = 5000;
+
+    // The autosave interval of the autosave test, in milliseconds
+    private static final long AUTOSAVE_INTERVAL_MILLIS = 100;
+
+    // The metrics key of updates to a single note
+    private static final String NOTE_UPDATES = "update notes/#";
+
+    private ContentResolver mResolver;
+
+    // The note that the editors open
+    private Uri mNoteUri;
+
+    /**
+     * Changes the content of an editor. Runs on the main thread.
+     */
+    private interface Edit {
+        void apply(Activity activity);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mResolver = getInstrumentation().getTargetContext().getContentResolver();
+
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Unchanged");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Opened and closed without changes");
+        mNoteUri = mResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        assertNotNull(mNoteUri);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mResolver.delete(mNoteUri, null, null);
+        super.tearDown();
+    }
+
+    /*
+     * Opening and closing the note editor without changes writes nothing.
+     */
+    public void testUnchangedNoteIsNotWritten() {
+        long updates = countUpdates();
+        for (int i = 0; i < CYCLES; i++) {
+            openAndClose(NoteEditor.class, Intent.ACTION_EDIT, null);
+        }
+        assertEquals(updates, countUpdates());
+    }
+
+    /*
+     * A changed note is written once, and reopening it afterwards writes nothing more.
+     */
+    public void testChangedNoteIsWrittenOnce() {
+        long updates = countUpdates();
+        openAndClose(NoteEditor.class, Intent.ACTION_EDIT, new Edit() {
+            @Override
+            public void apply(Activity activity) {
+                ((EditText) activity.findViewById(R.id.note)).setText("Changed");
+            }
+        });
+        assertEquals(updates + 1, countUpdates());
+
+        for (int i = 0; i < CYCLES; i++) {
+            openAndClose(NoteEditor.class, Intent.ACTION_EDIT, null);
+        }
+        assertEquals(updates + 1, countUpdates());
+    }
+
+    /*
+     * Opening and closing the title editor without changes writes nothing, and a changed title
+     * is written once.
+     */
+    public void testUnchangedTitleIsNotWritten() {
+        long updates = countUpdates();
+        for (int i = 0; i < CYCLES; i++) {
+            openAndClose(TitleEditor.class, TitleEditor.EDIT_TITLE_ACTION, null);
+        }
+        assertEquals(updates, countUpdates());
+
+        openAndClose(TitleEditor.class, TitleEditor.EDIT_TITLE_ACTION, new Edit() {
+            @Override
+            public void apply(Activity activity) {
+                ((EditText) activity.findViewById(R.id.title)).setText("Changed");
+            }
+        });
+        assertEquals(updates + 1, countUpdates());
+    }
+
+    /*
+     * Typing is saved while the editor is open, and leaving the editor afterwards doesn't write
+     * the note again.
+     */
+    public void testTypingIsAutosaved() {
+        SharedPreferences prefs = getInstrumentation().getTargetContext()
+                .getSharedPreferences("notepad_prefs", Activity.MODE_PRIVATE);
+        prefs.edit().putLong(NoteEditor.PREF_AUTOSAVE_INTERVAL, AUTOSAVE_INTERVAL_MILLIS).commit();
+        try {
+            long updates = countUpdates();
+            Intent intent = new Intent(Intent.ACTION_EDIT, mNoteUri);
+            final Activity activity = launchActivityWithIntent(PACKAGE, NoteEditor.class, intent);
+            getInstrumentation().waitForIdleSync();
+
+            getInstrumentation().runOnMainSync(new Runnable() {
+                @Override
+                public void run() {
+                    ((EditText) activity.findViewById(R.id.note)).append(" and autosaved");
+                }
+            });
+
+            // The autosave is written once its interval and the save queue's delay have passed.
+            long deadline = SystemClock.uptimeMillis() + AUTOSAVE_INTERVAL_MILLIS
+                    + NoteSaveQueue.WRITE_DELAY_MILLIS + DESTROY_TIMEOUT_MILLIS;
+            while (countUpdates() == updates && SystemClock.uptimeMillis() < deadline) {
+                SystemClock.sleep(50);
+            }
+            assertEquals(updates + 1, countUpdates());
+            assertFalse(activity.isFinishing());
+
+            activity.finish();
+            deadline = SystemClock.uptimeMillis() + DESTROY_TIMEOUT_MILLIS;
+            while (!activity.isDestroyed() && SystemClock.uptimeMillis() < deadline) {
+                SystemClock.sleep(10);
+            }
+            assertTrue(activity.isDestroyed());
+            assertTrue(NoteSaveQueue.getInstance(getInstrumentation().getTargetContext())
+                    .awaitWrites(null, DESTROY_TIMEOUT_MILLIS));
+            assertEquals(updates + 1, countUpdates());
+        } finally {
+            prefs.edit().remove(NoteEditor.PREF_AUTOSAVE_INTERVAL).commit();
+        }
+    }
+
+    /**
+     * Opens an editor on the note, applies an edit if there is one, and closes the editor.
+     * Returns once the editor is destroyed, so its onPause() has saved the note, and the save
+     * queue has written the save.
+     */
+    private void openAndClose(Class<? extends Activity> activityClass, String action,
+            final Edit edit) {
+        Intent intent = new Intent(action, mNoteUri);
+        final Activity activity = launchActivityWithIntent(PACKAGE, activityClass, intent);
+        getInstrumentation().waitForIdleSync();
+
+        if (edit != null) {
+            getInstrumentation().runOnMainSync(new Runnable() {
+                @Override
+                public void run() {
+                    edit.apply(activity);
+                }
+            });
+        }
+
+        activity.finish();
+        long deadline = SystemClock.uptimeMillis() + DESTROY_TIMEOUT_MILLIS;
+        while (!activity.isDestroyed() && SystemClock.uptimeMillis() < deadline) {
+            SystemClock.sleep(10);
+        }
+        assertTrue(activity.isDestroyed());
+        getInstrumentation().waitForIdleSync();
+        assertTrue(NoteSaveQueue.getInstance(getInstrumentation().getTargetContext())
+                .awaitWrites(null, DESTROY_TIMEOUT_MILLIS));
+    }
+
+    /**
+     * Returns the number of updates of single notes that the provider has received.
+     */
+    private long countUpdates() {
+        Bundle metrics = mResolver.call(NotePad.Notes.CONTENT_URI, NotePad.Metrics.METHOD_GET,
+                null, null);
+        Bundle updates = metrics.getBundle(NOTE_UPDATES);
+        return updates == null ? 0 : updates.getLong(NotePad.Metrics.KEY_CALLS);
+    }
+}
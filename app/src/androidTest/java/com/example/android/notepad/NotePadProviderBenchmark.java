@@ -0,0 +1,298 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.test.ProviderTestCase2;
+import android.test.mock.MockContentResolver;
+import android.util.Log;
+
+import java.util.Random;
+
+/**
+ * Measures the latency of the provider's single note operations. Each benchmark runs the same
+ * sequence of operations with the single note fast path turned off and on, and logs the
+ * average time per call of each path under the tag "NotePadBenchmark". The compression
+ * benchmark compares large contents stored with and without compression instead, and the
+ * trash benchmark times a mass delete and the purge that follows it.
+ *
+ * The results are only logged, not asserted, since they depend on the device.
+ */
+public class NotePadProviderBenchmark extends ProviderTestCase2<NotePadProvider> {
+
+    private static final String TAG = "NotePadBenchmark";
+
+    // The number of sequential operations in each run
+    private static final int ITERATIONS = 10000;
+
+    // The number of runs of each path in a read benchmark. The paths take turns, starting with
+    // a different one each time, so that neither always runs on a warmer process.
+    private static final int READ_RUNS = 4;
+
+    // The columns read by each query, the same as NoteEditor reads
+    private static final String[] PROJECTION = {
+        NotePad.Notes._ID,
+        NotePad.Notes.COLUMN_NAME_TITLE,
+        NotePad.Notes.COLUMN_NAME_NOTE,
+        NotePad.Notes.COLUMN_NAME_CATEGORY,
+        NotePad.Notes.COLUMN_NAME_COLOR
+    };
+
+    // The number of large notes in the compression corpus, and the range of their sizes in
+    // characters. The notes stay shorter than a segment, so that a query reads each one whole.
+    private static final int CORPUS_NOTES = 200;
+    private static final int CORPUS_MIN_CHARS = 2 * 1024;
+    private static final int CORPUS_MAX_CHARS = NotePad.Notes.SEGMENT_CHARS - 1024;
+
+    // The words that the meeting notes of the corpus are made of
+    private static final String[] MEETING_WORDS = {
+        "action", "item", "review", "budget", "roadmap", "release", "customer", "feedback",
+        "design", "decision", "owner", "deadline", "follow", "up", "risk", "blocked", "agreed",
+        "the", "team", "will", "we", "need", "to", "and", "for", "on", "with", "next", "week",
+        "quarter", "plan", "hiring", "migration", "latency", "dashboard", "launch", "scope"
+    };
+
+    // The levels and components of the log lines of the corpus
+    private static final String[] LOG_LEVELS = { "D", "I", "I", "I", "W", "E" };
+    private static final String[] LOG_TAGS = {
+        "ActivityManager", "NotePadProvider", "SQLiteConnection", "NetworkClient", "SyncManager"
+    };
+
+    // Contains a reference to the mocked content resolver for the provider under test.
+    private MockContentResolver mMockResolver;
+
+    // The URI of the note that the benchmarks read and update
+    private Uri mNoteUri;
+
+    public NotePadProviderBenchmark() {
+        super(NotePadProvider.class, NotePad.AUTHORITY);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mMockResolver = getMockContentResolver();
+
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Benchmark");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "This note is read and updated repeatedly");
+        mNoteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        assertNotNull(mNoteUri);
+    }
+
+    /*
+     * Reads the same note repeatedly, as NoteEditor does on every onResume(). The row cache is
+     * off, so that both paths read the database rather than the fast path reading the cache.
+     * An untimed pass of each path warms up the process first, and the timed runs alternate
+     * which path goes first.
+     */
+    public void testSingleNoteReads() {
+        getProvider().setRowCacheEnabledForTest(false);
+        timeReads(false);
+        timeReads(true);
+
+        long slow = 0;
+        long fast = 0;
+        for (int run = 0; run < READ_RUNS; run++) {
+            if (run % 2 == 0) {
+                slow += timeReads(false);
+                fast += timeReads(true);
+            } else {
+                fast += timeReads(true);
+                slow += timeReads(false);
+            }
+        }
+        getProvider().setRowCacheEnabledForTest(true);
+        report("get", slow / READ_RUNS, fast / READ_RUNS);
+    }
+
+    /*
+     * Updates the same note repeatedly, as NoteEditor does on every onPause().
+     */
+    public void testSingleNoteUpdates() {
+        long slow = timeUpdates(false);
+        long fast = timeUpdates(true);
+        report("update", slow, fast);
+    }
+
+    /*
+     * Writes and reads a corpus of large notes, meeting notes and pasted logs, with the
+     * compression of large contents turned off and then on. Logs the size of the stored contents
+     * and of the database, and the average latency of an insert and of a read of a note. Reads
+     * take the general path, so that every read decodes the contents rather than hitting the row
+     * cache.
+     */
+    public void testLargeNoteCompression() {
+        String[] corpus = buildCorpus(new Random(42));
+        long chars = 0;
+        for (String note : corpus) {
+            chars += note.length();
+        }
+        getProvider().setSingleNoteFastPathEnabledForTest(false);
+        for (boolean compress : new boolean[] { false, true }) {
+            getProvider().setBodyCompressionEnabledForTest(compress);
+            mMockResolver.delete(NotePad.Notes.CONTENT_URI, null, null);
+            getProvider().purgeTrash(
+                    System.currentTimeMillis() + NotePadProvider.TRASH_RETENTION_MILLIS);
+
+            Uri[] uris = new Uri[corpus.length];
+            ContentValues values = new ContentValues();
+            long start = System.nanoTime();
+            for (int i = 0; i < corpus.length; i++) {
+                values.put(NotePad.Notes.COLUMN_NAME_NOTE, corpus[i]);
+                uris[i] = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+            }
+            long writeNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < uris.length; i++) {
+                Cursor c = mMockResolver.query(uris[i], PROJECTION, null, null, null);
+                assertTrue(c.moveToFirst());
+                assertEquals(corpus[i].length(), c.getString(2).length());
+                c.close();
+            }
+            long readNanos = System.nanoTime() - start;
+
+            SQLiteDatabase db = getProvider().getOpenHelperForTest().getWritableDatabase();
+            long bodyBytes = DatabaseUtils.longForQuery(db, "SELECT SUM(length(CAST(" +
+                    NotePad.Notes.COLUMN_NAME_NOTE + " AS BLOB))) FROM " +
+                    NotePadProvider.BODIES_TABLE_NAME, null);
+            long usedPages = DatabaseUtils.longForQuery(db, "PRAGMA page_count", null)
+                    - DatabaseUtils.longForQuery(db, "PRAGMA freelist_count", null);
+            long databaseBytes = usedPages * DatabaseUtils.longForQuery(db, "PRAGMA page_size",
+                    null);
+
+            Log.i(TAG, String.format("%d notes of %d chars, compression %s: contents %d KB, " +
+                            "database %d KB, insert %.1f us/call, get %.1f us/call",
+                    corpus.length, chars, compress ? "on" : "off", bodyBytes / 1024,
+                    databaseBytes / 1024, writeNanos / 1000.0 / corpus.length,
+                    readNanos / 1000.0 / corpus.length));
+        }
+    }
+
+    /*
+     * Deletes every note of the large note corpus at once, then purges them from the trash.
+     * Logs the time of the delete, which is what the user waits for, the time of the purge,
+     * which runs in the background, and the size of the database file before and after the
+     * purge.
+     */
+    public void testMassDelete() {
+        String[] corpus = buildCorpus(new Random(42));
+        ContentValues values = new ContentValues();
+        for (String note : corpus) {
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE, note);
+            mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        }
+        SQLiteDatabase db = getProvider().getOpenHelperForTest().getWritableDatabase();
+        long pageSize = DatabaseUtils.longForQuery(db, "PRAGMA page_size", null);
+        long beforeBytes = DatabaseUtils.longForQuery(db, "PRAGMA page_count", null) * pageSize;
+
+        long start = System.nanoTime();
+        int deleted = mMockResolver.delete(NotePad.Notes.CONTENT_URI, null, null);
+        long deleteNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        int purged = getProvider().purgeTrash(
+                System.currentTimeMillis() + NotePadProvider.TRASH_RETENTION_MILLIS);
+        long purgeNanos = System.nanoTime() - start;
+        assertEquals(deleted, purged);
+        long afterBytes = DatabaseUtils.longForQuery(db, "PRAGMA page_count", null) * pageSize;
+
+        Log.i(TAG, String.format("Deleted %d notes in %.1f ms, purged them in %.1f ms: " +
+                        "database %d KB before the purge, %d KB after",
+                deleted, deleteNanos / 1000000.0, purgeNanos / 1000000.0, beforeBytes / 1024,
+                afterBytes / 1024));
+    }
+
+    /**
+     * Builds the notes of the compression corpus. Even notes are meeting notes, made of short
+     * sentences of a small vocabulary; odd notes are pasted logs, with timestamps, process IDs
+     * and durations that compress less well than prose.
+     */
+    private static String[] buildCorpus(Random random) {
+        String[] corpus = new String[CORPUS_NOTES];
+        for (int i = 0; i < corpus.length; i++) {
+            int length = CORPUS_MIN_CHARS + random.nextInt(CORPUS_MAX_CHARS - CORPUS_MIN_CHARS);
+            StringBuilder note = new StringBuilder(length + 128);
+            long time = 1700000000000L + random.nextInt(1000000);
+            while (note.length() < length) {
+                if (i % 2 == 0) {
+                    note.append("- ");
+                    int words = 4 + random.nextInt(12);
+                    for (int w = 0; w < words; w++) {
+                        note.append(MEETING_WORDS[random.nextInt(MEETING_WORDS.length)])
+                                .append(w == words - 1 ? ".\n" : " ");
+                    }
+                } else {
+                    time += random.nextInt(500);
+                    note.append(String.format("%tT.%03d %5d %5d %s %s: request %08x took %d ms%n",
+                            time, time % 1000, 1000 + random.nextInt(50),
+                            1000 + random.nextInt(500),
+                            LOG_LEVELS[random.nextInt(LOG_LEVELS.length)],
+                            LOG_TAGS[random.nextInt(LOG_TAGS.length)], random.nextInt(),
+                            random.nextInt(2000)));
+                }
+            }
+            corpus[i] = note.toString();
+        }
+        return corpus;
+    }
+
+    /**
+     * Runs the reads and returns the elapsed time in nanoseconds.
+     */
+    private long timeReads(boolean fastPath) {
+        getProvider().setSingleNoteFastPathEnabledForTest(fastPath);
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            Cursor c = mMockResolver.query(mNoteUri, PROJECTION, null, null, null);
+            assertTrue(c.moveToFirst());
+            c.close();
+        }
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Runs the updates and returns the elapsed time in nanoseconds.
+     */
+    private long timeUpdates(boolean fastPath) {
+        getProvider().setSingleNoteFastPathEnabledForTest(fastPath);
+        ContentValues values = new ContentValues();
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Update " + i);
+            values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, (long) i);
+            assertEquals(1, mMockResolver.update(mNoteUri, values, null, null));
+        }
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Logs the average latency per call of both runs.
+     */
+    private void report(String operation, long slowNanos, long fastNanos) {
+        Log.i(TAG, String.format("%d sequential %s calls on note %d: " +
+                        "general path %.1f us/call, fast path %.1f us/call",
+                ITERATIONS, operation, ContentUris.parseId(mNoteUri),
+                slowNanos / 1000.0 / ITERATIONS, fastNanos / 1000.0 / ITERATIONS));
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.test.ProviderTestCase2;
+import android.test.mock.MockContentResolver;
+import android.util.Log;
+
+import java.util.Arrays;
+
+/**
+ * Runs queries and updates on the provider from several threads at once, the way NotesList
+ * queries the list while NoteEditor saves a note, and logs the throughput and the 99th
+ * percentile latency of each under the tag "NotePadStress". The same load runs with write-ahead
+ * logging turned off and then on.
+ *
+ * The results are only logged, not asserted, since they depend on the device. The test fails
+ * if any call fails.
+ */
+public class NotePadProviderStressTest extends ProviderTestCase2<NotePadProvider> {
+
+    private static final String TAG = "NotePadStress";
+
+    // The number of notes in the list that the readers query
+    private static final int NOTE_COUNT = 200;
+
+    // The number of threads that query the list, and of threads that update notes
+    private static final int READER_THREADS = 3;
+    private static final int WRITER_THREADS = 1;
+
+    // How long each run lasts, in milliseconds
+    private static final long RUN_MILLIS = 5000;
+
+    // The most latencies that a thread records. Calls after that are counted but not timed.
+    private static final int MAX_SAMPLES = 100000;
+
+    // The columns read by each query, the same as NotesList reads
+    private static final String[] LIST_PROJECTION = {
+        NotePad.Notes._ID,
+        NotePad.Notes.COLUMN_NAME_TITLE,
+        NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
+        NotePad.Notes.COLUMN_NAME_COLOR
+    };
+
+    // Contains a reference to the mocked content resolver for the provider under test.
+    private MockContentResolver mMockResolver;
+
+    // The _ID of the first note
+    private long mFirstNoteId;
+
+    // The first failure of any thread of the current run
+    private volatile Throwable mFailure;
+
+    public NotePadProviderStressTest() {
+        super(NotePadProvider.class, NotePad.AUTHORITY);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mMockResolver = getMockContentResolver();
+
+        ContentValues[] values = new ContentValues[NOTE_COUNT];
+        for (int i = 0; i < NOTE_COUNT; i++) {
+            values[i] = new ContentValues();
+            values[i].put(NotePad.Notes.COLUMN_NAME_TITLE, "Note " + i);
+            values[i].put(NotePad.Notes.COLUMN_NAME_NOTE, "The contents of note " + i);
+        }
+        assertEquals(NOTE_COUNT, mMockResolver.bulkInsert(NotePad.Notes.CONTENT_URI, values));
+
+        Cursor c = mMockResolver.query(NotePad.Notes.CONTENT_URI,
+                new String[] { NotePad.Notes._ID }, null, null, NotePad.Notes._ID + " ASC");
+        assertTrue(c.moveToFirst());
+        mFirstNoteId = c.getLong(0);
+        c.close();
+    }
+
+    /*
+     * Runs the load with the rollback journal, then with write-ahead logging.
+     */
+    public void testConcurrentReadsAndWrites() throws Throwable {
+        run(false);
+        run(true);
+    }
+
+    /**
+     * Runs the readers and the writers for RUN_MILLIS, and logs their results.
+     *
+     * @param wal True to run with write-ahead logging.
+     */
+    private void run(boolean wal) throws Throwable {
+        getProvider().setWriteAheadLoggingEnabledForTest(wal);
+        mFailure = null;
+
+        final long end = System.currentTimeMillis() + RUN_MILLIS;
+        Worker[] readers = new Worker[READER_THREADS];
+        Worker[] writers = new Worker[WRITER_THREADS];
+        for (int i = 0; i < readers.length; i++) {
+            readers[i] = new Worker(end) {
+                @Override
+                void runOnce(int iteration) {
+                    Cursor c = mMockResolver.query(NotePad.Notes.CONTENT_URI, LIST_PROJECTION,
+                            null, null, NotePad.Notes.DEFAULT_SORT_ORDER);
+                    try {
+                        while (c.moveToNext()) {
+                            c.getString(1);
+                        }
+                    } finally {
+                        c.close();
+                    }
+                }
+            };
+        }
+        for (int i = 0; i < writers.length; i++) {
+            final int writer = i;
+            writers[i] = new Worker(end) {
+                private final ContentValues mValues = new ContentValues();
+
+                @Override
+                void runOnce(int iteration) {
+                    Uri noteUri = ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE,
+                            mFirstNoteId + (iteration * WRITER_THREADS + writer) % NOTE_COUNT);
+                    mValues.put(NotePad.Notes.COLUMN_NAME_NOTE, "Saved " + iteration);
+                    mValues.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
+                            System.currentTimeMillis());
+                    mMockResolver.update(noteUri, mValues, null, null);
+                }
+            };
+        }
+
+        for (Worker worker : readers) {
+            worker.start();
+        }
+        for (Worker worker : writers) {
+            worker.start();
+        }
+        for (Worker worker : readers) {
+            worker.join();
+        }
+        for (Worker worker : writers) {
+            worker.join();
+        }
+        if (mFailure != null) {
+            throw mFailure;
+        }
+
+        String mode = wal ? "WAL" : "rollback journal";
+        report(mode, "reads", readers);
+        report(mode, "writes", writers);
+    }
+
+    /**
+     * Logs the throughput and the 99th percentile latency of a group of workers.
+     */
+    private void report(String mode, String operation, Worker[] workers) {
+        int calls = 0;
+        int samples = 0;
+        for (Worker worker : workers) {
+            calls += worker.mCalls;
+            samples += Math.min(worker.mCalls, MAX_SAMPLES);
+        }
+        long[] latencies = new long[samples];
+        int offset = 0;
+        for (Worker worker : workers) {
+            int count = Math.min(worker.mCalls, MAX_SAMPLES);
+            System.arraycopy(worker.mLatencies, 0, latencies, offset, count);
+            offset += count;
+        }
+        Arrays.sort(latencies);
+        long p99 = samples == 0 ? 0 : latencies[Math.min(samples - 1, samples * 99 / 100)];
+
+        Log.i(TAG, String.format("%s, %d threads: %d %s, %.1f %s/s, p99 %.1f ms",
+                mode, workers.length, calls, operation, calls * 1000.0 / RUN_MILLIS, operation,
+                p99 / 1000000.0));
+    }
+
+    /**
+     * A thread that repeats an operation until the end of the run, and records its latencies.
+     */
+    private abstract class Worker extends Thread {
+
+        private final long mEnd;
+
+        // The latency of each call, in nanoseconds, and the number of calls
+        final long[] mLatencies = new long[MAX_SAMPLES];
+        int mCalls;
+
+        Worker(long end) {
+            mEnd = end;
+        }
+
+        /**
+         * Runs the operation once.
+         *
+         * @param iteration The number of times the operation ran before.
+         */
+        abstract void runOnce(int iteration);
+
+        @Override
+        public void run() {
+            try {
+                while (System.currentTimeMillis() < mEnd && mFailure == null) {
+                    long start = System.nanoTime();
+                    runOnce(mCalls);
+                    if (mCalls < MAX_SAMPLES) {
+                        mLatencies[mCalls] = System.nanoTime() - start;
+                    }
+                    mCalls++;
+                }
+            } catch (Throwable t) {
+                mFailure = t;
+            }
+        }
+    }
+}
@@ -16,23 +16,47 @@
 
 package com.example.android.notepad;
 
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.content.SharedPreferences;
 import android.content.res.AssetFileDescriptor;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
+import android.os.Bundle;
 import android.os.ParcelFileDescriptor;
 import android.test.ProviderTestCase2;
 import android.test.mock.MockContentResolver;
 
+import org.json.JSONException;
+import org.json.JSONObject;
+
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileDescriptor;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
 
 /*
  */
@@ -92,6 +116,9 @@ public class NotePadProviderTest extends ProviderTestCase2<NotePadProvider> {
     // plain text
     private final static String MIME_TYPE_TEXT = "text/plain";
 
+    // How long to wait for an import to end, in milliseconds
+    private static final long IMPORT_TIMEOUT_MILLIS = 5000;
+
     /*
      * Constructor for the test case class.
      * Calls the super constructor with the class name of the provider under test and the
@@ -146,12 +173,24 @@ public class NotePadProviderTest extends ProviderTestCase2<NotePadProvider> {
             TEST_NOTES[index].setCreationDate(START_DATE + (index * ONE_DAY_MILLIS));
             TEST_NOTES[index].setModificationDate(START_DATE + (index * ONE_WEEK_MILLIS));
 
+            // The note contents are stored in their own table, so they are split off from
+            // the values of the notes table.
+            ContentValues noteValues = TEST_NOTES[index].getContentValues();
+            String body = noteValues.getAsString(NotePad.Notes.COLUMN_NAME_NOTE);
+            noteValues.remove(NotePad.Notes.COLUMN_NAME_NOTE);
+
             // Adds a record to the database.
-            mDb.insertOrThrow(
+            long rowId = mDb.insertOrThrow(
                 NotePad.Notes.TABLE_NAME,             // the table name for the insert
                 NotePad.Notes.COLUMN_NAME_TITLE,      // column set to null if empty values map
-                TEST_NOTES[index].getContentValues()  // the values map to insert
+                noteValues                            // the values map to insert
             );
+
+            // Adds the note contents to the database.
+            values.clear();
+            values.put(NotePadProvider.BODIES_COLUMN_NOTE_ID, rowId);
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE, body);
+            mDb.insertOrThrow(NotePadProvider.BODIES_TABLE_NAME, null, values);
         }
     }
 
@@ -176,6 +215,43 @@ public class NotePadProviderTest extends ProviderTestCase2<NotePadProvider> {
         mimeType = mMockResolver.getType(noteIdUri);
         assertEquals(NotePad.Notes.CONTENT_ITEM_TYPE, mimeType);
 
+        // Tests the MIME type for the edits of a note.
+        mimeType = mMockResolver.getType(NotePad.Notes.buildEditsUri(noteIdUri));
+        assertEquals(NotePad.Notes.CONTENT_EDITS_TYPE, mimeType);
+
+        // Tests the MIME type for the contents of a note.
+        mimeType = mMockResolver.getType(NotePad.Notes.buildBodyUri(noteIdUri));
+        assertEquals(NotePad.Notes.CONTENT_BODY_TYPE, mimeType);
+
+        // Tests the MIME type for the search URI.
+        mimeType = mMockResolver.getType(NotePad.Notes.CONTENT_SEARCH_URI);
+        assertEquals(NotePad.Notes.CONTENT_TYPE, mimeType);
+
+        // Tests the MIME type for the categories URI.
+        mimeType = mMockResolver.getType(NotePad.Notes.CONTENT_CATEGORIES_URI);
+        assertEquals(NotePad.Notes.CONTENT_CATEGORIES_TYPE, mimeType);
+
+        // Tests the MIME type for the statistics URI.
+        mimeType = mMockResolver.getType(NotePad.Notes.CONTENT_STATS_URI);
+        assertEquals(NotePad.Notes.CONTENT_STATS_TYPE, mimeType);
+
+        // Tests the MIME type for the trash URI.
+        mimeType = mMockResolver.getType(NotePad.Notes.CONTENT_TRASH_URI);
+        assertEquals(NotePad.Notes.CONTENT_TYPE, mimeType);
+
+        // Tests the MIME types for the categories table URIs.
+        mimeType = mMockResolver.getType(NotePad.Categories.CONTENT_URI);
+        assertEquals(NotePad.Categories.CONTENT_TYPE, mimeType);
+        mimeType = mMockResolver.getType(
+            ContentUris.withAppendedId(NotePad.Categories.CONTENT_ID_URI_BASE, 1));
+        assertEquals(NotePad.Categories.CONTENT_ITEM_TYPE, mimeType);
+
+        // Tests the MIME types for the imports URIs.
+        mimeType = mMockResolver.getType(NotePad.Imports.CONTENT_URI);
+        assertEquals(NotePad.Imports.CONTENT_TYPE, mimeType);
+        mimeType = mMockResolver.getType(NotePad.Imports.buildImportUri("backup"));
+        assertEquals(NotePad.Imports.CONTENT_ITEM_TYPE, mimeType);
+
         // Tests an invalid URI. This should throw an IllegalArgumentException.
         mimeType = mMockResolver.getType(INVALID_URI);
     }
@@ -186,9 +262,14 @@ public class NotePadProviderTest extends ProviderTestCase2<NotePadProvider> {
      */
     public void testGetStreamTypes() {
 
-        // Tests the notes table URI. This should return null, since the content provider does
-        // not provide a stream MIME type for multiple notes.
-        assertNull(mMockResolver.getStreamTypes(NotePad.Notes.CONTENT_URI, MIME_TYPES_ALL));
+        // Tests the notes table URI. The notes can be exported as NDJSON or as a zip archive.
+        String[] exportTypes =
+                mMockResolver.getStreamTypes(NotePad.Notes.CONTENT_URI, MIME_TYPES_ALL);
+        assertNotNull(exportTypes);
+        assertEquals(2, exportTypes.length);
+        assertEquals(NotePad.Notes.EXPORT_TYPE_NDJSON, exportTypes[0]);
+        assertEquals(NotePad.Notes.EXPORT_TYPE_ZIP, exportTypes[1]);
+        assertNull(mMockResolver.getStreamTypes(NotePad.Notes.CONTENT_URI, MIME_TYPE_TEXT));
 
         // Tests the live folders URI. This should return null, since the content provider does not
         // provide a stream MIME type for multiple notes.
@@ -218,11 +299,19 @@ public class NotePadProviderTest extends ProviderTestCase2<NotePadProvider> {
         mimeType = mMockResolver.getStreamTypes(testUri, MIME_TYPES_NONE);
         assertNull(mimeType);
 
+        /*
+         * Tests that the contents URI of a note is streamed as text/plain too.
+         */
+        mimeType = mMockResolver.getStreamTypes(NotePad.Notes.buildBodyUri(testUri),
+                MIME_TYPES_ALL);
+        assertNotNull(mimeType);
+        assertEquals("text/plain", mimeType[0]);
+
         /*
          * Tests with a URI that should not have any associated stream MIME types, but with a
          * filter that returns all types. The result should still be null.
          */
-        mimeType = mMockResolver.getStreamTypes(NotePad.Notes.CONTENT_URI, MIME_TYPES_ALL);
+        mimeType = mMockResolver.getStreamTypes(NotePad.Notes.CONTENT_TRASH_URI, MIME_TYPES_ALL);
         assertNull(mimeType);
 
     }
@@ -612,6 +701,96 @@ public class NotePadProviderTest extends ProviderTestCase2<NotePadProvider> {
       assertEquals(inputNoteId, cursor.getInt(0));
     }
 
+    /*
+     * Tests queries for pages of notes, using the limit and after query parameters of the notes
+     * URI. The test notes have distinct modification dates, increasing with their index.
+     */
+    public void testPagedQueries() {
+        final String[] PAGE_PROJECTION = {
+            NotePad.Notes._ID,
+            NotePad.Notes.COLUMN_NAME_TITLE,
+            NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE
+        };
+
+        insertData();
+
+        // Gets the first page, which holds the three most recently modified notes.
+        Uri pageUri = NotePad.Notes.CONTENT_URI.buildUpon()
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_LIMIT, "3")
+                .build();
+        Cursor cursor = mMockResolver.query(pageUri, PAGE_PROJECTION, null, null, null);
+        assertEquals(3, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals(TEST_NOTES[9].title, cursor.getString(1));
+        assertTrue(cursor.moveToLast());
+        assertEquals(TEST_NOTES[7].title, cursor.getString(1));
+
+        // Gets the next page, which starts right after the last note of the first page.
+        pageUri = NotePad.Notes.CONTENT_URI.buildUpon()
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_LIMIT, "3")
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_AFTER,
+                        NotePad.Notes.buildPageAfter(cursor.getLong(2), cursor.getLong(0)))
+                .build();
+        cursor = mMockResolver.query(pageUri, PAGE_PROJECTION, null, null, null);
+        assertEquals(3, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals(TEST_NOTES[6].title, cursor.getString(1));
+
+        // A page position that is not a modification date and an ID is rejected.
+        pageUri = NotePad.Notes.CONTENT_URI.buildUpon()
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_AFTER, "invalid")
+                .build();
+        try {
+            mMockResolver.query(pageUri, PAGE_PROJECTION, null, null, null);
+            fail("Expected an exception for an invalid page position.");
+        } catch (IllegalArgumentException e) {
+            // succeeded, so do nothing.
+        }
+    }
+
+    /*
+     * Tests full-text searches through the search URI. The index is maintained by triggers, so
+     * notes inserted directly into the database must be searchable.
+     */
+    public void testSearches() {
+        insertData();
+
+        // Searches the note contents. Only "This is note 5" contains both terms.
+        Uri searchUri = NotePad.Notes.CONTENT_SEARCH_URI.buildUpon()
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_SEARCH, "note 5")
+                .build();
+        Cursor cursor = mMockResolver.query(
+            searchUri,                                   // the search URI
+            new String[] { NotePad.Notes.COLUMN_NAME_TITLE },  // get the title column
+            null,                                        // no selection criteria
+            null,                                        // no selection arguments
+            null                                         // sort by relevance
+        );
+        assertEquals(1, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals(TEST_NOTES[5].title, cursor.getString(0));
+
+        // Searches with a prefix of a title. Every note title starts with "Note".
+        searchUri = NotePad.Notes.CONTENT_SEARCH_URI.buildUpon()
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_SEARCH, "NOT")
+                .build();
+        cursor = mMockResolver.query(searchUri, null, null, null, null);
+        assertEquals(TEST_NOTES.length, cursor.getCount());
+
+        // Deleting a note removes it from the index.
+        mMockResolver.delete(NotePad.Notes.CONTENT_URI,
+            NotePad.Notes.COLUMN_NAME_TITLE + " = ?", new String[] { "Note0" });
+        cursor = mMockResolver.query(searchUri, null, null, null, null);
+        assertEquals(TEST_NOTES.length - 1, cursor.getCount());
+
+        // Terms that are not in any note return an empty cursor.
+        searchUri = NotePad.Notes.CONTENT_SEARCH_URI.buildUpon()
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_SEARCH, "\"missing")
+                .build();
+        cursor = mMockResolver.query(searchUri, null, null, null, null);
+        assertEquals(0, cursor.getCount());
+    }
+
     /*
      *  Tests inserts into the data model.
      */
@@ -685,6 +864,136 @@ public class NotePadProviderTest extends ProviderTestCase2<NotePadProvider> {
         }
     }
 
+    /*
+     * Tests inserting many notes at once.
+     */
+    public void testBulkInsert() {
+        ContentValues[] notes = new ContentValues[TEST_NOTES.length];
+        for (int i = 0; i < TEST_NOTES.length; i++) {
+            notes[i] = TEST_NOTES[i].getContentValues();
+        }
+
+        // A note without a title or contents gets the defaults, and a category is created.
+        ContentValues bare = new ContentValues();
+        bare.put(NotePad.Notes.COLUMN_NAME_CATEGORY, "imported");
+        ContentValues[] values = new ContentValues[notes.length + 1];
+        System.arraycopy(notes, 0, values, 0, notes.length);
+        values[notes.length] = bare;
+
+        assertEquals(values.length, mMockResolver.bulkInsert(NotePad.Notes.CONTENT_URI, values));
+        Cursor cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, null, null, null, null);
+        assertEquals(values.length, cursor.getCount());
+        cursor.close();
+        assertStat(NotePad.Notes.STAT_KIND_TOTAL, 0, values.length);
+
+        // The contents of each note were inserted with it.
+        cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI,
+                new String[] { NotePad.Notes.COLUMN_NAME_NOTE },
+                NotePad.Notes.COLUMN_NAME_TITLE + " = ?", new String[] { "Note3" }, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(TEST_NOTES[3].note, cursor.getString(0));
+        cursor.close();
+
+        cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI,
+                new String[] { NotePad.Notes.COLUMN_NAME_NOTE },
+                NotePad.Notes.COLUMN_NAME_CATEGORY + " = ?", new String[] { "imported" }, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("", cursor.getString(0));
+        cursor.close();
+
+        // If one of the notes can't be inserted, none of them are.
+        ContentValues bad = new ContentValues();
+        bad.put("no_such_column", 1);
+        try {
+            mMockResolver.bulkInsert(NotePad.Notes.CONTENT_URI, new ContentValues[] {
+                    TEST_NOTES[0].getContentValues(), bad });
+            fail("Expected bulk insert failure for an unknown column");
+        } catch (SQLException e) {
+            // Expected
+        }
+        assertStat(NotePad.Notes.STAT_KIND_TOTAL, 0, values.length);
+
+        // Only the notes and categories URIs accept bulk inserts.
+        try {
+            mMockResolver.bulkInsert(NotePad.Notes.CONTENT_STATS_URI, notes);
+            fail("Expected bulk insert failure for the stats URI");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    /*
+     * Tests that a batch of operations is applied atomically.
+     */
+    public void testApplyBatch() throws Exception {
+        insertData();
+
+        // Inserts a note, recolors it through a back reference, and deletes another note.
+        ArrayList<ContentProviderOperation> operations =
+                new ArrayList<ContentProviderOperation>();
+        operations.add(ContentProviderOperation.newInsert(NotePad.Notes.CONTENT_URI)
+                .withValue(NotePad.Notes.COLUMN_NAME_TITLE, "Batched")
+                .build());
+        operations.add(ContentProviderOperation.newUpdate(NotePad.Notes.CONTENT_URI)
+                .withValue(NotePad.Notes.COLUMN_NAME_COLOR, 0xFFFFCDD2)
+                .withSelection(NotePad.Notes._ID + " = ?", new String[1])
+                .withSelectionBackReference(0, 0)
+                .withExpectedCount(1)
+                .build());
+        operations.add(ContentProviderOperation.newDelete(NotePad.Notes.CONTENT_URI)
+                .withSelection(NotePad.Notes.COLUMN_NAME_TITLE + " = ?",
+                        new String[] { "Note0" })
+                .withYieldAllowed(true)
+                .build());
+        ContentProviderResult[] results = mMockResolver.applyBatch(NotePad.AUTHORITY, operations);
+        assertEquals(3, results.length);
+        assertNotNull(results[0].uri);
+        assertEquals(1, results[1].count.intValue());
+        assertEquals(1, results[2].count.intValue());
+        assertStat(NotePad.Notes.STAT_KIND_TOTAL, 0, TEST_NOTES.length);
+        assertStat(NotePad.Notes.STAT_KIND_COLOR, 0xFFFFCDD2, 1);
+
+        // A failing operation rolls back the ones before it.
+        operations.clear();
+        operations.add(ContentProviderOperation.newDelete(NotePad.Notes.CONTENT_URI)
+                .withSelection(NotePad.Notes.COLUMN_NAME_TITLE + " = ?",
+                        new String[] { "Note1" })
+                .build());
+        operations.add(ContentProviderOperation.newAssertQuery(NotePad.Notes.CONTENT_URI)
+                .withSelection(NotePad.Notes.COLUMN_NAME_TITLE + " = ?",
+                        new String[] { "Note1" })
+                .withExpectedCount(1)
+                .build());
+        try {
+            mMockResolver.applyBatch(NotePad.AUTHORITY, operations);
+            fail("Expected the assertion of the batch to fail");
+        } catch (OperationApplicationException e) {
+            // Expected
+        }
+        assertStat(NotePad.Notes.STAT_KIND_TOTAL, 0, TEST_NOTES.length);
+
+        // A note read during a rolled back batch isn't served from the row cache afterwards.
+        Uri noteUri = results[0].uri;
+        operations.clear();
+        operations.add(ContentProviderOperation.newUpdate(noteUri)
+                .withValue(NotePad.Notes.COLUMN_NAME_TITLE, "Rolled back")
+                .build());
+        operations.add(ContentProviderOperation.newAssertQuery(noteUri)
+                .withValue(NotePad.Notes.COLUMN_NAME_TITLE, "Not the title")
+                .build());
+        try {
+            mMockResolver.applyBatch(NotePad.AUTHORITY, operations);
+            fail("Expected the assertion of the batch to fail");
+        } catch (OperationApplicationException e) {
+            // Expected
+        }
+        Cursor cursor = mMockResolver.query(noteUri,
+                new String[] { NotePad.Notes.COLUMN_NAME_TITLE }, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Batched", cursor.getString(0));
+        cursor.close();
+    }
+
     /*
      * Tests deletions from the data model.
      */
@@ -790,6 +1099,1268 @@ public class NotePadProviderTest extends ProviderTestCase2<NotePadProvider> {
 
     }
 
+    /*
+     * Tests that the note contents, which are stored in their own table, behave like a column of
+     * the notes: they can be read, selected on, updated together with other columns, and are
+     * deleted when their note is purged from the trash.
+     */
+    public void testNoteBodies() {
+        insertData();
+
+        // Updates the contents and the title of a note selected by its contents.
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Renamed");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Changed contents");
+        int rowsUpdated = mMockResolver.update(NotePad.Notes.CONTENT_URI, values,
+            NotePad.Notes.COLUMN_NAME_NOTE + " = ?", new String[] { TEST_NOTES[2].note });
+        assertEquals(1, rowsUpdated);
+
+        // The note is found by its new contents, with its new title.
+        Cursor cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI,
+            new String[] { NotePad.Notes.COLUMN_NAME_TITLE },
+            NotePad.Notes.COLUMN_NAME_NOTE + " = ?", new String[] { "Changed contents" }, null);
+        assertEquals(1, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Renamed", cursor.getString(0));
+
+        // A projection without the contents returns every note.
+        cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI,
+            new String[] { NotePad.Notes._ID, NotePad.Notes.COLUMN_NAME_TITLE },
+            null, null, null);
+        assertEquals(TEST_NOTES.length, cursor.getCount());
+
+        // Deleting a note by its contents, then purging it, also deletes the contents.
+        int rowsDeleted = mMockResolver.delete(NotePad.Notes.CONTENT_URI,
+            NotePad.Notes.COLUMN_NAME_NOTE + " = ?", new String[] { "Changed contents" });
+        assertEquals(1, rowsDeleted);
+        assertEquals(1, purgeExpiredTrash());
+        cursor = mDb.query(NotePadProvider.BODIES_TABLE_NAME, null, null, null, null, null,
+            null);
+        assertEquals(TEST_NOTES.length - 1, cursor.getCount());
+    }
+
+    /*
+     * Tests that edits appended to a note are applied when it is read, searched or selected on,
+     * without being folded into its contents, folded by a compaction, and dropped when the
+     * contents are written whole or the note is purged.
+     */
+    public void testNoteEdits() {
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Hello world");
+        Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        long noteId = ContentUris.parseId(noteUri);
+        Uri editsUri = NotePad.Notes.buildEditsUri(noteUri);
+        String[] projection = { NotePad.Notes.COLUMN_NAME_NOTE };
+
+        // Inserts a comma, appends an exclamation mark past the end, then replaces "Hello".
+        ContentValues[] edits = {
+            buildEdit(5, 0, ","),
+            buildEdit(1000, 0, "!"),
+            buildEdit(0, 5, "Goodbye")
+        };
+        assertEquals(edits.length, mMockResolver.bulkInsert(editsUri, edits));
+        assertEquals(edits.length, DatabaseUtils.queryNumEntries(mDb,
+                NotePadProvider.EDITS_TABLE_NAME));
+
+        // The note reads with the edits applied, and its contents table row is unchanged.
+        Cursor cursor = mMockResolver.query(noteUri, projection, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Goodbye, world!", cursor.getString(0));
+        cursor.close();
+
+        // A compaction folds the edits into the contents.
+        assertEquals(edits.length, getProvider().compactEdits(noteId));
+        assertEquals(0, DatabaseUtils.queryNumEntries(mDb, NotePadProvider.EDITS_TABLE_NAME));
+        assertEquals(0, getProvider().compactEdits(noteId));
+        cursor = mMockResolver.query(noteUri, projection, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Goodbye, world!", cursor.getString(0));
+        cursor.close();
+
+        // A search, a list query of the contents, a query that selects on the contents, and a
+        // read of the contents URI see pending edits, and none of them folds the edits.
+        assertNotNull(mMockResolver.insert(editsUri, buildEdit(0, 7, "Farewell")));
+        cursor = mMockResolver.query(NotePad.Notes.CONTENT_SEARCH_URI.buildUpon()
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_SEARCH, "farewell").build(),
+                projection, null, null, null);
+        assertEquals(1, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Farewell, world!", cursor.getString(0));
+        cursor.close();
+        cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, projection,
+                NotePad.Notes.COLUMN_NAME_NOTE + " = ?", new String[] { "Farewell, world!" },
+                null);
+        assertEquals(1, cursor.getCount());
+        assertEquals(1, cursor.getColumnCount());
+        assertEquals(-1, cursor.getColumnIndex(NotePad.Notes._ID));
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Farewell, world!", cursor.getString(0));
+        cursor.close();
+        assertEquals("Farewell, world!", readBody(NotePad.Notes.buildBodyUri(noteUri),
+                "Farewell, world!".length()));
+        assertEquals(1, DatabaseUtils.queryNumEntries(mDb, NotePadProvider.EDITS_TABLE_NAME));
+
+        // Writing the contents whole drops the pending edits.
+        mMockResolver.insert(editsUri, buildEdit(0, 0, "Lost "));
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Rewritten");
+        assertEquals(1, mMockResolver.update(noteUri, values, null, null));
+        assertEquals(0, DatabaseUtils.queryNumEntries(mDb, NotePadProvider.EDITS_TABLE_NAME));
+        cursor = mMockResolver.query(noteUri, projection, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Rewritten", cursor.getString(0));
+        cursor.close();
+
+        // Purging the deleted note deletes its edits.
+        mMockResolver.insert(editsUri, buildEdit(0, 0, "Gone "));
+        assertEquals(1, mMockResolver.delete(noteUri, null, null));
+        assertEquals(1, purgeExpiredTrash());
+        assertEquals(0, DatabaseUtils.queryNumEntries(mDb, NotePadProvider.EDITS_TABLE_NAME));
+
+        // Edits of a note that doesn't exist, or without a position, are rejected.
+        try {
+            mMockResolver.insert(editsUri, buildEdit(0, 0, "Nowhere"));
+            fail("Inserted edits of a deleted note");
+        } catch (SQLException e) {
+            // Expected
+        }
+        try {
+            mMockResolver.insert(editsUri, new ContentValues());
+            fail("Inserted an edit without a position");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    /*
+     * Tests that a delete moves notes to the trash: they are hidden from every other URI and
+     * from the statistics, can't be written, and stay in the database until they are purged,
+     * once they have been in the trash long enough or when the trash is emptied.
+     */
+    public void testTrash() {
+        insertData();
+        String selection = NotePad.Notes.COLUMN_NAME_TITLE + " = ?";
+        Uri noteUri = ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE,
+            queryNoteId("Note1"));
+
+        // Deletes two notes, one by its URI and one by a selection.
+        long before = System.currentTimeMillis();
+        assertEquals(1, mMockResolver.delete(noteUri, null, null));
+        assertEquals(1, mMockResolver.delete(NotePad.Notes.CONTENT_URI, selection,
+            new String[] { "Note2" }));
+        assertEquals(0, mMockResolver.delete(noteUri, null, null));
+
+        // They are hidden, but their rows are still in the database.
+        Cursor cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, null, null, null, null);
+        assertEquals(TEST_NOTES.length - 2, cursor.getCount());
+        cursor.close();
+        cursor = mMockResolver.query(noteUri, null, null, null, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+        cursor = mMockResolver.query(NotePad.Notes.CONTENT_SEARCH_URI.buildUpon()
+            .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_SEARCH, "Note1").build(),
+            null, null, null, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+        assertStat(NotePad.Notes.STAT_KIND_TOTAL, 0, TEST_NOTES.length - 2);
+        assertStat(NotePad.Notes.STAT_KIND_COLOR, -1, TEST_NOTES.length - 2);
+        assertEquals(TEST_NOTES.length,
+            DatabaseUtils.queryNumEntries(mDb, NotePad.Notes.TABLE_NAME));
+
+        // They can't be updated or edited.
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Changed in the trash");
+        assertEquals(0, mMockResolver.update(noteUri, values, null, null));
+        assertEquals(0, mMockResolver.update(NotePad.Notes.CONTENT_URI, values, selection,
+            new String[] { "Note2" }));
+        try {
+            mMockResolver.insert(NotePad.Notes.buildEditsUri(noteUri), buildEdit(0, 0, "No"));
+            fail("Inserted edits of a note in the trash");
+        } catch (SQLException e) {
+            // Expected
+        }
+
+        // The trash lists them, with the time they were deleted.
+        cursor = mMockResolver.query(NotePad.Notes.CONTENT_TRASH_URI,
+            new String[] { NotePad.Notes.COLUMN_NAME_TITLE, NotePad.Notes.COLUMN_NAME_DELETED_AT },
+            null, null, null);
+        assertEquals(2, cursor.getCount());
+        while (cursor.moveToNext()) {
+            assertTrue(cursor.getLong(1) >= before);
+        }
+        cursor.close();
+
+        // A purge leaves the notes that haven't been in the trash long enough, and deletes
+        // them once they have.
+        assertEquals(0, getProvider().purgeTrash(System.currentTimeMillis()));
+        assertEquals(2, purgeExpiredTrash());
+        assertEquals(TEST_NOTES.length - 2,
+            DatabaseUtils.queryNumEntries(mDb, NotePadProvider.BODIES_TABLE_NAME));
+
+        // Emptying the trash hides its notes at once, and the next purge deletes them.
+        mMockResolver.delete(NotePad.Notes.CONTENT_URI, selection, new String[] { "Note3" });
+        assertEquals(1, mMockResolver.delete(NotePad.Notes.CONTENT_TRASH_URI, null, null));
+        cursor = mMockResolver.query(NotePad.Notes.CONTENT_TRASH_URI, null, null, null, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+        getProvider().purgeTrash(System.currentTimeMillis());
+        assertEquals(TEST_NOTES.length - 3,
+            DatabaseUtils.queryNumEntries(mDb, NotePad.Notes.TABLE_NAME));
+        assertEquals(TEST_NOTES.length - 3,
+            DatabaseUtils.queryNumEntries(mDb, NotePadProvider.BODIES_TABLE_NAME));
+        assertStat(NotePad.Notes.STAT_KIND_TOTAL, 0, TEST_NOTES.length - 3);
+
+        // The purge returned the freed pages to the file system.
+        assertEquals(0, DatabaseUtils.longForQuery(mDb, "PRAGMA freelist_count", null));
+    }
+
+    /**
+     * Purges the notes that would have been in the trash long enough a retention period from
+     * now, which is every note in it.
+     *
+     * @return The number of notes purged.
+     */
+    private int purgeExpiredTrash() {
+        return getProvider().purgeTrash(
+            System.currentTimeMillis() + NotePadProvider.TRASH_RETENTION_MILLIS);
+    }
+
+    /**
+     * Returns the _ID of the test note with the given title.
+     */
+    private long queryNoteId(String title) {
+        Cursor cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI,
+            new String[] { NotePad.Notes._ID }, NotePad.Notes.COLUMN_NAME_TITLE + " = ?",
+            new String[] { title }, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getLong(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Builds the values of an edit that replaces deleteLength characters at position with text.
+     */
+    private static ContentValues buildEdit(int position, int deleteLength, String text) {
+        ContentValues edit = new ContentValues();
+        edit.put(NotePad.Notes.COLUMN_NAME_EDIT_POSITION, position);
+        edit.put(NotePad.Notes.COLUMN_NAME_EDIT_DELETE_LENGTH, deleteLength);
+        edit.put(NotePad.Notes.COLUMN_NAME_EDIT_TEXT, text);
+        return edit;
+    }
+
+    /*
+     * Tests that large contents are stored compressed, and still read, searched, streamed and
+     * edited as text, and that short contents are stored as text.
+     */
+    public void testCompressedBodies() throws FileNotFoundException, IOException {
+        StringBuilder text = new StringBuilder();
+        while (text.length() < NoteBodyCodec.COMPRESS_THRESHOLD_CHARS) {
+            text.append("Meeting notes: budget review, hiring plan, release dates. ");
+        }
+        text.append("Zeppelin");
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Compressed");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, text.toString());
+        Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        String[] projection = { NotePad.Notes.COLUMN_NAME_NOTE };
+
+        // The contents are stored compressed, with the codec marker first.
+        assertEquals("blob", queryStoredType(noteUri));
+
+        // Single note and list queries read the text.
+        Cursor cursor = mMockResolver.query(noteUri, projection, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(Cursor.FIELD_TYPE_STRING, cursor.getType(0));
+        assertEquals(text.toString(), cursor.getString(0));
+        cursor.close();
+        cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, projection,
+                NotePad.Notes.COLUMN_NAME_TITLE + " = ?", new String[] { "Compressed" }, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(text.toString(), cursor.getString(0));
+        cursor.close();
+
+        // A selection on the contents compares their text, in queries and in writes.
+        String selection = NotePad.Notes.COLUMN_NAME_NOTE + " LIKE ?";
+        String[] selectionArgs = { "%budget review%Zeppelin" };
+        cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI,
+                new String[] { NotePad.Notes.COLUMN_NAME_TITLE }, selection, selectionArgs,
+                null);
+        assertEquals(1, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Compressed", cursor.getString(0));
+        cursor.close();
+        ContentValues color = new ContentValues();
+        color.put(NotePad.Notes.COLUMN_NAME_COLOR, 2);
+        assertEquals(1, mMockResolver.update(NotePad.Notes.CONTENT_URI, color, selection,
+                selectionArgs));
+
+        // A sort order on the contents is rejected.
+        try {
+            mMockResolver.query(NotePad.Notes.CONTENT_URI, projection, null, null,
+                    NotePad.Notes.COLUMN_NAME_NOTE + " ASC");
+            fail("Sorted on the contents");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+
+        // The full-text index holds the text.
+        cursor = mMockResolver.query(NotePad.Notes.CONTENT_SEARCH_URI.buildUpon()
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_SEARCH, "zeppelin").build(),
+                projection, null, null, null);
+        assertEquals(1, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals(text.toString(), cursor.getString(0));
+        cursor.close();
+
+        // The stream of the note holds the text.
+        AssetFileDescriptor descriptor =
+                mMockResolver.openTypedAssetFileDescriptor(noteUri, MIME_TYPE_TEXT, null);
+        BufferedReader reader = new BufferedReader(new FileReader(
+                descriptor.getParcelFileDescriptor().getFileDescriptor()));
+        assertEquals("Compressed", reader.readLine());
+        assertEquals("", reader.readLine());
+        assertEquals(text.toString(), reader.readLine());
+        reader.close();
+
+        // Edits apply to the compressed contents, and a compaction compresses the result.
+        mMockResolver.insert(NotePad.Notes.buildEditsUri(noteUri), buildEdit(0, 7, "Standup"));
+        String edited = "Standup" + text.substring(7);
+        cursor = mMockResolver.query(noteUri, projection, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(edited, cursor.getString(0));
+        cursor.close();
+        assertEquals(1, getProvider().compactEdits(ContentUris.parseId(noteUri)));
+        assertEquals("blob", queryStoredType(noteUri));
+        cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, projection,
+                NotePad.Notes.COLUMN_NAME_TITLE + " = ?", new String[] { "Compressed" }, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(edited, cursor.getString(0));
+        cursor.close();
+
+        // Short contents are stored as text, and indexed by the triggers.
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Short again");
+        assertEquals(1, mMockResolver.update(noteUri, values, null, null));
+        assertEquals("text", queryStoredType(noteUri));
+        cursor = mMockResolver.query(NotePad.Notes.CONTENT_SEARCH_URI.buildUpon()
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_SEARCH, "zeppelin").build(),
+                null, null, null, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+
+        // Compressed contents written to several notes at once are indexed too.
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, text.toString());
+        assertEquals(1, mMockResolver.update(NotePad.Notes.CONTENT_URI, values,
+                NotePad.Notes.COLUMN_NAME_TITLE + " = ?", new String[] { "Compressed" }));
+        assertEquals("blob", queryStoredType(noteUri));
+        cursor = mMockResolver.query(NotePad.Notes.CONTENT_SEARCH_URI.buildUpon()
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_SEARCH, "zeppelin").build(),
+                null, null, null, null);
+        assertEquals(1, cursor.getCount());
+        cursor.close();
+
+        // A requeried cursor decodes the new contents at the same position.
+        cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, projection,
+                NotePad.Notes.COLUMN_NAME_TITLE + " = ?", new String[] { "Compressed" }, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(text.toString(), cursor.getString(0));
+        String upper = text.toString().toUpperCase();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, upper);
+        assertEquals(1, mMockResolver.update(noteUri, values, null, null));
+        assertEquals("blob", queryStoredType(noteUri));
+        assertTrue(cursor.requery());
+        assertTrue(cursor.moveToFirst());
+        assertEquals(upper, cursor.getString(0));
+        cursor.close();
+    }
+
+    /*
+     * Tests that a note longer than a few streaming chunks is streamed whole, whether its
+     * contents are stored as text or compressed, and with edits still pending.
+     */
+    public void testStreamLargeNote() throws IOException {
+
+        // Random letters, with characters of two, three and four UTF-8 bytes among them, so
+        // that chunk boundaries fall inside multi-byte sequences of the compressed contents.
+        Random random = new Random(21);
+        StringBuilder text = new StringBuilder();
+        String multiByte = "\u00e9\u20ac\ud83d\udcdd";
+        while (text.length() < NotePadProvider.PIPE_CHUNK_SIZE * 5 / 2) {
+            if (random.nextInt(50) == 0) {
+                text.append(multiByte);
+            } else {
+                text.append((char) ('a' + random.nextInt(26)));
+            }
+        }
+
+        getProvider().setBodyCompressionEnabledForTest(false);
+        Uri textUri = insertNote("Streamed text", text.toString());
+        getProvider().setBodyCompressionEnabledForTest(true);
+        Uri compressedUri = insertNote("Streamed compressed", text.toString());
+        assertEquals("text", queryStoredType(textUri));
+        assertEquals("blob", queryStoredType(compressedUri));
+
+        assertEquals("Streamed text\n\n" + text + "\n", readStream(textUri));
+        assertEquals("Streamed compressed\n\n" + text + "\n", readStream(compressedUri));
+
+        // The contents are streamed with pending edits applied.
+        mMockResolver.insert(NotePad.Notes.buildEditsUri(compressedUri),
+                buildEdit(0, 3, "Edited"));
+        assertEquals("Streamed compressed\n\nEdited" + text.substring(3) + "\n",
+                readStream(compressedUri));
+
+        // A note in the trash has no stream.
+        mMockResolver.delete(textUri, null, null);
+        try {
+            mMockResolver.openTypedAssetFileDescriptor(textUri, MIME_TYPE_TEXT, null);
+            fail("A note in the trash was streamed");
+        } catch (FileNotFoundException e) {
+            // Expected
+        }
+    }
+
+    /*
+     * Tests contents longer than a segment. Queries of the note read the first segment, the
+     * contents URI reads the whole contents or a range of them, and the stream, the full-text
+     * index and edits all see the whole contents.
+     */
+    public void testSegmentedNote() throws IOException {
+        int segment = NotePad.Notes.SEGMENT_CHARS;
+
+        // Random letters, with a surrogate pair where the first segment would end, and a word
+        // to search for in the last segment.
+        Random random = new Random(24);
+        StringBuilder builder = new StringBuilder();
+        while (builder.length() < segment * 3) {
+            builder.append((char) ('a' + random.nextInt(26)));
+            if (builder.length() == segment - 1) {
+                builder.append("\ud83d\udcdd");
+            }
+        }
+        builder.append(" zeppelin end");
+        String text = builder.toString();
+        Uri noteUri = insertNote("Segmented", text);
+        assertTrue(DatabaseUtils.queryNumEntries(mDb, NotePadProvider.SEGMENTS_TABLE_NAME) > 3);
+
+        // Queries of the note read the first segment, which doesn't split the surrogate pair.
+        String[] projection = { NotePad.Notes.COLUMN_NAME_NOTE };
+        Cursor cursor = mMockResolver.query(noteUri, projection, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(text.substring(0, segment - 1), cursor.getString(0));
+        cursor.close();
+
+        // The contents URI reads the whole contents, or a range of them.
+        Uri bodyUri = NotePad.Notes.buildBodyUri(noteUri);
+        assertEquals(text, readBody(bodyUri, text.length()));
+        Uri rangeUri = bodyUri.buildUpon()
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_OFFSET,
+                        Integer.toString(segment * 2 - 10))
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_LENGTH, "20")
+                .build();
+        assertEquals(text.substring(segment * 2 - 10, segment * 2 + 10),
+                readBody(rangeUri, text.length()));
+        rangeUri = bodyUri.buildUpon()
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_OFFSET,
+                        Integer.toString(text.length()))
+                .build();
+        assertEquals("", readBody(rangeUri, text.length()));
+
+        // The stream and the full-text index hold the whole contents.
+        assertEquals("Segmented\n\n" + text + "\n", readStream(noteUri));
+        cursor = mMockResolver.query(NotePad.Notes.CONTENT_SEARCH_URI.buildUpon()
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_SEARCH, "zeppelin").build(),
+                null, null, null, null);
+        assertEquals(1, cursor.getCount());
+        cursor.close();
+
+        // An edit past the first segment is folded into the contents at once.
+        mMockResolver.insert(NotePad.Notes.buildEditsUri(noteUri),
+                buildEdit(text.length() - 3, 3, "END"));
+        assertEquals(0, DatabaseUtils.queryNumEntries(mDb, NotePadProvider.EDITS_TABLE_NAME));
+        String edited = text.substring(0, text.length() - 3) + "END";
+        assertEquals(edited, readBody(bodyUri, edited.length()));
+
+        // Short contents are stored whole, without segments.
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Short again");
+        assertEquals(1, mMockResolver.update(noteUri, values, null, null));
+        assertEquals(0, DatabaseUtils.queryNumEntries(mDb, NotePadProvider.SEGMENTS_TABLE_NAME));
+        assertEquals("Short again", readBody(bodyUri, "Short again".length()));
+
+        // A range that isn't a number of characters is rejected.
+        try {
+            mMockResolver.query(bodyUri.buildUpon()
+                    .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_OFFSET, "-1").build(),
+                    null, null, null, null);
+            fail("A negative offset was accepted");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+
+        // A note in the trash has no contents to read.
+        mMockResolver.delete(noteUri, null, null);
+        assertEquals("", readBody(bodyUri, 0));
+    }
+
+    /*
+     * Tests contents longer than the file threshold. They are stored in a file instead of
+     * segments, opening the contents URI returns the file itself, queries, the stream and the
+     * full-text index see the whole contents, replacing them deletes the file, and an update
+     * of no note leaves no file behind.
+     */
+    public void testFileBackedNote() throws IOException {
+        int segment = NotePad.Notes.SEGMENT_CHARS;
+        Context context = getProvider().getContext();
+        SharedPreferences prefs = context.getSharedPreferences("notepad_prefs",
+                Context.MODE_PRIVATE);
+        prefs.edit().putInt(NotePadProvider.PREF_FILE_BODY_THRESHOLD, segment).commit();
+        try {
+            // Random letters, with a character outside ASCII so UTF-8 takes more bytes than
+            // characters, and a word to search for at the end.
+            Random random = new Random(25);
+            StringBuilder builder = new StringBuilder();
+            while (builder.length() < segment * 2) {
+                builder.append((char) ('a' + random.nextInt(26)));
+                if (builder.length() == segment) {
+                    builder.append('\u00e9');
+                }
+            }
+            builder.append(" zeppelin end");
+            String text = builder.toString();
+            Uri noteUri = insertNote("File", text);
+            assertEquals(0,
+                    DatabaseUtils.queryNumEntries(mDb, NotePadProvider.SEGMENTS_TABLE_NAME));
+            String name = DatabaseUtils.stringForQuery(mDb,
+                    "SELECT note_file FROM note_bodies WHERE note_id = ?",
+                    new String[] { noteUri.getLastPathSegment() });
+            assertNotNull(name);
+            File file = new File(new File(context.getFilesDir(), NotePadProvider.BODY_FILES_DIR),
+                    name);
+            assertTrue(file.exists());
+
+            // Opening the contents URI returns the file, with its length known.
+            Uri bodyUri = NotePad.Notes.buildBodyUri(noteUri);
+            ParcelFileDescriptor pfd = mMockResolver.openFileDescriptor(bodyUri, "r");
+            assertEquals(text.getBytes("UTF-8").length, pfd.getStatSize());
+            Reader reader = new InputStreamReader(
+                    new ParcelFileDescriptor.AutoCloseInputStream(pfd), "UTF-8");
+            StringWriter contents = new StringWriter();
+            try {
+                char[] buffer = new char[8192];
+                int count;
+                while ((count = reader.read(buffer)) != -1) {
+                    contents.write(buffer, 0, count);
+                }
+            } finally {
+                reader.close();
+            }
+            assertEquals(text, contents.toString());
+
+            // Queries of the note read the first segment, and the contents URI reads the whole
+            // contents or a range of them.
+            String[] projection = { NotePad.Notes.COLUMN_NAME_NOTE };
+            Cursor cursor = mMockResolver.query(noteUri, projection, null, null, null);
+            assertTrue(cursor.moveToFirst());
+            assertEquals(text.substring(0, segment), cursor.getString(0));
+            cursor.close();
+            assertEquals(text, readBody(bodyUri, text.length()));
+            Uri rangeUri = bodyUri.buildUpon()
+                    .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_OFFSET,
+                            Integer.toString(segment - 10))
+                    .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_LENGTH, "20")
+                    .build();
+            assertEquals(text.substring(segment - 10, segment + 10),
+                    readBody(rangeUri, text.length()));
+
+            // The stream and the full-text index hold the whole contents.
+            assertEquals("File\n\n" + text + "\n", readStream(noteUri));
+            cursor = mMockResolver.query(NotePad.Notes.CONTENT_SEARCH_URI.buildUpon()
+                    .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_SEARCH, "zeppelin")
+                    .build(), null, null, null, null);
+            assertEquals(1, cursor.getCount());
+            cursor.close();
+
+            // An update that selects no note, or a note that doesn't exist, writes no file.
+            File dir = file.getParentFile();
+            int files = dir.list().length;
+            ContentValues values = new ContentValues();
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE, text);
+            assertEquals(0, mMockResolver.update(NotePad.Notes.CONTENT_URI, values,
+                    NotePad.Notes.COLUMN_NAME_TITLE + " = ?", new String[] { "None" }));
+            assertEquals(0, mMockResolver.update(
+                    ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, 1000000),
+                    values, null, null));
+            assertEquals(files, dir.list().length);
+
+            // Short contents are stored in the database again, and the file is deleted.
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Short again");
+            assertEquals(1, mMockResolver.update(noteUri, values, null, null));
+            assertFalse(file.exists());
+            assertEquals("Short again", readBody(bodyUri, "Short again".length()));
+
+            // Contents in the database are opened through a pipe.
+            pfd = mMockResolver.openFileDescriptor(bodyUri, "r");
+            reader = new InputStreamReader(
+                    new ParcelFileDescriptor.AutoCloseInputStream(pfd), "UTF-8");
+            try {
+                assertEquals("Short again", new BufferedReader(reader).readLine());
+            } finally {
+                reader.close();
+            }
+
+            // The contents can only be opened for reading.
+            try {
+                mMockResolver.openFileDescriptor(bodyUri, "w");
+                fail("The contents were opened for writing");
+            } catch (FileNotFoundException e) {
+                // Expected
+            }
+        } finally {
+            prefs.edit().remove(NotePadProvider.PREF_FILE_BODY_THRESHOLD).commit();
+        }
+    }
+
+    /**
+     * Reads the rows of a contents URI, checking that each one follows the one before it and
+     * reports the length of the whole contents, and returns their text.
+     */
+    private String readBody(Uri bodyUri, long length) {
+        StringBuilder body = new StringBuilder();
+        Cursor cursor = mMockResolver.query(bodyUri, null, null, null, null);
+        try {
+            int offsetColumn =
+                    cursor.getColumnIndexOrThrow(NotePad.Notes.COLUMN_NAME_SEGMENT_OFFSET);
+            int noteColumn = cursor.getColumnIndexOrThrow(NotePad.Notes.COLUMN_NAME_NOTE);
+            int lengthColumn = cursor.getColumnIndexOrThrow(NotePad.Notes.COLUMN_NAME_NOTE_LENGTH);
+            long next = -1;
+            while (cursor.moveToNext()) {
+                long offset = cursor.getLong(offsetColumn);
+                if (next >= 0) {
+                    assertEquals(next, offset);
+                }
+                String text = cursor.getString(noteColumn);
+                assertTrue(text.length() <= NotePad.Notes.SEGMENT_CHARS);
+                assertEquals(length, cursor.getLong(lengthColumn));
+                body.append(text);
+                next = offset + text.length();
+            }
+        } finally {
+            cursor.close();
+        }
+        return body.toString();
+    }
+
+    /*
+     * Tests the export of every note as newline-delimited JSON and as a zip archive. Notes in
+     * the trash are left out, and the contents of each note are exported whole, whether they
+     * are stored as text or compressed, and with edits still pending.
+     */
+    public void testExportNotes() throws IOException, JSONException {
+        insertData();
+        mMockResolver.delete(ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, 1),
+                null, null);
+
+        StringBuilder text = new StringBuilder();
+        while (text.length() < NoteBodyCodec.COMPRESS_THRESHOLD_CHARS) {
+            text.append("A \"quoted\" line\\ with \u20ac\n");
+        }
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Exported/Large");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, text.toString());
+        values.put(NotePad.Notes.COLUMN_NAME_CATEGORY, "work");
+        Uri largeUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        assertEquals("blob", queryStoredType(largeUri));
+        mMockResolver.insert(NotePad.Notes.buildEditsUri(largeUri), buildEdit(0, 1, "One"));
+        String large = "One" + text.substring(1);
+        long largeId = ContentUris.parseId(largeUri);
+
+        // Each line is a note, in the order of their _ID.
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                openExport(NotePad.Notes.EXPORT_TYPE_NDJSON), "UTF-8"));
+        ArrayList<JSONObject> lines = new ArrayList<JSONObject>();
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines.add(new JSONObject(line));
+            }
+        } finally {
+            reader.close();
+        }
+        assertEquals(TEST_NOTES.length, lines.size());
+        for (int index = 1; index < TEST_NOTES.length; index++) {
+            JSONObject note = lines.get(index - 1);
+            assertEquals(index + 1, note.getLong(NotePad.Notes._ID));
+            assertEquals(TEST_NOTES[index].title,
+                    note.getString(NotePad.Notes.COLUMN_NAME_TITLE));
+            assertEquals(TEST_NOTES[index].note, note.getString(NotePad.Notes.COLUMN_NAME_NOTE));
+            assertTrue(note.isNull(NotePad.Notes.COLUMN_NAME_CATEGORY));
+            assertEquals(START_DATE + (index * ONE_WEEK_MILLIS),
+                    note.getLong(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE));
+        }
+        JSONObject last = lines.get(lines.size() - 1);
+        assertEquals(largeId, last.getLong(NotePad.Notes._ID));
+        assertEquals("work", last.getString(NotePad.Notes.COLUMN_NAME_CATEGORY));
+        assertEquals(large, last.getString(NotePad.Notes.COLUMN_NAME_NOTE));
+
+        // Each entry is a note, in the form of its text stream.
+        ZipInputStream zip = new ZipInputStream(openExport(NotePad.Notes.EXPORT_TYPE_ZIP));
+        HashMap<String, String> entries = new HashMap<String, String>();
+        try {
+            ZipEntry entry;
+            while ((entry = zip.getNextEntry()) != null) {
+                entries.put(entry.getName(), readFully(new InputStreamReader(zip, "UTF-8")));
+            }
+        } finally {
+            zip.close();
+        }
+        assertEquals(TEST_NOTES.length, entries.size());
+        assertEquals("Note2\n\nThis is note 2\n", entries.get("3-Note2.txt"));
+        assertEquals("Exported/Large\n\n" + large + "\n",
+                entries.get(largeId + "-Exported_Large.txt"));
+        assertFalse(entries.containsKey("1-Note0.txt"));
+    }
+
+    /*
+     * Tests an import of newline-delimited JSON in batches: the notes are inserted with their
+     * columns and categories, each batch moves the checkpoint, and writing the same stream
+     * again imports nothing more.
+     */
+    public void testImportNotes() throws IOException {
+        getProvider().call(NotePad.Metrics.METHOD_RESET, null, null);
+        String stream =
+                "{\"title\":\"First\",\"note\":\"Line 1\\nLine 2\",\"category\":\"work\"," +
+                        "\"color\":3,\"created\":1000,\"modified\":2000,\"_id\":77}\n" +
+                "{\"title\":\"Second \\u20ac\",\"note\":\"Quoted \\\"text\\\"\"," +
+                        "\"category\":null,\"unknown\":[1,{\"a\":2}]}\n" +
+                "{\"title\":\"Third\"}\n" +
+                "{\"title\":\"Fourth\",\"category\":\"work\"}\n" +
+                "{\"title\":\"Fifth\",\"note\":\"Last\"}\n";
+        Uri importUri = NotePad.Imports.buildImportUri("backup").buildUpon()
+                .appendQueryParameter(NotePad.Imports.QUERY_PARAMETER_BATCH_SIZE, "2").build();
+        writeImport(importUri, stream);
+
+        assertEquals(5, countNotes(null));
+        assertImport("backup", 5, true, null);
+        assertMetrics(getProvider().call(NotePad.Metrics.METHOD_GET, null, null),
+                "bulkInsert imports/*", 3, 0, 5);
+
+        String[] projection = {
+                NotePad.Notes.COLUMN_NAME_NOTE,
+                NotePad.Notes.COLUMN_NAME_CATEGORY,
+                NotePad.Notes.COLUMN_NAME_COLOR,
+                NotePad.Notes.COLUMN_NAME_CREATE_DATE,
+                NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE };
+        Cursor cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, projection,
+                NotePad.Notes.COLUMN_NAME_TITLE + " = ?", new String[] { "First" }, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Line 1\nLine 2", cursor.getString(0));
+        assertEquals("work", cursor.getString(1));
+        assertEquals(3, cursor.getInt(2));
+        assertEquals(1000, cursor.getLong(3));
+        assertEquals(2000, cursor.getLong(4));
+        cursor.close();
+        cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, projection,
+                NotePad.Notes.COLUMN_NAME_TITLE + " = ?", new String[] { "Second \u20ac" }, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Quoted \"text\"", cursor.getString(0));
+        assertNull(cursor.getString(1));
+        assertEquals(-1, cursor.getInt(2));
+        cursor.close();
+        assertEquals(2, countNotes("work"));
+
+        // The checkpoint says that the whole stream was imported, so nothing is imported again.
+        writeImport(importUri, stream);
+        assertEquals(5, countNotes(null));
+        assertImport("backup", 5, true, null);
+
+        // Once its checkpoint is forgotten, the stream is imported again.
+        assertEquals(1, mMockResolver.delete(NotePad.Imports.buildImportUri("backup"), null,
+                null));
+        writeImport(importUri, stream);
+        assertEquals(10, countNotes(null));
+    }
+
+    /*
+     * Tests that an import that stops on an error keeps the batches it committed, and resumes
+     * after them when the stream is written again.
+     */
+    public void testResumeImport() throws IOException {
+        String valid = "{\"title\":\"One\"}\n{\"title\":\"Two\"}\n{\"title\":\"Three\"}\n" +
+                "{\"title\":\"Four\"}\n{\"title\":\"Five\"}\n";
+        String broken = "{\"title\":\"One\"}\n{\"title\":\"Two\"}\n{\"title\":\"Three\"}\n" +
+                "{\"title\": oops\n";
+        Uri importUri = NotePad.Imports.buildImportUri("resumed").buildUpon()
+                .appendQueryParameter(NotePad.Imports.QUERY_PARAMETER_BATCH_SIZE, "2").build();
+
+        // The first batch is committed; the second one fails before it is.
+        writeImport(importUri, broken);
+        assertEquals(2, countNotes(null));
+        Cursor cursor = mMockResolver.query(NotePad.Imports.buildImportUri("resumed"),
+                new String[] { NotePad.Imports.COLUMN_NAME_ERROR }, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        String error = cursor.getString(0);
+        cursor.close();
+        assertNotNull(error);
+        assertImport("resumed", 2, false, error);
+
+        // The second run skips the two notes already imported.
+        writeImport(importUri, valid);
+        assertImport("resumed", 5, true, null);
+        assertEquals(5, countNotes(null));
+        for (String title : new String[] { "One", "Two", "Three", "Four", "Five" }) {
+            assertTrue(title, queryNoteId(title) > 0);
+        }
+    }
+
+    /*
+     * Tests an import of a single note in the form of its text stream, and the URIs and
+     * parameters that can't start an import.
+     */
+    public void testImportText() throws IOException {
+        Uri importUri = NotePad.Imports.buildImportUri("text").buildUpon()
+                .appendQueryParameter(NotePad.Imports.QUERY_PARAMETER_TYPE, MIME_TYPE_TEXT)
+                .build();
+        writeImport(importUri, "Shopping\n\nMilk\nBread\n");
+        assertImport("text", 1, true, null);
+        Cursor cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI,
+                new String[] { NotePad.Notes.COLUMN_NAME_NOTE },
+                NotePad.Notes.COLUMN_NAME_TITLE + " = ?", new String[] { "Shopping" }, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Milk\nBread", cursor.getString(0));
+        cursor.close();
+
+        try {
+            mMockResolver.openOutputStream(NotePad.Imports.buildImportUri("bad").buildUpon()
+                    .appendQueryParameter(NotePad.Imports.QUERY_PARAMETER_BATCH_SIZE, "0")
+                    .build());
+            fail("An import with a batch size of 0 was started");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+        try {
+            mMockResolver.openInputStream(NotePad.Imports.buildImportUri("bad"));
+            fail("An import was opened for reading");
+        } catch (FileNotFoundException e) {
+            // Expected
+        }
+        try {
+            mMockResolver.openOutputStream(NotePad.Notes.CONTENT_URI);
+            fail("The notes were opened for writing");
+        } catch (FileNotFoundException e) {
+            // Expected
+        }
+    }
+
+    /**
+     * Inserts a note with a title and contents, and returns its URI.
+     */
+    private Uri insertNote(String title, String note) {
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, title);
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, note);
+        return mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+    }
+
+    /**
+     * Reads the whole text stream of a note.
+     */
+    private String readStream(Uri noteUri) throws IOException {
+        AssetFileDescriptor descriptor =
+                mMockResolver.openTypedAssetFileDescriptor(noteUri, MIME_TYPE_TEXT, null);
+        Reader reader = new InputStreamReader(new FileInputStream(
+                descriptor.getParcelFileDescriptor().getFileDescriptor()), "UTF-8");
+        try {
+            return readFully(reader);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Writes a stream to an import URI, and waits for the import to end.
+     */
+    private void writeImport(Uri importUri, String stream) throws IOException {
+        OutputStream out = mMockResolver.openOutputStream(importUri);
+        try {
+            out.write(stream.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        assertTrue(getProvider().awaitImportsForTest(IMPORT_TIMEOUT_MILLIS));
+    }
+
+    /**
+     * Checks the checkpoint of an import.
+     */
+    private void assertImport(String name, long records, boolean finished, String error) {
+        Cursor cursor = mMockResolver.query(NotePad.Imports.buildImportUri(name), new String[] {
+                NotePad.Imports.COLUMN_NAME_RECORDS,
+                NotePad.Imports.COLUMN_NAME_FINISHED,
+                NotePad.Imports.COLUMN_NAME_ERROR }, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            assertEquals(records, cursor.getLong(0));
+            assertEquals(finished ? 1 : 0, cursor.getInt(1));
+            assertEquals(error, cursor.getString(2));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Counts the notes, or the notes of a category.
+     */
+    private int countNotes(String category) {
+        Cursor cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, null,
+                category == null ? null : NotePad.Notes.COLUMN_NAME_CATEGORY + " = ?",
+                category == null ? null : new String[] { category }, null);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Opens an export of the notes in a format.
+     */
+    private InputStream openExport(String mimeType) throws FileNotFoundException {
+        AssetFileDescriptor descriptor = mMockResolver.openTypedAssetFileDescriptor(
+                NotePad.Notes.CONTENT_URI, mimeType, null);
+        return new FileInputStream(descriptor.getParcelFileDescriptor().getFileDescriptor());
+    }
+
+    /**
+     * Reads a reader to its end, without closing it.
+     */
+    private static String readFully(Reader reader) throws IOException {
+        StringBuilder text = new StringBuilder();
+        char[] buffer = new char[8192];
+        int count;
+        while ((count = reader.read(buffer)) != -1) {
+            text.append(buffer, 0, count);
+        }
+        return text.toString();
+    }
+
+    /**
+     * Returns the SQLite type of the stored contents of a note.
+     */
+    private String queryStoredType(Uri noteUri) {
+        return DatabaseUtils.stringForQuery(mDb, "SELECT typeof(" +
+                NotePad.Notes.COLUMN_NAME_NOTE + ") FROM " + NotePadProvider.BODIES_TABLE_NAME +
+                " WHERE " + NotePadProvider.BODIES_COLUMN_NOTE_ID + " = ?",
+                new String[] { Long.toString(ContentUris.parseId(noteUri)) });
+    }
+
+    /*
+     * Tests the categories URI, which returns one row per category with the number of notes in
+     * it, and leaves out the notes without a category.
+     */
+    public void testCategories() {
+        insertData();
+
+        // Puts the first three notes in "work", the next two in "home", and leaves the rest
+        // without a category.
+        ContentValues values = new ContentValues();
+        for (int index = 0; index < 5; index++) {
+            values.put(NotePad.Notes.COLUMN_NAME_CATEGORY, index < 3 ? "work" : "home");
+            mMockResolver.update(NotePad.Notes.CONTENT_URI, values,
+                NotePad.Notes.COLUMN_NAME_TITLE + " = ?", new String[] { TEST_NOTES[index].title });
+        }
+
+        String[] projection = {
+            NotePad.Notes._ID,
+            NotePad.Notes.COLUMN_NAME_CATEGORY,
+            NotePad.Notes.COLUMN_NAME_NOTE_COUNT
+        };
+        Cursor cursor = mMockResolver.query(NotePad.Notes.CONTENT_CATEGORIES_URI, projection,
+            null, null, null);
+
+        // The categories are sorted by name.
+        assertEquals(2, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals("home", cursor.getString(1));
+        assertEquals(2, cursor.getInt(2));
+        assertTrue(cursor.moveToNext());
+        assertEquals("work", cursor.getString(1));
+        assertEquals(3, cursor.getInt(2));
+    }
+
+    /*
+     * Tests the categories table. Notes refer to their category by _ID, so renaming or deleting
+     * a category changes the category of all of its notes at once.
+     */
+    public void testCategoriesTable() {
+        insertData();
+
+        // Inserting a category twice returns the same category.
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Categories.COLUMN_NAME_NAME, "work");
+        Uri categoryUri = mMockResolver.insert(NotePad.Categories.CONTENT_URI, values);
+        assertEquals(categoryUri, mMockResolver.insert(NotePad.Categories.CONTENT_URI, values));
+
+        // Writing the name of the category to notes puts them in it.
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_CATEGORY, "work");
+        int rowsUpdated = mMockResolver.update(NotePad.Notes.CONTENT_URI, values,
+            NotePad.Notes.COLUMN_NAME_TITLE + " IN (?, ?)", new String[] { "Note1", "Note2" });
+        assertEquals(2, rowsUpdated);
+        String[] projection = {
+            NotePad.Notes.COLUMN_NAME_CATEGORY, NotePad.Notes.COLUMN_NAME_CATEGORY_ID };
+        Cursor cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, projection,
+            NotePad.Notes.COLUMN_NAME_CATEGORY + " = ?", new String[] { "work" }, null);
+        assertEquals(2, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals(ContentUris.parseId(categoryUri), cursor.getLong(1));
+
+        // Renaming the category updates a single row, and renames it in every note.
+        values.clear();
+        values.put(NotePad.Categories.COLUMN_NAME_NAME, "office");
+        assertEquals(1, mMockResolver.update(categoryUri, values, null, null));
+        cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, projection,
+            NotePad.Notes.COLUMN_NAME_CATEGORY + " = ?", new String[] { "office" }, null);
+        assertEquals(2, cursor.getCount());
+
+        // Deleting the category deletes a single row, and leaves its notes without a category.
+        assertEquals(1, mMockResolver.delete(categoryUri, null, null));
+        cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, projection,
+            NotePad.Notes.COLUMN_NAME_CATEGORY + " IS NOT NULL", null, null);
+        assertEquals(0, cursor.getCount());
+        cursor = mMockResolver.query(NotePad.Categories.CONTENT_URI, null, null, null, null);
+        assertEquals(0, cursor.getCount());
+
+        // A category created again doesn't get the notes of the deleted one back.
+        values.clear();
+        values.put(NotePad.Categories.COLUMN_NAME_NAME, "work");
+        Uri newCategoryUri = mMockResolver.insert(NotePad.Categories.CONTENT_URI, values);
+        assertFalse(categoryUri.equals(newCategoryUri));
+        cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, projection,
+            NotePad.Notes.COLUMN_NAME_CATEGORY + " IS NOT NULL", null, null);
+        assertEquals(0, cursor.getCount());
+    }
+
+    /*
+     * Tests the statistics URI. The counts are kept by triggers, so they must follow inserts,
+     * updates and deletes, including the notes inserted directly into the database.
+     */
+    public void testStats() {
+        insertData();
+
+        // Every test note has no color, and no category.
+        assertStat(NotePad.Notes.STAT_KIND_TOTAL, 0, TEST_NOTES.length);
+        assertStat(NotePad.Notes.STAT_KIND_COLOR, -1, TEST_NOTES.length);
+
+        // Moves three notes to a color and a category.
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_COLOR, 0xFFFFCDD2);
+        values.put(NotePad.Notes.COLUMN_NAME_CATEGORY, "work");
+        mMockResolver.update(NotePad.Notes.CONTENT_URI, values,
+            NotePad.Notes.COLUMN_NAME_TITLE + " IN (?, ?, ?)",
+            new String[] { "Note1", "Note2", "Note3" });
+        assertStat(NotePad.Notes.STAT_KIND_COLOR, -1, TEST_NOTES.length - 3);
+        assertStat(NotePad.Notes.STAT_KIND_COLOR, 0xFFFFCDD2, 3);
+        Cursor cursor = queryStat(NotePad.Notes.STAT_KIND_CATEGORY);
+        assertEquals(1, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals("work", cursor.getString(2));
+        assertEquals(3, cursor.getInt(1));
+
+        // Deletes one of them.
+        mMockResolver.delete(NotePad.Notes.CONTENT_URI,
+            NotePad.Notes.COLUMN_NAME_TITLE + " = ?", new String[] { "Note1" });
+        assertStat(NotePad.Notes.STAT_KIND_TOTAL, 0, TEST_NOTES.length - 1);
+        assertStat(NotePad.Notes.STAT_KIND_COLOR, 0xFFFFCDD2, 2);
+
+        // Deleting the category leaves its count out.
+        mMockResolver.delete(NotePad.Categories.CONTENT_URI, null, null);
+        assertEquals(0, queryStat(NotePad.Notes.STAT_KIND_CATEGORY).getCount());
+    }
+
+    /*
+     * Queries the statistics of one kind. The cursor holds the value, the count and the
+     * category name of each count.
+     */
+    private Cursor queryStat(String kind) {
+        return mMockResolver.query(
+            NotePad.Notes.CONTENT_STATS_URI,
+            new String[] {
+                NotePad.Notes.COLUMN_NAME_STAT_VALUE,
+                NotePad.Notes.COLUMN_NAME_NOTE_COUNT,
+                NotePad.Notes.COLUMN_NAME_CATEGORY },
+            NotePad.Notes.COLUMN_NAME_STAT_KIND + " = ?",
+            new String[] { kind },
+            null);
+    }
+
+    /*
+     * Asserts the count of one value of a kind of statistics.
+     */
+    private void assertStat(String kind, long value, int expectedCount) {
+        Cursor cursor = queryStat(kind);
+        try {
+            while (cursor.moveToNext()) {
+                if (cursor.getLong(0) == value) {
+                    assertEquals(expectedCount, cursor.getInt(1));
+                    return;
+                }
+            }
+            fail("No " + kind + " count for " + value);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /*
+     * Tests that repeated reads of a single note are served from the row cache, and that
+     * writes to the note invalidate its cached row.
+     */
+    public void testRowCache() {
+        NoteRowCache cache = getProvider().getRowCacheForTest();
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Cached");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Cached contents");
+        Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        String[] projection = { NotePad.Notes.COLUMN_NAME_TITLE, NotePad.Notes.COLUMN_NAME_NOTE };
+
+        // The first read misses, and the second one hits.
+        int hits = cache.hitCount();
+        int misses = cache.missCount();
+        Cursor cursor = mMockResolver.query(noteUri, projection, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Cached", cursor.getString(0));
+        cursor = mMockResolver.query(noteUri, projection, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Cached contents", cursor.getString(1));
+        assertEquals(misses + 1, cache.missCount());
+        assertEquals(hits + 1, cache.hitCount());
+
+        // An update invalidates the row, and a requery sees the new values.
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Updated contents");
+        assertEquals(1, mMockResolver.update(noteUri, values, null, null));
+        assertTrue(cursor.requery());
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Updated contents", cursor.getString(1));
+        assertEquals(misses + 2, cache.missCount());
+
+        // An update of every note invalidates every row.
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Renamed");
+        mMockResolver.update(NotePad.Notes.CONTENT_URI, values, null, null);
+        cursor = mMockResolver.query(noteUri, projection, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Renamed", cursor.getString(0));
+
+        // A deleted note is no longer returned.
+        assertEquals(1, mMockResolver.delete(noteUri, null, null));
+        cursor = mMockResolver.query(noteUri, projection, null, null, null);
+        assertEquals(0, cursor.getCount());
+    }
+
+    /*
+     * Tests that writes which change nothing don't notify observers.
+     */
+    public void testNoOpWritesDontNotify() {
+        insertData();
+        NotificationCoalescer notifier = getProvider().getNotifierForTest();
+        long changes = notifier.getChangeCount();
+
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Nothing");
+        String selection = NotePad.Notes.COLUMN_NAME_TITLE + " = ?";
+        String[] selectionArgs = { "No such note" };
+        assertEquals(0, mMockResolver.update(NotePad.Notes.CONTENT_URI, values, selection,
+                selectionArgs));
+        assertEquals(0, mMockResolver.delete(NotePad.Notes.CONTENT_URI, selection,
+                selectionArgs));
+        assertEquals(changes, notifier.getChangeCount());
+
+        // A write that changes a note still notifies.
+        selectionArgs[0] = "Note0";
+        assertEquals(1, mMockResolver.update(NotePad.Notes.CONTENT_URI, values, selection,
+                selectionArgs));
+        assertEquals(changes + 1, notifier.getChangeCount());
+        getProvider().flushNotifications();
+        assertEquals(notifier.getChangeCount(), notifier.getNotificationCount());
+    }
+
+    /*
+     * Tests the metrics returned by call() and printed by dump().
+     */
+    public void testMetrics() throws IOException {
+        NotePadProvider provider = getProvider();
+        assertNull(provider.call(NotePad.Metrics.METHOD_RESET, null, null));
+        assertTrue(provider.call(NotePad.Metrics.METHOD_GET, null, null).isEmpty());
+
+        // Inserts two notes, queries them, updates one and deletes both.
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Measured");
+        Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        Cursor cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, null, null, null, null);
+        cursor.close();
+        cursor = mMockResolver.query(noteUri, null, null, null, null);
+        cursor.close();
+        mMockResolver.update(noteUri, values, null, null);
+
+        // Opens the contents of one as a file, and shares it as text. The two are counted apart.
+        mMockResolver.openFileDescriptor(NotePad.Notes.buildBodyUri(noteUri), "r").close();
+        mMockResolver.openTypedAssetFileDescriptor(noteUri, MIME_TYPE_TEXT, null).close();
+
+        mMockResolver.delete(NotePad.Notes.CONTENT_URI,
+                NotePad.Notes.COLUMN_NAME_TITLE + " = ?", new String[] { "Measured" });
+
+        // An unknown URI is counted as an error.
+        try {
+            mMockResolver.delete(Uri.withAppendedPath(NotePad.Notes.CONTENT_URI, "unknown"),
+                    null, null);
+            fail("Deleting an unknown URI should throw");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+
+        Bundle metrics = provider.call(NotePad.Metrics.METHOD_GET, null, null);
+        assertMetrics(metrics, "insert notes", 2, 0, 2);
+        assertMetrics(metrics, "query notes", 1, 0, 2);
+        assertMetrics(metrics, "query notes/#", 1, 0, 1);
+        assertMetrics(metrics, "update notes/#", 1, 0, 1);
+        assertMetrics(metrics, "openFile notes/#/body", 1, 0, 1);
+        assertMetrics(metrics, "openTypedAssetFile notes/#", 1, 0, 1);
+        assertMetrics(metrics, "delete notes", 1, 0, 2);
+        assertMetrics(metrics, "delete unknown", 1, 1, 0);
+        assertNull(metrics.getBundle("query categories"));
+
+        // The percentiles are in order.
+        Bundle inserts = metrics.getBundle("insert notes");
+        assertTrue(inserts.getLong(NotePad.Metrics.KEY_P50_MICROS)
+                <= inserts.getLong(NotePad.Metrics.KEY_P95_MICROS));
+        assertTrue(inserts.getLong(NotePad.Metrics.KEY_P95_MICROS)
+                <= inserts.getLong(NotePad.Metrics.KEY_P99_MICROS));
+
+        // dump() prints a line for each operation and URI pattern that was called.
+        StringWriter dump = new StringWriter();
+        provider.dump(null, new PrintWriter(dump), new String[0]);
+        assertTrue(dump.toString(), dump.toString().contains("update notes/#"));
+
+        // Resetting clears the metrics.
+        provider.call(NotePad.Metrics.METHOD_RESET, null, null);
+        assertTrue(provider.call(NotePad.Metrics.METHOD_GET, null, null).isEmpty());
+    }
+
+    /**
+     * Checks the metrics of an operation on a URI pattern.
+     */
+    private void assertMetrics(Bundle metrics, String key, long calls, long errors, long rows) {
+        Bundle values = metrics.getBundle(key);
+        assertNotNull(key, values);
+        assertEquals(key, calls, values.getLong(NotePad.Metrics.KEY_CALLS));
+        assertEquals(key, errors, values.getLong(NotePad.Metrics.KEY_ERRORS));
+        assertEquals(key, rows, values.getLong(NotePad.Metrics.KEY_ROWS));
+    }
+
     // A utility for converting note data to a ContentValues map.
     private static class NoteInfo {
         String title;
@@ -0,0 +1,254 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.test.ProviderTestCase2;
+
+/**
+ * Checks that every query shape the provider issues is served by an index. Each test runs
+ * EXPLAIN QUERY PLAN for one shape and fails if SQLite falls back to a full table scan.
+ *
+ * The SQL is the provider's own: the queries of URIs are built by
+ * {@link NotePadProvider#buildQuerySql(Uri, String[], String, String)} with the projections and
+ * selections that the application's activities pass in, and the other statements are the
+ * provider's constants. Placeholders are left unbound, which doesn't change the plan.
+ */
+public class NotePadQueryPlanTest extends ProviderTestCase2<NotePadProvider> {
+
+    // The column of EXPLAIN QUERY PLAN output that describes each step of the plan
+    private static final String COLUMN_DETAIL = "detail";
+
+    // The projection of the notes list, as queried by NotesList
+    private static final String[] LIST_PROJECTION = {
+        NotePad.Notes._ID,
+        NotePad.Notes.COLUMN_NAME_TITLE,
+        NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
+        NotePad.Notes.COLUMN_NAME_COLOR
+    };
+
+    // Contains an SQLite database, used to explain the queries
+    private SQLiteDatabase mDb;
+
+    public NotePadQueryPlanTest() {
+        super(NotePadProvider.class, NotePad.AUTHORITY);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDb = getProvider().getOpenHelperForTest().getWritableDatabase();
+    }
+
+    /*
+     * The notes list, as queried by NotesList. The index on the modification date must also
+     * provide the sort order, so no temporary B-tree is allowed.
+     */
+    public void testNotesListPlan() {
+        String plan = assertNoTableScan(getProvider().buildQuerySql(NotePad.Notes.CONTENT_URI,
+                LIST_PROJECTION, null, null));
+        assertFalse(plan, plan.contains("TEMP B-TREE"));
+    }
+
+    /*
+     * A page of the notes list after the first one. The page seeks into the modification date
+     * index, which also provides the sort order.
+     */
+    public void testNotesPagePlan() {
+        Uri uri = NotePad.Notes.CONTENT_URI.buildUpon()
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_LIMIT, "50")
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_AFTER,
+                        NotePad.Notes.buildPageAfter(100, 10))
+                .build();
+        String plan = assertNoTableScan(getProvider().buildQuerySql(uri, LIST_PROJECTION, null,
+                NotePad.Notes.DEFAULT_SORT_ORDER));
+        assertFalse(plan, plan.contains("TEMP B-TREE"));
+    }
+
+    /*
+     * A single note with its contents and its edits, as read into the row cache for NoteEditor.
+     * The contents and the edits are joined in by the _ID of the note, and the index on the
+     * edits also provides their order, so no temporary B-tree is allowed.
+     */
+    public void testNoteIdPlan() {
+        String plan = assertNoTableScan(NotePadProvider.sNoteByIdQuery);
+        assertFalse(plan, plan.contains("TEMP B-TREE"));
+    }
+
+    /*
+     * The categories, as queried by NoteEditor and CategoryManagerActivity. The unique index on
+     * the name also provides the sort order, so no temporary B-tree is allowed.
+     */
+    public void testCategoriesPlan() {
+        String plan = assertNoTableScan(getProvider().buildQuerySql(
+                NotePad.Categories.CONTENT_URI,
+                new String[] { NotePad.Categories._ID, NotePad.Categories.COLUMN_NAME_NAME },
+                null, null));
+        assertFalse(plan, plan.contains("TEMP B-TREE"));
+    }
+
+    /*
+     * The categories in use with their note counts, as queried through the notes/categories
+     * URI. The grouping reads the category index in order and looks up each category by
+     * primary key. Sorting the groups by name needs a temporary B-tree, but it only holds one
+     * row per category.
+     */
+    public void testNoteCategoriesPlan() {
+        assertNoTableScan(getProvider().buildQuerySql(NotePad.Notes.CONTENT_CATEGORIES_URI,
+                new String[] {
+                    NotePad.Notes._ID,
+                    NotePad.Notes.COLUMN_NAME_CATEGORY,
+                    NotePad.Notes.COLUMN_NAME_NOTE_COUNT
+                },
+                null, null));
+    }
+
+    /*
+     * The notes of one category, most recently modified first. The category is found by name
+     * through the categories join.
+     */
+    public void testNotesInCategoryPlan() {
+        assertNoTableScan(getProvider().buildQuerySql(NotePad.Notes.CONTENT_URI,
+                LIST_PROJECTION, NotePad.Notes.COLUMN_NAME_CATEGORY + " = 'work'", null));
+    }
+
+    /*
+     * The notes of one color.
+     */
+    public void testNotesOfColorPlan() {
+        assertNoTableScan(getProvider().buildQuerySql(NotePad.Notes.CONTENT_URI,
+                LIST_PROJECTION, NotePad.Notes.COLUMN_NAME_COLOR + " = " + 0xFFFFCDD2, null));
+    }
+
+    /*
+     * A full-text search, as queried by NotesList through the search URI. The FTS table is
+     * searched through its own index, and the notes are looked up by primary key.
+     */
+    public void testSearchPlan() {
+        Uri uri = NotePad.Notes.CONTENT_SEARCH_URI.buildUpon()
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_SEARCH, "note")
+                .build();
+        assertNoTableScan(getProvider().buildQuerySql(uri, LIST_PROJECTION, null, null));
+    }
+
+    /*
+     * The trash, most recently deleted first. The partial index on the deletion time only
+     * holds the notes in the trash, and also provides the sort order, so no temporary B-tree is
+     * allowed.
+     */
+    public void testTrashPlan() {
+        String plan = assertNoTableScan(getProvider().buildQuerySql(
+                NotePad.Notes.CONTENT_TRASH_URI,
+                new String[] {
+                    NotePad.Notes._ID,
+                    NotePad.Notes.COLUMN_NAME_TITLE,
+                    NotePad.Notes.COLUMN_NAME_DELETED_AT
+                },
+                null, null));
+        assertFalse(plan, plan.contains("TEMP B-TREE"));
+    }
+
+    /*
+     * A batch of the purge, which finds the expired notes through the partial index on the
+     * deletion time, and deletes them by primary key.
+     */
+    public void testPurgePlan() {
+        String plan = assertNoTableScan(NotePadProvider.PURGE_SQL);
+        assertTrue(plan, plan.contains("notes_deleted_index"));
+    }
+
+    /*
+     * A page of an export of the notes. The page seeks into the notes by _ID, which also
+     * provides the sort order, and looks up each note's category by primary key.
+     */
+    public void testExportPlan() {
+        String plan = assertNoTableScan(NotePadProvider.EXPORT_PAGE_SQL);
+        assertFalse(plan, plan.contains("TEMP B-TREE"));
+    }
+
+    /*
+     * A page of the segments of a note's contents. The page seeks into the note's segments by
+     * the primary key, which also provides the sort order.
+     */
+    public void testSegmentPagePlan() {
+        String plan = assertNoTableScan(NotePadProvider.SEGMENT_PAGE_SQL);
+        assertTrue(plan, plan.contains("sqlite_autoindex_note_segments_1"));
+        assertFalse(plan, plan.contains("TEMP B-TREE"));
+    }
+
+    /**
+     * Explains the query and fails if any step of the plan scans a table without an index.
+     * Scans of a virtual table go through the virtual table's own index, so they are allowed.
+     *
+     * @param sql The query to explain.
+     * @return The steps of the plan, one per line, for further checks.
+     */
+    private String assertNoTableScan(String sql) {
+        StringBuilder plan = new StringBuilder();
+        Cursor c = mDb.rawQuery("EXPLAIN QUERY PLAN " + sql, null);
+        try {
+            int detailIndex = c.getColumnIndexOrThrow(COLUMN_DETAIL);
+            while (c.moveToNext()) {
+                plan.append(c.getString(detailIndex)).append('\n');
+            }
+        } finally {
+            c.close();
+        }
+
+        for (String step : plan.toString().split("\n")) {
+            if (isTable(scannedName(step)) && !step.contains(" USING ")
+                    && !step.contains("VIRTUAL TABLE")) {
+                fail("Full table scan in plan for " + sql + ":\n" + plan);
+            }
+        }
+        return plan.toString();
+    }
+
+    /**
+     * Returns the name of the table or subquery scanned by a step of a query plan, or null if
+     * the step is not a scan. Depending on the SQLite version, a step reads either
+     * "SCAN TABLE notes ..." or "SCAN notes ...".
+     */
+    private static String scannedName(String step) {
+        String[] words = step.split(" ");
+        if (words.length < 2 || !"SCAN".equals(words[0])) {
+            return null;
+        }
+        if ("TABLE".equals(words[1]) && words.length > 2) {
+            return words[2];
+        }
+        return words[1];
+    }
+
+    /**
+     * Tests whether the name is one of the database's tables, rather than a subquery.
+     */
+    private boolean isTable(String name) {
+        if (name == null) {
+            return false;
+        }
+        Cursor c = mDb.rawQuery("SELECT 1 FROM sqlite_master WHERE type = 'table' AND name = ?",
+                new String[] { name });
+        try {
+            return c.getCount() > 0;
+        } finally {
+            c.close();
+        }
+    }
+}
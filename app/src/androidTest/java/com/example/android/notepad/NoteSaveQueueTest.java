@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.test.InstrumentationTestCase;
+
+/**
+ * Tests that {@link NoteSaveQueue} merges the saves of a note into one write of its latest
+ * state, and that waiting for the queue waits until the saves are written. The queue writes to
+ * the application's own provider, so the writes are counted with the provider's metrics.
+ */
+public class NoteSaveQueueTest extends InstrumentationTestCase {
+
+    // How long to wait for the queue, in milliseconds
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    // The metrics keys of updates and deletes of a single note
+    private static final String NOTE_UPDATES = "update notes/#";
+    private static final String NOTE_DELETES = "delete notes/#";
+
+    private ContentResolver mResolver;
+    private NoteSaveQueue mQueue;
+
+    // The note that the tests save
+    private Uri mNoteUri;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mResolver = getInstrumentation().getTargetContext().getContentResolver();
+        mQueue = NoteSaveQueue.getInstance(getInstrumentation().getTargetContext());
+        assertTrue(mQueue.awaitWrites(null, TIMEOUT_MILLIS));
+
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Queued");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Saved through the queue");
+        mNoteUri = mResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        assertNotNull(mNoteUri);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mResolver.delete(mNoteUri, null, null);
+        super.tearDown();
+    }
+
+    /*
+     * Several saves of a note are written as one update with the latest value of each column.
+     */
+    public void testSavesAreMerged() {
+        long updates = countCalls(NOTE_UPDATES);
+        mQueue.update(mNoteUri, buildValues(NotePad.Notes.COLUMN_NAME_TITLE, "First"));
+        mQueue.update(mNoteUri, buildValues(NotePad.Notes.COLUMN_NAME_NOTE, "Changed"));
+        mQueue.update(mNoteUri, buildValues(NotePad.Notes.COLUMN_NAME_TITLE, "Last"));
+        assertTrue(mQueue.awaitWrites(mNoteUri, TIMEOUT_MILLIS));
+
+        assertEquals(updates + 1, countCalls(NOTE_UPDATES));
+        Cursor c = mResolver.query(mNoteUri, new String[] {
+                NotePad.Notes.COLUMN_NAME_TITLE, NotePad.Notes.COLUMN_NAME_NOTE }, null, null,
+                null);
+        try {
+            assertTrue(c.moveToFirst());
+            assertEquals("Last", c.getString(0));
+            assertEquals("Changed", c.getString(1));
+        } finally {
+            c.close();
+        }
+    }
+
+    /*
+     * A delete drops the updates of the note still queued before it.
+     */
+    public void testDeleteDropsUpdates() {
+        long updates = countCalls(NOTE_UPDATES);
+        long deletes = countCalls(NOTE_DELETES);
+        mQueue.update(mNoteUri, buildValues(NotePad.Notes.COLUMN_NAME_TITLE, "Dropped"));
+        mQueue.delete(mNoteUri);
+        mQueue.update(mNoteUri, buildValues(NotePad.Notes.COLUMN_NAME_TITLE, "Also dropped"));
+        assertTrue(mQueue.awaitWrites(null, TIMEOUT_MILLIS));
+
+        assertEquals(updates, countCalls(NOTE_UPDATES));
+        assertEquals(deletes + 1, countCalls(NOTE_DELETES));
+        Cursor c = mResolver.query(mNoteUri, null, null, null, null);
+        try {
+            assertEquals(0, c.getCount());
+        } finally {
+            c.close();
+        }
+    }
+
+    /*
+     * Readers get the values of the saves that aren't written yet, including the contents that
+     * queued edits leave, and nothing once the saves are written.
+     */
+    public void testPendingValues() {
+        ContentValues edit = new ContentValues();
+        edit.put(NotePad.Notes.COLUMN_NAME_EDIT_POSITION, 0);
+        edit.put(NotePad.Notes.COLUMN_NAME_EDIT_DELETE_LENGTH, 5);
+        edit.put(NotePad.Notes.COLUMN_NAME_EDIT_TEXT, "Written");
+        mQueue.update(mNoteUri, buildValues(NotePad.Notes.COLUMN_NAME_TITLE, "Pending"),
+                new ContentValues[] { edit }, "Written through the queue");
+
+        ContentValues pending = mQueue.getPendingValues(mNoteUri);
+        assertEquals("Pending", pending.getAsString(NotePad.Notes.COLUMN_NAME_TITLE));
+        assertEquals("Written through the queue",
+                pending.getAsString(NotePad.Notes.COLUMN_NAME_NOTE));
+
+        assertTrue(mQueue.awaitWrites(mNoteUri, TIMEOUT_MILLIS));
+        assertEquals(0, mQueue.getPendingValues(mNoteUri).size());
+
+        mQueue.delete(mNoteUri);
+        assertNull(mQueue.getPendingValues(mNoteUri));
+        assertTrue(mQueue.awaitWrites(mNoteUri, TIMEOUT_MILLIS));
+    }
+
+    /**
+     * Builds values that set one column.
+     */
+    private static ContentValues buildValues(String column, String value) {
+        ContentValues values = new ContentValues();
+        values.put(column, value);
+        return values;
+    }
+
+    /**
+     * Returns the number of calls that the provider has recorded under a metrics key.
+     */
+    private long countCalls(String key) {
+        Bundle metrics = mResolver.call(NotePad.Notes.CONTENT_URI, NotePad.Metrics.METHOD_GET,
+                null, null);
+        Bundle calls = metrics.getBundle(key);
+        return calls == null ? 0 : calls.getLong(NotePad.Metrics.KEY_CALLS);
+    }
+}
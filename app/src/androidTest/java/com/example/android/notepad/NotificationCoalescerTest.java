@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.ContentUris;
+import android.database.ContentObserver;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.mock.MockContentResolver;
+
+import java.util.ArrayList;
+
+/**
+ * Tests that {@link NotificationCoalescer} merges bursts of changes into one notification per
+ * URI.
+ */
+public class NotificationCoalescerTest extends AndroidTestCase {
+
+    // A window long enough that a test can report several changes within it
+    private static final long WINDOW_MILLIS = 500;
+
+    // Records the URIs that the coalescer notifies, in order
+    private RecordingResolver mResolver;
+
+    private NotificationCoalescer mCoalescer;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mResolver = new RecordingResolver();
+        mCoalescer = new NotificationCoalescer(mResolver, WINDOW_MILLIS);
+    }
+
+    /*
+     * Changes to the same URI within a window are notified once, and different URIs once each,
+     * in the order they first changed.
+     */
+    public void testFlushMergesChanges() {
+        Uri note1 = ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, 1);
+        Uri note2 = ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, 2);
+        mCoalescer.notifyChange(note1);
+        mCoalescer.notifyChange(NotePad.Notes.CONTENT_URI);
+        mCoalescer.notifyChange(note1);
+        mCoalescer.notifyChange(note2);
+        assertEquals(0, mResolver.getNotified().size());
+
+        mCoalescer.flush();
+        ArrayList<Uri> notified = mResolver.getNotified();
+        assertEquals(3, notified.size());
+        assertEquals(note1, notified.get(0));
+        assertEquals(NotePad.Notes.CONTENT_URI, notified.get(1));
+        assertEquals(note2, notified.get(2));
+        assertEquals(4, mCoalescer.getChangeCount());
+        assertEquals(3, mCoalescer.getNotificationCount());
+
+        // Nothing is pending after a flush.
+        mCoalescer.flush();
+        assertEquals(3, mResolver.getNotified().size());
+    }
+
+    /*
+     * Without a flush, the changes are notified when the window ends.
+     */
+    public void testWindowEnds() {
+        mCoalescer.notifyChange(NotePad.Notes.CONTENT_URI);
+        mCoalescer.notifyChange(NotePad.Notes.CONTENT_URI);
+
+        long deadline = SystemClock.uptimeMillis() + WINDOW_MILLIS * 10;
+        while (mResolver.getNotified().isEmpty() && SystemClock.uptimeMillis() < deadline) {
+            SystemClock.sleep(10);
+        }
+        assertEquals(1, mResolver.getNotified().size());
+        assertEquals(1, mCoalescer.getNotificationCount());
+    }
+
+    /**
+     * A resolver that records the URIs it is asked to notify, instead of notifying them.
+     */
+    private static class RecordingResolver extends MockContentResolver {
+
+        private final ArrayList<Uri> mNotified = new ArrayList<Uri>();
+
+        @Override
+        public void notifyChange(Uri uri, ContentObserver observer, boolean syncToNetwork) {
+            synchronized (mNotified) {
+                mNotified.add(uri);
+            }
+        }
+
+        ArrayList<Uri> getNotified() {
+            synchronized (mNotified) {
+                return new ArrayList<Uri>(mNotified);
+            }
+        }
+    }
+}
@@ -17,10 +17,10 @@
 package com.example.android.notepad;
 
 import android.app.ListActivity;
+import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.DialogInterface;
 import android.database.Cursor;
-import android.net.Uri;
 import android.os.Bundle;
 import android.view.ContextMenu;
 import android.view.Menu;
@@ -47,16 +47,16 @@ public class CategoryManagerActivity extends ListActivity {
     }
 
     private void fillData() {
-        // 查询所有不同的分类
+        // 查询分类表中的所有分类，包括还没有笔记的分类
         mCursor = managedQuery(
-                NotePad.Notes.CONTENT_URI,
-                new String[]{NotePad.Notes._ID, NotePad.Notes.COLUMN_NAME_CATEGORY},
-                NotePad.Notes.COLUMN_NAME_CATEGORY + " IS NOT NULL AND " + NotePad.Notes.COLUMN_NAME_CATEGORY + " != ''",
+                NotePad.Categories.CONTENT_URI,
+                new String[]{NotePad.Categories._ID, NotePad.Categories.COLUMN_NAME_NAME},
                 null,
-                NotePad.Notes.COLUMN_NAME_CATEGORY + " ASC"
+                null,
+                null
         );
 
-        String[] from = new String[]{NotePad.Notes.COLUMN_NAME_CATEGORY};
+        String[] from = new String[]{NotePad.Categories.COLUMN_NAME_NAME};
         int[] to = new int[]{android.R.id.text1};
 
         SimpleCursorAdapter categories = new SimpleCursorAdapter(this,
@@ -110,8 +110,11 @@ public class CategoryManagerActivity extends ListActivity {
             public void onClick(DialogInterface dialog, int which) {
                 String categoryName = input.getText().toString();
                 if (!categoryName.isEmpty()) {
-                    // 这里我们只是添加到UI，实际分类将在笔记创建时保存
-                    // 可以考虑创建一个专门的分类表来存储分类信息
+                    // 保存到分类表，同名分类已存在时不会重复创建
+                    ContentValues values = new ContentValues();
+                    values.put(NotePad.Categories.COLUMN_NAME_NAME, categoryName);
+                    getContentResolver().insert(NotePad.Categories.CONTENT_URI, values);
+                    fillData();
                 }
             }
         });
@@ -126,11 +129,9 @@ public class CategoryManagerActivity extends ListActivity {
     }
 
     private void deleteCategory(long id) {
-        // 删除分类逻辑 - 实际上我们会将该分类下的笔记设为无分类
-        Uri noteUri = Uri.parse(NotePad.Notes.CONTENT_URI + "/" + id);
-        ContentValues values = new ContentValues();
-        values.put(NotePad.Notes.COLUMN_NAME_CATEGORY, "");
-        getContentResolver().update(noteUri, values, null, null);
+        // 删除分类逻辑 - 只删除分类表中的一行，该分类下的笔记随之变为无分类
+        getContentResolver().delete(
+                ContentUris.withAppendedId(NotePad.Categories.CONTENT_ID_URI_BASE, id), null, null);
         fillData();
     }
 }
@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.ContentValues;
+import android.text.Editable;
+import android.text.TextWatcher;
+
+import java.util.ArrayList;
+
+/**
+ * Records the changes made to the text of a note since it was last saved, as the edits that the
+ * provider stores in place of the whole contents (see {@link NotePad.Notes#buildEditsUri}).
+ * NoteEditor watches its text with a journal, and saves a small change to a large note as the
+ * journal's edits.
+ *
+ * Typing, and deleting or replacing what was just typed, extend the last edit instead of adding
+ * one, so a burst of typing at one place is a single edit. A journal that grows past its limits
+ * stops recording, and the note is saved whole.
+ */
+final class EditJournal implements TextWatcher {
+
+    /**
+     * The shortest note, in characters, whose changes are worth saving as edits. A shorter note
+     * costs about as much to write whole, and isn't left with edits to fold in later.
+     */
+    static final int MIN_NOTE_LENGTH = 4096;
+
+    // The most edits, and inserted characters, that a journal records before it gives up
+    private static final int MAX_EDITS = 64;
+    private static final int MAX_INSERTED_LENGTH = 4096;
+
+    /**
+     * One edit: replaces the deleteLength characters at position with the inserted text.
+     */
+    private static final class Edit {
+        final int position;
+        final int deleteLength;
+        final StringBuilder inserted;
+
+        Edit(int position, int deleteLength, CharSequence inserted) {
+            this.position = position;
+            this.deleteLength = deleteLength;
+            this.inserted = new StringBuilder(inserted);
+        }
+    }
+
+    // The edits since the last reset, in order
+    private final ArrayList<Edit> mEdits = new ArrayList<Edit>();
+
+    // The number of characters inserted by the edits
+    private int mInsertedLength;
+
+    // Whether the journal went over its limits since the last reset
+    private boolean mOverflowed;
+
+    /**
+     * Applies an edit to a text. The position and the length are clamped to the text, so that
+     * an edit recorded against an older version of the text still applies. The provider folds
+     * stored edits into the contents with the same method.
+     *
+     * @param text The text to edit.
+     * @param position The position of the edit, in characters.
+     * @param deleteLength The number of characters to delete at the position.
+     * @param inserted The text to insert at the position, or null for none.
+     */
+    static void apply(StringBuilder text, int position, int deleteLength, String inserted) {
+        int start = Math.max(0, Math.min(position, text.length()));
+        int end = start + Math.max(0, Math.min(deleteLength, text.length() - start));
+        text.replace(start, end, inserted == null ? "" : inserted);
+    }
+
+    /**
+     * Forgets the recorded edits. Called once the text matches what the provider holds.
+     */
+    void reset() {
+        mEdits.clear();
+        mInsertedLength = 0;
+        mOverflowed = false;
+    }
+
+    /**
+     * Tests whether the recorded edits turn one text into another.
+     *
+     * @param base The text before the edits, as the provider holds it.
+     * @param text The text after the edits.
+     * @return True if the journal is within its limits, and applying its edits to the base
+     * gives the text.
+     */
+    boolean replays(String base, String text) {
+        if (mOverflowed || base == null || text == null) {
+            return false;
+        }
+        StringBuilder replayed = new StringBuilder(base);
+        for (Edit edit : mEdits) {
+            apply(replayed, edit.position, edit.deleteLength, edit.inserted.toString());
+        }
+        return text.contentEquals(replayed);
+    }
+
+    /**
+     * Returns the recorded edits as the values to insert into the edits URI of the note, in
+     * order.
+     */
+    ContentValues[] getEdits() {
+        ContentValues[] edits = new ContentValues[mEdits.size()];
+        for (int i = 0; i < edits.length; i++) {
+            Edit edit = mEdits.get(i);
+            edits[i] = new ContentValues();
+            edits[i].put(NotePad.Notes.COLUMN_NAME_EDIT_POSITION, edit.position);
+            edits[i].put(NotePad.Notes.COLUMN_NAME_EDIT_DELETE_LENGTH, edit.deleteLength);
+            edits[i].put(NotePad.Notes.COLUMN_NAME_EDIT_TEXT, edit.inserted.toString());
+        }
+        return edits;
+    }
+
+    @Override
+    public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+        // The change is recorded once it is made.
+    }
+
+    /**
+     * Records that the before characters at start were replaced with count characters.
+     */
+    @Override
+    public void onTextChanged(CharSequence s, int start, int before, int count) {
+        if (mOverflowed) {
+            return;
+        }
+        CharSequence inserted = s.subSequence(start, start + count);
+
+        // Replacing the end of the text that the last edit inserted, which is what typing,
+        // deleting what was just typed and an input method's composing text all do, extends
+        // the last edit.
+        Edit last = mEdits.isEmpty() ? null : mEdits.get(mEdits.size() - 1);
+        if (last != null) {
+            int lastEnd = last.position + last.inserted.length();
+            if (start >= last.position && start + before == lastEnd) {
+                last.inserted.replace(start - last.position, last.inserted.length(), "");
+                last.inserted.append(inserted);
+                mInsertedLength += count - before;
+                checkLimits();
+                return;
+            }
+        }
+
+        mEdits.add(new Edit(start, before, inserted));
+        mInsertedLength += count;
+        checkLimits();
+    }
+
+    @Override
+    public void afterTextChanged(Editable s) {
+        // The change was recorded by onTextChanged().
+    }
+
+    /**
+     * Stops recording if the journal went over its limits, so that the note is saved whole.
+     */
+    private void checkLimits() {
+        if (mEdits.size() > MAX_EDITS || mInsertedLength > MAX_INSERTED_LENGTH) {
+            mEdits.clear();
+            mInsertedLength = 0;
+            mOverflowed = true;
+        }
+    }
+}
@@ -0,0 +1,449 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.database.CharArrayBuffer;
+import android.database.CrossProcessCursorWrapper;
+import android.database.Cursor;
+import android.database.CursorWindow;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabaseCorruptException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Converts note contents to and from the form that the provider stores them in. Short contents
+ * are stored as TEXT, as they always were. Contents of {@link #COMPRESS_THRESHOLD_CHARS} or more
+ * are stored as a BLOB: a codec marker byte, followed by the UTF-8 text compressed with that
+ * codec. The type of the stored value tells the two apart, so contents stored before compression
+ * was added read as they are.
+ *
+ * Every read of the contents table decodes what it reads, so clients of the provider only ever
+ * see text. SQLite can't compare a compressed value with text, so the provider evaluates a
+ * selection on the contents against the full-text index, which holds the text of every note,
+ * and rejects a sort order on them.
+ *
+ * Contents longer than {@link NotePad.Notes#SEGMENT_CHARS} are also split into segments, each
+ * encoded on its own as above, so that a range of them can be read without reading the rest.
+ * The contents table keeps the first segment, which is what queries of the notes read.
+ */
+final class NoteBodyCodec {
+
+    /**
+     * The shortest contents, in characters, that are compressed. Shorter contents fit in a page
+     * of the database with the rest of their row, so compressing them saves little space and
+     * costs time on every read.
+     */
+    static final int COMPRESS_THRESHOLD_CHARS = 4096;
+
+    /**
+     * The codec marker of contents compressed with DEFLATE, in the zlib format
+     */
+    static final byte CODEC_DEFLATE = 1;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // The size of the buffer that contents are compressed into and inflated into, in bytes
+    private static final int BUFFER_SIZE = 8192;
+
+    private NoteBodyCodec() {
+    }
+
+    /**
+     * Encodes contents for storage. Contents that are long enough are compressed, if that makes
+     * them at least an eighth smaller; anything else is stored as it is.
+     *
+     * @param body The contents to store, as a client wrote them.
+     * @return The value to store: a compressed BLOB, or the contents unchanged.
+     */
+    static Object encode(Object body) {
+        if (!(body instanceof String) || ((String) body).length() < COMPRESS_THRESHOLD_CHARS) {
+            return body;
+        }
+        byte[] text = ((String) body).getBytes(UTF_8);
+
+        // Notes are rewritten on every save, so the fastest level is used. Text still compresses
+        // to a fraction of its size at that level.
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(text.length / 2 + 1);
+        out.write(CODEC_DEFLATE);
+        try {
+            deflater.setInput(text);
+            deflater.finish();
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+        } finally {
+            deflater.end();
+        }
+
+        if (out.size() > text.length - text.length / 8) {
+            return body;
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Returns whether contents are stored in segments.
+     */
+    static boolean isSegmented(Object body) {
+        return body instanceof String && ((String) body).length() > NotePad.Notes.SEGMENT_CHARS;
+    }
+
+    /**
+     * Returns the part of contents that the contents table holds: the first segment of contents
+     * stored in segments, or the contents themselves.
+     */
+    static Object head(Object body) {
+        if (!isSegmented(body)) {
+            return body;
+        }
+        String text = (String) body;
+        return text.substring(0, segmentEnd(text, 0));
+    }
+
+    /**
+     * Returns the length of contents stored in segments, which the contents table holds with
+     * their first segment, or null for contents stored whole.
+     */
+    static Long getSegmentedLength(Object body) {
+        return isSegmented(body) ? Long.valueOf(((String) body).length()) : null;
+    }
+
+    /**
+     * Returns where the segment of text that starts at an offset ends: after
+     * {@link NotePad.Notes#SEGMENT_CHARS} characters, or at the end of the text. A segment
+     * never ends between the two halves of a surrogate pair, since half a pair can't be stored
+     * as text, so it may be a character shorter.
+     *
+     * @param text The text.
+     * @param start The offset of the segment.
+     * @return The offset after the last character of the segment.
+     */
+    static int segmentEnd(String text, int start) {
+        int end = Math.min(start + NotePad.Notes.SEGMENT_CHARS, text.length());
+        if (end < text.length() && end > start + 1
+                && Character.isHighSurrogate(text.charAt(end - 1))
+                && Character.isLowSurrogate(text.charAt(end))) {
+            end--;
+        }
+        return end;
+    }
+
+    /**
+     * Decodes a stored BLOB back into the contents.
+     *
+     * @param stored The stored value, starting with its codec marker.
+     * @return The contents.
+     * @throws SQLiteDatabaseCorruptException if the codec is unknown or the value is corrupt.
+     */
+    static String decode(byte[] stored) {
+        if (stored.length == 0 || stored[0] != CODEC_DEFLATE) {
+            throw new SQLiteDatabaseCorruptException("Unknown note contents codec " +
+                    (stored.length == 0 ? "(empty)" : Integer.toString(stored[0])));
+        }
+
+        Inflater inflater = new Inflater();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(stored.length * 4);
+        try {
+            inflater.setInput(stored, 1, stored.length - 1);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (!inflater.finished()) {
+                int length = inflater.inflate(buffer);
+                if (length == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new SQLiteDatabaseCorruptException("Truncated note contents");
+                }
+                out.write(buffer, 0, length);
+            }
+        } catch (DataFormatException e) {
+            throw new SQLiteDatabaseCorruptException("Corrupt note contents: " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+        return new String(out.toByteArray(), UTF_8);
+    }
+
+    /**
+     * An output stream that decodes a stored BLOB written to it, and writes the contents, as
+     * text, to a writer. The stored value can be written in chunks of any size, so long contents
+     * are decoded with buffers of a fixed size, reused for every chunk, without holding either
+     * the value or the text whole. Call {@link #finish()} once the whole value is written, and
+     * {@link #end()} in any case; closing the stream does both, and closes the writer.
+     */
+    static final class DecodingOutputStream extends OutputStream {
+
+        // The writer of the contents
+        private final Writer mOut;
+
+        private final Inflater mInflater = new Inflater();
+
+        // Turns the inflated UTF-8 bytes into text. A character whose bytes are split between
+        // two chunks is left in the byte buffer until the rest of its bytes are inflated.
+        private final CharsetDecoder mDecoder = UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        private final ByteBuffer mBytes = ByteBuffer.allocate(BUFFER_SIZE);
+        private final CharBuffer mChars = CharBuffer.allocate(BUFFER_SIZE);
+
+        // Whether the codec marker has been written
+        private boolean mMarkerRead;
+
+        /**
+         * Creates a stream that writes the decoded contents to a writer.
+         *
+         * @param out The writer of the contents.
+         */
+        DecodingOutputStream(Writer out) {
+            mOut = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        /**
+         * Decodes the next bytes of the stored value.
+         *
+         * @throws SQLiteDatabaseCorruptException if the codec is unknown or the value is corrupt.
+         */
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (!mMarkerRead && len > 0) {
+                if (b[off] != CODEC_DEFLATE) {
+                    throw new SQLiteDatabaseCorruptException("Unknown note contents codec " +
+                            b[off]);
+                }
+                mMarkerRead = true;
+                off++;
+                len--;
+            }
+            if (len == 0) {
+                return;
+            }
+            if (mInflater.finished()) {
+                throw new SQLiteDatabaseCorruptException(
+                        "Corrupt note contents: data after the end");
+            }
+
+            mInflater.setInput(b, off, len);
+            try {
+                while (!mInflater.finished()) {
+                    int length = mInflater.inflate(mBytes.array(), mBytes.position(),
+                            mBytes.remaining());
+                    if (length == 0) {
+                        if (mInflater.needsDictionary()) {
+                            throw new SQLiteDatabaseCorruptException("Truncated note contents");
+                        }
+                        if (mInflater.needsInput()) {
+                            // This chunk is used up; the next one carries on from here.
+                            break;
+                        }
+                    }
+                    mBytes.position(mBytes.position() + length);
+                    decodeBytes(false);
+                }
+            } catch (DataFormatException e) {
+                throw new SQLiteDatabaseCorruptException("Corrupt note contents: " +
+                        e.getMessage());
+            }
+        }
+
+        /**
+         * Checks that the whole stored value has been written, writes the last of the text, and
+         * flushes the writer.
+         *
+         * @throws SQLiteDatabaseCorruptException if the value ended early.
+         */
+        void finish() throws IOException {
+            if (!mInflater.finished()) {
+                throw new SQLiteDatabaseCorruptException("Truncated note contents");
+            }
+            decodeBytes(true);
+            mDecoder.flush(mChars);
+            writeChars();
+            mOut.flush();
+        }
+
+        /**
+         * Releases the inflater, without closing the writer. Called once the stream is no longer
+         * written to, whether or not the value was written whole.
+         */
+        void end() {
+            mInflater.end();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                finish();
+            } finally {
+                end();
+                mOut.close();
+            }
+        }
+
+        /**
+         * Decodes the inflated bytes into text and writes it. Bytes of a character that isn't
+         * complete yet stay in the buffer, unless this is the end of the contents.
+         */
+        private void decodeBytes(boolean endOfInput) throws IOException {
+            mBytes.flip();
+            while (mDecoder.decode(mBytes, mChars, endOfInput).isOverflow()) {
+                writeChars();
+            }
+            writeChars();
+            mBytes.compact();
+        }
+
+        // Writes the decoded characters, and empties their buffer
+        private void writeChars() throws IOException {
+            mOut.write(mChars.array(), 0, mChars.position());
+            mChars.clear();
+        }
+    }
+
+    /**
+     * Reads contents from a column of a cursor over the contents table, decoding them if they
+     * are compressed.
+     *
+     * @return The contents, or null if the column is null.
+     */
+    static String getString(Cursor c, int column) {
+        if (c.getType(column) == Cursor.FIELD_TYPE_BLOB) {
+            return decode(c.getBlob(column));
+        }
+        return c.getString(column);
+    }
+
+    /**
+     * A cursor that returns the contents column of the cursor it wraps decoded, as text. The
+     * contents of the current row are decoded once, however many times they are read. The
+     * decoded contents are kept for the stored value they were decoded from, not for the row's
+     * position, since a requery or a refilled window can put different contents at the same
+     * position.
+     *
+     * The cursor doesn't hand out the window of the cursor it wraps, which holds the stored
+     * values; a client in another process is sent a window that the cursor fills itself.
+     */
+    static final class DecodingCursor extends CrossProcessCursorWrapper {
+
+        // The column of the contents
+        private final int mColumn;
+
+        // The stored value that was decoded last, and its decoded contents
+        private byte[] mDecodedBlob;
+        private String mDecoded;
+
+        /**
+         * Wraps a cursor.
+         *
+         * @param cursor The cursor to wrap.
+         * @param column The column of the contents in the cursor.
+         */
+        DecodingCursor(Cursor cursor, int column) {
+            super(cursor);
+            mColumn = column;
+        }
+
+        /**
+         * Returns the decoded contents of the current row, or null if the stored value isn't
+         * compressed.
+         */
+        private String getDecoded() {
+            if (super.getType(mColumn) != Cursor.FIELD_TYPE_BLOB) {
+                return null;
+            }
+            // Reading the stored value copies it, but comparing it costs far less than inflating
+            // it again.
+            byte[] blob = super.getBlob(mColumn);
+            if (!Arrays.equals(blob, mDecodedBlob)) {
+                mDecoded = decode(blob);
+                mDecodedBlob = blob;
+            }
+            return mDecoded;
+        }
+
+        @Override
+        public int getType(int columnIndex) {
+            if (columnIndex == mColumn && getDecoded() != null) {
+                return Cursor.FIELD_TYPE_STRING;
+            }
+            return super.getType(columnIndex);
+        }
+
+        @Override
+        public String getString(int columnIndex) {
+            if (columnIndex == mColumn) {
+                String decoded = getDecoded();
+                if (decoded != null) {
+                    return decoded;
+                }
+            }
+            return super.getString(columnIndex);
+        }
+
+        @Override
+        public byte[] getBlob(int columnIndex) {
+            if (columnIndex == mColumn) {
+                // Text read as a BLOB is its UTF-8 bytes, as SQLite returns it.
+                String decoded = getDecoded();
+                if (decoded != null) {
+                    return decoded.getBytes(UTF_8);
+                }
+            }
+            return super.getBlob(columnIndex);
+        }
+
+        @Override
+        public void copyStringToBuffer(int columnIndex, CharArrayBuffer buffer) {
+            if (columnIndex == mColumn) {
+                String decoded = getDecoded();
+                if (decoded != null) {
+                    char[] chars = decoded.toCharArray();
+                    buffer.data = chars;
+                    buffer.sizeCopied = chars.length;
+                    return;
+                }
+            }
+            super.copyStringToBuffer(columnIndex, buffer);
+        }
+
+        @Override
+        public CursorWindow getWindow() {
+            return null;
+        }
+
+        @Override
+        public void fillWindow(int position, CursorWindow window) {
+            DatabaseUtils.cursorFillWindow(this, position, window);
+        }
+    }
+}
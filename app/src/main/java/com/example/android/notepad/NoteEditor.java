@@ -33,6 +33,8 @@ import android.graphics.Paint;
 import android.graphics.Rect;
 import android.net.Uri;
 import android.os.Bundle;
+import android.text.Editable;
+import android.text.TextWatcher;
 import android.util.AttributeSet;
 import android.util.Log;
 import android.view.Menu;
@@ -96,13 +98,13 @@ public class NoteEditor extends Activity {
     };
 
     /*
-     * Creates a projection that returns the note ID and the note contents.
+     * Creates a projection that returns the note ID and title. The contents are read through
+     * the note's contents URI, since the note's row only holds the start of long contents.
      */
     private static final String[] PROJECTION =
             new String[] {
                     NotePad.Notes._ID,
                     NotePad.Notes.COLUMN_NAME_TITLE,
-                    NotePad.Notes.COLUMN_NAME_NOTE,
                     NotePad.Notes.COLUMN_NAME_CATEGORY,
                     NotePad.Notes.COLUMN_NAME_COLOR  // 添加颜色列
             };
@@ -110,6 +112,17 @@ public class NoteEditor extends Activity {
     // A label for the saved state of the activity
     private static final String ORIGINAL_CONTENT = "origContent";
 
+    /**
+     * The preference that holds how often the note is saved while the user types, in
+     * milliseconds. Zero turns autosave off, and the note is only saved when the editor pauses.
+     */
+    static final String PREF_AUTOSAVE_INTERVAL = "autosave_interval_millis";
+
+    /**
+     * The default autosave interval, in milliseconds.
+     */
+    static final long DEFAULT_AUTOSAVE_INTERVAL_MILLIS = 5000;
+
     // This Activity can be started by more than one action. Each action is represented
     // as a "state" constant
     private static final int STATE_EDIT = 0;
@@ -122,6 +135,47 @@ public class NoteEditor extends Activity {
     private EditText mText;
     private String mOriginalContent;
 
+    // The content of the note as the provider last stored it, or null if it isn't known. Saves
+    // that wouldn't change it are skipped.
+    private NoteFingerprint mSavedFingerprint;
+
+    // The changes made to the text since it last matched mSavedFingerprint. A small change to a
+    // large note is saved as these edits rather than as the whole text.
+    private final EditJournal mJournal = new EditJournal();
+
+    // How often the note is autosaved while the user types, in milliseconds, or 0 for never
+    private long mAutosaveInterval;
+
+    // Whether an autosave is scheduled
+    private boolean mAutosavePending;
+
+    // Saves the note while the user types
+    private final Runnable mAutosave = new Runnable() {
+        @Override
+        public void run() {
+            mAutosavePending = false;
+            autosaveNote();
+        }
+    };
+
+    // Schedules an autosave when the text changes
+    private final TextWatcher mAutosaveWatcher = new TextWatcher() {
+        @Override
+        public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            // The autosave is scheduled once the change is made.
+        }
+
+        @Override
+        public void onTextChanged(CharSequence s, int start, int before, int count) {
+            // The autosave is scheduled once the change is made.
+        }
+
+        @Override
+        public void afterTextChanged(Editable s) {
+            scheduleAutosave();
+        }
+    };
+
     /**
      * Defines a custom EditText View that draws lines between each line of text that is displayed.
      */
@@ -272,6 +326,10 @@ public class NoteEditor extends Activity {
         // Gets a handle to the EditText in the the layout.
         mText = (EditText) findViewById(R.id.note);
 
+        // Records the changes that the user makes to the text, and saves them as the user types.
+        mText.addTextChangedListener(mJournal);
+        mText.addTextChangedListener(mAutosaveWatcher);
+
         /*
          * If this Activity had stopped previously, its state was written the ORIGINAL_CONTENT
          * location in the saved Instance state. This gets the state.
@@ -298,6 +356,16 @@ public class NoteEditor extends Activity {
          * process. This tests that it's not null, since it should always contain data.
          */
         if (mCursor != null) {
+            // Gets the saves of the note that aren't written yet, which are shown instead of
+            // what the provider holds. This is done before the requery, so that a save written
+            // in between is in one or the other.
+            ContentValues pending = NoteSaveQueue.getInstance(this).getPendingValues(mUri);
+            if (pending == null) {
+                // The note is being deleted, so there is nothing to edit.
+                finish();
+                return;
+            }
+
             // Requery in case something changed while paused (such as the title)
             mCursor.requery();
 
@@ -311,8 +379,7 @@ public class NoteEditor extends Activity {
             // Modifies the window title for the Activity according to the current Activity state.
             if (mState == STATE_EDIT) {
                 // Set the title of the Activity to include the note title
-                int colTitleIndex = mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_TITLE);
-                String title = mCursor.getString(colTitleIndex);
+                String title = getNoteString(pending, NotePad.Notes.COLUMN_NAME_TITLE);
                 Resources res = getResources();
                 String text = String.format(res.getString(R.string.title_edit), title);
                 setTitle(text);
@@ -328,10 +395,11 @@ public class NoteEditor extends Activity {
              * it should not move the cursor. This helps the user to continue editing or entering.
              */
 
-            // Gets the note text from the Cursor and puts it in the TextView, but doesn't change
-            // the text cursor's position.
-            int colNoteIndex = mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_NOTE);
-            String note = mCursor.getString(colNoteIndex);
+            // Gets the note text, a segment at a time, and puts it in the TextView, but doesn't
+            // change the text cursor's position.
+            String note = pending.containsKey(NotePad.Notes.COLUMN_NAME_NOTE)
+                    ? pending.getAsString(NotePad.Notes.COLUMN_NAME_NOTE)
+                    : readNoteBody(getContentResolver(), mUri);
             mText.setTextKeepState(note);
 
             // Stores the original note text, to allow the user to revert changes.
@@ -339,11 +407,29 @@ public class NoteEditor extends Activity {
                 mOriginalContent = note;
             }
 
+            // Remembers what the provider will hold once the queued saves are written, so that
+            // saving it unchanged can be skipped. The cursor was just requeried, so this includes
+            // changes made while paused.
+            String category = getNoteString(pending, NotePad.Notes.COLUMN_NAME_CATEGORY);
+            int color = getNoteInt(pending, NotePad.Notes.COLUMN_NAME_COLOR);
+            mSavedFingerprint = new NoteFingerprint(
+                    note,
+                    getNoteString(pending, NotePad.Notes.COLUMN_NAME_TITLE),
+                    category,
+                    color);
+
+            // The text now matches what the provider holds, so changes are recorded from here,
+            // and setting the text above doesn't need an autosave.
+            mJournal.reset();
+            cancelAutosave();
+            mAutosaveInterval = getSharedPreferences("notepad_prefs", MODE_PRIVATE)
+                    .getLong(PREF_AUTOSAVE_INTERVAL, DEFAULT_AUTOSAVE_INTERVAL_MILLIS);
+
             // 初始化分类选择器
-            initCategorySpinner();
+            initCategorySpinner(category);
 
             // 初始化颜色选择器
-            initColorSpinner();
+            initColorSpinner(color);
 
             /*
              * Something is wrong. The Cursor should always contain data. Report an error in the
@@ -355,6 +441,31 @@ public class NoteEditor extends Activity {
         }
     }
 
+    /**
+     * Returns a text column of the note: the value of a save that isn't written yet, if there is
+     * one, or else the value in mCursor.
+     *
+     * @param pending The values of the saves that aren't written yet.
+     * @param column The name of the column.
+     */
+    private String getNoteString(ContentValues pending, String column) {
+        if (pending.containsKey(column)) {
+            return pending.getAsString(column);
+        }
+        return mCursor.getString(mCursor.getColumnIndex(column));
+    }
+
+    /**
+     * Returns an integer column of the note, like {@link #getNoteString(ContentValues, String)}.
+     */
+    private int getNoteInt(ContentValues pending, String column) {
+        Integer value = pending.getAsInteger(column);
+        if (value != null) {
+            return value;
+        }
+        return mCursor.getInt(mCursor.getColumnIndex(column));
+    }
+
     /**
      * This method is called when an Activity loses focus during its normal operation, and is then
      * later on killed. The Activity has a chance to save its state so that the system can restore
@@ -386,6 +497,9 @@ public class NoteEditor extends Activity {
     protected void onPause() {
         super.onPause();
 
+        // The note is saved below, so a scheduled autosave isn't needed.
+        cancelAutosave();
+
         /*
          * Tests to see that the query operation didn't fail (see onCreate()). The Cursor object
          * will exist, even if no records were returned, unless the query failed because of some
@@ -424,6 +538,57 @@ public class NoteEditor extends Activity {
         }
     }
 
+    /**
+     * Schedules an autosave of the note, unless one is already scheduled. The autosave isn't
+     * pushed back by further typing, so while the user types the note is saved once per
+     * autosave interval. This bounds what a crash can lose, and spreads the
+     * cost of saving over the session instead of paying it all when the editor pauses.
+     */
+    private void scheduleAutosave() {
+        if (mAutosavePending || mAutosaveInterval <= 0 || mCursor == null) {
+            return;
+        }
+        mAutosavePending = true;
+        mText.postDelayed(mAutosave, mAutosaveInterval);
+    }
+
+    /**
+     * Cancels a scheduled autosave.
+     */
+    private void cancelAutosave() {
+        mText.removeCallbacks(mAutosave);
+        mAutosavePending = false;
+    }
+
+    /**
+     * Saves the note while the user types. updateNote() skips the save if the note is unchanged
+     * since the last one, and queues the write to NoteSaveQueue, so the UI thread doesn't wait
+     * for the database.
+     *
+     * An empty note isn't saved, since leaving the editor deletes it. A new note keeps its
+     * state, so its title still follows the text until the editor pauses.
+     */
+    private void autosaveNote() {
+        if (mCursor == null || isFinishing()) {
+            return;
+        }
+        String text = mText.getText().toString();
+        if (text.length() == 0) {
+            return;
+        }
+        updateNote(text, mState == STATE_INSERT ? text : null);
+    }
+
+    /**
+     * This method is called when the Activity is no longer visible. The process may be killed
+     * from now on, so the saves that are still queued are written now.
+     */
+    @Override
+    protected void onStop() {
+        super.onStop();
+        NoteSaveQueue.getInstance(this).flush();
+    }
+
     /**
      * This method is called when the user clicks the device's Menu button the first time for
      * this Activity. Android passes in a Menu object that is populated with items.
@@ -458,11 +623,10 @@ public class NoteEditor extends Activity {
 
     @Override
     public boolean onPrepareOptionsMenu(Menu menu) {
-        // Check if note has changed and enable/disable the revert option
-        int colNoteIndex = mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_NOTE);
-        String savedNote = mCursor.getString(colNoteIndex);
+        // Check if note has changed and enable/disable the revert option. Reverting restores
+        // the text the editor was opened with, which autosaves don't change.
         String currentNote = mText.getText().toString();
-        if (savedNote.equals(currentNote)) {
+        if (currentNote.equals(mOriginalContent)) {
             menu.findItem(R.id.menu_revert).setVisible(false);
         } else {
             menu.findItem(R.id.menu_revert).setVisible(true);
@@ -540,9 +704,8 @@ public class NoteEditor extends Activity {
                 // (moveToFirst() returns true), then this gets the note data from it.
                 if (orig != null) {
                     if (orig.moveToFirst()) {
-                        int colNoteIndex = mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_NOTE);
                         int colTitleIndex = mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_TITLE);
-                        text = orig.getString(colNoteIndex);
+                        text = readNoteBody(cr, uri);
                         title = orig.getString(colTitleIndex);
                     }
 
@@ -563,6 +726,30 @@ public class NoteEditor extends Activity {
     }
 //END_INCLUDE(paste)
 
+    /**
+     * Reads the whole contents of a note through its contents URI, a segment at a time. A query
+     * of the note itself only reads the start of long contents.
+     *
+     * @param resolver The resolver to query.
+     * @param noteUri The note ID URI of the note.
+     * @return The contents, or an empty string if the note has none.
+     */
+    private static String readNoteBody(ContentResolver resolver, Uri noteUri) {
+        StringBuilder body = new StringBuilder();
+        Cursor c = resolver.query(NotePad.Notes.buildBodyUri(noteUri),
+                new String[] { NotePad.Notes.COLUMN_NAME_NOTE }, null, null, null);
+        if (c != null) {
+            try {
+                while (c.moveToNext()) {
+                    body.append(c.getString(0));
+                }
+            } finally {
+                c.close();
+            }
+        }
+        return body.toString();
+    }
+
     /**
      * Replaces the current note contents with the text and title provided as arguments.
      * @param text The new note contents to use.
@@ -603,8 +790,39 @@ public class NoteEditor extends Activity {
             values.put(NotePad.Notes.COLUMN_NAME_TITLE, title);
         }
 
-        // This puts the desired notes text into the map.
-        values.put(NotePad.Notes.COLUMN_NAME_NOTE, text);
+        /*
+         * Skips the write if it wouldn't change what the provider holds. The modification date
+         * isn't part of the fingerprint, so leaving a note unchanged doesn't move it to the top
+         * of the list, and observers aren't notified.
+         */
+        String savedTitle = mSavedFingerprint == null ? null : mSavedFingerprint.getTitle();
+        NoteFingerprint fingerprint = new NoteFingerprint(
+                text,
+                values.containsKey(NotePad.Notes.COLUMN_NAME_TITLE)
+                        ? values.getAsString(NotePad.Notes.COLUMN_NAME_TITLE) : savedTitle,
+                mCurrentCategory,
+                mCurrentColor);
+        if (fingerprint.equals(mSavedFingerprint)) {
+            mJournal.reset();
+            return;
+        }
+
+        /*
+         * Writes the text only if it changed. A small change to a large note is written as the
+         * edits that the journal recorded, if they turn the saved text into this one; otherwise
+         * the whole text is written.
+         */
+        String savedText = mSavedFingerprint == null ? null : mSavedFingerprint.getText();
+        ContentValues[] edits = null;
+        if (!text.equals(savedText)) {
+            if (savedText != null && savedText.length() >= EditJournal.MIN_NOTE_LENGTH
+                    && mJournal.replays(savedText, text)) {
+                edits = mJournal.getEdits();
+            } else {
+                // This puts the desired notes text into the map.
+                values.put(NotePad.Notes.COLUMN_NAME_NOTE, text);
+            }
+        }
 
         // 添加分类信息
         values.put(NotePad.Notes.COLUMN_NAME_CATEGORY, mCurrentCategory);
@@ -613,24 +831,19 @@ public class NoteEditor extends Activity {
         values.put(NotePad.Notes.COLUMN_NAME_COLOR, mCurrentColor);
 
         /*
-         * Updates the provider with the new values in the map. The ListView is updated
-         * automatically. The provider sets this up by setting the notification URI for
-         * query Cursor objects to the incoming URI. The content resolver is thus
-         * automatically notified when the Cursor for the URI changes, and the UI is
+         * Queues the update of the provider with the new values in the map. The queue writes it
+         * on a background thread, so the UI thread doesn't wait for the database. The ListView
+         * is updated automatically once it is written. The provider sets this up by setting the
+         * notification URI for query Cursor objects to the incoming URI. The content resolver
+         * is thus automatically notified when the Cursor for the URI changes, and the UI is
          * updated.
-         * Note: This is being done on the UI thread. It will block the thread until the
-         * update completes. In a sample app, going against a simple provider based on a
-         * local database, the block will be momentary, but in a real app you should use
-         * android.content.AsyncQueryHandler or android.os.AsyncTask.
          */
-        getContentResolver().update(
-                mUri,    // The URI for the record to update.
-                values,  // The map of column names and new values to apply to them.
-                null,    // No selection criteria are used, so no where columns are necessary.
-                null     // No where columns are used, so no where arguments are necessary.
-        );
-
+        NoteSaveQueue.getInstance(this).update(mUri, values, edits, text);
 
+        // The provider will hold what was just queued. The queue writes a note's saves in order,
+        // so later saves are compared with this one.
+        mSavedFingerprint = fingerprint;
+        mJournal.reset();
     }
 
     /**
@@ -645,7 +858,7 @@ public class NoteEditor extends Activity {
                 mCursor = null;
                 ContentValues values = new ContentValues();
                 values.put(NotePad.Notes.COLUMN_NAME_NOTE, mOriginalContent);
-                getContentResolver().update(mUri, values, null, null);
+                NoteSaveQueue.getInstance(this).update(mUri, values);
             } else if (mState == STATE_INSERT) {
                 // We inserted an empty note, make sure to delete it
                 deleteNote();
@@ -662,13 +875,13 @@ public class NoteEditor extends Activity {
         if (mCursor != null) {
             mCursor.close();
             mCursor = null;
-            getContentResolver().delete(mUri, null, null);
+            NoteSaveQueue.getInstance(this).delete(mUri);
             mText.setText("");
         }
     }
 
     // 添加分类初始化方法
-    private void initCategorySpinner() {
+    private void initCategorySpinner(String category) {
         mCategorySpinner = (Spinner) findViewById(R.id.category_spinner);
         mManageCategoriesBtn = (Button) findViewById(R.id.manage_categories_btn);
 
@@ -696,30 +909,24 @@ public class NoteEditor extends Activity {
         });
 
         // 如果是编辑现有笔记，设置当前分类
-        if (mCursor != null && mCursor.moveToFirst()) {
-            int categoryColumnIndex = mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_CATEGORY);
-            if (categoryColumnIndex != -1) {
-                String category = mCursor.getString(categoryColumnIndex);
-                if (category != null) {
-                    int spinnerPosition = mCategoryAdapter.getPosition(category);
-                    if (spinnerPosition != -1) {
-                        mCategorySpinner.setSelection(spinnerPosition);
-                        mCurrentCategory = category;
-                    }
-                }
+        if (category != null) {
+            int spinnerPosition = mCategoryAdapter.getPosition(category);
+            if (spinnerPosition != -1) {
+                mCategorySpinner.setSelection(spinnerPosition);
+                mCurrentCategory = category;
             }
         }
     }
 
     // 加载分类列表
     private void loadCategories() {
-        // 查询所有不同的分类
+        // 查询分类表中的所有分类，每个分类只返回一行
         Cursor categoryCursor = managedQuery(
-                NotePad.Notes.CONTENT_URI,
-                new String[]{NotePad.Notes.COLUMN_NAME_CATEGORY},
-                NotePad.Notes.COLUMN_NAME_CATEGORY + " IS NOT NULL AND " + NotePad.Notes.COLUMN_NAME_CATEGORY + " != ''",
+                NotePad.Categories.CONTENT_URI,
+                new String[]{NotePad.Categories.COLUMN_NAME_NAME},
+                null,
                 null,
-                NotePad.Notes.COLUMN_NAME_CATEGORY + " ASC"
+                null
         );
 
         // 创建分类列表
@@ -729,11 +936,12 @@ public class NoteEditor extends Activity {
         categories.add("个人");
         categories.add("学习");
 
-        // 从数据库中添加现有分类
+        // 从数据库中添加现有分类，用集合去重
+        java.util.Set<String> seen = new java.util.HashSet<String>(categories);
         if (categoryCursor != null) {
             while (categoryCursor.moveToNext()) {
                 String category = categoryCursor.getString(0);
-                if (!categories.contains(category)) {
+                if (seen.add(category)) {
                     categories.add(category);
                 }
             }
@@ -747,7 +955,7 @@ public class NoteEditor extends Activity {
     }
 
     // 添加颜色选择器初始化方法
-    private void initColorSpinner() {
+    private void initColorSpinner(int color) {
         mColorSpinner = (Spinner) findViewById(R.id.color_spinner);
 
         // 创建颜色适配器
@@ -769,17 +977,11 @@ public class NoteEditor extends Activity {
         });
 
         // 如果是编辑现有笔记，设置当前颜色
-        if (mCursor != null && mCursor.moveToFirst()) {
-            int colorColumnIndex = mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_COLOR);
-            if (colorColumnIndex != -1) {
-                int color = mCursor.getInt(colorColumnIndex);
-                for (int i = 0; i < COLOR_OPTIONS.length; i++) {
-                    if (COLOR_OPTIONS[i] == color) {
-                        mColorSpinner.setSelection(i);
-                        mCurrentColor = color;
-                        break;
-                    }
-                }
+        for (int i = 0; i < COLOR_OPTIONS.length; i++) {
+            if (COLOR_OPTIONS[i] == color) {
+                mColorSpinner.setSelection(i);
+                mCurrentColor = color;
+                break;
             }
         }
     }
@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.database.Cursor;
+
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Writes notes in the export formats of the notes URI: {@link NotePad.Notes#EXPORT_TYPE_NDJSON}
+ * and {@link NotePad.Notes#EXPORT_TYPE_ZIP}. The provider reads the notes a page at a time and
+ * hands each one to this class as the current row of a cursor, with the columns in the order
+ * of the COLUMN_ constants below. The contents aren't in the cursor; they are written by a
+ * {@link BodyWriter}, a chunk at a time, so no note is held whole while it is exported.
+ */
+final class NoteExport {
+
+    /*
+     * The columns of the cursor that notes are exported from
+     */
+    static final int COLUMN_ID = 0;
+    static final int COLUMN_TITLE = 1;
+    static final int COLUMN_CATEGORY = 2;
+    static final int COLUMN_COLOR = 3;
+    static final int COLUMN_CREATE_DATE = 4;
+    static final int COLUMN_MODIFICATION_DATE = 5;
+
+    // The longest part of a zip entry's name taken from the note's title, in characters
+    private static final int MAX_ENTRY_TITLE_LENGTH = 48;
+
+    /**
+     * Writes the contents of a note.
+     */
+    interface BodyWriter {
+
+        /**
+         * Writes the contents of a note to a writer. Writes nothing if the note has no contents.
+         *
+         * @param id The _ID of the note.
+         * @param writer The writer to write the contents to.
+         * @throws IOException if the writer fails.
+         */
+        void writeBody(long id, Writer writer) throws IOException;
+    }
+
+    private NoteExport() {
+    }
+
+    /**
+     * Writes the note at the current row of a cursor as one line of newline-delimited JSON: an
+     * object with the note's columns under their names, and its contents last, under
+     * {@link NotePad.Notes#COLUMN_NAME_NOTE}.
+     */
+    static void writeJsonLine(Cursor c, BodyWriter bodies, Writer writer) throws IOException {
+        long id = c.getLong(COLUMN_ID);
+        writer.write("{\"" + NotePad.Notes._ID + "\":" + id);
+        writeJsonField(writer, NotePad.Notes.COLUMN_NAME_TITLE, c, COLUMN_TITLE, false);
+        writeJsonField(writer, NotePad.Notes.COLUMN_NAME_CATEGORY, c, COLUMN_CATEGORY, false);
+        writeJsonField(writer, NotePad.Notes.COLUMN_NAME_COLOR, c, COLUMN_COLOR, true);
+        writeJsonField(writer, NotePad.Notes.COLUMN_NAME_CREATE_DATE, c, COLUMN_CREATE_DATE,
+                true);
+        writeJsonField(writer, NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, c,
+                COLUMN_MODIFICATION_DATE, true);
+
+        // The contents are escaped as they are written, so they are never held whole.
+        writer.write(",\"" + NotePad.Notes.COLUMN_NAME_NOTE + "\":\"");
+        bodies.writeBody(id, new JsonStringWriter(writer));
+        writer.write("\"}\n");
+    }
+
+    /**
+     * Writes the note at the current row of a cursor as an entry of a zip archive: a text file
+     * that holds the note as its text/plain stream does, the title, a blank line and the
+     * contents. The entry is named after the note's _ID and title, and dated when the note was
+     * last modified.
+     *
+     * @param c The cursor, at the note's row.
+     * @param bodies Writes the contents of the note.
+     * @param zip The archive.
+     * @param writer A writer that writes to the archive. It is flushed before the entry is
+     * closed.
+     */
+    static void writeZipEntry(Cursor c, BodyWriter bodies, ZipOutputStream zip, Writer writer)
+            throws IOException {
+        long id = c.getLong(COLUMN_ID);
+        String title = c.getString(COLUMN_TITLE);
+        ZipEntry entry = new ZipEntry(buildEntryName(id, title));
+        if (!c.isNull(COLUMN_MODIFICATION_DATE)) {
+            entry.setTime(c.getLong(COLUMN_MODIFICATION_DATE));
+        }
+
+        zip.putNextEntry(entry);
+        writer.write(String.valueOf(title));
+        writer.write("\n\n");
+        bodies.writeBody(id, writer);
+        writer.write("\n");
+        writer.flush();
+        zip.closeEntry();
+    }
+
+    /**
+     * Builds the name of the zip entry of a note: its _ID, which keeps the names unique, and its
+     * title, with characters that aren't safe in a file name replaced.
+     */
+    static String buildEntryName(long id, String title) {
+        StringBuilder name = new StringBuilder();
+        name.append(id);
+        if (title != null) {
+            String trimmed = title.trim();
+            if (trimmed.length() > 0) {
+                name.append('-');
+            }
+            int length = Math.min(trimmed.length(), MAX_ENTRY_TITLE_LENGTH);
+            for (int i = 0; i < length; i++) {
+                char ch = trimmed.charAt(i);
+                name.append(Character.isLetterOrDigit(ch) || ch == ' ' || ch == '-' ||
+                        ch == '_' ? ch : '_');
+            }
+        }
+        return name.append(".txt").toString();
+    }
+
+    /**
+     * Writes a column of the current row of a cursor as a field of a JSON object, after a comma.
+     *
+     * @param isNumber True to write the column as a number, false to write it as a string.
+     */
+    private static void writeJsonField(Writer writer, String name, Cursor c, int column,
+            boolean isNumber) throws IOException {
+        writer.write(",\"" + name + "\":");
+        if (c.isNull(column)) {
+            writer.write("null");
+        } else if (isNumber) {
+            writer.write(Long.toString(c.getLong(column)));
+        } else {
+            writer.write('"');
+            new JsonStringWriter(writer).write(c.getString(column));
+            writer.write('"');
+        }
+    }
+
+    /**
+     * A writer that escapes what is written to it as the inside of a JSON string, and writes the
+     * escaped text to the writer it wraps. The quotes around the string aren't written. Closing
+     * it closes the writer it wraps.
+     */
+    private static final class JsonStringWriter extends FilterWriter {
+
+        JsonStringWriter(Writer out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int c) throws IOException {
+            switch (c) {
+                case '"':
+                    out.write("\\\"");
+                    break;
+                case '\\':
+                    out.write("\\\\");
+                    break;
+                case '\n':
+                    out.write("\\n");
+                    break;
+                case '\r':
+                    out.write("\\r");
+                    break;
+                case '\t':
+                    out.write("\\t");
+                    break;
+
+                // The line and paragraph separators are valid in JSON, but not in JavaScript,
+                // so they are escaped as well.
+                case '\u2028':
+                case '\u2029':
+                    out.write(String.format("\\u%04x", c));
+                    break;
+                default:
+                    if (c < 0x20) {
+                        out.write(String.format("\\u%04x", c));
+                    } else {
+                        out.write(c);
+                    }
+                    break;
+            }
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            // Runs of characters that need no escape are written as they are.
+            int start = off;
+            int end = off + len;
+            for (int i = off; i < end; i++) {
+                char ch = cbuf[i];
+                if (ch < 0x20 || ch == '"' || ch == '\\' || ch == '\u2028' || ch == '\u2029') {
+                    out.write(cbuf, start, i - start);
+                    write(ch);
+                    start = i + 1;
+                }
+            }
+            out.write(cbuf, start, end - start);
+        }
+
+        @Override
+        public void write(String str, int off, int len) throws IOException {
+            write(str.toCharArray(), off, len);
+        }
+    }
+}
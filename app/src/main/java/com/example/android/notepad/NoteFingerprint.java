@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.text.TextUtils;
+
+/**
+ * The user-visible content of a note: its text, title, category and color. The editors keep
+ * the fingerprint of what the provider last stored, and only write when what they are about to
+ * write has a different fingerprint, so that leaving an unchanged note doesn't bump its
+ * modification date, re-sort the notes list and notify every observer.
+ *
+ * Fingerprints compare their values rather than hashes of them, so two different contents
+ * never compare equal. Strings are immutable, so a fingerprint shares them with the cursor or
+ * the view it was taken from instead of copying them. A null category and an empty one are the
+ * same, since both mean that the note has no category.
+ */
+final class NoteFingerprint {
+
+    private final String mText;
+    private final String mTitle;
+    private final String mCategory;
+    private final int mColor;
+
+    /**
+     * Creates a fingerprint.
+     *
+     * @param text The text of the note.
+     * @param title The title of the note.
+     * @param category The name of the note's category, or null or empty for none.
+     * @param color The color of the note.
+     */
+    NoteFingerprint(String text, String title, String category, int color) {
+        mText = text;
+        mTitle = title;
+        mCategory = category == null ? "" : category;
+        mColor = color;
+    }
+
+    /**
+     * Returns the text of the note.
+     */
+    String getText() {
+        return mText;
+    }
+
+    /**
+     * Returns the title of the note.
+     */
+    String getTitle() {
+        return mTitle;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof NoteFingerprint)) {
+            return false;
+        }
+        NoteFingerprint other = (NoteFingerprint) o;
+
+        // Compares the cheap values first, and the text, which may be long, last.
+        return mColor == other.mColor
+                && TextUtils.equals(mCategory, other.mCategory)
+                && TextUtils.equals(mTitle, other.mTitle)
+                && TextUtils.equals(mText, other.mText);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = mColor;
+        result = 31 * result + mCategory.hashCode();
+        result = 31 * result + (mTitle == null ? 0 : mTitle.hashCode());
+        result = 31 * result + (mText == null ? 0 : mText.hashCode());
+        return result;
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.ClipDescription;
+import android.content.ContentValues;
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Parses the streams that the imports URI accepts (see {@link NotePad.Imports}) into the values
+ * of notes, one record at a time, so that a stream of any length is parsed with the memory of
+ * its largest note. The values are those of an insert of the notes URI; the provider fills in
+ * the columns that a record doesn't set, as it does for an insert.
+ */
+final class NoteImport {
+
+    // The size of the buffer that a stream is read through, in characters
+    private static final int BUFFER_CHARS = 8192;
+
+    /**
+     * Reads the records of a stream.
+     */
+    interface NoteReader extends Closeable {
+
+        /**
+         * Reads the next record of the stream.
+         *
+         * @return The values of the note, or null at the end of the stream.
+         * @throws IOException if the stream can't be read, or isn't in the format of the reader.
+         */
+        ContentValues next() throws IOException;
+    }
+
+    private NoteImport() {
+    }
+
+    /**
+     * Creates a reader of a stream.
+     *
+     * @param type The MIME type of the stream: {@link NotePad.Notes#EXPORT_TYPE_NDJSON}, or
+     * text/plain for a single note.
+     * @param in The stream.
+     * @return The reader. Closing it closes the stream.
+     * @throws IllegalArgumentException if the type isn't one that can be imported.
+     */
+    static NoteReader newReader(String type, InputStream in) {
+        BufferedReader reader;
+        try {
+            reader = new BufferedReader(new InputStreamReader(in, "UTF-8"), BUFFER_CHARS);
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+        if (NotePad.Notes.EXPORT_TYPE_NDJSON.equals(type)) {
+            return new JsonNoteReader(reader);
+        }
+        if (ClipDescription.MIMETYPE_TEXT_PLAIN.equals(type)) {
+            return new TextNoteReader(reader);
+        }
+        throw new IllegalArgumentException("Unsupported import type " + type);
+    }
+
+    /**
+     * Reads newline-delimited JSON, as exported by the notes URI: one object per note. The
+     * title, contents, category name, color and dates of the note are read from the fields
+     * named after their columns. Other fields, such as the _ID of the exported note, are
+     * skipped; imported notes get new IDs, so they never replace existing notes.
+     */
+    private static final class JsonNoteReader implements NoteReader {
+
+        private final JsonReader mReader;
+
+        JsonNoteReader(BufferedReader reader) {
+            mReader = new JsonReader(reader);
+
+            // Lenient mode reads one top-level value after another, which is how the objects of
+            // newline-delimited JSON follow each other.
+            mReader.setLenient(true);
+        }
+
+        @Override
+        public ContentValues next() throws IOException {
+            if (mReader.peek() == JsonToken.END_DOCUMENT) {
+                return null;
+            }
+
+            ContentValues values = new ContentValues();
+            mReader.beginObject();
+            while (mReader.hasNext()) {
+                String name = mReader.nextName();
+                if (mReader.peek() == JsonToken.NULL) {
+                    // A null column gets the default of an insert.
+                    mReader.nextNull();
+                } else if (NotePad.Notes.COLUMN_NAME_TITLE.equals(name) ||
+                        NotePad.Notes.COLUMN_NAME_NOTE.equals(name) ||
+                        NotePad.Notes.COLUMN_NAME_CATEGORY.equals(name)) {
+                    values.put(name, mReader.nextString());
+                } else if (NotePad.Notes.COLUMN_NAME_COLOR.equals(name)) {
+                    values.put(name, mReader.nextInt());
+                } else if (NotePad.Notes.COLUMN_NAME_CREATE_DATE.equals(name) ||
+                        NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE.equals(name)) {
+                    values.put(name, mReader.nextLong());
+                } else {
+                    mReader.skipValue();
+                }
+            }
+            mReader.endObject();
+            return values;
+        }
+
+        @Override
+        public void close() throws IOException {
+            mReader.close();
+        }
+    }
+
+    /**
+     * Reads a single note in the form of its text stream: the title on the first line, a blank
+     * line, and the contents up to the end of the stream, without the newline that ends them.
+     */
+    private static final class TextNoteReader implements NoteReader {
+
+        private final BufferedReader mReader;
+
+        // Whether the note has been read
+        private boolean mRead;
+
+        TextNoteReader(BufferedReader reader) {
+            mReader = reader;
+        }
+
+        @Override
+        public ContentValues next() throws IOException {
+            if (mRead) {
+                return null;
+            }
+            mRead = true;
+            String title = mReader.readLine();
+            if (title == null) {
+                return null;
+            }
+
+            // The blank line is optional; without it, the contents start on the second line.
+            StringBuilder body = new StringBuilder();
+            String line = mReader.readLine();
+            if (line != null && line.length() > 0) {
+                body.append(line).append('\n');
+            }
+            char[] buffer = new char[BUFFER_CHARS];
+            int count;
+            while ((count = mReader.read(buffer)) != -1) {
+                body.append(buffer, 0, count);
+            }
+            int length = body.length();
+            if (length > 0 && body.charAt(length - 1) == '\n') {
+                body.setLength(length - 1);
+            }
+
+            ContentValues values = new ContentValues();
+            values.put(NotePad.Notes.COLUMN_NAME_TITLE, title);
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE, body.toString());
+            return values;
+        }
+
+        @Override
+        public void close() throws IOException {
+            mReader.close();
+        }
+    }
+}
@@ -73,6 +73,26 @@ public final class NotePad {
          */
         public static final int NOTE_ID_PATH_POSITION = 1;
 
+        /**
+         * Path part for the full-text search URI
+         */
+        private static final String PATH_SEARCH = "/notes/search";
+
+        /**
+         * Path part for the categories URI
+         */
+        private static final String PATH_CATEGORIES = "/notes/categories";
+
+        /**
+         * Path part for the statistics URI
+         */
+        private static final String PATH_STATS = "/notes/stats";
+
+        /**
+         * Path part for the trash URI
+         */
+        private static final String PATH_TRASH = "/notes/trash";
+
         /**
          * Path part for the Live Folder URI
          */
@@ -97,6 +117,140 @@ public final class NotePad {
         public static final Uri CONTENT_ID_URI_PATTERN
                 = Uri.parse(SCHEME + AUTHORITY + PATH_NOTE_ID + "/#");
 
+        /**
+         * The content:// style URL for a full-text search over note titles and contents. The
+         * search terms are passed in the {@link #QUERY_PARAMETER_SEARCH} query parameter, and
+         * the matching notes are returned best match first.
+         */
+        public static final Uri CONTENT_SEARCH_URI = Uri.parse(SCHEME + AUTHORITY + PATH_SEARCH);
+
+        /**
+         * The content:// style URL for the categories in use. Each row is one category, with
+         * the number of notes in it in {@link #COLUMN_NAME_NOTE_COUNT}. Notes without a
+         * category are left out.
+         */
+        public static final Uri CONTENT_CATEGORIES_URI =
+                Uri.parse(SCHEME + AUTHORITY + PATH_CATEGORIES);
+
+        /**
+         * The content:// style URL for note statistics. Each row is one count, identified by
+         * its {@link #COLUMN_NAME_STAT_KIND} and {@link #COLUMN_NAME_STAT_VALUE}: the total
+         * number of notes, the number of notes of each color, and the number of notes in each
+         * category. The counts are kept up to date as notes change, so reading them doesn't
+         * depend on the number of notes.
+         */
+        public static final Uri CONTENT_STATS_URI = Uri.parse(SCHEME + AUTHORITY + PATH_STATS);
+
+        /**
+         * The content:// style URL for the trash. Deleting a note moves it to the trash, where
+         * it no longer shows up in any other URI, and the provider purges it for good once it
+         * has been there for a while. Each row is a note in the trash, most recently deleted
+         * first, with the time it was deleted in {@link #COLUMN_NAME_DELETED_AT}. Deleting from
+         * this URI empties the trash.
+         */
+        public static final Uri CONTENT_TRASH_URI = Uri.parse(SCHEME + AUTHORITY + PATH_TRASH);
+
+        /**
+         * Query parameter of {@link #CONTENT_SEARCH_URI} that holds the user's search terms.
+         * Each whitespace-separated term is matched as a word prefix.
+         */
+        public static final String QUERY_PARAMETER_SEARCH = "q";
+
+        /**
+         * Query parameter of {@link #CONTENT_URI} that limits the number of notes returned. Used
+         * to load the notes list one page at a time.
+         */
+        public static final String QUERY_PARAMETER_LIMIT = "limit";
+
+        /**
+         * Query parameter of {@link #CONTENT_URI} that returns only the notes that come after a
+         * given note in {@link #DEFAULT_SORT_ORDER}. The value is the modification date and the
+         * _ID of the last note of the previous page, separated by a comma, as built by
+         * {@link #buildPageAfter(long, long)}.
+         */
+        public static final String QUERY_PARAMETER_AFTER = "after";
+
+        /**
+         * Builds the value of {@link #QUERY_PARAMETER_AFTER} for the last note of a page.
+         *
+         * @param modified The modification date of the last note of the page.
+         * @param id The _ID of the last note of the page.
+         * @return The query parameter value.
+         */
+        public static String buildPageAfter(long modified, long id) {
+            return modified + "," + id;
+        }
+
+        /**
+         * Path segment of the edits of a note, appended to its note ID URI
+         */
+        private static final String PATH_SEGMENT_EDITS = "edits";
+
+        /**
+         * Builds the content:// style URL of the edits of a note. Each row inserted into it is
+         * one edit of the note's contents, applied after the edits inserted before it: the
+         * {@link #COLUMN_NAME_EDIT_DELETE_LENGTH} characters at
+         * {@link #COLUMN_NAME_EDIT_POSITION} are replaced with {@link #COLUMN_NAME_EDIT_TEXT}.
+         * Saving a small change to a large note this way writes the change rather than the whole
+         * contents. The note's {@link #COLUMN_NAME_NOTE} always reads with its edits applied,
+         * and writing it replaces them. The URI only supports inserts.
+         *
+         * @param noteUri The note ID URI of the note.
+         * @return The URI of the note's edits.
+         */
+        public static Uri buildEditsUri(Uri noteUri) {
+            return Uri.withAppendedPath(noteUri, PATH_SEGMENT_EDITS);
+        }
+
+        /**
+         * Path segment of the contents of a note, appended to its note ID URI
+         */
+        private static final String PATH_SEGMENT_BODY = "body";
+
+        /**
+         * Builds the content:// style URL of the contents of a note, read a range at a time. Each
+         * row of a query is a segment of the contents, of at most {@link #SEGMENT_CHARS}
+         * characters, in order: its text in {@link #COLUMN_NAME_NOTE}, where it starts in
+         * {@link #COLUMN_NAME_SEGMENT_OFFSET}, and the length of the whole contents in
+         * {@link #COLUMN_NAME_NOTE_LENGTH}. {@link #QUERY_PARAMETER_OFFSET} and
+         * {@link #QUERY_PARAMETER_LENGTH} restrict the rows to a range of the contents, and cut
+         * the first and last of them to it. A note without contents, or in the trash, has no
+         * rows.
+         *
+         * A cursor holds a window of its rows at a time, so contents of any length are read
+         * this way without a cursor window ever holding them whole.
+         *
+         * The URI can also be opened for reading, as a text/plain stream of the contents in
+         * UTF-8. Contents longer than the provider's file threshold are stored in a file, and
+         * opening the URI returns that file itself, so the reader can seek, map or transfer it
+         * without the contents passing through a pipe.
+         *
+         * @param noteUri The note ID URI of the note.
+         * @return The URI of the note's contents.
+         */
+        public static Uri buildBodyUri(Uri noteUri) {
+            return Uri.withAppendedPath(noteUri, PATH_SEGMENT_BODY);
+        }
+
+        /**
+         * Query parameter of a URI built by {@link #buildBodyUri(Uri)} that holds the offset of
+         * the first character to read. Defaults to 0.
+         */
+        public static final String QUERY_PARAMETER_OFFSET = "offset";
+
+        /**
+         * Query parameter of a URI built by {@link #buildBodyUri(Uri)} that holds the number of
+         * characters to read. Defaults to the rest of the contents.
+         */
+        public static final String QUERY_PARAMETER_LENGTH = "length";
+
+        /**
+         * The longest segment of contents, in characters. Contents longer than this are stored
+         * in segments, and {@link #COLUMN_NAME_NOTE} only reads the first of them. A segment is
+         * at most three times as many bytes in UTF-8, so several fit in a cursor window.
+         */
+        public static final int SEGMENT_CHARS = 64 * 1024;
+
         /**
          * The content Uri pattern for a notes listing for live folders
          */
@@ -118,6 +272,46 @@ public final class NotePad {
          */
         public static final String CONTENT_ITEM_TYPE = "vnd.android.cursor.item/vnd.google.note";
 
+        /**
+         * The MIME type of an export of every note as newline-delimited JSON, opened with
+         * {@link android.content.ContentResolver#openTypedAssetFileDescriptor} on
+         * {@link #CONTENT_URI}. Each line is an object with a note's {@link #_ID}, title,
+         * category name, color, creation and modification dates and contents, under the names
+         * of their columns. Notes in the trash aren't exported.
+         */
+        public static final String EXPORT_TYPE_NDJSON = "application/x-ndjson";
+
+        /**
+         * The MIME type of an export of every note as a zip archive, opened like
+         * {@link #EXPORT_TYPE_NDJSON}. Each note is a text file that holds what its text/plain
+         * stream does: the title, a blank line and the contents.
+         */
+        public static final String EXPORT_TYPE_ZIP = "application/zip";
+
+        /**
+         * The MIME type of {@link #CONTENT_CATEGORIES_URI} providing a directory of categories.
+         */
+        public static final String CONTENT_CATEGORIES_TYPE =
+                "vnd.android.cursor.dir/vnd.google.note.category";
+
+        /**
+         * The MIME type of {@link #CONTENT_STATS_URI} providing a directory of counts.
+         */
+        public static final String CONTENT_STATS_TYPE =
+                "vnd.android.cursor.dir/vnd.google.note.stat";
+
+        /**
+         * The MIME type of the edits of a note, as built by {@link #buildEditsUri(Uri)}.
+         */
+        public static final String CONTENT_EDITS_TYPE =
+                "vnd.android.cursor.dir/vnd.google.note.edit";
+
+        /**
+         * The MIME type of the contents of a note, as built by {@link #buildBodyUri(Uri)}.
+         */
+        public static final String CONTENT_BODY_TYPE =
+                "vnd.android.cursor.dir/vnd.google.note.segment";
+
         /**
          * The default sort order for this table
          */
@@ -134,11 +328,30 @@ public final class NotePad {
         public static final String COLUMN_NAME_TITLE = "title";
 
         /**
-         * Column name of the note content
+         * Column name of the note content. Large contents are stored compressed, and always
+         * read as text. A selection on this column compares the whole text of the contents,
+         * however they are stored; a sort order on it is rejected. Use
+         * {@link #CONTENT_SEARCH_URI} to search the contents by their words.
+         * Contents longer than {@link #SEGMENT_CHARS} are read only up to about that length;
+         * read them whole through {@link #buildBodyUri(Uri)} or the note's text stream.
          * <P>Type: TEXT</P>
          */
         public static final String COLUMN_NAME_NOTE = "note";
 
+        /**
+         * Column name for the offset, in characters, at which the text of a row of
+         * {@link #buildBodyUri(Uri)} starts in the note's contents
+         * <P>Type: INTEGER</P>
+         */
+        public static final String COLUMN_NAME_SEGMENT_OFFSET = "segment_offset";
+
+        /**
+         * Column name for the length, in characters, of the whole contents of the note, in rows
+         * of {@link #buildBodyUri(Uri)}
+         * <P>Type: INTEGER</P>
+         */
+        public static final String COLUMN_NAME_NOTE_LENGTH = "note_length";
+
         /**
          * Column name for the creation timestamp
          * <P>Type: INTEGER (long from System.curentTimeMillis())</P>
@@ -152,15 +365,370 @@ public final class NotePad {
         public static final String COLUMN_NAME_MODIFICATION_DATE = "modified";
 
         /**
-         * Column name for the category of the note
+         * Column name for the category of the note. It holds the {@link Categories#COLUMN_NAME_NAME}
+         * of the note's category, or null if the note has none. Writing a name that is not yet a
+         * category creates the category, and writing null or an empty string clears it.
          * <P>Type: TEXT</P>
          */
         public static final String COLUMN_NAME_CATEGORY = "category";
 
+        /**
+         * Column name for the _ID of the note's category in {@link Categories}
+         * <P>Type: INTEGER</P>
+         */
+        public static final String COLUMN_NAME_CATEGORY_ID = "category_id";
+
         /**
          * Column name for the color of the note
          * <P>Type: INTEGER</P>
          */
         public static final String COLUMN_NAME_COLOR = "color";
+
+        /**
+         * Column name for the time the note was deleted, in rows of {@link #CONTENT_TRASH_URI}
+         * <P>Type: INTEGER (long from System.curentTimeMillis())</P>
+         */
+        public static final String COLUMN_NAME_DELETED_AT = "deleted_at";
+
+        /**
+         * Column name for the number of notes in a category, in rows of
+         * {@link #CONTENT_CATEGORIES_URI}
+         * <P>Type: INTEGER</P>
+         */
+        public static final String COLUMN_NAME_NOTE_COUNT = "note_count";
+
+        /**
+         * Column name for what a row of {@link #CONTENT_STATS_URI} counts: one of
+         * {@link #STAT_KIND_TOTAL}, {@link #STAT_KIND_COLOR} or {@link #STAT_KIND_CATEGORY}.
+         * The count is in {@link #COLUMN_NAME_NOTE_COUNT}, and the name of the category of a
+         * category count is in {@link #COLUMN_NAME_CATEGORY}.
+         * <P>Type: TEXT</P>
+         */
+        public static final String COLUMN_NAME_STAT_KIND = "kind";
+
+        /**
+         * Column name for the value that a row of {@link #CONTENT_STATS_URI} counts the notes
+         * of: the color for a color count, the _ID of the category for a category count, and 0
+         * for the total.
+         * <P>Type: INTEGER</P>
+         */
+        public static final String COLUMN_NAME_STAT_VALUE = "value";
+
+        /**
+         * Kind of the row of {@link #CONTENT_STATS_URI} that counts all notes
+         */
+        public static final String STAT_KIND_TOTAL = "total";
+
+        /**
+         * Kind of the rows of {@link #CONTENT_STATS_URI} that count the notes of each color
+         */
+        public static final String STAT_KIND_COLOR = "color";
+
+        /**
+         * Kind of the rows of {@link #CONTENT_STATS_URI} that count the notes in each category.
+         * Notes without a category are not counted in any of them.
+         */
+        public static final String STAT_KIND_CATEGORY = "category";
+
+        /**
+         * Column name for the position of an edit in the note contents, in characters, in rows
+         * inserted into the URI built by {@link #buildEditsUri(Uri)}. A position past the end of
+         * the contents is taken as the end.
+         * <P>Type: INTEGER</P>
+         */
+        public static final String COLUMN_NAME_EDIT_POSITION = "position";
+
+        /**
+         * Column name for the number of characters that an edit deletes at its position. Zero
+         * if it isn't set.
+         * <P>Type: INTEGER</P>
+         */
+        public static final String COLUMN_NAME_EDIT_DELETE_LENGTH = "delete_length";
+
+        /**
+         * Column name for the text that an edit inserts at its position. Empty if it isn't set.
+         * <P>Type: TEXT</P>
+         */
+        public static final String COLUMN_NAME_EDIT_TEXT = "inserted";
+    }
+
+    /**
+     * Categories table contract
+     */
+    public static final class Categories implements BaseColumns {
+
+        // This class cannot be instantiated
+        private Categories() {}
+
+        /**
+         * The table name offered by this provider
+         */
+        public static final String TABLE_NAME = "categories";
+
+        /*
+         * URI definitions
+         */
+
+        /**
+         * The scheme part for this provider's URI
+         */
+        private static final String SCHEME = "content://";
+
+        /**
+         * Path part for the Categories URI
+         */
+        private static final String PATH_CATEGORIES = "/categories";
+
+        /**
+         * Path part for the Category ID URI
+         */
+        private static final String PATH_CATEGORY_ID = "/categories/";
+
+        /**
+         * 0-relative position of a category ID segment in the path part of a category ID URI
+         */
+        public static final int CATEGORY_ID_PATH_POSITION = 1;
+
+        /**
+         * The content:// style URL for this table
+         */
+        public static final Uri CONTENT_URI = Uri.parse(SCHEME + AUTHORITY + PATH_CATEGORIES);
+
+        /**
+         * The content URI base for a single category. Callers must
+         * append a numeric category id to this Uri to retrieve a category
+         */
+        public static final Uri CONTENT_ID_URI_BASE
+                = Uri.parse(SCHEME + AUTHORITY + PATH_CATEGORY_ID);
+
+        /*
+         * MIME type definitions
+         */
+
+        /**
+         * The MIME type of {@link #CONTENT_URI} providing a directory of categories.
+         */
+        public static final String CONTENT_TYPE = "vnd.android.cursor.dir/vnd.google.category";
+
+        /**
+         * The MIME type of a {@link #CONTENT_URI} sub-directory of a single
+         * category.
+         */
+        public static final String CONTENT_ITEM_TYPE =
+                "vnd.android.cursor.item/vnd.google.category";
+
+        /**
+         * The default sort order for this table
+         */
+        public static final String DEFAULT_SORT_ORDER = "name ASC";
+
+        /*
+         * Column definitions
+         */
+
+        /**
+         * Column name for the name of the category. Names are unique.
+         * <P>Type: TEXT</P>
+         */
+        public static final String COLUMN_NAME_NAME = "name";
+    }
+
+    /**
+     * Imports contract. An import re-creates notes from a stream, such as an export of
+     * {@link Notes#CONTENT_URI}. A client names the import, opens the URI built by
+     * {@link #buildImportUri(String)} for writing with
+     * {@link android.content.ContentResolver#openOutputStream(Uri)}, writes the stream and closes
+     * it. The provider parses the stream as it arrives, on a background thread, and inserts the
+     * notes a batch at a time, each batch in its own transaction.
+     *
+     * Each batch also checkpoints the import: it stores the number of records of the stream
+     * imported so far in the import's row, in the same transaction. Observers of the import's
+     * URI are notified after every batch, and can query it for the progress. If an import stops
+     * early, writing the same stream to the same URI again skips the records already imported,
+     * so each note is imported once. Deleting the import's URI forgets its checkpoint.
+     */
+    public static final class Imports implements BaseColumns {
+
+        // This class cannot be instantiated
+        private Imports() {}
+
+        /**
+         * The table name offered by this provider
+         */
+        public static final String TABLE_NAME = "imports";
+
+        /*
+         * URI definitions
+         */
+
+        /**
+         * The scheme part for this provider's URI
+         */
+        private static final String SCHEME = "content://";
+
+        /**
+         * Path part for the Imports URI
+         */
+        private static final String PATH_IMPORTS = "/imports";
+
+        /**
+         * 0-relative position of the name segment in the path part of an import URI
+         */
+        public static final int IMPORT_NAME_PATH_POSITION = 1;
+
+        /**
+         * The content:// style URL for this table
+         */
+        public static final Uri CONTENT_URI = Uri.parse(SCHEME + AUTHORITY + PATH_IMPORTS);
+
+        /**
+         * Query parameter of an import URI that holds the MIME type of the stream:
+         * {@link Notes#EXPORT_TYPE_NDJSON}, the default, or text/plain for a single note in the
+         * form of its text stream.
+         */
+        public static final String QUERY_PARAMETER_TYPE = "type";
+
+        /**
+         * Query parameter of an import URI that holds the number of notes inserted in each
+         * transaction, from 1 to {@link #MAX_BATCH_SIZE}. Larger batches import faster; smaller
+         * ones hold the database for less time, and lose less work if the import stops.
+         */
+        public static final String QUERY_PARAMETER_BATCH_SIZE = "batch_size";
+
+        /**
+         * The batch size of an import that doesn't set {@link #QUERY_PARAMETER_BATCH_SIZE}
+         */
+        public static final int DEFAULT_BATCH_SIZE = 500;
+
+        /**
+         * The largest batch size allowed
+         */
+        public static final int MAX_BATCH_SIZE = 5000;
+
+        /**
+         * Builds the URI of an import.
+         *
+         * @param name The name of the import. Writing the same stream under the same name
+         * resumes the import.
+         * @return The URI to write the stream to, and to query for the progress.
+         */
+        public static Uri buildImportUri(String name) {
+            return CONTENT_URI.buildUpon().appendPath(name).build();
+        }
+
+        /*
+         * MIME type definitions
+         */
+
+        /**
+         * The MIME type of {@link #CONTENT_URI} providing a directory of imports.
+         */
+        public static final String CONTENT_TYPE = "vnd.android.cursor.dir/vnd.google.note.import";
+
+        /**
+         * The MIME type of a single import, as built by {@link #buildImportUri(String)}.
+         */
+        public static final String CONTENT_ITEM_TYPE =
+                "vnd.android.cursor.item/vnd.google.note.import";
+
+        /**
+         * The default sort order for this table
+         */
+        public static final String DEFAULT_SORT_ORDER = "modified DESC";
+
+        /*
+         * Column definitions
+         */
+
+        /**
+         * Column name for the name of the import. Names are unique.
+         * <P>Type: TEXT</P>
+         */
+        public static final String COLUMN_NAME_NAME = "name";
+
+        /**
+         * Column name for the number of records of the stream imported so far
+         * <P>Type: INTEGER</P>
+         */
+        public static final String COLUMN_NAME_RECORDS = "records";
+
+        /**
+         * Column name for whether the whole stream has been imported
+         * <P>Type: INTEGER (0 or 1)</P>
+         */
+        public static final String COLUMN_NAME_FINISHED = "finished";
+
+        /**
+         * Column name for the error that stopped the import the last time it ran, or null if it
+         * didn't stop on an error
+         * <P>Type: TEXT</P>
+         */
+        public static final String COLUMN_NAME_ERROR = "error";
+
+        /**
+         * Column name for the time of the import's last checkpoint
+         * <P>Type: INTEGER (long from System.curentTimeMillis())</P>
+         */
+        public static final String COLUMN_NAME_MODIFICATION_DATE = "modified";
+    }
+
+    /**
+     * Provider metrics contract. The provider counts the calls, the rows and the latency of each
+     * operation on each type of URI. Clients read them with
+     * {@link android.content.ContentResolver#call(Uri, String, String, android.os.Bundle)} on
+     * {@link Notes#CONTENT_URI}, and they are also printed by <code>adb shell dumpsys activity
+     * provider NotePadProvider</code>.
+     */
+    public static final class Metrics {
+
+        // This class cannot be instantiated
+        private Metrics() {}
+
+        /**
+         * Method that returns the metrics. The result holds one {@link android.os.Bundle} for each
+         * operation and type of URI that was called at least once, keyed by the name of the
+         * operation and the path pattern of the URI separated by a space, for example
+         * "query notes/#". URIs that the provider doesn't know are counted under "unknown".
+         */
+        public static final String METHOD_GET = "get_metrics";
+
+        /**
+         * Method that clears the metrics. Only allowed to callers in the provider's own process.
+         */
+        public static final String METHOD_RESET = "reset_metrics";
+
+        /**
+         * Key of the number of calls
+         * <P>Type: long</P>
+         */
+        public static final String KEY_CALLS = "calls";
+
+        /**
+         * Key of the number of calls that threw an exception
+         * <P>Type: long</P>
+         */
+        public static final String KEY_ERRORS = "errors";
+
+        /**
+         * Key of the number of rows returned by queries, or inserted, updated or deleted by
+         * writes
+         * <P>Type: long</P>
+         */
+        public static final String KEY_ROWS = "rows";
+
+        /**
+         * Key of the total time spent in the calls, in microseconds
+         * <P>Type: long</P>
+         */
+        public static final String KEY_TOTAL_MICROS = "total_us";
+
+        /**
+         * Keys of the latency percentiles, in microseconds. Latencies are counted in fixed
+         * buckets, so each percentile is the upper bound of the bucket that holds it.
+         * <P>Type: long</P>
+         */
+        public static final String KEY_P50_MICROS = "p50_us";
+        public static final String KEY_P95_MICROS = "p95_us";
+        public static final String KEY_P99_MICROS = "p99_us";
     }
 }
@@ -20,32 +20,68 @@ import com.example.android.notepad.NotePad;
 
 import android.content.ClipDescription;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.content.ContentProvider.PipeDataWriter;
 import android.content.res.AssetFileDescriptor;
 import android.content.res.Resources;
+import android.database.CharArrayBuffer;
+import android.database.CrossProcessCursorWrapper;
 import android.database.Cursor;
+import android.database.CursorWindow;
+import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.Binder;
 import android.os.Bundle;
 import android.os.ParcelFileDescriptor;
+import android.os.Process;
 import android.provider.LiveFolders;
 import android.text.TextUtils;
 import android.util.Log;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.io.Reader;
+import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.regex.Pattern;
+import java.util.zip.ZipOutputStream;
 
 /**
  * Provides access to a database of notes. Each note has a title, the note
@@ -63,7 +99,298 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
     /**
      * The database version
      */
-    private static final int DATABASE_VERSION = 4;
+    private static final int DATABASE_VERSION = 15;
+
+    /**
+     * The number of pages that the write-ahead log may grow to before a commit checkpoints it
+     * into the database. Notes are small, so this is smaller than SQLite's default of 1000
+     * pages: readers look up pages in a shorter log, and each checkpoint is short enough not to
+     * stall the commit that runs it.
+     */
+    private static final int WAL_AUTOCHECKPOINT_PAGES = 256;
+
+    /**
+     * The size, in bytes, that the write-ahead log is truncated to after a checkpoint. Without a
+     * limit the log file keeps the size of the largest batch of writes ever made.
+     */
+    private static final long WAL_SIZE_LIMIT_BYTES = 512 * 1024;
+
+    /**
+     * The FTS4 virtual table that indexes note titles and contents. Its docid is the _ID of
+     * the note it indexes. Triggers on the notes table keep it in sync.
+     */
+    private static final String FTS_TABLE_NAME = "notes_fts";
+
+    /**
+     * The table that holds the contents of the notes, keyed by the _ID of their note. The
+     * contents are kept out of the notes table so that its rows stay small, and list queries
+     * that don't need the contents read fewer pages. Large contents are stored compressed (see
+     * {@link NoteBodyCodec}). Set to package visibility for testing purposes.
+     */
+    static final String BODIES_TABLE_NAME = "note_bodies";
+
+    /**
+     * Column name of the _ID of the note that a row of {@link #BODIES_TABLE_NAME} belongs to
+     * <P>Type: INTEGER</P>
+     */
+    static final String BODIES_COLUMN_NOTE_ID = "note_id";
+
+    /**
+     * Column name of the length, in characters, of contents stored in segments, whose row of
+     * {@link #BODIES_TABLE_NAME} only holds their first segment. Null for contents stored whole.
+     * <P>Type: INTEGER</P>
+     */
+    private static final String BODIES_COLUMN_NOTE_LENGTH = "note_length";
+
+    /**
+     * The table that holds the segments of contents longer than
+     * {@link NotePad.Notes#SEGMENT_CHARS}, keyed by the _ID of their note and the offset where
+     * they start. Each segment is stored the way the contents table stores whole contents, so a
+     * range of the contents is read by decoding only the segments that overlap it, and no row
+     * is too large for a cursor window. Writing the contents table deletes the note's segments,
+     * through the triggers, and the provider writes the new ones after it. Set to package
+     * visibility for testing purposes.
+     */
+    static final String SEGMENTS_TABLE_NAME = "note_segments";
+
+    /*
+     * Column names of the segments table: the _ID of the note, the offset of the segment in the
+     * contents and its length, both in characters, and the stored segment
+     */
+    private static final String SEGMENTS_COLUMN_NOTE_ID = "note_id";
+    private static final String SEGMENTS_COLUMN_START = "start";
+    private static final String SEGMENTS_COLUMN_LENGTH = "length";
+    private static final String SEGMENTS_COLUMN_DATA = "data";
+
+    /**
+     * Column name of the file, in {@link #BODY_FILES_DIR}, that holds contents longer than the
+     * file threshold (see {@link #PREF_FILE_BODY_THRESHOLD}). The row then holds the first
+     * segment of the contents and their length, as it does for contents stored in segments,
+     * and the contents have no segments. Null for contents stored in the database.
+     * <P>Type: TEXT</P>
+     */
+    private static final String BODIES_COLUMN_NOTE_FILE = "note_file";
+
+    /**
+     * The directory, under the application's files directory, that holds the files of contents
+     * longer than the file threshold. Each file holds the contents of one write, in UTF-8, and
+     * is never written again, so a client that has opened it keeps reading the contents it
+     * opened while the note is written. Files that no row refers to any more are deleted when
+     * their note is written again, or by the purge. Set to package visibility for testing
+     * purposes.
+     */
+    static final String BODY_FILES_DIR = "note_bodies";
+
+    /**
+     * The preference, in the application's "notepad_prefs", that holds the length, in
+     * characters, above which contents are stored in a file rather than in the database.
+     * Lengths below {@link NotePad.Notes#SEGMENT_CHARS} count as that length, since shorter
+     * contents are stored whole. Set to package visibility for testing purposes.
+     */
+    static final String PREF_FILE_BODY_THRESHOLD = "file_body_threshold_chars";
+
+    // The default of PREF_FILE_BODY_THRESHOLD: sixteen segments
+    private static final int DEFAULT_FILE_BODY_THRESHOLD_CHARS = 16 * NotePad.Notes.SEGMENT_CHARS;
+
+    // How old a file that no row refers to must be before the purge deletes it, in
+    // milliseconds. A file is written before the transaction that refers to it commits, so a
+    // younger one may belong to a write that is still in progress.
+    private static final long BODY_FILE_MIN_AGE_MILLIS = 60 * 60 * 1000;
+
+    /**
+     * The table that holds the edits of notes whose changes were saved as edits rather than as
+     * whole contents (see {@link NotePad.Notes#buildEditsUri(Uri)}). Each row is one edit, and
+     * the edits of a note apply in the order of {@link #EDITS_COLUMN_SEQUENCE}. Reads apply them
+     * to the contents, and a compaction folds them into the contents table. Set to package
+     * visibility for testing purposes.
+     */
+    static final String EDITS_TABLE_NAME = "note_edits";
+
+    /**
+     * Column name of the _ID of the note that a row of {@link #EDITS_TABLE_NAME} edits
+     * <P>Type: INTEGER</P>
+     */
+    private static final String EDITS_COLUMN_NOTE_ID = "note_id";
+
+    /**
+     * Column name of the order of an edit among the edits of its note. It is the row ID, so it
+     * grows with each insert.
+     * <P>Type: INTEGER</P>
+     */
+    private static final String EDITS_COLUMN_SEQUENCE = "seq";
+
+    /**
+     * The number of edits that a note may have before they are folded into its contents in the
+     * background. Each read of the note from the database applies its edits, so they are kept
+     * few; each fold rewrites the contents and their full-text index, so they aren't folded on
+     * every save.
+     */
+    private static final int COMPACT_THRESHOLD_EDITS = 64;
+
+    /**
+     * How long a deleted note stays in the trash before it is purged, in milliseconds. Set to
+     * package visibility for testing purposes.
+     */
+    static final long TRASH_RETENTION_MILLIS = 7L * 24 * 60 * 60 * 1000;
+
+    /**
+     * The number of notes that each statement of a purge deletes. Each statement is its own
+     * transaction, so a purge of many notes holds the database for a short while at a time, and
+     * the editors' writes get in between.
+     */
+    private static final int PURGE_BATCH_ROWS = 200;
+
+    /**
+     * The number of free pages that each step of an incremental vacuum returns to the file
+     * system. Like the purge batches, the steps are kept short so that writes get in between.
+     */
+    private static final int VACUUM_STEP_PAGES = 128;
+
+    /**
+     * The value of PRAGMA auto_vacuum in incremental mode
+     */
+    private static final int AUTO_VACUUM_INCREMENTAL = 2;
+
+    // How long after the provider starts the trash is first purged, and how often after that,
+    // in milliseconds
+    private static final long PURGE_INITIAL_DELAY_MILLIS = 60 * 1000;
+    private static final long PURGE_INTERVAL_MILLIS = 6 * 60 * 60 * 1000;
+
+    /**
+     * The condition that a note isn't in the trash. Every read and write of the notes, other
+     * than those of the trash itself, only sees the notes that meet it.
+     */
+    private static final String NOT_DELETED =
+            NotePad.Notes.TABLE_NAME + "." + NotePad.Notes.COLUMN_NAME_DELETED_AT + " IS NULL";
+
+    /**
+     * The condition that a note is in the trash and hasn't been emptied from it. Emptying the
+     * trash sets the deletion time of its notes to 0, which is older than any purge's cutoff.
+     */
+    private static final String IN_TRASH =
+            NotePad.Notes.TABLE_NAME + "." + NotePad.Notes.COLUMN_NAME_DELETED_AT + " > 0";
+
+    /**
+     * The sort order of the trash: most recently deleted first
+     */
+    private static final String TRASH_SORT_ORDER =
+            NotePad.Notes.COLUMN_NAME_DELETED_AT + " DESC";
+
+    /**
+     * The statement that purges a batch of notes from the trash. It is bound to the cutoff: the
+     * notes deleted at or before it are purged. The triggers delete the contents, edits and
+     * full-text entries of each note with it. Set to package visibility for testing purposes.
+     */
+    static final String PURGE_SQL =
+            "DELETE FROM " + NotePad.Notes.TABLE_NAME + " WHERE " + NotePad.Notes._ID +
+                    " IN (SELECT " + NotePad.Notes._ID + " FROM " + NotePad.Notes.TABLE_NAME +
+                    " WHERE " + NotePad.Notes.TABLE_NAME + "." +
+                    NotePad.Notes.COLUMN_NAME_DELETED_AT + " <= ? LIMIT " + PURGE_BATCH_ROWS + ")";
+
+    /**
+     * The join that adds the contents of each note to the notes table. Queries only use it
+     * when they refer to the contents.
+     */
+    private static final String BODIES_JOIN =
+            " LEFT OUTER JOIN " + BODIES_TABLE_NAME + " ON (" +
+                    BODIES_TABLE_NAME + "." + BODIES_COLUMN_NOTE_ID + " = " +
+                    NotePad.Notes.TABLE_NAME + "." + NotePad.Notes._ID + ")";
+
+    /**
+     * The contents column of a query of the notes. Contents stored in segments only have their
+     * first segment in the contents table. Contents written as text before segments were added
+     * are cut to the length of a segment too, since they may not fit in a cursor window.
+     */
+    private static final String HEAD_BODY_COLUMN =
+            "CASE WHEN typeof(" + BODIES_TABLE_NAME + "." + NotePad.Notes.COLUMN_NAME_NOTE +
+                    ") = 'text' AND length(" + BODIES_TABLE_NAME + "." +
+                    NotePad.Notes.COLUMN_NAME_NOTE + ") > " + NotePad.Notes.SEGMENT_CHARS +
+                    " THEN substr(" + BODIES_TABLE_NAME + "." + NotePad.Notes.COLUMN_NAME_NOTE +
+                    ", 1, " + NotePad.Notes.SEGMENT_CHARS + ") ELSE " + BODIES_TABLE_NAME + "." +
+                    NotePad.Notes.COLUMN_NAME_NOTE + " END AS " + NotePad.Notes.COLUMN_NAME_NOTE;
+
+    /**
+     * The condition that a note's row of the contents table doesn't hold the whole contents
+     * that queries of the notes read: contents stored in segments, or text longer than a
+     * segment that was written before segments were added.
+     */
+    private static final String IS_PARTIAL_BODY =
+            BODIES_COLUMN_NOTE_LENGTH + " IS NOT NULL OR (typeof(" +
+                    NotePad.Notes.COLUMN_NAME_NOTE + ") = 'text' AND length(" +
+                    NotePad.Notes.COLUMN_NAME_NOTE + ") > " + NotePad.Notes.SEGMENT_CHARS + ")";
+
+    /**
+     * The condition, in a trigger on the contents table, that the new contents aren't stored
+     * compressed
+     */
+    private static final String IS_TEXT_BODY =
+            "typeof(new." + NotePad.Notes.COLUMN_NAME_NOTE + ") != 'blob'";
+
+    /**
+     * The condition, in a trigger on the notes table, that the note is counted in the statistics
+     * both before and after the update, since it is not in the trash
+     */
+    private static final String IS_COUNTED =
+            "old." + NotePad.Notes.COLUMN_NAME_DELETED_AT + " IS NULL AND new." +
+                    NotePad.Notes.COLUMN_NAME_DELETED_AT + " IS NULL";
+
+    /**
+     * The temporary table that a write to several notes collects the _IDs of the notes it
+     * selects into, when writing one table may change which notes its "where" clause selects.
+     * A temporary table belongs to its connection, and this one is only used in the
+     * transaction of a write.
+     */
+    private static final String SELECTED_NOTES_TABLE_NAME = "selected_notes";
+
+    /**
+     * The "where" clause that selects the notes collected in
+     * {@link #SELECTED_NOTES_TABLE_NAME}. It is the same whichever notes were collected, so the
+     * statements that use it are compiled once per connection.
+     */
+    private static final String SELECTED_NOTES_WHERE =
+            NotePad.Notes._ID + " IN (SELECT " + NotePad.Notes._ID + " FROM temp." +
+                    SELECTED_NOTES_TABLE_NAME + ")";
+
+    /**
+     * Finds references to the contents column in a selection or a sort order.
+     */
+    private static final Pattern BODY_COLUMN_PATTERN =
+            Pattern.compile("\\b" + NotePad.Notes.COLUMN_NAME_NOTE + "\\b");
+
+    /**
+     * The join that adds the name of its category to each note, as the category column. The
+     * categories are renamed in a subquery so that none of their columns clash with those of
+     * the notes. A note whose category was deleted still refers to it by _ID, but the join finds
+     * no name for it, so it has no category. Queries only use the join when they refer to the
+     * category.
+     */
+    private static final String CATEGORIES_JOIN =
+            " LEFT OUTER JOIN (SELECT " + NotePad.Categories._ID + " AS category_key, " +
+                    NotePad.Categories.COLUMN_NAME_NAME + " AS " +
+                    NotePad.Notes.COLUMN_NAME_CATEGORY +
+                    " FROM " + NotePad.Categories.TABLE_NAME + ") AS note_categories" +
+                    " ON (note_categories.category_key = " + NotePad.Notes.TABLE_NAME + "." +
+                    NotePad.Notes.COLUMN_NAME_CATEGORY_ID + ")";
+
+    /**
+     * The join that adds the text of its contents to each note, as the contents column, for
+     * selections on the contents. The full-text index holds the whole text of every note's
+     * contents however they are stored, while the contents table holds compressed contents as
+     * a BLOB that SQL can't compare with text, and longer contents cut to their first segment.
+     * The index is renamed in a subquery so that its title doesn't clash with that of the
+     * notes. Every note has a row in the index, from the trigger that inserts it.
+     */
+    private static final String BODY_TEXT_JOIN =
+            " JOIN (SELECT docid AS body_key, " + NotePad.Notes.COLUMN_NAME_NOTE + " FROM " +
+                    FTS_TABLE_NAME + ") AS note_texts" +
+                    " ON (note_texts.body_key = " + NotePad.Notes.TABLE_NAME + "." +
+                    NotePad.Notes._ID + ")";
+
+    /**
+     * Finds references to the category column in a selection or a sort order.
+     */
+    private static final Pattern CATEGORY_COLUMN_PATTERN =
+            Pattern.compile("\\b" + NotePad.Notes.COLUMN_NAME_CATEGORY + "\\b");
 
     /**
      * A projection map used to select columns from the database
@@ -76,15 +403,188 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
     private static HashMap<String, String> sLiveFolderProjectionMap;
 
     /**
-     * Standard projection for the interesting columns of a normal note.
+     * A projection map used to select columns from the checkpoints of imports
+     */
+    private static HashMap<String, String> sImportsProjectionMap;
+
+    /**
+     * A projection map used to select columns from a full-text search, which joins the notes
+     * table to the matches found in the FTS table
+     */
+    private static HashMap<String, String> sSearchProjectionMap;
+
+    /**
+     * A projection map used to select columns from the categories in use, which groups the
+     * notes by category
+     */
+    private static HashMap<String, String> sNoteCategoriesProjectionMap;
+
+    /**
+     * The tables clause of the categories in use. The notes are read in the order of the
+     * category index, and each group looks up its category by primary key. Notes without a
+     * category, or whose category was deleted, are left out by the join.
+     */
+    private static final String NOTE_CATEGORIES_TABLES =
+            NotePad.Notes.TABLE_NAME + " JOIN " + NotePad.Categories.TABLE_NAME + " ON (" +
+                    NotePad.Categories.TABLE_NAME + "." + NotePad.Categories._ID + " = " +
+                    NotePad.Notes.TABLE_NAME + "." + NotePad.Notes.COLUMN_NAME_CATEGORY_ID + ")";
+
+    /**
+     * The sort order of the categories in use, by name
+     */
+    private static final String NOTE_CATEGORIES_SORT_ORDER =
+            NotePad.Categories.TABLE_NAME + "." + NotePad.Categories.COLUMN_NAME_NAME + " ASC";
+
+    /**
+     * A projection map used to select columns from the trash, which adds the deletion time to
+     * the columns of the notes
+     */
+    private static HashMap<String, String> sTrashProjectionMap;
+
+    /**
+     * A projection map used to select columns from the categories table
+     */
+    private static HashMap<String, String> sCategoriesProjectionMap;
+
+    /**
+     * The table of note counts. Triggers on the notes table keep it up to date, so that the
+     * statistics are read without counting notes.
+     */
+    private static final String STATS_TABLE_NAME = "note_stats";
+
+    /**
+     * A projection map used to select columns from the statistics
+     */
+    private static HashMap<String, String> sStatsProjectionMap;
+
+    /**
+     * The tables clause of the statistics, which adds the name of the category to each
+     * category count
+     */
+    private static final String STATS_TABLES =
+            STATS_TABLE_NAME + " LEFT OUTER JOIN " + NotePad.Categories.TABLE_NAME + " ON (" +
+                    STATS_TABLE_NAME + "." + NotePad.Notes.COLUMN_NAME_STAT_KIND + " = '" +
+                    NotePad.Notes.STAT_KIND_CATEGORY + "' AND " +
+                    NotePad.Categories.TABLE_NAME + "." + NotePad.Categories._ID + " = " +
+                    STATS_TABLE_NAME + "." + NotePad.Notes.COLUMN_NAME_STAT_VALUE + ")";
+
+    /**
+     * The "where" clause that leaves out the counts of deleted categories
+     */
+    private static final String STATS_SELECTION =
+            NotePad.Notes.COLUMN_NAME_STAT_KIND + " != '" + NotePad.Notes.STAT_KIND_CATEGORY +
+                    "' OR " + NotePad.Categories.TABLE_NAME + "." + NotePad.Categories._ID +
+                    " IS NOT NULL";
+
+    /**
+     * The sort order of the statistics
+     */
+    private static final String STATS_SORT_ORDER =
+            NotePad.Notes.COLUMN_NAME_STAT_KIND + " ASC, " +
+                    NotePad.Notes.COLUMN_NAME_STAT_VALUE + " ASC";
+
+    /**
+     * The tables clause of a full-text search. The single "?" is bound to the FTS MATCH
+     * expression. The rank of a match is the number of term occurrences in the note, computed
+     * from the FTS offsets() function, which reports four integers per occurrence.
+     */
+    private static final String SEARCH_TABLES =
+            NotePad.Notes.TABLE_NAME + " JOIN (SELECT docid, " +
+                    "(length(offsets(" + FTS_TABLE_NAME + ")) - " +
+                    "length(replace(offsets(" + FTS_TABLE_NAME + "), ' ', '')) + 1) / 4 AS rank" +
+                    " FROM " + FTS_TABLE_NAME +
+                    " WHERE " + FTS_TABLE_NAME + " MATCH ?) AS hits" +
+                    " ON (" + NotePad.Notes.TABLE_NAME + "." + NotePad.Notes._ID + " = hits.docid)";
+
+    /**
+     * The sort order of a full-text search: best match first, then most recently modified
+     */
+    private static final String SEARCH_SORT_ORDER =
+            "hits.rank DESC, " + NotePad.Notes.DEFAULT_SORT_ORDER;
+
+    /**
+     * The sort order of a page of notes. The _ID breaks ties between notes with the same
+     * modification date, so that each note belongs to exactly one page.
+     */
+    private static final String PAGE_SORT_ORDER =
+            NotePad.Notes.DEFAULT_SORT_ORDER + ", " + NotePad.Notes._ID + " DESC";
+
+    /**
+     * The "where" clause that selects the notes after a given note in {@link #PAGE_SORT_ORDER}.
+     * It is bound to the modification date, the modification date again, and the _ID of that
+     * note. The first term is a range on the modification date index, so that the page is read
+     * by seeking into the index rather than by skipping the preceding rows.
+     */
+    private static final String PAGE_AFTER_SELECTION =
+            NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + " <= ? AND (" +
+                    NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + " < ? OR " +
+                    NotePad.Notes._ID + " < ?)";
+
+    /**
+     * Projection for the columns of a note that are read before it is streamed. The contents
+     * aren't in it: they are read a chunk at a time while the note is written to the pipe.
      */
     private static final String[] READ_NOTE_PROJECTION = new String[] {
             NotePad.Notes._ID,               // Projection position 0, the note's id
-            NotePad.Notes.COLUMN_NAME_NOTE,  // Projection position 1, the note's content
-            NotePad.Notes.COLUMN_NAME_TITLE, // Projection position 2, the note's title
+            NotePad.Notes.COLUMN_NAME_TITLE, // Projection position 1, the note's title
     };
-    private static final int READ_NOTE_NOTE_INDEX = 1;
-    private static final int READ_NOTE_TITLE_INDEX = 2;
+    private static final int READ_NOTE_ID_INDEX = 0;
+    private static final int READ_NOTE_TITLE_INDEX = 1;
+
+    /**
+     * The size of each chunk of the contents that is read while a note is streamed: characters
+     * of contents stored as text, bytes of compressed contents. A chunk of text is at most three
+     * times as many bytes in UTF-8, which fits in a cursor window with room to spare.
+     */
+    static final int PIPE_CHUNK_SIZE = 256 * 1024;
+
+    // The size of the buffer between the pipe and the writers of a stream, in bytes
+    private static final int PIPE_BUFFER_BYTES = 8192;
+
+    /**
+     * The number of notes in each page of an export
+     */
+    private static final int EXPORT_PAGE_ROWS = 200;
+
+    /**
+     * The query of a page of an export: the notes that aren't in the trash after an _ID, in the
+     * order of their _ID, with the columns in the order of NoteExport's COLUMN_ constants. Set
+     * to package visibility for testing purposes.
+     */
+    static final String EXPORT_PAGE_SQL =
+            "SELECT " + NotePad.Notes.TABLE_NAME + "." + NotePad.Notes._ID + ", " +
+                    NotePad.Notes.COLUMN_NAME_TITLE + ", " +
+                    NotePad.Notes.COLUMN_NAME_CATEGORY + ", " +
+                    NotePad.Notes.COLUMN_NAME_COLOR + ", " +
+                    NotePad.Notes.COLUMN_NAME_CREATE_DATE + ", " +
+                    NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE +
+                    " FROM " + NotePad.Notes.TABLE_NAME + CATEGORIES_JOIN +
+                    " WHERE " + NOT_DELETED + " AND " + NotePad.Notes.TABLE_NAME + "." +
+                    NotePad.Notes._ID + " > ? ORDER BY " + NotePad.Notes.TABLE_NAME + "." +
+                    NotePad.Notes._ID + " LIMIT " + EXPORT_PAGE_ROWS;
+
+    /**
+     * The number of segments in each page of a read of segmented contents. A segment of text is
+     * at most three times {@link NotePad.Notes#SEGMENT_CHARS} bytes in UTF-8, so a page fits in
+     * a cursor window.
+     */
+    private static final int SEGMENT_PAGE_ROWS = 8;
+
+    /**
+     * The query of a page of the segments of a note: the segments after an offset that overlap
+     * a range of the contents, in order. The arguments are the _ID of the note, the offset of
+     * the last segment read, or -1, and the end and the start of the range. Set to package
+     * visibility for testing purposes.
+     */
+    static final String SEGMENT_PAGE_SQL =
+            "SELECT " + SEGMENTS_COLUMN_START + ", " + SEGMENTS_COLUMN_DATA + " FROM " +
+                    SEGMENTS_TABLE_NAME + " WHERE " + SEGMENTS_COLUMN_NOTE_ID + " = ? AND " +
+                    SEGMENTS_COLUMN_START + " > ? AND " + SEGMENTS_COLUMN_START + " < ? AND " +
+
+                    // The arguments are bound as text, which an expression doesn't convert.
+                    SEGMENTS_COLUMN_START + " + " + SEGMENTS_COLUMN_LENGTH +
+                    " > CAST(? AS INTEGER) ORDER BY " + SEGMENTS_COLUMN_START + " LIMIT " +
+                    SEGMENT_PAGE_ROWS;
 
     /*
      * Constants used by the Uri matcher to choose an action based on the pattern
@@ -99,6 +599,57 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
     // The incoming URI matches the Live Folder URI pattern
     private static final int LIVE_FOLDER_NOTES = 3;
 
+    // The incoming URI matches the full-text search URI pattern
+    private static final int NOTES_SEARCH = 4;
+
+    // The incoming URI matches the categories in use URI pattern
+    private static final int NOTES_CATEGORIES = 5;
+
+    // The incoming URI matches the Categories URI pattern
+    private static final int CATEGORIES = 6;
+
+    // The incoming URI matches the Category ID URI pattern
+    private static final int CATEGORY_ID = 7;
+
+    // The incoming URI matches the statistics URI pattern
+    private static final int NOTES_STATS = 8;
+
+    // The incoming URI matches the note edits URI pattern
+    private static final int NOTE_EDITS = 9;
+
+    // The incoming URI matches the trash URI pattern
+    private static final int NOTES_TRASH = 10;
+
+    // The incoming URI matches the Imports URI pattern
+    private static final int IMPORTS = 11;
+
+    // The incoming URI matches the import name URI pattern
+    private static final int IMPORT_NAME = 12;
+
+    // The incoming URI matches the note contents URI pattern
+    private static final int NOTE_BODY = 13;
+
+    /*
+     * The names under which the metrics of each URI pattern are reported, indexed by the codes
+     * above. URIs that don't match any pattern are reported under the name at index 0.
+     */
+    private static final String[] URI_TYPE_NAMES = {
+        "unknown",
+        "notes",
+        "notes/#",
+        "live_folders/notes",
+        "notes/search",
+        "notes/categories",
+        "categories",
+        "categories/#",
+        "notes/stats",
+        "notes/#/edits",
+        "notes/trash",
+        "imports",
+        "imports/*",
+        "notes/#/body"
+    };
+
     /**
      * A UriMatcher instance
      */
@@ -107,6 +658,127 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
     // Handle to a new DatabaseHelper.
     private DatabaseHelper mOpenHelper;
 
+    /**
+     * The estimated memory that the cached rows of notes may use, in bytes
+     */
+    private static final int ROW_CACHE_MAX_BYTES = 256 * 1024;
+
+    /**
+     * The columns of a cached note row, and the position of each of them in the row
+     */
+    private static final String[] sNoteRowColumns;
+    private static final HashMap<String, Integer> sNoteRowColumnIndexes;
+
+    /**
+     * The columns of the contents URI of a note (see {@link NotePad.Notes#buildBodyUri(Uri)}),
+     * in their default order
+     */
+    private static final String[] sBodyColumns = new String[] {
+        NotePad.Notes.COLUMN_NAME_SEGMENT_OFFSET,
+        NotePad.Notes.COLUMN_NAME_NOTE,
+        NotePad.Notes.COLUMN_NAME_NOTE_LENGTH
+    };
+
+    /**
+     * The SELECT statement that reads a note row into the cache, followed by the note's edits.
+     * The note ID is bound as an argument, so SQLite's prepared statement cache compiles it once
+     * per connection. Set to package visibility for testing purposes.
+     */
+    static final String sNoteByIdQuery;
+
+    /**
+     * The rows of recently read notes. Single note queries without a selection are served from
+     * it, and every write invalidates the rows it may change.
+     */
+    private final NoteRowCache mRowCache = new NoteRowCache(sNoteRowColumns, ROW_CACHE_MAX_BYTES);
+
+    // Loads note rows for the row cache, and for its cursors when they are requeried
+    private final NoteRowCache.RowLoader mRowLoader = new NoteRowCache.RowLoader() {
+        @Override
+        public Object[] loadRow(long id) {
+            return loadNoteRow(id);
+        }
+    };
+
+    // Whether single note operations without a selection take the fast path. Benchmarks turn
+    // this off to measure the general path.
+    private volatile boolean mSingleNoteFastPathEnabled = true;
+
+    // Whether the fast path serves note rows from the row cache. Benchmarks turn this off so
+    // that every read of the fast path queries the database.
+    private volatile boolean mRowCacheEnabled = true;
+
+    // Whether large contents are compressed when they are written. Benchmarks turn this off to
+    // measure uncompressed contents.
+    private volatile boolean mBodyCompressionEnabled = true;
+
+    // The directory of the files of the longest contents (see BODY_FILES_DIR)
+    private File mBodyFileDir;
+
+    /**
+     * The calls, rows and latencies of the provider's operations on each URI pattern. Clients
+     * read them through {@link #call(String, String, Bundle)}, and dumpsys through
+     * {@link #dump(FileDescriptor, PrintWriter, String[])}.
+     */
+    private final ProviderMetrics mMetrics = new ProviderMetrics(URI_TYPE_NAMES);
+
+    /**
+     * The URIs changed by the batch that the current thread is applying, or null if it isn't
+     * applying one. Their observers are notified once the batch is committed.
+     */
+    private final ThreadLocal<LinkedHashSet<Uri>> mBatchNotifications =
+            new ThreadLocal<LinkedHashSet<Uri>>();
+
+    /**
+     * How long change notifications are merged after the first one, in milliseconds. Long
+     * enough to cover a burst of writes, such as an import, and short enough that the notes
+     * list still follows an edit without a visible delay.
+     */
+    private static final long NOTIFY_WINDOW_MILLIS = 100;
+
+    // Merges bursts of change notifications. Created in onCreate(), once there is a context.
+    private NotificationCoalescer mNotifier;
+
+    // How long shutdown() waits for a running compaction, purge or import batch to finish, in
+    // milliseconds
+    private static final long COMPACTOR_SHUTDOWN_MILLIS = 1000;
+
+    // Folds the edits of notes into their contents, one note at a time, off the caller's thread
+    private final ExecutorService mCompactor = Executors.newSingleThreadExecutor();
+
+    // The notes whose compaction is queued on mCompactor, so that each is queued once
+    private final HashSet<Long> mCompactionsQueued = new HashSet<Long>();
+
+    // Purges the trash and reclaims the space it used, periodically and whenever the trash is
+    // emptied, off the caller's thread
+    private final ScheduledExecutorService mPurger =
+            Executors.newSingleThreadScheduledExecutor();
+
+    // Runs the imports, one at a time, off the caller's thread
+    private final ExecutorService mImporter = Executors.newSingleThreadExecutor();
+
+    // Runs a purge, then folds the pending edits of the notes, on mPurger
+    private final Runnable mPurge = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                purgeTrash(System.currentTimeMillis());
+            } catch (RuntimeException e) {
+                // The notes stay in the trash, and the next purge tries again.
+                Log.w(TAG, "Failed to purge the trash", e);
+            }
+
+            // Also folds the edits of notes that never reached the compaction threshold, and
+            // those left by versions of the provider that didn't index edits.
+            try {
+                compactAllEdits();
+            } catch (RuntimeException e) {
+                // The edits are still applied on read, and folded by the next purge.
+                Log.w(TAG, "Failed to compact the edits of the notes", e);
+            }
+        }
+    };
+
 
     /**
      * A block that instantiates and sets static objects
@@ -126,10 +798,45 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         // to a note ID operation
         sUriMatcher.addURI(NotePad.AUTHORITY, "notes/#", NOTE_ID);
 
+        // Add a pattern that routes URIs terminated with "notes" plus an integer plus "edits"
+        // to a note edits operation
+        sUriMatcher.addURI(NotePad.AUTHORITY, "notes/#/edits", NOTE_EDITS);
+
+        // Add a pattern that routes URIs terminated with "notes" plus an integer plus "body"
+        // to a note contents operation
+        sUriMatcher.addURI(NotePad.AUTHORITY, "notes/#/body", NOTE_BODY);
+
+        // Add a pattern that routes URIs terminated with "notes/search" to a full-text search
+        sUriMatcher.addURI(NotePad.AUTHORITY, "notes/search", NOTES_SEARCH);
+
+        // Add a pattern that routes URIs terminated with "notes/categories" to a categories
+        // operation
+        sUriMatcher.addURI(NotePad.AUTHORITY, "notes/categories", NOTES_CATEGORIES);
+
+        // Add a pattern that routes URIs terminated with "notes/stats" to a statistics operation
+        sUriMatcher.addURI(NotePad.AUTHORITY, "notes/stats", NOTES_STATS);
+
+        // Add a pattern that routes URIs terminated with "notes/trash" to a trash operation
+        sUriMatcher.addURI(NotePad.AUTHORITY, "notes/trash", NOTES_TRASH);
+
+        // Add a pattern that routes URIs terminated with "categories" to a CATEGORIES operation
+        sUriMatcher.addURI(NotePad.AUTHORITY, "categories", CATEGORIES);
+
+        // Add a pattern that routes URIs terminated with "categories" plus an integer
+        // to a category ID operation
+        sUriMatcher.addURI(NotePad.AUTHORITY, "categories/#", CATEGORY_ID);
+
         // Add a pattern that routes URIs terminated with live_folders/notes to a
         // live folder operation
         sUriMatcher.addURI(NotePad.AUTHORITY, "live_folders/notes", LIVE_FOLDER_NOTES);
 
+        // Add a pattern that routes URIs terminated with "imports" to an imports operation
+        sUriMatcher.addURI(NotePad.AUTHORITY, "imports", IMPORTS);
+
+        // Add a pattern that routes URIs terminated with "imports" plus a name to an operation
+        // on a single import
+        sUriMatcher.addURI(NotePad.AUTHORITY, "imports/*", IMPORT_NAME);
+
         /*
          * Creates and initializes a projection map that returns all columns
          */
@@ -144,8 +851,8 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         // Maps "title" to "title"
         sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_TITLE, NotePad.Notes.COLUMN_NAME_TITLE);
 
-        // Maps "note" to "note"
-        sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_NOTE, NotePad.Notes.COLUMN_NAME_NOTE);
+        // Maps "note" to the contents, cut to the length of a segment
+        sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_NOTE, HEAD_BODY_COLUMN);
 
         // Maps "created" to "created"
         sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_CREATE_DATE,
@@ -156,10 +863,14 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
                 NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
                 NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE);
 
-        // Maps "category" to "category"
+        // Maps "category" to "category", the name of the category from the categories join
         sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_CATEGORY,
                 NotePad.Notes.COLUMN_NAME_CATEGORY);
 
+        // Maps "category_id" to "category_id"
+        sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_CATEGORY_ID,
+                NotePad.Notes.COLUMN_NAME_CATEGORY_ID);
+
         // Maps "color" to "color"
         sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_COLOR,
                 NotePad.Notes.COLUMN_NAME_COLOR);
@@ -177,20 +888,140 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         // Maps "NAME" to "title AS NAME"
         sLiveFolderProjectionMap.put(LiveFolders.NAME, NotePad.Notes.COLUMN_NAME_TITLE + " AS " +
                 LiveFolders.NAME);
-    }
 
-    /**
-     *
-     * This class helps open, create, and upgrade the database file. Set to package visibility
-     * for testing purposes.
-     */
-    static class DatabaseHelper extends SQLiteOpenHelper {
+        /*
+         * Creates an initializes a projection map for full-text searches. The search joins the
+         * notes table to the FTS matches, so the ID column has to be qualified.
+         */
+        sSearchProjectionMap = new HashMap<String, String>(sNotesProjectionMap);
 
-        DatabaseHelper(Context context) {
+        // Maps "_ID" to "notes._ID AS _ID"
+        sSearchProjectionMap.put(NotePad.Notes._ID,
+                NotePad.Notes.TABLE_NAME + "." + NotePad.Notes._ID + " AS " + NotePad.Notes._ID);
 
-            // calls the super constructor, requesting the default cursor factory.
-            super(context, DATABASE_NAME, null, DATABASE_VERSION);
-        }
+        /*
+         * Creates and initializes a projection map for the categories in use. Each row is a
+         * group of notes with the same category, so the ID is the _ID of the category.
+         */
+        sNoteCategoriesProjectionMap = new HashMap<String, String>();
+
+        // Maps "_ID" to "categories._ID AS _ID"
+        sNoteCategoriesProjectionMap.put(NotePad.Notes._ID,
+                NotePad.Categories.TABLE_NAME + "." + NotePad.Categories._ID + " AS " +
+                        NotePad.Notes._ID);
+
+        // Maps "category" to "categories.name AS category"
+        sNoteCategoriesProjectionMap.put(NotePad.Notes.COLUMN_NAME_CATEGORY,
+                NotePad.Categories.TABLE_NAME + "." + NotePad.Categories.COLUMN_NAME_NAME +
+                        " AS " + NotePad.Notes.COLUMN_NAME_CATEGORY);
+
+        // Maps "note_count" to "COUNT(*) AS note_count"
+        sNoteCategoriesProjectionMap.put(NotePad.Notes.COLUMN_NAME_NOTE_COUNT,
+                "COUNT(*) AS " + NotePad.Notes.COLUMN_NAME_NOTE_COUNT);
+
+        /*
+         * Creates and initializes a projection map for the trash
+         */
+        sTrashProjectionMap = new HashMap<String, String>(sNotesProjectionMap);
+
+        // Maps "deleted_at" to "deleted_at"
+        sTrashProjectionMap.put(NotePad.Notes.COLUMN_NAME_DELETED_AT,
+                NotePad.Notes.COLUMN_NAME_DELETED_AT);
+
+        /*
+         * Creates and initializes a projection map for the categories table
+         */
+        sCategoriesProjectionMap = new HashMap<String, String>();
+
+        // Maps "_ID" to "_ID"
+        sCategoriesProjectionMap.put(NotePad.Categories._ID, NotePad.Categories._ID);
+
+        // Maps "name" to "name"
+        sCategoriesProjectionMap.put(NotePad.Categories.COLUMN_NAME_NAME,
+                NotePad.Categories.COLUMN_NAME_NAME);
+
+        /*
+         * Creates and initializes a projection map for the imports table. Every column maps to
+         * itself.
+         */
+        sImportsProjectionMap = new HashMap<String, String>();
+        for (String column : new String[] {
+                NotePad.Imports._ID,
+                NotePad.Imports.COLUMN_NAME_NAME,
+                NotePad.Imports.COLUMN_NAME_RECORDS,
+                NotePad.Imports.COLUMN_NAME_FINISHED,
+                NotePad.Imports.COLUMN_NAME_ERROR,
+                NotePad.Imports.COLUMN_NAME_MODIFICATION_DATE }) {
+            sImportsProjectionMap.put(column, column);
+        }
+
+        /*
+         * Creates and initializes a projection map for the statistics
+         */
+        sStatsProjectionMap = new HashMap<String, String>();
+
+        // Maps "_ID" to "note_stats.rowid AS _ID"
+        sStatsProjectionMap.put(NotePad.Notes._ID,
+                STATS_TABLE_NAME + ".rowid AS " + NotePad.Notes._ID);
+
+        // Maps "kind" to "kind"
+        sStatsProjectionMap.put(NotePad.Notes.COLUMN_NAME_STAT_KIND,
+                NotePad.Notes.COLUMN_NAME_STAT_KIND);
+
+        // Maps "value" to "value"
+        sStatsProjectionMap.put(NotePad.Notes.COLUMN_NAME_STAT_VALUE,
+                NotePad.Notes.COLUMN_NAME_STAT_VALUE);
+
+        // Maps "note_count" to "note_count"
+        sStatsProjectionMap.put(NotePad.Notes.COLUMN_NAME_NOTE_COUNT,
+                NotePad.Notes.COLUMN_NAME_NOTE_COUNT);
+
+        // Maps "category" to "categories.name AS category"
+        sStatsProjectionMap.put(NotePad.Notes.COLUMN_NAME_CATEGORY,
+                NotePad.Categories.TABLE_NAME + "." + NotePad.Categories.COLUMN_NAME_NAME +
+                        " AS " + NotePad.Notes.COLUMN_NAME_CATEGORY);
+
+        /*
+         * A cached note row holds every column of the notes projection map.
+         */
+        Set<String> columns = sNotesProjectionMap.keySet();
+        sNoteRowColumns = columns.toArray(new String[columns.size()]);
+        sNoteRowColumnIndexes = new HashMap<String, Integer>();
+        for (int i = 0; i < sNoteRowColumns.length; i++) {
+            sNoteRowColumnIndexes.put(sNoteRowColumns[i], i);
+        }
+        sNoteByIdQuery = buildNoteByIdQuery(sNoteRowColumns);
+    }
+
+    /**
+     *
+     * This class helps open, create, and upgrade the database file. Set to package visibility
+     * for testing purposes.
+     */
+    static class DatabaseHelper extends SQLiteOpenHelper {
+
+        DatabaseHelper(Context context) {
+
+            // calls the super constructor, requesting the default cursor factory.
+            super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        }
+
+        /**
+         * Configures each connection before the database is created or upgraded. Turns on
+         * write-ahead logging, so that queries run on their own connections from the pool while
+         * a note is being written, and writes don't wait for queries to finish. The size of the
+         * pool is chosen by the platform.
+         */
+        @Override
+        public void onConfigure(SQLiteDatabase db) {
+            db.enableWriteAheadLogging();
+
+            // These pragmas return their new value, so they are run as queries.
+            DatabaseUtils.longForQuery(db,
+                    "PRAGMA wal_autocheckpoint = " + WAL_AUTOCHECKPOINT_PAGES, null);
+            DatabaseUtils.longForQuery(db,
+                    "PRAGMA journal_size_limit = " + WAL_SIZE_LIMIT_BYTES, null);
+        }
 
         /**
          *
@@ -202,12 +1033,66 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
             db.execSQL("CREATE TABLE " + NotePad.Notes.TABLE_NAME + " (" +
                     NotePad.Notes._ID + " INTEGER PRIMARY KEY," +
                     NotePad.Notes.COLUMN_NAME_TITLE + " TEXT," +
-                    NotePad.Notes.COLUMN_NAME_NOTE + " TEXT," +
-                    NotePad.Notes.COLUMN_NAME_CATEGORY + " TEXT," +
+                    NotePad.Notes.COLUMN_NAME_CATEGORY_ID + " INTEGER," +
                     NotePad.Notes.COLUMN_NAME_COLOR + " INTEGER DEFAULT -1," +
                     NotePad.Notes.COLUMN_NAME_CREATE_DATE + " INTEGER," +
-                    NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + " INTEGER" +
+                    NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + " INTEGER," +
+                    NotePad.Notes.COLUMN_NAME_DELETED_AT + " INTEGER" +
+                    ");");
+
+            db.execSQL("CREATE TABLE " + BODIES_TABLE_NAME + " (" +
+                    BODIES_COLUMN_NOTE_ID + " INTEGER PRIMARY KEY," +
+                    NotePad.Notes.COLUMN_NAME_NOTE + " TEXT," +
+                    BODIES_COLUMN_NOTE_LENGTH + " INTEGER," +
+                    BODIES_COLUMN_NOTE_FILE + " TEXT" +
+                    ");");
+
+            db.execSQL("CREATE TABLE " + SEGMENTS_TABLE_NAME + " (" +
+                    SEGMENTS_COLUMN_NOTE_ID + " INTEGER NOT NULL," +
+                    SEGMENTS_COLUMN_START + " INTEGER NOT NULL," +
+                    SEGMENTS_COLUMN_LENGTH + " INTEGER NOT NULL," +
+                    SEGMENTS_COLUMN_DATA + " TEXT," +
+                    "PRIMARY KEY (" + SEGMENTS_COLUMN_NOTE_ID + ", " +
+                    SEGMENTS_COLUMN_START + ")" +
+                    ");");
+
+            // AUTOINCREMENT keeps the _ID of a deleted category from being reused, so the notes
+            // that still refer to it never move into a new category.
+            db.execSQL("CREATE TABLE " + NotePad.Categories.TABLE_NAME + " (" +
+                    NotePad.Categories._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
+                    NotePad.Categories.COLUMN_NAME_NAME + " TEXT NOT NULL UNIQUE" +
+                    ");");
+
+            db.execSQL("CREATE TABLE " + STATS_TABLE_NAME + " (" +
+                    NotePad.Notes.COLUMN_NAME_STAT_KIND + " TEXT NOT NULL," +
+                    NotePad.Notes.COLUMN_NAME_STAT_VALUE + " INTEGER NOT NULL," +
+                    NotePad.Notes.COLUMN_NAME_NOTE_COUNT + " INTEGER NOT NULL," +
+                    "PRIMARY KEY (" + NotePad.Notes.COLUMN_NAME_STAT_KIND + ", " +
+                    NotePad.Notes.COLUMN_NAME_STAT_VALUE + ")" +
+                    ");");
+            db.execSQL("INSERT INTO " + STATS_TABLE_NAME + " VALUES ('" +
+                    NotePad.Notes.STAT_KIND_TOTAL + "', 0, 0)");
+
+            db.execSQL("CREATE TABLE " + EDITS_TABLE_NAME + " (" +
+                    EDITS_COLUMN_SEQUENCE + " INTEGER PRIMARY KEY," +
+                    EDITS_COLUMN_NOTE_ID + " INTEGER NOT NULL," +
+                    NotePad.Notes.COLUMN_NAME_EDIT_POSITION + " INTEGER NOT NULL," +
+                    NotePad.Notes.COLUMN_NAME_EDIT_DELETE_LENGTH + " INTEGER NOT NULL," +
+                    NotePad.Notes.COLUMN_NAME_EDIT_TEXT + " TEXT NOT NULL" +
+                    ");");
+
+            db.execSQL("CREATE TABLE " + NotePad.Imports.TABLE_NAME + " (" +
+                    NotePad.Imports._ID + " INTEGER PRIMARY KEY," +
+                    NotePad.Imports.COLUMN_NAME_NAME + " TEXT NOT NULL UNIQUE," +
+                    NotePad.Imports.COLUMN_NAME_RECORDS + " INTEGER NOT NULL DEFAULT 0," +
+                    NotePad.Imports.COLUMN_NAME_FINISHED + " INTEGER NOT NULL DEFAULT 0," +
+                    NotePad.Imports.COLUMN_NAME_ERROR + " TEXT," +
+                    NotePad.Imports.COLUMN_NAME_MODIFICATION_DATE + " INTEGER" +
                     ");");
+
+            createFtsTable(db);
+            createIndexes(db);
+            createTriggers(db);
         }
 
         /**
@@ -216,6 +1101,9 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
          * underlying datastore is changed. In this sample, the database is upgraded the database
          * by destroying the existing data.
          * A real application should upgrade the database in place.
+         *
+         * Each step below works on the schema of the version it upgrades from, so it spells out
+         * its own SQL instead of calling the methods that create the current schema.
          */
         // 添加数据库升级逻辑
         @Override
@@ -223,6 +1111,374 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
             if (oldVersion < 4) {
                 db.execSQL("ALTER TABLE " + NotePad.Notes.TABLE_NAME + " ADD COLUMN " + NotePad.Notes.COLUMN_NAME_COLOR + " INTEGER DEFAULT -1");
             }
+            if (oldVersion < 5) {
+                // Builds the full-text index over the notes that already exist
+                createFtsTable(db);
+                db.execSQL("INSERT INTO " + FTS_TABLE_NAME + " (docid, title, note) " +
+                        "SELECT _id, title, note FROM notes");
+            }
+            if (oldVersion < 7) {
+                // Moves the note contents out of the notes table into their own table, then
+                // rebuilds the notes table without them, so that its rows stay small.
+                db.execSQL("CREATE TABLE note_bodies (" +
+                        "note_id INTEGER PRIMARY KEY," +
+                        "note TEXT" +
+                        ");");
+                db.execSQL("INSERT INTO note_bodies (note_id, note) SELECT _id, note FROM notes");
+                db.execSQL("CREATE TABLE notes_v7 (" +
+                        "_id INTEGER PRIMARY KEY," +
+                        "title TEXT," +
+                        "category TEXT," +
+                        "color INTEGER DEFAULT -1," +
+                        "created INTEGER," +
+                        "modified INTEGER" +
+                        ");");
+                db.execSQL("INSERT INTO notes_v7 (_id, title, category, color, created, modified) " +
+                        "SELECT _id, title, category, color, created, modified FROM notes");
+                db.execSQL("DROP TABLE notes");
+                db.execSQL("ALTER TABLE notes_v7 RENAME TO notes");
+            }
+            if (oldVersion < 8) {
+                // Moves the category names into their own table, and replaces the name in each
+                // note with the _ID of its category.
+                db.execSQL("CREATE TABLE categories (" +
+                        "_id INTEGER PRIMARY KEY AUTOINCREMENT," +
+                        "name TEXT NOT NULL UNIQUE" +
+                        ");");
+                db.execSQL("INSERT INTO categories (name) SELECT DISTINCT category FROM notes " +
+                        "WHERE category IS NOT NULL AND category != ''");
+                db.execSQL("CREATE TABLE notes_v8 (" +
+                        "_id INTEGER PRIMARY KEY," +
+                        "title TEXT," +
+                        "category_id INTEGER," +
+                        "color INTEGER DEFAULT -1," +
+                        "created INTEGER," +
+                        "modified INTEGER" +
+                        ");");
+                db.execSQL("INSERT INTO notes_v8 " +
+                        "(_id, title, category_id, color, created, modified) " +
+                        "SELECT notes._id, title, categories._id, color, created, modified " +
+                        "FROM notes LEFT OUTER JOIN categories " +
+                        "ON (categories.name = notes.category)");
+                db.execSQL("DROP TABLE notes");
+                db.execSQL("ALTER TABLE notes_v8 RENAME TO notes");
+            }
+            if (oldVersion < 9) {
+                // Counts the existing notes. The triggers keep the counts up to date from now on.
+                db.execSQL("CREATE TABLE note_stats (" +
+                        "kind TEXT NOT NULL," +
+                        "value INTEGER NOT NULL," +
+                        "note_count INTEGER NOT NULL," +
+                        "PRIMARY KEY (kind, value)" +
+                        ");");
+                db.execSQL("INSERT INTO note_stats SELECT 'total', 0, COUNT(*) FROM notes");
+                db.execSQL("INSERT INTO note_stats SELECT 'color', color, COUNT(*) FROM notes " +
+                        "WHERE color IS NOT NULL GROUP BY color");
+                db.execSQL("INSERT INTO note_stats SELECT 'category', category_id, COUNT(*) " +
+                        "FROM notes WHERE category_id IS NOT NULL GROUP BY category_id");
+            }
+            if (oldVersion < 10) {
+                // Adds the table of note edits. Existing notes have none.
+                db.execSQL("CREATE TABLE note_edits (" +
+                        "seq INTEGER PRIMARY KEY," +
+                        "note_id INTEGER NOT NULL," +
+                        "position INTEGER NOT NULL," +
+                        "delete_length INTEGER NOT NULL," +
+                        "inserted TEXT NOT NULL" +
+                        ");");
+            }
+            // Version 11 stores large contents compressed. Existing contents stay as text until
+            // they are next written, and only the full-text triggers change, below.
+            if (oldVersion < 12) {
+                // Adds the deletion time of notes in the trash. Existing notes aren't in it.
+                db.execSQL("ALTER TABLE notes ADD COLUMN deleted_at INTEGER");
+            }
+            if (oldVersion < 13) {
+                // Adds the checkpoints of imports. No import has run yet.
+                db.execSQL("CREATE TABLE imports (" +
+                        "_id INTEGER PRIMARY KEY," +
+                        "name TEXT NOT NULL UNIQUE," +
+                        "records INTEGER NOT NULL DEFAULT 0," +
+                        "finished INTEGER NOT NULL DEFAULT 0," +
+                        "error TEXT," +
+                        "modified INTEGER" +
+                        ");");
+            }
+            if (oldVersion < 14) {
+                // Adds the segments of long contents. Existing contents stay whole until they are
+                // next written, and queries cut long ones to the length of a segment.
+                db.execSQL("ALTER TABLE note_bodies ADD COLUMN note_length INTEGER");
+                db.execSQL("CREATE TABLE note_segments (" +
+                        "note_id INTEGER NOT NULL," +
+                        "start INTEGER NOT NULL," +
+                        "length INTEGER NOT NULL," +
+                        "data TEXT," +
+                        "PRIMARY KEY (note_id, start)" +
+                        ");");
+            }
+            if (oldVersion < 15) {
+                // Adds the files of the longest contents. Existing contents stay in the database
+                // until they are next written.
+                db.execSQL("ALTER TABLE note_bodies ADD COLUMN note_file TEXT");
+            }
+
+            // Indexes and triggers hold no data of their own, so they are always rebuilt to match
+            // the current schema.
+            dropIndexes(db);
+            createIndexes(db);
+            dropTriggers(db);
+            createTriggers(db);
+        }
+
+        /**
+         * Creates the FTS table that indexes the title and the contents of each note.
+         */
+        private static void createFtsTable(SQLiteDatabase db) {
+            db.execSQL("CREATE VIRTUAL TABLE " + FTS_TABLE_NAME + " USING fts4(" +
+                    NotePad.Notes.COLUMN_NAME_TITLE + ", " +
+                    NotePad.Notes.COLUMN_NAME_NOTE + ", " +
+                    "tokenize=unicode61" +
+                    ");");
+        }
+
+        /**
+         * Creates the indexes that serve the provider's query shapes: the list sorted by
+         * modification date, the notes of one category sorted the same way, the notes of one
+         * color, the edits of one note in order, the trash sorted by deletion time, and the
+         * contents that refer to a file. The trash and file indexes only hold the rows they are
+         * for, so they cost nothing for the others.
+         */
+        private static void createIndexes(SQLiteDatabase db) {
+            db.execSQL("CREATE INDEX " + NotePad.Notes.TABLE_NAME + "_modified_index ON " +
+                    NotePad.Notes.TABLE_NAME + " (" +
+                    NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + ");");
+            db.execSQL("CREATE INDEX " + NotePad.Notes.TABLE_NAME + "_category_index ON " +
+                    NotePad.Notes.TABLE_NAME + " (" +
+                    NotePad.Notes.COLUMN_NAME_CATEGORY_ID + ", " +
+                    NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + ");");
+            db.execSQL("CREATE INDEX " + NotePad.Notes.TABLE_NAME + "_color_index ON " +
+                    NotePad.Notes.TABLE_NAME + " (" +
+                    NotePad.Notes.COLUMN_NAME_COLOR + ");");
+            db.execSQL("CREATE INDEX " + EDITS_TABLE_NAME + "_note_index ON " +
+                    EDITS_TABLE_NAME + " (" + EDITS_COLUMN_NOTE_ID + ", " +
+                    EDITS_COLUMN_SEQUENCE + ");");
+            db.execSQL("CREATE INDEX " + NotePad.Notes.TABLE_NAME + "_deleted_index ON " +
+                    NotePad.Notes.TABLE_NAME + " (" +
+                    NotePad.Notes.COLUMN_NAME_DELETED_AT + ") WHERE " +
+                    NotePad.Notes.COLUMN_NAME_DELETED_AT + " IS NOT NULL;");
+            db.execSQL("CREATE INDEX " + BODIES_TABLE_NAME + "_file_index ON " +
+                    BODIES_TABLE_NAME + " (" + BODIES_COLUMN_NOTE_FILE + ") WHERE " +
+                    BODIES_COLUMN_NOTE_FILE + " IS NOT NULL;");
+        }
+
+        /**
+         * Drops the indexes created by {@link #createIndexes(SQLiteDatabase)}.
+         */
+        private static void dropIndexes(SQLiteDatabase db) {
+            db.execSQL("DROP INDEX IF EXISTS " + NotePad.Notes.TABLE_NAME + "_modified_index");
+            db.execSQL("DROP INDEX IF EXISTS " + NotePad.Notes.TABLE_NAME + "_category_index");
+            db.execSQL("DROP INDEX IF EXISTS " + NotePad.Notes.TABLE_NAME + "_color_index");
+            db.execSQL("DROP INDEX IF EXISTS " + EDITS_TABLE_NAME + "_note_index");
+            db.execSQL("DROP INDEX IF EXISTS " + NotePad.Notes.TABLE_NAME + "_deleted_index");
+            db.execSQL("DROP INDEX IF EXISTS " + BODIES_TABLE_NAME + "_file_index");
+        }
+
+        /**
+         * Creates the triggers that delete the contents, segments and edits of deleted notes,
+         * that drop the segments and edits of contents that are written whole, that keep the FTS
+         * table in sync with the notes and their contents, and that keep the statistics table up
+         * to date.
+         */
+        private static void createTriggers(SQLiteDatabase db) {
+            db.execSQL("CREATE TRIGGER notes_bodies_delete AFTER DELETE ON " +
+                    NotePad.Notes.TABLE_NAME + " BEGIN " +
+                    "DELETE FROM " + BODIES_TABLE_NAME + " WHERE " + BODIES_COLUMN_NOTE_ID +
+                    " = old." + NotePad.Notes._ID + "; END;");
+
+            db.execSQL("CREATE TRIGGER notes_segments_delete AFTER DELETE ON " +
+                    NotePad.Notes.TABLE_NAME + " BEGIN " +
+                    "DELETE FROM " + SEGMENTS_TABLE_NAME + " WHERE " + SEGMENTS_COLUMN_NOTE_ID +
+                    " = old." + NotePad.Notes._ID + "; END;");
+
+            db.execSQL("CREATE TRIGGER notes_edits_delete AFTER DELETE ON " +
+                    NotePad.Notes.TABLE_NAME + " BEGIN " +
+                    "DELETE FROM " + EDITS_TABLE_NAME + " WHERE " + EDITS_COLUMN_NOTE_ID +
+                    " = old." + NotePad.Notes._ID + "; END;");
+
+            // Writing the contents replaces them, edits included. The single note update
+            // replaces the row, which fires the insert trigger; the general update fires the
+            // update trigger.
+            db.execSQL("CREATE TRIGGER note_bodies_edits_insert AFTER INSERT ON " +
+                    BODIES_TABLE_NAME + " BEGIN " +
+                    "DELETE FROM " + EDITS_TABLE_NAME + " WHERE " + EDITS_COLUMN_NOTE_ID +
+                    " = new." + BODIES_COLUMN_NOTE_ID + "; END;");
+
+            db.execSQL("CREATE TRIGGER note_bodies_edits_update AFTER UPDATE OF " +
+                    NotePad.Notes.COLUMN_NAME_NOTE + " ON " + BODIES_TABLE_NAME + " BEGIN " +
+                    "DELETE FROM " + EDITS_TABLE_NAME + " WHERE " + EDITS_COLUMN_NOTE_ID +
+                    " = new." + BODIES_COLUMN_NOTE_ID + "; END;");
+
+            // Writing the contents replaces their segments as well. Contents that are stored in
+            // segments have their new segments written after them.
+            db.execSQL("CREATE TRIGGER note_bodies_segments_insert AFTER INSERT ON " +
+                    BODIES_TABLE_NAME + " BEGIN " +
+                    "DELETE FROM " + SEGMENTS_TABLE_NAME + " WHERE " + SEGMENTS_COLUMN_NOTE_ID +
+                    " = new." + BODIES_COLUMN_NOTE_ID + "; END;");
+
+            db.execSQL("CREATE TRIGGER note_bodies_segments_update AFTER UPDATE OF " +
+                    NotePad.Notes.COLUMN_NAME_NOTE + " ON " + BODIES_TABLE_NAME + " BEGIN " +
+                    "DELETE FROM " + SEGMENTS_TABLE_NAME + " WHERE " + SEGMENTS_COLUMN_NOTE_ID +
+                    " = new." + BODIES_COLUMN_NOTE_ID + "; END;");
+
+            // A new note is indexed with empty contents. Its contents are indexed when they
+            // are written to the contents table.
+            db.execSQL("CREATE TRIGGER notes_fts_insert AFTER INSERT ON " +
+                    NotePad.Notes.TABLE_NAME + " BEGIN " +
+                    "INSERT INTO " + FTS_TABLE_NAME + " (docid, " +
+                    NotePad.Notes.COLUMN_NAME_TITLE + ", " + NotePad.Notes.COLUMN_NAME_NOTE +
+                    ") VALUES (new." + NotePad.Notes._ID + ", new." +
+                    NotePad.Notes.COLUMN_NAME_TITLE + ", ''); END;");
+
+            db.execSQL("CREATE TRIGGER notes_fts_update AFTER UPDATE OF " +
+                    NotePad.Notes.COLUMN_NAME_TITLE + " ON " + NotePad.Notes.TABLE_NAME +
+                    " BEGIN " +
+                    "UPDATE " + FTS_TABLE_NAME + " SET " +
+                    NotePad.Notes.COLUMN_NAME_TITLE + " = new." + NotePad.Notes.COLUMN_NAME_TITLE +
+                    " WHERE docid = old." + NotePad.Notes._ID + "; END;");
+
+            db.execSQL("CREATE TRIGGER notes_fts_delete AFTER DELETE ON " +
+                    NotePad.Notes.TABLE_NAME + " BEGIN " +
+                    "DELETE FROM " + FTS_TABLE_NAME + " WHERE docid = old." +
+                    NotePad.Notes._ID + "; END;");
+
+            // Compressed contents can't be indexed by SQL, so the provider indexes their text
+            // itself when it writes them.
+            db.execSQL("CREATE TRIGGER note_bodies_fts_insert AFTER INSERT ON " +
+                    BODIES_TABLE_NAME + " WHEN " + IS_TEXT_BODY + " BEGIN " +
+                    "UPDATE " + FTS_TABLE_NAME + " SET " +
+                    NotePad.Notes.COLUMN_NAME_NOTE + " = new." + NotePad.Notes.COLUMN_NAME_NOTE +
+                    " WHERE docid = new." + BODIES_COLUMN_NOTE_ID + "; END;");
+
+            db.execSQL("CREATE TRIGGER note_bodies_fts_update AFTER UPDATE OF " +
+                    NotePad.Notes.COLUMN_NAME_NOTE + " ON " + BODIES_TABLE_NAME + " WHEN " +
+                    IS_TEXT_BODY + " BEGIN " +
+                    "UPDATE " + FTS_TABLE_NAME + " SET " +
+                    NotePad.Notes.COLUMN_NAME_NOTE + " = new." + NotePad.Notes.COLUMN_NAME_NOTE +
+                    " WHERE docid = new." + BODIES_COLUMN_NOTE_ID + "; END;");
+
+            // Counts each note in the total, and in the counts of its color and its category.
+            // Notes in the trash aren't counted: moving a note to the trash stops counting it,
+            // and purging it changes nothing more.
+            db.execSQL("CREATE TRIGGER notes_stats_insert AFTER INSERT ON " +
+                    NotePad.Notes.TABLE_NAME + " WHEN new." +
+                    NotePad.Notes.COLUMN_NAME_DELETED_AT + " IS NULL BEGIN " +
+                    incrementStat(NotePad.Notes.STAT_KIND_TOTAL, "0") +
+                    incrementStat(NotePad.Notes.STAT_KIND_COLOR,
+                            "new." + NotePad.Notes.COLUMN_NAME_COLOR) +
+                    incrementStat(NotePad.Notes.STAT_KIND_CATEGORY,
+                            "new." + NotePad.Notes.COLUMN_NAME_CATEGORY_ID) +
+                    "END;");
+
+            db.execSQL("CREATE TRIGGER notes_stats_delete AFTER DELETE ON " +
+                    NotePad.Notes.TABLE_NAME + " WHEN old." +
+                    NotePad.Notes.COLUMN_NAME_DELETED_AT + " IS NULL BEGIN " +
+                    decrementStat(NotePad.Notes.STAT_KIND_TOTAL, "0") +
+                    decrementStat(NotePad.Notes.STAT_KIND_COLOR,
+                            "old." + NotePad.Notes.COLUMN_NAME_COLOR) +
+                    decrementStat(NotePad.Notes.STAT_KIND_CATEGORY,
+                            "old." + NotePad.Notes.COLUMN_NAME_CATEGORY_ID) +
+                    "END;");
+
+            db.execSQL("CREATE TRIGGER notes_stats_color AFTER UPDATE OF " +
+                    NotePad.Notes.COLUMN_NAME_COLOR + " ON " + NotePad.Notes.TABLE_NAME +
+                    " WHEN old." + NotePad.Notes.COLUMN_NAME_COLOR + " IS NOT new." +
+                    NotePad.Notes.COLUMN_NAME_COLOR + " AND " + IS_COUNTED + " BEGIN " +
+                    decrementStat(NotePad.Notes.STAT_KIND_COLOR,
+                            "old." + NotePad.Notes.COLUMN_NAME_COLOR) +
+                    incrementStat(NotePad.Notes.STAT_KIND_COLOR,
+                            "new." + NotePad.Notes.COLUMN_NAME_COLOR) +
+                    "END;");
+
+            db.execSQL("CREATE TRIGGER notes_stats_category AFTER UPDATE OF " +
+                    NotePad.Notes.COLUMN_NAME_CATEGORY_ID + " ON " + NotePad.Notes.TABLE_NAME +
+                    " WHEN old." + NotePad.Notes.COLUMN_NAME_CATEGORY_ID + " IS NOT new." +
+                    NotePad.Notes.COLUMN_NAME_CATEGORY_ID + " AND " + IS_COUNTED + " BEGIN " +
+                    decrementStat(NotePad.Notes.STAT_KIND_CATEGORY,
+                            "old." + NotePad.Notes.COLUMN_NAME_CATEGORY_ID) +
+                    incrementStat(NotePad.Notes.STAT_KIND_CATEGORY,
+                            "new." + NotePad.Notes.COLUMN_NAME_CATEGORY_ID) +
+                    "END;");
+
+            db.execSQL("CREATE TRIGGER notes_stats_trash AFTER UPDATE OF " +
+                    NotePad.Notes.COLUMN_NAME_DELETED_AT + " ON " + NotePad.Notes.TABLE_NAME +
+                    " WHEN old." + NotePad.Notes.COLUMN_NAME_DELETED_AT + " IS NULL AND new." +
+                    NotePad.Notes.COLUMN_NAME_DELETED_AT + " IS NOT NULL BEGIN " +
+                    decrementStat(NotePad.Notes.STAT_KIND_TOTAL, "0") +
+                    decrementStat(NotePad.Notes.STAT_KIND_COLOR,
+                            "old." + NotePad.Notes.COLUMN_NAME_COLOR) +
+                    decrementStat(NotePad.Notes.STAT_KIND_CATEGORY,
+                            "old." + NotePad.Notes.COLUMN_NAME_CATEGORY_ID) +
+                    "END;");
+        }
+
+        /**
+         * Builds the trigger statements that count a note in a count of the statistics table,
+         * creating the count if it doesn't exist. A null value isn't counted.
+         *
+         * @param kind The kind of count.
+         * @param value The SQL expression of the value to count.
+         */
+        private static String incrementStat(String kind, String value) {
+            return "INSERT OR IGNORE INTO " + STATS_TABLE_NAME + " SELECT '" + kind + "', " +
+                    value + ", 0 WHERE " + value + " IS NOT NULL; " +
+                    "UPDATE " + STATS_TABLE_NAME + " SET " + NotePad.Notes.COLUMN_NAME_NOTE_COUNT +
+                    " = " + NotePad.Notes.COLUMN_NAME_NOTE_COUNT + " + 1 WHERE " +
+                    NotePad.Notes.COLUMN_NAME_STAT_KIND + " = '" + kind + "' AND " +
+                    NotePad.Notes.COLUMN_NAME_STAT_VALUE + " = " + value + "; ";
+        }
+
+        /**
+         * Builds the trigger statements that stop counting a note in a count of the statistics
+         * table. Counts other than the total are deleted when they reach zero, so that the
+         * table only holds the colors and categories in use.
+         *
+         * @param kind The kind of count.
+         * @param value The SQL expression of the value to stop counting.
+         */
+        private static String decrementStat(String kind, String value) {
+            String where = " WHERE " + NotePad.Notes.COLUMN_NAME_STAT_KIND + " = '" + kind +
+                    "' AND " + NotePad.Notes.COLUMN_NAME_STAT_VALUE + " = " + value;
+            String sql = "UPDATE " + STATS_TABLE_NAME + " SET " +
+                    NotePad.Notes.COLUMN_NAME_NOTE_COUNT + " = " +
+                    NotePad.Notes.COLUMN_NAME_NOTE_COUNT + " - 1" + where + "; ";
+            if (!NotePad.Notes.STAT_KIND_TOTAL.equals(kind)) {
+                sql += "DELETE FROM " + STATS_TABLE_NAME + where + " AND " +
+                        NotePad.Notes.COLUMN_NAME_NOTE_COUNT + " = 0; ";
+            }
+            return sql;
+        }
+
+        /**
+         * Drops the triggers created by {@link #createTriggers(SQLiteDatabase)}.
+         */
+        private static void dropTriggers(SQLiteDatabase db) {
+            db.execSQL("DROP TRIGGER IF EXISTS notes_bodies_delete");
+            db.execSQL("DROP TRIGGER IF EXISTS notes_segments_delete");
+            db.execSQL("DROP TRIGGER IF EXISTS notes_edits_delete");
+            db.execSQL("DROP TRIGGER IF EXISTS note_bodies_edits_insert");
+            db.execSQL("DROP TRIGGER IF EXISTS note_bodies_edits_update");
+            db.execSQL("DROP TRIGGER IF EXISTS note_bodies_segments_insert");
+            db.execSQL("DROP TRIGGER IF EXISTS note_bodies_segments_update");
+            db.execSQL("DROP TRIGGER IF EXISTS notes_fts_insert");
+            db.execSQL("DROP TRIGGER IF EXISTS notes_fts_update");
+            db.execSQL("DROP TRIGGER IF EXISTS notes_fts_delete");
+            db.execSQL("DROP TRIGGER IF EXISTS note_bodies_fts_insert");
+            db.execSQL("DROP TRIGGER IF EXISTS note_bodies_fts_update");
+            db.execSQL("DROP TRIGGER IF EXISTS notes_stats_insert");
+            db.execSQL("DROP TRIGGER IF EXISTS notes_stats_delete");
+            db.execSQL("DROP TRIGGER IF EXISTS notes_stats_color");
+            db.execSQL("DROP TRIGGER IF EXISTS notes_stats_category");
+            db.execSQL("DROP TRIGGER IF EXISTS notes_stats_trash");
         }
     }
 
@@ -239,6 +1495,18 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         // something tries to access it, and it's only created if it doesn't already exist.
         mOpenHelper = new DatabaseHelper(getContext());
 
+        // The directory is created when the first file is written.
+        mBodyFileDir = new File(getContext().getFilesDir(), BODY_FILES_DIR);
+
+        // Creates the coalescer that sends the change notifications.
+        mNotifier = new NotificationCoalescer(getContext().getContentResolver(),
+                NOTIFY_WINDOW_MILLIS);
+
+        // Purges the trash a while after the provider starts, so that the purge doesn't compete
+        // with the first queries, and periodically after that.
+        mPurger.scheduleWithFixedDelay(mPurge, PURGE_INITIAL_DELAY_MILLIS, PURGE_INTERVAL_MILLIS,
+                TimeUnit.MILLISECONDS);
+
         // Assumes that any failures will be reported by a thrown exception.
         return true;
     }
@@ -256,17 +1524,186 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
     public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
                         String sortOrder) {
 
-        // Constructs a new query builder and sets its table name
+        // Times the query and counts its rows. Counting the rows runs the query, so the latency
+        // includes reading the first window of rows and not only compiling the statement.
+        long start = ProviderMetrics.start();
+        int match = sUriMatcher.match(uri);
+        Cursor c;
+        int rows;
+        try {
+            c = queryInternal(uri, projection, selection, selectionArgs, sortOrder);
+            rows = c == null ? 0 : c.getCount();
+        } catch (RuntimeException e) {
+            mMetrics.recordError(ProviderMetrics.OP_QUERY, match, start);
+            throw e;
+        }
+        mMetrics.record(ProviderMetrics.OP_QUERY, match, rows, start);
+        return c;
+    }
+
+    /**
+     * Does the work of {@link #query(Uri, String[], String, String[], String)}, without
+     * recording it in the metrics.
+     */
+    private Cursor queryInternal(Uri uri, String[] projection, String selection,
+            String[] selectionArgs, String sortOrder) {
+
+        int match = sUriMatcher.match(uri);
+
+        // A single note without any other criteria takes the fast path.
+        if (match == NOTE_ID && selection == null && mSingleNoteFastPathEnabled) {
+            return queryNoteById(uri, projection);
+        }
+
+        // The contents of a note are read from their segments rather than with a query builder.
+        if (match == NOTE_BODY) {
+            return queryNoteBody(uri, projection);
+        }
+
+        // Builds the query for the URI.
+        BuiltQuery query = buildQuery(uri, projection, selection, selectionArgs, sortOrder);
+
+        // Opens the database object in "read" mode, since no writes need to be done.
+        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+
+        /*
+         * Performs the query. If no problems occur trying to read the database, then a Cursor
+         * object is returned; otherwise, the cursor variable contains null. If no records were
+         * selected, then the Cursor object is empty, and Cursor.getCount() returns 0.
+         */
+        Cursor c = query.builder.query(
+                db,                  // The database to query
+                query.projection,    // The columns to return from the query
+                query.selection,     // The columns for the where clause
+                query.selectionArgs, // The values for the where clause
+                query.groupBy,       // The column to group the rows by, or null
+                null,                // don't filter by row groups
+                query.orderBy,       // The sort order
+                query.limit          // The maximum number of rows, or null for no limit
+        );
+
+        // Returns the contents as text, however they are stored, with their edits applied.
+        if (query.readsBody) {
+            int bodyColumn = c.getColumnIndexOrThrow(NotePad.Notes.COLUMN_NAME_NOTE);
+            c = new EditedBodyCursor(new NoteBodyCodec.DecodingCursor(c, bodyColumn),
+                    bodyColumn, c.getColumnIndexOrThrow(NotePad.Notes._ID),
+                    query.projection != projection);
+        }
+
+        // Tells the Cursor what URI to watch, so it knows when its source data changes
+        c.setNotificationUri(getContext().getContentResolver(), query.notificationUri);
+        return c;
+    }
+
+    /**
+     * A query built for a URI by {@link #buildQuery}: the query builder, and the arguments to
+     * run it with.
+     */
+    private static final class BuiltQuery {
+
+        // The query builder, with the tables, projection map and URI's "where" clause set
+        SQLiteQueryBuilder builder;
+
+        // The columns to return. They include the _ID if the contents are read.
+        String[] projection;
+
+        // The selection and its arguments, including those of the URI
+        String selection;
+        String[] selectionArgs;
+
+        // The grouping, sort order and maximum number of rows, or null
+        String groupBy;
+        String orderBy;
+        String limit;
+
+        // The URI whose changes the cursor watches
+        Uri notificationUri;
+
+        // Whether the query reads the contents, whose edits the cursor applies
+        boolean readsBody;
+    }
+
+    /**
+     * Returns the SQL of the query that {@link #query(Uri, String[], String, String[], String)}
+     * runs through the query builder for a URI, without running it. Its placeholders are in
+     * the order of the selection arguments, after any that the URI adds. Set to package
+     * visibility for testing purposes.
+     *
+     * @throws IllegalArgumentException if the incoming URI pattern is invalid.
+     */
+    String buildQuerySql(Uri uri, String[] projection, String selection, String sortOrder) {
+        BuiltQuery query = buildQuery(uri, projection, selection, null, sortOrder);
+        return query.builder.buildQuery(query.projection, query.selection, query.groupBy, null,
+                query.orderBy, query.limit);
+    }
+
+    /**
+     * Builds the query of the notes, categories or imports for a URI: chooses the tables and
+     * projection map, adds the URI's "where" clause and arguments, and joins in the contents
+     * and categories that the query refers to.
+     *
+     * @throws IllegalArgumentException if the incoming URI pattern is invalid, or the sort
+     * order refers to the contents.
+     */
+    private BuiltQuery buildQuery(Uri uri, String[] projection, String selection,
+            String[] selectionArgs, String sortOrder) {
+
+        int match = sUriMatcher.match(uri);
+
+        // Constructs a new query builder. The tables are set once the URI is known.
         SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
-        qb.setTables(NotePad.Notes.TABLE_NAME);
+
+        // The tables to query, before the note contents and categories are joined in
+        String tables = NotePad.Notes.TABLE_NAME;
+
+        // Whether the query selects notes, to which the contents and categories can be joined
+        boolean joinNoteColumns = true;
+
+        // The sort order to use if the caller doesn't specify one
+        String defaultOrderBy = NotePad.Notes.DEFAULT_SORT_ORDER;
+
+        // The maximum number of rows to return, or null for all of them
+        String limit = null;
+
+        // The projection map that translates the requested columns
+        HashMap<String, String> projectionMap;
+
+        // The column to group the rows by, or null to not group them
+        String groupBy = null;
+
+        // The URI whose changes the cursor watches
+        Uri notificationUri = uri;
 
         /**
          * Choose the projection and adjust the "where" clause based on URI pattern-matching.
          */
-        switch (sUriMatcher.match(uri)) {
+        switch (match) {
             // If the incoming URI is for notes, chooses the Notes projection
             case NOTES:
-                qb.setProjectionMap(sNotesProjectionMap);
+                projectionMap = sNotesProjectionMap;
+                qb.appendWhere(NOT_DELETED);
+
+                /*
+                 * If the incoming URI asks for a page of notes, seeks past the previous page and
+                 * limits the number of rows. Pages are only defined for the default sort order.
+                 */
+                limit = uri.getQueryParameter(NotePad.Notes.QUERY_PARAMETER_LIMIT);
+                String after = uri.getQueryParameter(NotePad.Notes.QUERY_PARAMETER_AFTER);
+                if (limit != null || after != null) {
+                    if (!TextUtils.isEmpty(sortOrder)
+                            && !NotePad.Notes.DEFAULT_SORT_ORDER.equals(sortOrder)) {
+                        throw new IllegalArgumentException(
+                                "Pages require the default sort order " + uri);
+                    }
+                    sortOrder = PAGE_SORT_ORDER;
+                    if (limit != null) {
+                        limit = Integer.toString(parsePageLimit(limit, uri));
+                    }
+                    if (after != null) {
+                        qb.appendWhere(" AND " + PAGE_AFTER_SELECTION);
+                        selectionArgs = prependArgs(parsePageAfter(after, uri), selectionArgs);
+                    }
+                }
                 break;
 
             /* If the incoming URI is for a single note identified by its ID, chooses the
@@ -274,8 +1711,8 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
              * it selects that single note
              */
             case NOTE_ID:
-                qb.setProjectionMap(sNotesProjectionMap);
-                qb.appendWhere(
+                projectionMap = sNotesProjectionMap;
+                qb.appendWhere(NOT_DELETED + " AND " +
                         NotePad.Notes._ID +    // the name of the ID column
                                 "=" +
                                 // the position of the note ID itself in the incoming URI
@@ -284,41 +1721,189 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
 
             case LIVE_FOLDER_NOTES:
                 // If the incoming URI is from a live folder, chooses the live folder projection.
-                qb.setProjectionMap(sLiveFolderProjectionMap);
+                projectionMap = sLiveFolderProjectionMap;
+                qb.appendWhere(NOT_DELETED);
+                break;
+
+            /* If the incoming URI is a full-text search, joins the notes table to the FTS
+             * matches for the search terms, and ranks the results by relevance.
+             */
+            case NOTES_SEARCH:
+                String matchExpression = buildMatchExpression(
+                        uri.getQueryParameter(NotePad.Notes.QUERY_PARAMETER_SEARCH));
+                if (matchExpression == null) {
+                    throw new IllegalArgumentException("No search terms in " + uri);
+                }
+                tables = SEARCH_TABLES;
+                projectionMap = sSearchProjectionMap;
+                defaultOrderBy = SEARCH_SORT_ORDER;
+
+                // Notes in the trash keep their full-text entries until they are purged.
+                qb.appendWhere(NOT_DELETED);
+
+                // The MATCH placeholder in the tables clause precedes any in the selection.
+                selectionArgs = prependArgs(new String[] { matchExpression }, selectionArgs);
+                break;
+
+            /* If the incoming URI is for the categories in use, groups the notes that have a
+             * category by category. The grouping reads the category index in order. A category
+             * changes whenever one of its notes does, so the cursor watches all the notes.
+             */
+            case NOTES_CATEGORIES:
+                tables = NOTE_CATEGORIES_TABLES;
+                joinNoteColumns = false;
+                projectionMap = sNoteCategoriesProjectionMap;
+                groupBy = NotePad.Notes.TABLE_NAME + "." + NotePad.Notes.COLUMN_NAME_CATEGORY_ID;
+                qb.appendWhere(NOT_DELETED);
+                defaultOrderBy = NOTE_CATEGORIES_SORT_ORDER;
+                notificationUri = NotePad.Notes.CONTENT_URI;
+                break;
+
+            /* If the incoming URI is for the trash, selects the notes in it, most recently
+             * deleted first, with their deletion time. Notes move to the trash when they are
+             * deleted, so the cursor watches all the notes.
+             */
+            case NOTES_TRASH:
+                projectionMap = sTrashProjectionMap;
+                qb.appendWhere(IN_TRASH);
+                defaultOrderBy = TRASH_SORT_ORDER;
+                notificationUri = NotePad.Notes.CONTENT_URI;
+                break;
+
+            /* If the incoming URI is for the statistics, reads the counts kept by the triggers.
+             * The counts change whenever the notes do, so the cursor watches all the notes.
+             */
+            case NOTES_STATS:
+                tables = STATS_TABLES;
+                joinNoteColumns = false;
+                projectionMap = sStatsProjectionMap;
+                qb.appendWhere(STATS_SELECTION);
+                defaultOrderBy = STATS_SORT_ORDER;
+                notificationUri = NotePad.Notes.CONTENT_URI;
+                break;
+
+            // If the incoming URI is for categories, chooses the Categories projection
+            case CATEGORIES:
+                tables = NotePad.Categories.TABLE_NAME;
+                joinNoteColumns = false;
+                projectionMap = sCategoriesProjectionMap;
+                defaultOrderBy = NotePad.Categories.DEFAULT_SORT_ORDER;
+                break;
+
+            /* If the incoming URI is for a single category identified by its ID, appends
+             * "_ID = <categoryID>" to the where clause, so that it selects that single category
+             */
+            case CATEGORY_ID:
+                tables = NotePad.Categories.TABLE_NAME;
+                joinNoteColumns = false;
+                projectionMap = sCategoriesProjectionMap;
+                defaultOrderBy = NotePad.Categories.DEFAULT_SORT_ORDER;
+                qb.appendWhere(NotePad.Categories._ID + "=" + parseCategoryId(uri));
+                break;
+
+            // If the incoming URI is for imports, reads their checkpoints
+            case IMPORTS:
+                tables = NotePad.Imports.TABLE_NAME;
+                joinNoteColumns = false;
+                projectionMap = sImportsProjectionMap;
+                defaultOrderBy = NotePad.Imports.DEFAULT_SORT_ORDER;
+                break;
+
+            // If the incoming URI is for a single import, selects it by its name
+            case IMPORT_NAME:
+                tables = NotePad.Imports.TABLE_NAME;
+                joinNoteColumns = false;
+                projectionMap = sImportsProjectionMap;
+                defaultOrderBy = NotePad.Imports.DEFAULT_SORT_ORDER;
+                qb.appendWhere(NotePad.Imports.COLUMN_NAME_NAME + "=");
+                qb.appendWhereEscapeString(parseImportName(uri));
                 break;
 
             default:
                 // If the URI doesn't match any of the known patterns, throw an exception.
                 throw new IllegalArgumentException("Unknown URI " + uri);
         }
+        qb.setProjectionMap(projectionMap);
 
 
         String orderBy;
         // If no sort order is specified, uses the default
         if (TextUtils.isEmpty(sortOrder)) {
-            orderBy = NotePad.Notes.DEFAULT_SORT_ORDER;
+            orderBy = defaultOrderBy;
         } else {
             // otherwise, uses the incoming sort order
             orderBy = sortOrder;
         }
 
-        // Opens the database object in "read" mode, since no writes need to be done.
-        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+        // Only joins the note contents and categories if the query refers to them, so that list
+        // queries read nothing but the notes table.
+        if (joinNoteColumns) {
+            // Sorting on the contents would compare their stored values, which aren't text
+            // when they are compressed.
+            if (mentions(BODY_COLUMN_PATTERN, orderBy)) {
+                throw new IllegalArgumentException("Invalid sort order " + orderBy +
+                        ": the contents can't be sorted on; search them through " +
+                        NotePad.Notes.CONTENT_SEARCH_URI);
+            }
+            tables = tables + buildJoins(projection, projectionMap, selection, orderBy);
 
-        /*
-         * Performs the query. If no problems occur trying to read the database, then a Cursor
-         * object is returned; otherwise, the cursor variable contains null. If no records were
-         * selected, then the Cursor object is empty, and Cursor.getCount() returns 0.
-         */
-        Cursor c = qb.query(
-                db,            // The database to query
-                projection,    // The columns to return from the query
-                selection,     // The columns for the where clause
-                selectionArgs, // The values for the where clause
-                null,          // don't group the rows
-                null,          // don't filter by row groups
-                orderBy        // The sort order
-        );
+            // A selection on the contents is evaluated against their text, which the full-text
+            // index holds with any pending edits applied.
+            if (mentions(BODY_COLUMN_PATTERN, selection)) {
+                selection = qualifyWhere(selection);
+            }
+        }
+        qb.setTables(tables);
+
+        // The contents table doesn't hold the pending edits of notes, which are applied as the
+        // contents are read, by note _ID. If the projection doesn't return the _ID, it is added
+        // as the last column, and the cursor hides it.
+        boolean readsBody = tables.contains(BODIES_JOIN);
+        String[] queryProjection = projection;
+        if (readsBody && projection != null
+                && !Arrays.asList(projection).contains(NotePad.Notes._ID)) {
+            queryProjection = Arrays.copyOf(projection, projection.length + 1);
+            queryProjection[projection.length] = NotePad.Notes._ID;
+        }
+
+        BuiltQuery query = new BuiltQuery();
+        query.builder = qb;
+        query.projection = queryProjection;
+        query.selection = selection;
+        query.selectionArgs = selectionArgs;
+        query.groupBy = groupBy;
+        query.orderBy = orderBy;
+        query.limit = limit;
+        query.notificationUri = notificationUri;
+        query.readsBody = readsBody;
+        return query;
+    }
+
+    /**
+     * Queries a single note by its ID. The note's row is read from the row cache, or read from
+     * the database and cached, and the cursor returns the projection's columns of it.
+     *
+     * @param uri The note ID URI.
+     * @param projection The columns to return, or null for all of them.
+     * @return A cursor containing the note, or an empty cursor if it doesn't exist.
+     * @throws IllegalArgumentException if the projection contains an unknown column.
+     */
+    private Cursor queryNoteById(Uri uri, String[] projection) {
+        if (projection == null) {
+            projection = sNoteRowColumns;
+        }
+        int[] columnIndexes = new int[projection.length];
+        for (int i = 0; i < projection.length; i++) {
+            Integer index = sNoteRowColumnIndexes.get(projection[i]);
+            if (index == null) {
+                throw new IllegalArgumentException("Invalid column " + projection[i]);
+            }
+            columnIndexes[i] = index;
+        }
+
+        long id = Long.parseLong(parseNoteId(uri));
+        Cursor c = new NoteRowCache.RowCursor(mRowLoader, id, loadNoteRow(id), projection,
+                columnIndexes);
 
         // Tells the Cursor what URI to watch, so it knows when its source data changes
         c.setNotificationUri(getContext().getContentResolver(), uri);
@@ -326,258 +1911,2944 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
     }
 
     /**
-     * This is called when a client calls {@link android.content.ContentResolver#getType(Uri)}.
-     * Returns the MIME data type of the URI given as a parameter.
+     * Reads a range of the contents of a note as rows of segments (see
+     * {@link NotePad.Notes#buildBodyUri(Uri)}). Nothing is written: the contents of a note with
+     * pending edits are read whole and the edits applied in memory, since they may apply
+     * anywhere in them. Edits are only left pending on contents that are at most a segment
+     * long, unless a fold failed. Otherwise, contents stored in segments are read only
+     * from the segments that overlap the range, and those stored in a file are read from it up
+     * to the end of the range. Contents stored whole are at most a segment long, unless they
+     * were written as text before segments were added; those are read whole and split the way
+     * they will be stored when they are next written.
      *
-     * @param uri The URI whose MIME type is desired.
-     * @return The MIME type of the URI.
-     * @throws IllegalArgumentException if the incoming URI pattern is invalid.
+     * The rows are collected in memory, which holds the range and not the whole contents, and
+     * sent to the client a cursor window at a time.
+     *
+     * @throws IllegalArgumentException if a column or the range is invalid.
      */
-    @Override
-    public String getType(Uri uri) {
+    private Cursor queryNoteBody(Uri uri, String[] projection) {
+        if (projection == null) {
+            projection = sBodyColumns;
+        }
+        final int[] columnIndexes = new int[projection.length];
+        for (int i = 0; i < projection.length; i++) {
+            columnIndexes[i] = Arrays.asList(sBodyColumns).indexOf(projection[i]);
+            if (columnIndexes[i] < 0) {
+                throw new IllegalArgumentException("Invalid column " + projection[i]);
+            }
+        }
+        final long begin = parseRangeParameter(uri, NotePad.Notes.QUERY_PARAMETER_OFFSET, 0);
+        long length = parseRangeParameter(uri, NotePad.Notes.QUERY_PARAMETER_LENGTH,
+                Long.MAX_VALUE);
+        final long end = length > Long.MAX_VALUE - begin ? Long.MAX_VALUE : begin + length;
 
-        /**
-         * Chooses the MIME type based on the incoming URI pattern
-         */
-        switch (sUriMatcher.match(uri)) {
+        long id = Long.parseLong(parseNoteId(uri));
 
-            // If the pattern is for notes or live folders, returns the general content type.
-            case NOTES:
-            case LIVE_FOLDER_NOTES:
-                return NotePad.Notes.CONTENT_TYPE;
+        final MatrixCursor cursor = new MatrixCursor(projection);
+        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+        Long segmentedLength = null;
+        String file = null;
+        Cursor c = db.rawQuery("SELECT " + BODIES_COLUMN_NOTE_LENGTH + ", " +
+                BODIES_COLUMN_NOTE_FILE + " FROM " + BODIES_TABLE_NAME + " JOIN " +
+                NotePad.Notes.TABLE_NAME + " ON (" + NotePad.Notes.TABLE_NAME + "." +
+                NotePad.Notes._ID + " = " + BODIES_TABLE_NAME + "." + BODIES_COLUMN_NOTE_ID +
+                ") WHERE " + BODIES_COLUMN_NOTE_ID + " = ? AND " + NOT_DELETED,
+                new String[] { Long.toString(id) });
+        boolean found;
+        try {
+            found = c.moveToFirst();
+            if (found && !c.isNull(0)) {
+                segmentedLength = c.getLong(0);
+                file = c.getString(1);
+            }
+        } finally {
+            c.close();
+        }
 
-            // If the pattern is for note IDs, returns the note ID content type.
-            case NOTE_ID:
-                return NotePad.Notes.CONTENT_ITEM_TYPE;
+        if (found) {
+            String edited = readEditedBody(db, id);
+            try {
+                if (edited == null && file != null) {
+                    readFileSegments(file, begin, end,
+                            new BodyRangeReader(cursor, columnIndexes, begin, end,
+                                    segmentedLength));
+                } else if (edited == null && segmentedLength != null) {
+                    readSegments(db, id, begin, end,
+                            new BodyRangeReader(cursor, columnIndexes, begin, end,
+                                    segmentedLength));
+                } else {
+                    String text = edited;
+                    if (text == null) {
+                        StringWriter writer = new StringWriter();
+                        writeNoteBody(db, id, writer);
+                        text = writer.toString();
+                    }
+                    BodyRangeReader reader = new BodyRangeReader(cursor, columnIndexes, begin,
+                            end, text.length());
+                    int start = 0;
+                    while (start < text.length() && start < end) {
+                        int segmentEnd = NoteBodyCodec.segmentEnd(text, start);
+                        if (segmentEnd > begin) {
+                            reader.readSegment(start, text.substring(start, segmentEnd));
+                        }
+                        start = segmentEnd;
+                    }
+                }
+            } catch (IOException e) {
+                // The rows are only written to memory, so the contents' file failed.
+                throw new SQLException("Unable to read the contents of note " + id, e);
+            }
+        }
 
-            // If the URI pattern doesn't match any permitted patterns, throws an exception.
-            default:
-                throw new IllegalArgumentException("Unknown URI " + uri);
+        // The contents change with the note, so the cursor watches the note's URI.
+        cursor.setNotificationUri(getContext().getContentResolver(),
+                ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, id));
+        return cursor;
+    }
+
+    /**
+     * A cursor over notes that returns the contents of the notes with pending edits as the edits
+     * make them, from their rows in the row cache (see {@link #loadNoteRow(long)}). The contents
+     * of other notes are returned as the cursor it wraps returns them. Nothing is written, so
+     * reading never waits for a writer.
+     *
+     * The notes with edits are listed when the cursor is created and when it is requeried. A
+     * note that gets its first edits in between reads as it did before them, as it would have
+     * if the cursor had been read a moment earlier.
+     */
+    private final class EditedBodyCursor extends CrossProcessCursorWrapper {
+
+        // The column of the contents, and of the _ID
+        private final int mBodyColumn;
+        private final int mIdColumn;
+
+        // The number of columns that the cursor returns: all of them, or all but the _ID
+        private final int mColumnCount;
+
+        // The notes with pending edits
+        private Set<Long> mEditedIds;
+
+        // The note whose edited contents were read last, and its edited contents
+        private long mEditedId = -1;
+        private String mEdited;
+
+        /**
+         * Wraps a cursor.
+         *
+         * @param cursor The cursor to wrap, which returns the contents as text.
+         * @param bodyColumn The column of the contents in the cursor.
+         * @param idColumn The column of the _ID in the cursor.
+         * @param hideIdColumn True if the _ID is the last column, and only there for the cursor.
+         */
+        EditedBodyCursor(Cursor cursor, int bodyColumn, int idColumn, boolean hideIdColumn) {
+            super(cursor);
+            mBodyColumn = bodyColumn;
+            mIdColumn = idColumn;
+            mColumnCount = cursor.getColumnCount() - (hideIdColumn ? 1 : 0);
+            mEditedIds = queryEditedNoteIds(mOpenHelper.getReadableDatabase());
+        }
+
+        /**
+         * Returns the edited contents of the current row, or null if the note has no edits.
+         */
+        private String getEdited() {
+            if (mEditedIds.isEmpty()) {
+                return null;
+            }
+            long id = super.getLong(mIdColumn);
+            if (!mEditedIds.contains(id)) {
+                return null;
+            }
+            if (id != mEditedId) {
+                // A note moved to the trash since has no row, and reads as it is stored.
+                Object[] row = loadNoteRow(id);
+                mEdited = row == null ? null : (String) row[sNoteRowColumnIndexes.get(
+                        NotePad.Notes.COLUMN_NAME_NOTE)];
+                mEditedId = id;
+            }
+            return mEdited;
+        }
+
+        @Override
+        public boolean requery() {
+            mEditedIds = queryEditedNoteIds(mOpenHelper.getReadableDatabase());
+            mEditedId = -1;
+            mEdited = null;
+            return super.requery();
+        }
+
+        @Override
+        public int getColumnCount() {
+            return mColumnCount;
+        }
+
+        @Override
+        public String[] getColumnNames() {
+            return Arrays.copyOf(super.getColumnNames(), mColumnCount);
+        }
+
+        @Override
+        public int getColumnIndex(String columnName) {
+            int index = super.getColumnIndex(columnName);
+            return index < mColumnCount ? index : -1;
+        }
+
+        @Override
+        public int getColumnIndexOrThrow(String columnName) {
+            int index = getColumnIndex(columnName);
+            if (index == -1) {
+                throw new IllegalArgumentException("column '" + columnName + "' does not exist");
+            }
+            return index;
+        }
+
+        @Override
+        public int getType(int columnIndex) {
+            if (columnIndex == mBodyColumn && getEdited() != null) {
+                return Cursor.FIELD_TYPE_STRING;
+            }
+            return super.getType(columnIndex);
+        }
+
+        @Override
+        public String getString(int columnIndex) {
+            if (columnIndex == mBodyColumn) {
+                String edited = getEdited();
+                if (edited != null) {
+                    return edited;
+                }
+            }
+            return super.getString(columnIndex);
+        }
+
+        @Override
+        public boolean isNull(int columnIndex) {
+            if (columnIndex == mBodyColumn && getEdited() != null) {
+                return false;
+            }
+            return super.isNull(columnIndex);
+        }
+
+        @Override
+        public void copyStringToBuffer(int columnIndex, CharArrayBuffer buffer) {
+            if (columnIndex == mBodyColumn) {
+                String edited = getEdited();
+                if (edited != null) {
+                    char[] chars = edited.toCharArray();
+                    buffer.data = chars;
+                    buffer.sizeCopied = chars.length;
+                    return;
+                }
+            }
+            super.copyStringToBuffer(columnIndex, buffer);
+        }
+
+        @Override
+        public CursorWindow getWindow() {
+            return null;
+        }
+
+        @Override
+        public void fillWindow(int position, CursorWindow window) {
+            DatabaseUtils.cursorFillWindow(this, position, window);
         }
     }
 
-//BEGIN_INCLUDE(stream)
     /**
-     * This describes the MIME types that are supported for opening a note
-     * URI as a stream.
+     * Adds the segments of contents that overlap a range to a cursor, one row each, cut to the
+     * range.
      */
-    static ClipDescription NOTE_STREAM_TYPES = new ClipDescription(null,
-            new String[] { ClipDescription.MIMETYPE_TEXT_PLAIN });
+    private static final class BodyRangeReader implements SegmentReader {
+
+        private final MatrixCursor mCursor;
+
+        // The index in sBodyColumns of each column of the cursor
+        private final int[] mColumnIndexes;
+
+        private final long mBegin;
+        private final long mEnd;
+
+        // The length of the whole contents
+        private final long mLength;
+
+        BodyRangeReader(MatrixCursor cursor, int[] columnIndexes, long begin, long end,
+                long length) {
+            mCursor = cursor;
+            mColumnIndexes = columnIndexes;
+            mBegin = begin;
+            mEnd = end;
+            mLength = length;
+        }
+
+        @Override
+        public void readSegment(long start, String text) {
+            long from = Math.max(mBegin, start);
+            long to = Math.min(mEnd, start + text.length());
+            if (from >= to) {
+                return;
+            }
+
+            // The values in the order of sBodyColumns
+            Object[] values = new Object[] {
+                from, text.substring((int) (from - start), (int) (to - start)), mLength
+            };
+            Object[] row = new Object[mColumnIndexes.length];
+            for (int i = 0; i < row.length; i++) {
+                row[i] = values[mColumnIndexes[i]];
+            }
+            mCursor.addRow(row);
+        }
+    }
 
     /**
-     * Returns the types of available data streams.  URIs to specific notes are supported.
-     * The application can convert such a note to a plain text stream.
+     * Parses a query parameter of a range of contents (see
+     * {@link NotePad.Notes#buildBodyUri(Uri)}).
      *
-     * @param uri the URI to analyze
-     * @param mimeTypeFilter The MIME type to check for. This method only returns a data stream
-     * type for MIME types that match the filter. Currently, only text/plain MIME types match.
-     * @return a data stream MIME type. Currently, only text/plan is returned.
-     * @throws IllegalArgumentException if the URI pattern doesn't match any supported patterns.
+     * @param defaultValue The value of the parameter if the URI doesn't have it.
+     * @throws IllegalArgumentException if the value isn't a number of characters.
      */
-    @Override
-    public String[] getStreamTypes(Uri uri, String mimeTypeFilter) {
-        /**
-         *  Chooses the data stream type based on the incoming URI pattern.
-         */
-        switch (sUriMatcher.match(uri)) {
+    private static long parseRangeParameter(Uri uri, String name, long defaultValue) {
+        String value = uri.getQueryParameter(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            long parsed = Long.parseLong(value);
+            if (parsed >= 0) {
+                return parsed;
+            }
+        } catch (NumberFormatException e) {
+            // Falls through to the exception below
+        }
+        throw new IllegalArgumentException("Invalid " + name + " in " + uri);
+    }
 
-            // If the pattern is for notes or live folders, return null. Data streams are not
-            // supported for this type of URI.
-            case NOTES:
-            case LIVE_FOLDER_NOTES:
+    /**
+     * Returns the row of a note from the row cache, reading it from the database on a miss.
+     *
+     * @param id The _ID of the note.
+     * @return The values of the columns in {@link #sNoteRowColumns}, or null if the note
+     * doesn't exist.
+     */
+    private Object[] loadNoteRow(long id) {
+        boolean cached = mRowCacheEnabled;
+        Object[] row = cached ? mRowCache.get(id) : null;
+        if (row != null) {
+            return row;
+        }
+
+        long generation = mRowCache.generation();
+        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+        int noteIndex = sNoteRowColumnIndexes.get(NotePad.Notes.COLUMN_NAME_NOTE);
+        Cursor c = new NoteBodyCodec.DecodingCursor(
+                db.rawQuery(sNoteByIdQuery, new String[] { Long.toString(id) }), noteIndex);
+        try {
+            if (!c.moveToFirst()) {
                 return null;
+            }
 
-            // If the pattern is for note IDs and the MIME filter is text/plain, then return
-            // text/plain
-            case NOTE_ID:
-                return NOTE_STREAM_TYPES.filterMimeTypes(mimeTypeFilter);
+            // The row is cached with its contents decoded.
+            row = mRowCache.readRow(c);
 
-            // If the URI pattern doesn't match any permitted patterns, throws an exception.
-            default:
-                throw new IllegalArgumentException("Unknown URI " + uri);
+            // The note's edits follow its columns, one per row, in order. Reading them in the
+            // same statement as the contents means that a compaction can't fold them into the
+            // contents between the two reads.
+            int editColumn = sNoteRowColumns.length;
+            if (!c.isNull(editColumn)) {
+                Object note = row[noteIndex];
+                StringBuilder body = new StringBuilder(note == null ? "" : note.toString());
+                do {
+                    EditJournal.apply(body, c.getInt(editColumn), c.getInt(editColumn + 1),
+                            c.getString(editColumn + 2));
+                } while (c.moveToNext());
+                row[noteIndex] = body.toString();
+            }
+        } finally {
+            c.close();
         }
+        if (cached) {
+            mRowCache.putIfCurrent(id, row, generation);
+        }
+        return row;
     }
 
+    /**
+     * Builds the SELECT statement that reads the given columns of a single note. The position,
+     * delete length and text of the note's edits follow the columns, one row per edit in order;
+     * a note without edits is one row with nulls in their place.
+     *
+     * @throws IllegalArgumentException if the projection contains an unknown column.
+     */
+    private static String buildNoteByIdQuery(String[] projection) {
+        if (projection == null) {
+            Set<String> columns = sNotesProjectionMap.keySet();
+            projection = columns.toArray(new String[columns.size()]);
+        }
+        StringBuilder sql = new StringBuilder("SELECT ");
+        for (int i = 0; i < projection.length; i++) {
+            String column = sNotesProjectionMap.get(projection[i]);
+            if (column == null) {
+                throw new IllegalArgumentException("Invalid column " + projection[i]);
+            }
+            if (i > 0) {
+                sql.append(", ");
+            }
+            sql.append(column);
+        }
+        String edits = EDITS_TABLE_NAME + ".";
+        sql.append(", ").append(edits).append(NotePad.Notes.COLUMN_NAME_EDIT_POSITION)
+                .append(", ").append(edits).append(NotePad.Notes.COLUMN_NAME_EDIT_DELETE_LENGTH)
+                .append(", ").append(edits).append(NotePad.Notes.COLUMN_NAME_EDIT_TEXT);
+        sql.append(" FROM ").append(NotePad.Notes.TABLE_NAME)
+                .append(buildJoins(projection, sNotesProjectionMap, null, null))
+                .append(" LEFT OUTER JOIN ").append(EDITS_TABLE_NAME).append(" ON (")
+                .append(edits).append(EDITS_COLUMN_NOTE_ID).append(" = ")
+                .append(NotePad.Notes.TABLE_NAME).append(".").append(NotePad.Notes._ID)
+                .append(")")
+                .append(" WHERE ").append(NotePad.Notes.TABLE_NAME).append(".")
+                .append(NotePad.Notes._ID).append(" = ?")
+                .append(" AND ").append(NOT_DELETED)
+                .append(" ORDER BY ").append(edits).append(EDITS_COLUMN_SEQUENCE);
+        return sql.toString();
+    }
 
     /**
-     * Returns a stream of data for each supported stream type. This method does a query on the
-     * incoming URI, then uses
-     * {@link android.content.ContentProvider#openPipeHelper(Uri, String, Bundle, Object,
-     * PipeDataWriter)} to start another thread in which to convert the data into a stream.
+     * Returns the note ID segment of a note ID URI.
+     */
+    private static String parseNoteId(Uri uri) {
+        return uri.getPathSegments().get(NotePad.Notes.NOTE_ID_PATH_POSITION);
+    }
+
+    /**
+     * Returns the category ID segment of a category ID URI.
+     */
+    private static String parseCategoryId(Uri uri) {
+        return uri.getPathSegments().get(NotePad.Categories.CATEGORY_ID_PATH_POSITION);
+    }
+
+    /**
+     * Returns the name segment of an import URI.
+     */
+    private static String parseImportName(Uri uri) {
+        return uri.getPathSegments().get(NotePad.Imports.IMPORT_NAME_PATH_POSITION);
+    }
+
+    /**
+     * Builds the "where" clause of a write to a category ID URI: the category's _ID, and the
+     * additional criteria if there are any.
+     */
+    private static String buildCategoryIdWhere(Uri uri, String where) {
+        String finalWhere = NotePad.Categories._ID + " = " + parseCategoryId(uri);
+        if (where != null) {
+            finalWhere = finalWhere + " AND (" + where + ")";
+        }
+        return finalWhere;
+    }
+
+    /**
+     * Updates a single note by its ID with compiled statements. The statement that updates the
+     * notes table only depends on the set of columns being changed, and the note ID is bound as
+     * an argument, so the connection's prepared statement cache compiles it once per set of
+     * columns. Statements are compiled per call and never shared between threads, so no Java
+     * lock is held while a statement waits for the connection. The contents are written to
+     * their own table.
      *
-     * @param uri The URI pattern that points to the data stream
-     * @param mimeTypeFilter A String containing a MIME type. This method tries to get a stream of
-     * data with this MIME type.
-     * @param opts Additional options supplied by the caller.  Can be interpreted as
-     * desired by the content provider.
-     * @return AssetFileDescriptor A handle to the file.
-     * @throws FileNotFoundException if there is no file associated with the incoming URI.
+     * @return The number of rows updated.
+     * @throws IllegalArgumentException if there are no values to update.
      */
-    @Override
-    public AssetFileDescriptor openTypedAssetFile(Uri uri, String mimeTypeFilter, Bundle opts)
-            throws FileNotFoundException {
+    private int updateNoteById(Uri uri, ContentValues values) {
+        if (values == null || values.size() == 0) {
+            throw new IllegalArgumentException("Empty values");
+        }
 
-        // Checks to see if the MIME type filter matches a supported MIME type.
-        String[] mimeTypes = getStreamTypes(uri, mimeTypeFilter);
+        // Splits the contents off from the columns of the notes table.
+        values = new ContentValues(values);
+        boolean hasBody = values.containsKey(NotePad.Notes.COLUMN_NAME_NOTE);
+        Object body = values.get(NotePad.Notes.COLUMN_NAME_NOTE);
+        values.remove(NotePad.Notes.COLUMN_NAME_NOTE);
 
-        // If the MIME type is supported
-        if (mimeTypes != null) {
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        String noteId = parseNoteId(uri);
+        int count = 0;
 
-            // Retrieves the note for this URI. Uses the query method defined for this provider,
-            // rather than using the database query method.
-            Cursor c = query(
-                    uri,                    // The URI of a note
-                    READ_NOTE_PROJECTION,   // Gets a projection containing the note's ID, title,
-                    // and contents
-                    null,                   // No WHERE clause, get all matching records
-                    null,                   // Since there is no WHERE clause, no selection criteria
-                    null                    // Use the default sort order (modification date,
-                    // descending
-            );
+        // The longest contents are written to their file before the transaction, so that the
+        // database isn't held while the file is written.
+        String file = hasBody ? writeBodyFile(body) : null;
+        String replacedFile = null;
+        boolean bodyWritten = false;
 
+        db.beginTransaction();
+        try {
+            if (hasBody) {
+                replacedFile = queryBodyFile(db, noteId);
+                Object stored = encodeBody(body);
+                SQLiteStatement statement = db.compileStatement(
+                        "INSERT OR REPLACE INTO " + BODIES_TABLE_NAME + " (" +
+                                BODIES_COLUMN_NOTE_ID + ", " + NotePad.Notes.COLUMN_NAME_NOTE +
+                                ", " + BODIES_COLUMN_NOTE_LENGTH + ", " +
+                                BODIES_COLUMN_NOTE_FILE + ") SELECT " + NotePad.Notes._ID +
+                                ", ?, ?, ? FROM " + NotePad.Notes.TABLE_NAME +
+                                " WHERE " + NotePad.Notes._ID + " = ? AND " + NOT_DELETED);
+                try {
+                    DatabaseUtils.bindObjectToProgram(statement, 1, stored);
+                    DatabaseUtils.bindObjectToProgram(statement, 2,
+                            NoteBodyCodec.getSegmentedLength(body));
+                    DatabaseUtils.bindObjectToProgram(statement, 3, file);
+                    statement.bindString(4, noteId);
+                    count = statement.executeUpdateDelete();
+                } finally {
+                    statement.close();
+                }
+                bodyWritten = count > 0;
+                if (bodyWritten && stored != body) {
+                    if (file == null) {
+                        writeSegments(db, body, NotePad.Notes._ID + " = " + noteId);
+                    }
+                    indexCompressedBody(db, (String) body, noteId);
+                }
+            }
 
-            // If the query fails or the cursor is empty, stop
-            if (c == null || !c.moveToFirst()) {
+            if (values.size() > 0) {
+                // Sorts the columns so that the same set of columns always produces the same SQL.
+                Set<String> keys = values.keySet();
+                String[] columns = keys.toArray(new String[keys.size()]);
+                Arrays.sort(columns);
 
-                // If the cursor is empty, simply close the cursor and return
-                if (c != null) {
-                    c.close();
+                StringBuilder sql = new StringBuilder("UPDATE ").append(NotePad.Notes.TABLE_NAME)
+                        .append(" SET ");
+                for (int i = 0; i < columns.length; i++) {
+                    if (i > 0) {
+                        sql.append(", ");
+                    }
+                    sql.append(columns[i]).append(" = ?");
                 }
+                sql.append(" WHERE ").append(NotePad.Notes._ID).append(" = ? AND ")
+                        .append(NOT_DELETED);
 
-                // If the cursor is null, throw an exception
-                throw new FileNotFoundException("Unable to query " + uri);
+                SQLiteStatement statement = db.compileStatement(sql.toString());
+                try {
+                    for (int i = 0; i < columns.length; i++) {
+                        DatabaseUtils.bindObjectToProgram(statement, i + 1, values.get(columns[i]));
+                    }
+                    statement.bindString(columns.length + 1, noteId);
+                    count = statement.executeUpdateDelete();
+                } finally {
+                    statement.close();
+                }
             }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
 
-            // Start a new thread that pipes the stream data back to the caller.
-            return new AssetFileDescriptor(
-                    openPipeHelper(uri, mimeTypes[0], opts, c, this), 0,
-                    AssetFileDescriptor.UNKNOWN_LENGTH);
+        // The file of the contents that were replaced, or of contents that weren't written
+        // because the note doesn't exist, is deleted once the write is committed. Inside a
+        // caller's transaction, which may still roll back, it is left to the purge.
+        if (!db.inTransaction()) {
+            if (replacedFile != null) {
+                deleteBodyFileIfUnused(db, replacedFile);
+            }
+            if (file != null && !bodyWritten) {
+                new File(mBodyFileDir, file).delete();
+            }
         }
+        return count;
+    }
 
-        // If the MIME type is not supported, return a read-only handle to the file.
-        return super.openTypedAssetFile(uri, mimeTypeFilter, opts);
+    /**
+     * Moves a single note to the trash by its ID with a compiled statement.
+     *
+     * @return The number of notes moved to the trash.
+     */
+    private int deleteNoteById(Uri uri) {
+        SQLiteStatement statement = mOpenHelper.getWritableDatabase().compileStatement(
+                "UPDATE " + NotePad.Notes.TABLE_NAME + " SET " +
+                        NotePad.Notes.COLUMN_NAME_DELETED_AT + " = ? WHERE " +
+                        NotePad.Notes._ID + " = ? AND " + NOT_DELETED);
+        try {
+            statement.bindLong(1, System.currentTimeMillis());
+            statement.bindString(2, parseNoteId(uri));
+            return statement.executeUpdateDelete();
+        } finally {
+            statement.close();
+        }
+    }
+
+    /**
+     * Moves the notes selected by a "where" clause to the trash. They are hidden from then on,
+     * and purged with their contents once {@link #TRASH_RETENTION_MILLIS} have passed, so the
+     * delete only writes one column of each note, however large the notes are.
+     *
+     * @param where A "where" clause that includes {@link #NOT_DELETED}.
+     * @return The number of notes moved to the trash.
+     */
+    private static int trashNotes(SQLiteDatabase db, String where, String[] whereArgs) {
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_DELETED_AT, System.currentTimeMillis());
+        return db.update(NotePad.Notes.TABLE_NAME, values, qualifyWhere(where), whereArgs);
+    }
+
+    /**
+     * Empties the trash, or the notes in it selected by a "where" clause. The notes are marked
+     * as older than any purge's cutoff, so that they are hidden right away, and the purge that
+     * deletes them is queued.
+     *
+     * @return The number of notes removed from the trash.
+     */
+    private int emptyTrash(SQLiteDatabase db, String where, String[] whereArgs) {
+        String finalWhere = IN_TRASH;
+        if (where != null) {
+            finalWhere = finalWhere + " AND (" + where + ")";
+        }
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_DELETED_AT, 0);
+        int count = db.update(NotePad.Notes.TABLE_NAME, values, qualifyWhere(finalWhere),
+                whereArgs);
+        if (count > 0) {
+            mPurger.execute(mPurge);
+        }
+        return count;
+    }
+
+    /**
+     * Purges the notes that have been in the trash for {@link #TRASH_RETENTION_MILLIS} or more,
+     * or that were emptied from it, then returns the pages they used to the file system, and
+     * deletes the files of contents that are no longer used. The notes are deleted in batches
+     * of {@link #PURGE_BATCH_ROWS}, and the pages are returned a few at a time, so that the
+     * editors' writes are never held up for long. Runs on the purger thread. Set to package
+     * visibility for testing purposes.
+     *
+     * @param now The current time, in milliseconds.
+     * @return The number of notes purged.
+     */
+    int purgeTrash(long now) {
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        int purged = 0;
+        int count;
+        do {
+            SQLiteStatement statement = db.compileStatement(PURGE_SQL);
+            try {
+                statement.bindLong(1, now - TRASH_RETENTION_MILLIS);
+                count = statement.executeUpdateDelete();
+            } finally {
+                statement.close();
+            }
+            purged += count;
+        } while (count == PURGE_BATCH_ROWS);
+
+        if (purged > 0) {
+            // Nothing else shows the purged notes, so only the trash changed.
+            notifyChange(NotePad.Notes.CONTENT_TRASH_URI);
+        }
+        reclaimFreePages(db);
+        deleteUnusedBodyFiles(db, now);
+        return purged;
+    }
+
+    /**
+     * Deletes the files of contents that no row refers to: those of purged notes, of contents
+     * that were replaced inside a caller's transaction, and of writes that failed. Files younger
+     * than {@link #BODY_FILE_MIN_AGE_MILLIS} are kept, since the write that created them may
+     * not have committed yet.
+     *
+     * @param now The current time, in milliseconds.
+     */
+    private void deleteUnusedBodyFiles(SQLiteDatabase db, long now) {
+        File[] files = mBodyFileDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (now - file.lastModified() >= BODY_FILE_MIN_AGE_MILLIS) {
+                deleteBodyFileIfUnused(db, file.getName());
+            }
+        }
+    }
+
+    /**
+     * Returns the free pages of the database to the file system, so that the file shrinks after
+     * notes are purged. SQLite only does this in incremental auto-vacuum mode, which has to be
+     * set before the first table is created; the platform creates its metadata table before
+     * {@link DatabaseHelper#onConfigure(SQLiteDatabase)} runs, so a database is switched to it
+     * by one full VACUUM instead, the first time there are free pages. After that, each
+     * incremental vacuum step frees up to {@link #VACUUM_STEP_PAGES} pages in a short write.
+     */
+    private static void reclaimFreePages(SQLiteDatabase db) {
+        long free = DatabaseUtils.longForQuery(db, "PRAGMA freelist_count", null);
+        if (free == 0) {
+            return;
+        }
+        try {
+            if (DatabaseUtils.longForQuery(db, "PRAGMA auto_vacuum", null)
+                    != AUTO_VACUUM_INCREMENTAL) {
+                db.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+                db.execSQL("VACUUM");
+                return;
+            }
+
+            // The pragma frees one page each time it steps, and returns a row for it, so it is
+            // run as a query and read to the end.
+            while (free > 0) {
+                Cursor c = db.rawQuery("PRAGMA incremental_vacuum(" + VACUUM_STEP_PAGES + ")",
+                        null);
+                try {
+                    while (c.moveToNext()) {
+                        // Each row is a freed page.
+                    }
+                } finally {
+                    c.close();
+                }
+                long left = DatabaseUtils.longForQuery(db, "PRAGMA freelist_count", null);
+                if (left >= free) {
+                    break;
+                }
+                free = left;
+            }
+        } catch (SQLiteException e) {
+            // The pages stay free inside the file, where new notes reuse them.
+            Log.w(TAG, "Failed to reclaim the free pages of the database", e);
+        }
+    }
+
+    /**
+     * Drops the cached rows of the notes that a write to the URI may have changed: the note
+     * itself for a note ID URI, and every note otherwise.
+     */
+    private void invalidateRowCache(Uri uri) {
+        if (sUriMatcher.match(uri) == NOTE_ID) {
+            mRowCache.invalidate(Long.parseLong(parseNoteId(uri)));
+        } else {
+            mRowCache.invalidateAll();
+        }
+    }
+
+    /**
+     * Builds the joins that a query of the notes table needs: the note contents and the
+     * category names, each only if the query refers to it. A selection on the contents is
+     * evaluated against their text instead (see {@link #qualifyWhere(String)}), and they can't
+     * be sorted on, so only the projection joins the contents table.
+     *
+     * @param projection The columns to return, or null for all of them.
+     * @param projectionMap The projection map of the query, which lists all of its columns.
+     * @param selection The "where" clause, or null.
+     * @param sortOrder The sort order, or null.
+     * @return The joins to append to the tables clause, or an empty string.
+     */
+    private static String buildJoins(String[] projection, HashMap<String, String> projectionMap,
+            String selection, String sortOrder) {
+        String joins = "";
+        if (refersTo(NotePad.Notes.COLUMN_NAME_NOTE, BODY_COLUMN_PATTERN,
+                projection, projectionMap, null, null)) {
+            joins += BODIES_JOIN;
+        }
+        if (refersTo(NotePad.Notes.COLUMN_NAME_CATEGORY, CATEGORY_COLUMN_PATTERN,
+                projection, projectionMap, selection, sortOrder)) {
+            joins += CATEGORIES_JOIN;
+        }
+        return joins;
+    }
+
+    /**
+     * Tests whether a query refers to a column, either in its projection or in its clauses.
+     */
+    private static boolean refersTo(String column, Pattern pattern, String[] projection,
+            HashMap<String, String> projectionMap, String selection, String sortOrder) {
+        if (projection == null
+                ? projectionMap.containsKey(column)
+                : Arrays.asList(projection).contains(column)) {
+            return true;
+        }
+        return mentions(pattern, selection) || mentions(pattern, sortOrder);
+    }
+
+    /**
+     * Tests whether a clause refers to the column that the pattern finds.
+     */
+    private static boolean mentions(Pattern pattern, String clause) {
+        return clause != null && pattern.matcher(clause).find();
+    }
+
+    /**
+     * Rewrites a "where" clause for a write to the notes table, or for a query that selects on
+     * the contents. A clause that refers to the note contents or category is evaluated against
+     * the notes joined to them, and turned into a condition on the _ID; any other clause is
+     * returned unchanged. The contents are joined as their text (see {@link #BODY_TEXT_JOIN}),
+     * so the clause sees the text of compressed and segmented contents too.
+     */
+    private static String qualifyWhere(String where) {
+        String joins = buildJoins(new String[0], sNotesProjectionMap, where, null);
+        if (mentions(BODY_COLUMN_PATTERN, where)) {
+            joins = BODY_TEXT_JOIN + joins;
+        }
+        if (joins.length() == 0) {
+            return where;
+        }
+        return NotePad.Notes._ID + " IN (SELECT " + NotePad.Notes.TABLE_NAME + "." +
+                NotePad.Notes._ID + " FROM " + NotePad.Notes.TABLE_NAME + joins +
+                " WHERE " + where + ")";
+    }
+
+    /**
+     * Restricts a "where" clause for a write to the notes table to the notes that aren't in the
+     * trash.
+     *
+     * @param where The "where" clause, or null for all notes.
+     */
+    private static String liveNotesWhere(String where) {
+        if (where == null) {
+            return NOT_DELETED;
+        }
+        return NOT_DELETED + " AND (" + where + ")";
+    }
+
+    /**
+     * Replaces the category name in the values of a note write with the _ID of the category,
+     * creating the category if it doesn't exist yet. A null or empty name clears the category.
+     *
+     * @return The values to write to the notes table.
+     */
+    private static ContentValues resolveCategory(SQLiteDatabase db, ContentValues values) {
+        if (values == null || !values.containsKey(NotePad.Notes.COLUMN_NAME_CATEGORY)) {
+            return values;
+        }
+        values = new ContentValues(values);
+        String name = values.getAsString(NotePad.Notes.COLUMN_NAME_CATEGORY);
+        values.remove(NotePad.Notes.COLUMN_NAME_CATEGORY);
+        if (TextUtils.isEmpty(name)) {
+            values.putNull(NotePad.Notes.COLUMN_NAME_CATEGORY_ID);
+        } else {
+            values.put(NotePad.Notes.COLUMN_NAME_CATEGORY_ID, getOrCreateCategory(db, name));
+        }
+        return values;
+    }
+
+    /**
+     * Returns the _ID of the category with the given name, creating the category if it doesn't
+     * exist yet.
+     */
+    private static long getOrCreateCategory(SQLiteDatabase db, String name) {
+        // The lookup and the insert share a transaction, so that two writers can't both
+        // insert the same name.
+        db.beginTransaction();
+        try {
+            long id;
+            Cursor c = db.query(NotePad.Categories.TABLE_NAME,
+                    new String[] { NotePad.Categories._ID },
+                    NotePad.Categories.COLUMN_NAME_NAME + " = ?", new String[] { name },
+                    null, null, null);
+            try {
+                id = c.moveToFirst() ? c.getLong(0) : -1;
+            } finally {
+                c.close();
+            }
+            if (id == -1) {
+                ContentValues values = new ContentValues();
+                values.put(NotePad.Categories.COLUMN_NAME_NAME, name);
+                id = db.insertOrThrow(NotePad.Categories.TABLE_NAME, null, values);
+            }
+            db.setTransactionSuccessful();
+            return id;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Updates the notes selected by a "where" clause. The contents are written to their own
+     * table and the other columns to the notes table, in one transaction. The longest contents
+     * are written to their file before the transaction, once the clause is known to select
+     * notes.
+     *
+     * @return The number of notes updated.
+     */
+    private int updateNotes(SQLiteDatabase db, ContentValues values, String where,
+            String[] whereArgs) {
+        if (values == null || !values.containsKey(NotePad.Notes.COLUMN_NAME_NOTE)) {
+            return db.update(NotePad.Notes.TABLE_NAME, values, qualifyWhere(where), whereArgs);
+        }
+
+        // Splits the contents off from the columns of the notes table.
+        values = new ContentValues(values);
+        Object body = values.get(NotePad.Notes.COLUMN_NAME_NOTE);
+        Object stored = encodeBody(body);
+        values.remove(NotePad.Notes.COLUMN_NAME_NOTE);
+
+        // Every note refers to the same file, which is never written again. It is only written
+        // if the clause selects a note, so that a clause that selects none doesn't leave a file
+        // behind; the transaction selects the notes again.
+        String file = null;
+        if (isFileBody(body)) {
+            if (DatabaseUtils.longForQuery(db, "SELECT EXISTS (SELECT 1 FROM " +
+                    NotePad.Notes.TABLE_NAME +
+                    (where == null ? "" : " WHERE " + qualifyWhere(where)) + ")",
+                    whereArgs) == 0) {
+                return 0;
+            }
+            file = writeBodyFile(body);
+        }
+
+        int count;
+        int written;
+        db.beginTransaction();
+        try {
+            // Writing either table may change which notes the clause selects, so when both are
+            // written, or compressed or segmented contents are also indexed, the notes are
+            // selected once, up front, into a temporary table that the writes join against.
+            boolean selected = where != null && (values.size() > 0 || stored != body);
+            if (selected) {
+                selectNotes(db, where, whereArgs);
+                where = SELECTED_NOTES_WHERE;
+                whereArgs = null;
+            }
+
+            StringBuilder sql = new StringBuilder("INSERT OR REPLACE INTO ")
+                    .append(BODIES_TABLE_NAME).append(" (")
+                    .append(BODIES_COLUMN_NOTE_ID).append(", ")
+                    .append(NotePad.Notes.COLUMN_NAME_NOTE).append(", ")
+                    .append(BODIES_COLUMN_NOTE_LENGTH).append(", ")
+                    .append(BODIES_COLUMN_NOTE_FILE).append(") SELECT ")
+                    .append(NotePad.Notes._ID).append(", ?, ?, ? FROM ")
+                    .append(NotePad.Notes.TABLE_NAME);
+            if (where != null) {
+                sql.append(" WHERE ").append(qualifyWhere(where));
+            }
+
+            SQLiteStatement statement = db.compileStatement(sql.toString());
+            try {
+                DatabaseUtils.bindObjectToProgram(statement, 1, stored);
+                DatabaseUtils.bindObjectToProgram(statement, 2,
+                        NoteBodyCodec.getSegmentedLength(body));
+                DatabaseUtils.bindObjectToProgram(statement, 3, file);
+                if (whereArgs != null) {
+                    for (int i = 0; i < whereArgs.length; i++) {
+                        statement.bindString(i + 4, whereArgs[i]);
+                    }
+                }
+                written = statement.executeUpdateDelete();
+            } finally {
+                statement.close();
+            }
+
+            if (written > 0 && stored != body) {
+                if (file == null) {
+                    writeSegments(db, body, where);
+                }
+                indexCompressedBodies(db, (String) body, where);
+            }
+
+            count = written;
+            if (values.size() > 0) {
+                count = db.update(NotePad.Notes.TABLE_NAME, values, qualifyWhere(where),
+                        whereArgs);
+            }
+            if (selected) {
+                db.execSQL("DELETE FROM temp." + SELECTED_NOTES_TABLE_NAME);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        // The notes may all have been deleted since they were selected, leaving the file
+        // unused. Inside a caller's transaction, which may still roll back, it is left to the
+        // purge.
+        if (file != null && written == 0 && !db.inTransaction()) {
+            new File(mBodyFileDir, file).delete();
+        }
+        return count;
+    }
+
+    /**
+     * Encodes contents for the contents table. Contents stored in segments are cut to their first
+     * segment, and large contents are compressed, unless compression is turned off for a
+     * benchmark.
+     *
+     * @return The value to store. It is the contents themselves unless they are compressed or
+     * stored in segments, in which case the caller writes the segments and indexes the text.
+     */
+    private Object encodeBody(Object body) {
+        Object head = NoteBodyCodec.head(body);
+        return mBodyCompressionEnabled ? NoteBodyCodec.encode(head) : head;
+    }
+
+    /**
+     * Writes the segments of contents stored in segments, after the contents table was written,
+     * which deleted the old ones through the triggers. Does nothing for contents stored whole.
+     * Must be called in the transaction that wrote the contents.
+     *
+     * @param body The contents.
+     * @param where A "where" clause on the notes table without arguments, or null for all notes.
+     */
+    private void writeSegments(SQLiteDatabase db, Object body, String where) {
+        if (!NoteBodyCodec.isSegmented(body)) {
+            return;
+        }
+
+        StringBuilder sql = new StringBuilder("INSERT INTO ").append(SEGMENTS_TABLE_NAME)
+                .append(" (").append(SEGMENTS_COLUMN_NOTE_ID).append(", ")
+                .append(SEGMENTS_COLUMN_START).append(", ")
+                .append(SEGMENTS_COLUMN_LENGTH).append(", ")
+                .append(SEGMENTS_COLUMN_DATA).append(") SELECT ")
+                .append(NotePad.Notes._ID).append(", ?, ?, ? FROM ")
+                .append(NotePad.Notes.TABLE_NAME);
+        if (where != null) {
+            sql.append(" WHERE ").append(qualifyWhere(where));
+        }
+
+        // Each segment is encoded on its own, so only one is held encoded at a time.
+        String text = (String) body;
+        SQLiteStatement statement = db.compileStatement(sql.toString());
+        try {
+            int start = 0;
+            while (start < text.length()) {
+                int end = NoteBodyCodec.segmentEnd(text, start);
+                statement.bindLong(1, start);
+                statement.bindLong(2, end - start);
+                DatabaseUtils.bindObjectToProgram(statement, 3,
+                        encodeBody(text.substring(start, end)));
+                statement.executeUpdateDelete();
+                start = end;
+            }
+        } finally {
+            statement.close();
+        }
+    }
+
+    /**
+     * Writes contents longer than the file threshold to a new file in {@link #BODY_FILES_DIR},
+     * to be referred to by the row that the caller writes next. The file is synced before the
+     * row is written, so that a committed row never refers to contents that a crash lost. If
+     * the row isn't committed, the file is left for the purge to delete.
+     *
+     * @param body The contents.
+     * @return The name of the file, or null if the contents are stored in the database.
+     * @throws SQLException if the file can't be written.
+     */
+    private String writeBodyFile(Object body) {
+        if (!isFileBody(body)) {
+            return null;
+        }
+
+        File file = null;
+        try {
+            mBodyFileDir.mkdirs();
+            file = File.createTempFile("note", ".txt", mBodyFileDir);
+            FileOutputStream out = new FileOutputStream(file);
+            try {
+                Writer writer = new OutputStreamWriter(
+                        new BufferedOutputStream(out, PIPE_BUFFER_BYTES), "UTF-8");
+                writer.write((String) body);
+                writer.flush();
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+            return file.getName();
+        } catch (IOException e) {
+            if (file != null) {
+                file.delete();
+            }
+            throw new SQLException("Unable to write contents to " + mBodyFileDir, e);
+        }
+    }
+
+    /**
+     * Returns whether contents are stored in a file: whether they are longer than the file
+     * threshold.
+     */
+    private boolean isFileBody(Object body) {
+        return body instanceof String && ((String) body).length() > getFileBodyThreshold();
+    }
+
+    /**
+     * Returns the length, in characters, above which contents are stored in a file: the value
+     * of {@link #PREF_FILE_BODY_THRESHOLD}, and at least a segment.
+     */
+    private int getFileBodyThreshold() {
+        int threshold = getContext().getSharedPreferences("notepad_prefs", Context.MODE_PRIVATE)
+                .getInt(PREF_FILE_BODY_THRESHOLD, DEFAULT_FILE_BODY_THRESHOLD_CHARS);
+        return Math.max(threshold, NotePad.Notes.SEGMENT_CHARS);
+    }
+
+    /**
+     * Returns the name of the file that holds a note's contents, or null if they are stored in
+     * the database or the note has none.
+     */
+    private String queryBodyFile(SQLiteDatabase db, String noteId) {
+        SQLiteStatement statement = db.compileStatement(
+                "SELECT (SELECT " + BODIES_COLUMN_NOTE_FILE + " FROM " + BODIES_TABLE_NAME +
+                        " WHERE " + BODIES_COLUMN_NOTE_ID + " = ?)");
+        try {
+            statement.bindString(1, noteId);
+            return statement.simpleQueryForString();
+        } finally {
+            statement.close();
+        }
+    }
+
+    /**
+     * Deletes a file of contents if no row refers to it any more. A file is only ever referred
+     * to by the rows of the write that created it, so once it is unused, it stays unused. Must
+     * be called after the write that replaced it is committed.
+     */
+    private void deleteBodyFileIfUnused(SQLiteDatabase db, String name) {
+        SQLiteStatement statement = db.compileStatement(
+                "SELECT EXISTS (SELECT 1 FROM " + BODIES_TABLE_NAME + " WHERE " +
+                        BODIES_COLUMN_NOTE_FILE + " = ?)");
+        boolean used;
+        try {
+            statement.bindString(1, name);
+            used = statement.simpleQueryForLong() != 0;
+        } finally {
+            statement.close();
+        }
+        if (!used) {
+            new File(mBodyFileDir, name).delete();
+        }
+    }
+
+    /**
+     * Indexes the text of contents that were stored compressed or in segments, or of contents
+     * with pending edits. The triggers only index the contents table, and only text. Must be
+     * called in the transaction that wrote the contents or the edits.
+     *
+     * @param text The contents, as text.
+     * @param noteId The _ID of the note.
+     */
+    private void indexCompressedBody(SQLiteDatabase db, String text, String noteId) {
+        SQLiteStatement statement = db.compileStatement(
+                "UPDATE " + FTS_TABLE_NAME + " SET " + NotePad.Notes.COLUMN_NAME_NOTE +
+                        " = ? WHERE docid = ?");
+        try {
+            statement.bindString(1, text);
+            statement.bindString(2, noteId);
+            statement.executeUpdateDelete();
+        } finally {
+            statement.close();
+        }
+    }
+
+    /**
+     * Indexes the text of contents that were stored compressed or in segments in several notes.
+     * Must be called
+     * in the transaction that wrote the contents.
+     *
+     * @param text The contents, as text.
+     * @param where A "where" clause on the notes table without arguments, or null for all notes.
+     */
+    private static void indexCompressedBodies(SQLiteDatabase db, String text, String where) {
+        String sql = "UPDATE " + FTS_TABLE_NAME + " SET " + NotePad.Notes.COLUMN_NAME_NOTE +
+                " = ?";
+        if (where != null) {
+            sql += " WHERE docid IN (SELECT " + NotePad.Notes._ID + " FROM " +
+                    NotePad.Notes.TABLE_NAME + " WHERE " + qualifyWhere(where) + ")";
+        }
+        db.execSQL(sql, new Object[] { text });
+    }
+
+    /**
+     * Collects the _IDs of the notes that a "where" clause selects into
+     * {@link #SELECTED_NOTES_TABLE_NAME}, in place of any collected before, so that
+     * {@link #SELECTED_NOTES_WHERE} selects them. The _IDs are copied by one statement, without
+     * passing through Java. Must be called in the transaction of the write that uses them.
+     *
+     * @return The number of notes selected.
+     */
+    private static int selectNotes(SQLiteDatabase db, String where, String[] whereArgs) {
+        db.execSQL("CREATE TEMP TABLE IF NOT EXISTS " + SELECTED_NOTES_TABLE_NAME + " (" +
+                NotePad.Notes._ID + " INTEGER PRIMARY KEY)");
+        db.execSQL("DELETE FROM temp." + SELECTED_NOTES_TABLE_NAME);
+        SQLiteStatement statement = db.compileStatement("INSERT INTO temp." +
+                SELECTED_NOTES_TABLE_NAME + " SELECT " + NotePad.Notes._ID + " FROM " +
+                NotePad.Notes.TABLE_NAME + " WHERE " + qualifyWhere(where));
+        try {
+            if (whereArgs != null) {
+                statement.bindAllArgsAsStrings(whereArgs);
+            }
+            return statement.executeUpdateDelete();
+        } finally {
+            statement.close();
+        }
+    }
+
+    /**
+     * Converts the user's search terms into an FTS MATCH expression. Each whitespace-separated
+     * term becomes a quoted prefix query, so that partially typed words match and FTS operators
+     * in the input are treated as plain text.
+     *
+     * @param terms The search terms, as typed by the user.
+     * @return The MATCH expression, or null if there are no terms to search for.
+     */
+    static String buildMatchExpression(String terms) {
+        if (terms == null) {
+            return null;
+        }
+        StringBuilder match = new StringBuilder();
+        for (String term : terms.trim().split("\\s+")) {
+            // Double quotes would end the phrase early, so they are dropped from the term.
+            term = term.replace("\"", "");
+            if (term.length() == 0) {
+                continue;
+            }
+            if (match.length() > 0) {
+                match.append(' ');
+            }
+            match.append('"').append(term).append("*\"");
+        }
+        return match.length() > 0 ? match.toString() : null;
+    }
+
+    /**
+     * Returns a new selection argument array with the given arguments in front of the others.
+     */
+    private static String[] prependArgs(String[] first, String[] args) {
+        if (args == null) {
+            return first;
+        }
+        String[] result = new String[first.length + args.length];
+        System.arraycopy(first, 0, result, 0, first.length);
+        System.arraycopy(args, 0, result, first.length, args.length);
+        return result;
+    }
+
+    /**
+     * Parses the value of the {@link NotePad.Notes#QUERY_PARAMETER_LIMIT} query parameter.
+     *
+     * @throws IllegalArgumentException if the value is not a positive number.
+     */
+    private static int parsePageLimit(String value, Uri uri) {
+        try {
+            int limit = Integer.parseInt(value);
+            if (limit > 0) {
+                return limit;
+            }
+        } catch (NumberFormatException e) {
+            // Falls through to the exception below
+        }
+        throw new IllegalArgumentException("Invalid page limit in " + uri);
+    }
+
+    /**
+     * Parses the value of the {@link NotePad.Notes#QUERY_PARAMETER_AFTER} query parameter into
+     * the selection arguments of {@link #PAGE_AFTER_SELECTION}.
+     *
+     * @throws IllegalArgumentException if the value is not a modification date and an _ID.
+     */
+    private static String[] parsePageAfter(String value, Uri uri) {
+        String[] parts = value.split(",");
+        try {
+            if (parts.length == 2) {
+                String modified = Long.toString(Long.parseLong(parts[0].trim()));
+                String id = Long.toString(Long.parseLong(parts[1].trim()));
+                return new String[] { modified, modified, id };
+            }
+        } catch (NumberFormatException e) {
+            // Falls through to the exception below
+        }
+        throw new IllegalArgumentException("Invalid page position in " + uri);
+    }
+
+    /**
+     * This is called when a client calls {@link android.content.ContentResolver#getType(Uri)}.
+     * Returns the MIME data type of the URI given as a parameter.
+     *
+     * @param uri The URI whose MIME type is desired.
+     * @return The MIME type of the URI.
+     * @throws IllegalArgumentException if the incoming URI pattern is invalid.
+     */
+    @Override
+    public String getType(Uri uri) {
+
+        /**
+         * Chooses the MIME type based on the incoming URI pattern
+         */
+        switch (sUriMatcher.match(uri)) {
+
+            // If the pattern is for notes, live folders, a search or the trash, returns the
+            // general content type.
+            case NOTES:
+            case LIVE_FOLDER_NOTES:
+            case NOTES_SEARCH:
+            case NOTES_TRASH:
+                return NotePad.Notes.CONTENT_TYPE;
+
+            // If the pattern is for note IDs, returns the note ID content type.
+            case NOTE_ID:
+                return NotePad.Notes.CONTENT_ITEM_TYPE;
+
+            // If the pattern is for the categories, returns the categories content type.
+            case NOTES_CATEGORIES:
+                return NotePad.Notes.CONTENT_CATEGORIES_TYPE;
+
+            // If the pattern is for the statistics, returns the statistics content type.
+            case NOTES_STATS:
+                return NotePad.Notes.CONTENT_STATS_TYPE;
+
+            // If the pattern is for the edits of a note, returns the edits content type.
+            case NOTE_EDITS:
+                return NotePad.Notes.CONTENT_EDITS_TYPE;
+
+            // If the pattern is for the contents of a note, returns the contents content type.
+            case NOTE_BODY:
+                return NotePad.Notes.CONTENT_BODY_TYPE;
+
+            // If the pattern is for categories, returns the general categories content type.
+            case CATEGORIES:
+                return NotePad.Categories.CONTENT_TYPE;
+
+            // If the pattern is for category IDs, returns the category ID content type.
+            case CATEGORY_ID:
+                return NotePad.Categories.CONTENT_ITEM_TYPE;
+
+            // If the pattern is for imports, returns the general imports content type.
+            case IMPORTS:
+                return NotePad.Imports.CONTENT_TYPE;
+
+            // If the pattern is for a single import, returns the import content type.
+            case IMPORT_NAME:
+                return NotePad.Imports.CONTENT_ITEM_TYPE;
+
+            // If the URI pattern doesn't match any permitted patterns, throws an exception.
+            default:
+                throw new IllegalArgumentException("Unknown URI " + uri);
+        }
+    }
+
+//BEGIN_INCLUDE(stream)
+    /**
+     * This describes the MIME types that are supported for opening a note
+     * URI as a stream.
+     */
+    static ClipDescription NOTE_STREAM_TYPES = new ClipDescription(null,
+            new String[] { ClipDescription.MIMETYPE_TEXT_PLAIN });
+
+    /**
+     * The MIME types that the notes URI can be exported as
+     */
+    static ClipDescription NOTES_EXPORT_TYPES = new ClipDescription(null,
+            new String[] { NotePad.Notes.EXPORT_TYPE_NDJSON, NotePad.Notes.EXPORT_TYPE_ZIP });
+
+    /**
+     * Returns the types of available data streams.  URIs to specific notes are supported.
+     * The application can convert such a note to a plain text stream, and the contents URI of
+     * a note to a plain text stream of the contents alone. The notes URI is supported too:
+     * every note can be exported as newline-delimited JSON or as a zip archive.
+     *
+     * @param uri the URI to analyze
+     * @param mimeTypeFilter The MIME type to check for. This method only returns a data stream
+     * type for MIME types that match the filter.
+     * @return the data stream MIME types that match the filter, or null if there are none.
+     * @throws IllegalArgumentException if the URI pattern doesn't match any supported patterns.
+     */
+    @Override
+    public String[] getStreamTypes(Uri uri, String mimeTypeFilter) {
+        /**
+         *  Chooses the data stream type based on the incoming URI pattern.
+         */
+        switch (sUriMatcher.match(uri)) {
+
+            // If the pattern is for anything but a single note or the notes, return null. Data
+            // streams are not supported for this type of URI.
+            case LIVE_FOLDER_NOTES:
+            case NOTES_SEARCH:
+            case NOTES_CATEGORIES:
+            case NOTES_STATS:
+            case NOTE_EDITS:
+            case NOTES_TRASH:
+            case CATEGORIES:
+            case CATEGORY_ID:
+            case IMPORTS:
+            case IMPORT_NAME:
+                return null;
+
+            // If the pattern is for note IDs or the contents of a note and the MIME filter is
+            // text/plain, then return text/plain
+            case NOTE_ID:
+            case NOTE_BODY:
+                return NOTE_STREAM_TYPES.filterMimeTypes(mimeTypeFilter);
+
+            // If the pattern is for the notes, return the export types that match the filter
+            case NOTES:
+                return NOTES_EXPORT_TYPES.filterMimeTypes(mimeTypeFilter);
+
+            // If the URI pattern doesn't match any permitted patterns, throws an exception.
+            default:
+                throw new IllegalArgumentException("Unknown URI " + uri);
+        }
+    }
+
+
+    /**
+     * Returns a stream of data for each supported stream type. This method does a query on the
+     * incoming URI, then uses
+     * {@link android.content.ContentProvider#openPipeHelper(Uri, String, Bundle, Object,
+     * PipeDataWriter)} to start another thread in which to convert the data into a stream.
+     *
+     * @param uri The URI pattern that points to the data stream
+     * @param mimeTypeFilter A String containing a MIME type. This method tries to get a stream of
+     * data with this MIME type.
+     * @param opts Additional options supplied by the caller.  Can be interpreted as
+     * desired by the content provider.
+     * @return AssetFileDescriptor A handle to the file.
+     * @throws FileNotFoundException if there is no file associated with the incoming URI.
+     */
+    @Override
+    public AssetFileDescriptor openTypedAssetFile(Uri uri, String mimeTypeFilter, Bundle opts)
+            throws FileNotFoundException {
+
+        // Times the call. A note that isn't found is recorded as an error.
+        long start = ProviderMetrics.start();
+        int match = sUriMatcher.match(uri);
+        AssetFileDescriptor descriptor;
+        try {
+            descriptor = openTypedAssetFileInternal(uri, mimeTypeFilter, opts);
+        } catch (FileNotFoundException e) {
+            mMetrics.recordError(ProviderMetrics.OP_OPEN_TYPED_ASSET_FILE, match, start);
+            throw e;
+        } catch (RuntimeException e) {
+            mMetrics.recordError(ProviderMetrics.OP_OPEN_TYPED_ASSET_FILE, match, start);
+            throw e;
+        }
+        mMetrics.record(ProviderMetrics.OP_OPEN_TYPED_ASSET_FILE, match,
+                descriptor == null ? 0 : 1, start);
+        return descriptor;
+    }
+
+    /**
+     * Does the work of {@link #openTypedAssetFile(Uri, String, Bundle)}, without recording it in
+     * the metrics.
+     */
+    private AssetFileDescriptor openTypedAssetFileInternal(Uri uri, String mimeTypeFilter,
+            Bundle opts) throws FileNotFoundException {
+
+        // Checks to see if the MIME type filter matches a supported MIME type.
+        String[] mimeTypes = getStreamTypes(uri, mimeTypeFilter);
+
+        // If the MIME type is supported
+        if (mimeTypes != null) {
+
+            // The notes are exported on the pipe's thread, a page at a time, so there is no
+            // cursor to hand it.
+            if (sUriMatcher.match(uri) == NOTES) {
+                return new AssetFileDescriptor(
+                        openPipeHelper(uri, mimeTypes[0], opts, null, this), 0,
+                        AssetFileDescriptor.UNKNOWN_LENGTH);
+            }
+
+            // The contents of a note are opened as a file is.
+            if (sUriMatcher.match(uri) == NOTE_BODY) {
+                return new AssetFileDescriptor(openNoteBody(uri, "r"), 0,
+                        AssetFileDescriptor.UNKNOWN_LENGTH);
+            }
+
+            // Retrieves the ID and title of the note. The database is queried directly, rather
+            // than through the query method, since the query method reads the contents with the
+            // rest of the row, and the contents are streamed a chunk at a time instead. A note
+            // in the trash isn't found.
+            SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+            Cursor c = null;
+            if (sUriMatcher.match(uri) == NOTE_ID) {
+                c = db.query(
+                        NotePad.Notes.TABLE_NAME,
+                        READ_NOTE_PROJECTION,   // Gets a projection containing the note's ID and
+                                                // title
+                        NotePad.Notes._ID + " = ? AND " + NOT_DELETED,
+                        new String[] { uri.getPathSegments().get(
+                                NotePad.Notes.NOTE_ID_PATH_POSITION) },
+                        null,
+                        null,
+                        null
+                );
+            }
+
+            // If the query fails or the cursor is empty, stop
+            if (c == null || !c.moveToFirst()) {
+
+                // If the cursor is empty, simply close the cursor and return
+                if (c != null) {
+                    c.close();
+                }
+
+                // If the cursor is null, throw an exception
+                throw new FileNotFoundException("Unable to query " + uri);
+            }
+
+            // Start a new thread that pipes the stream data back to the caller.
+            return new AssetFileDescriptor(
+                    openPipeHelper(uri, mimeTypes[0], opts, c, this), 0,
+                    AssetFileDescriptor.UNKNOWN_LENGTH);
+        }
+
+        // If the MIME type is not supported, return a read-only handle to the file.
+        return super.openTypedAssetFile(uri, mimeTypeFilter, opts);
+    }
+
+    /**
+     * Implementation of {@link android.content.ContentProvider.PipeDataWriter}
+     * to perform the actual work of converting the data in one of cursors to a
+     * stream of data for the client to read.
+     */
+    @Override
+    public void writeDataToPipe(ParcelFileDescriptor output, Uri uri, String mimeType,
+                                Bundle opts, Cursor c) {
+        // A note URI comes with a cursor that holds the note's ID and title, and is converted to
+        // text. The contents URI of a note comes without one, and is converted to the text of
+        // the contents alone. The notes URI comes without one either, and is exported whole.
+        // Either way, the contents are read from the database a chunk at a time as they are
+        // written, so notes of any size are streamed with the same memory.
+        FileOutputStream fout = new FileOutputStream(output.getFileDescriptor());
+        try {
+            OutputStream out = new BufferedOutputStream(fout, PIPE_BUFFER_BYTES);
+            if (sUriMatcher.match(uri) == NOTE_BODY) {
+                Writer writer = new OutputStreamWriter(out, "UTF-8");
+                writeEditedNoteBody(mOpenHelper.getReadableDatabase(),
+                        Long.parseLong(parseNoteId(uri)), writer);
+                writer.flush();
+            } else if (c == null) {
+                writeNotesToPipe(mimeType, out);
+            } else {
+                long id = c.getLong(READ_NOTE_ID_INDEX);
+                Writer writer = new OutputStreamWriter(out, "UTF-8");
+                writer.write(String.valueOf(c.getString(READ_NOTE_TITLE_INDEX)));
+                writer.write("\n\n");
+
+                // Writes the contents with any pending edits applied, without folding them.
+                writeEditedNoteBody(mOpenHelper.getReadableDatabase(), id, writer);
+                writer.write("\n");
+                writer.flush();
+            }
+        } catch (IOException e) {
+            // The client closed its end of the pipe before it read everything.
+            Log.w(TAG, "Failed to write " + uri + " to a pipe", e);
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+            try {
+                fout.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    /**
+     * Exports every note that isn't in the trash to a pipe, in one of the formats of
+     * {@link #NOTES_EXPORT_TYPES}. The notes are read a page of {@link #EXPORT_PAGE_ROWS} at a
+     * time, in the order of their _ID; each page is read whole before its notes are written, so
+     * the database isn't held while the pipe waits for the client to read. Memory stays the
+     * same however many notes there are: a page of rows, the buffers of the contents being
+     * written, and the buffer in front of the pipe, which blocks when the client falls behind.
+     *
+     * A note written during the export is exported as it was when its page was read, or, if
+     * the note's page has already been read, not at all.
+     *
+     * @param mimeType The format of the export.
+     * @param out The stream of the pipe.
+     * @throws IOException if the pipe can't be written to.
+     */
+    private void writeNotesToPipe(String mimeType, OutputStream out) throws IOException {
+
+        // The contents are written with any pending edits applied, without folding them, so
+        // the export only reads.
+        final SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+        NoteExport.BodyWriter bodies = new NoteExport.BodyWriter() {
+            @Override
+            public void writeBody(long id, Writer writer) throws IOException {
+                writeEditedNoteBody(db, id, writer);
+            }
+        };
+        ZipOutputStream zip = null;
+        if (NotePad.Notes.EXPORT_TYPE_ZIP.equals(mimeType)) {
+            zip = new ZipOutputStream(out);
+        }
+        Writer writer = new OutputStreamWriter(zip != null ? zip : out, "UTF-8");
+
+        long lastId = Long.MIN_VALUE;
+        int count;
+        do {
+            count = 0;
+            Cursor c = db.rawQuery(EXPORT_PAGE_SQL, new String[] { Long.toString(lastId) });
+            try {
+                while (c.moveToNext()) {
+                    if (zip != null) {
+                        NoteExport.writeZipEntry(c, bodies, zip, writer);
+                    } else {
+                        NoteExport.writeJsonLine(c, bodies, writer);
+                    }
+                    lastId = c.getLong(NoteExport.COLUMN_ID);
+                    count++;
+                }
+            } finally {
+                c.close();
+            }
+        } while (count == EXPORT_PAGE_ROWS);
+
+        writer.flush();
+        if (zip != null) {
+            zip.finish();
+        }
+        out.flush();
+    }
+
+    /**
+     * Writes the contents of a note to a writer, a chunk of {@link #PIPE_CHUNK_SIZE} at a time.
+     * Contents stored as text are copied through a character buffer that is reused for every
+     * chunk. Compressed contents are inflated and decoded as their chunks are read, with buffers
+     * of a fixed size. Contents stored in segments are written a segment at a time, and those
+     * stored in a file are copied from it. Edits that haven't been folded into the contents
+     * aren't applied.
+     *
+     * Android doesn't expose SQLite's incremental BLOB I/O, so each chunk is read with substr().
+     * SQLite loads the whole stored value to take each substring, which costs time on very long
+     * contents, but only the chunk itself is copied into the cursor window and the heap. Each
+     * chunk is read on its own, so a note written while it is streamed may be streamed partly
+     * before and partly after the write. A file is read whole once it is opened, but if a write
+     * replaces it between the read of the row and the opening of the file, it is not found.
+     *
+     * @param db The database.
+     * @param id The _ID of the note.
+     * @param writer The writer to write the contents to.
+     * @throws IOException if the writer fails, or the file of the contents can't be read.
+     */
+    private void writeNoteBody(SQLiteDatabase db, long id, final Writer writer)
+            throws IOException {
+        String noteId = Long.toString(id);
+        String type;
+        long length;
+        Long segmentedLength = null;
+        String file;
+        Cursor c = db.rawQuery("SELECT typeof(" + NotePad.Notes.COLUMN_NAME_NOTE + "), length(" +
+                NotePad.Notes.COLUMN_NAME_NOTE + "), " + BODIES_COLUMN_NOTE_LENGTH + ", " +
+                BODIES_COLUMN_NOTE_FILE + " FROM " + BODIES_TABLE_NAME + " WHERE " +
+                BODIES_COLUMN_NOTE_ID + " = ?", new String[] { noteId });
+        try {
+            if (!c.moveToFirst() || c.isNull(1)) {
+                // The note has no contents.
+                return;
+            }
+            type = c.getString(0);
+            length = c.getLong(1);
+            if (!c.isNull(2)) {
+                segmentedLength = c.getLong(2);
+            }
+            file = c.getString(3);
+        } finally {
+            c.close();
+        }
+
+        if (file != null) {
+            // Contents stored in a file are copied from it through a character buffer.
+            Reader reader = openBodyFile(file);
+            try {
+                char[] buffer = new char[PIPE_BUFFER_BYTES];
+                int count;
+                while ((count = reader.read(buffer)) != -1) {
+                    writer.write(buffer, 0, count);
+                }
+            } finally {
+                reader.close();
+            }
+            return;
+        }
+        if (segmentedLength != null) {
+            // Contents stored in segments are written a segment at a time.
+            readSegments(db, id, 0, segmentedLength, new SegmentReader() {
+                @Override
+                public void readSegment(long start, String text) throws IOException {
+                    writer.write(text);
+                }
+            });
+            return;
+        }
+
+        NoteBodyCodec.DecodingOutputStream decoder = null;
+        if ("blob".equals(type)) {
+            decoder = new NoteBodyCodec.DecodingOutputStream(writer);
+        }
+        CharArrayBuffer chars = new CharArrayBuffer(PIPE_CHUNK_SIZE);
+        String chunkSize = Integer.toString(PIPE_CHUNK_SIZE);
+        String chunkSql = "SELECT substr(" + NotePad.Notes.COLUMN_NAME_NOTE + ", ?, ?) FROM " +
+                BODIES_TABLE_NAME + " WHERE " + BODIES_COLUMN_NOTE_ID + " = ?";
+        try {
+            // substr() counts characters of text and bytes of a BLOB, from 1.
+            for (long start = 1; start <= length; start += PIPE_CHUNK_SIZE) {
+                c = db.rawQuery(chunkSql,
+                        new String[] { Long.toString(start), chunkSize, noteId });
+                try {
+                    if (!c.moveToFirst() || c.isNull(0)) {
+                        // The note was deleted or emptied while it was streamed.
+                        break;
+                    }
+                    if (decoder != null) {
+                        byte[] chunk = c.getBlob(0);
+                        decoder.write(chunk, 0, chunk.length);
+                    } else {
+                        c.copyStringToBuffer(0, chars);
+                        writer.write(chars.data, 0, chars.sizeCopied);
+                    }
+                } finally {
+                    c.close();
+                }
+            }
+            if (decoder != null) {
+                decoder.finish();
+            }
+        } finally {
+            if (decoder != null) {
+                decoder.end();
+            }
+        }
+    }
+//END_INCLUDE(stream)
+
+    /**
+     * Receives the segments of contents as they are read.
+     */
+    private interface SegmentReader {
+
+        /**
+         * Receives a segment.
+         *
+         * @param start The offset of the segment in the contents.
+         * @param text The text of the segment.
+         * @throws IOException if the segment can't be written where it is going.
+         */
+        void readSegment(long start, String text) throws IOException;
+    }
+
+    /**
+     * Reads the segments of a note's contents that overlap a range, in order, a page of
+     * {@link #SEGMENT_PAGE_ROWS} at a time. Each page is read with the offset of the last
+     * segment of the previous one, so no page skips over the segments before it. Only the
+     * segments of a page are held at a time, whatever the length of the range.
+     *
+     * @param db The database.
+     * @param id The _ID of the note.
+     * @param begin The offset of the start of the range.
+     * @param end The offset after the end of the range.
+     * @param reader Receives the segments.
+     * @throws IOException if the reader fails.
+     */
+    private static void readSegments(SQLiteDatabase db, long id, long begin, long end,
+            SegmentReader reader) throws IOException {
+        String noteId = Long.toString(id);
+        String endArg = Long.toString(end);
+        String beginArg = Long.toString(begin);
+        long after = -1;
+        int count;
+        do {
+            count = 0;
+            Cursor c = db.rawQuery(SEGMENT_PAGE_SQL,
+                    new String[] { noteId, Long.toString(after), endArg, beginArg });
+            try {
+                while (c.moveToNext()) {
+                    after = c.getLong(0);
+                    reader.readSegment(after, NoteBodyCodec.getString(c, 1));
+                    count++;
+                }
+            } finally {
+                c.close();
+            }
+        } while (count == SEGMENT_PAGE_ROWS);
+    }
+
+    /**
+     * Reads the segments of contents stored in a file that overlap a range, in order. The
+     * contents are split where they would be split into segments in the database. UTF-8 doesn't
+     * say where a character starts, so the file is decoded from its start, but only a segment
+     * is held at a time.
+     *
+     * @param name The name of the file.
+     * @param begin The offset of the start of the range.
+     * @param end The offset after the end of the range.
+     * @param reader Receives the segments.
+     * @throws IOException if the file can't be read, or the reader fails.
+     */
+    private void readFileSegments(String name, long begin, long end, SegmentReader reader)
+            throws IOException {
+        Reader in = openBodyFile(name);
+        try {
+            // The character after a segment is read with it, so that a segment doesn't end
+            // between the halves of a surrogate pair.
+            char[] buffer = new char[NotePad.Notes.SEGMENT_CHARS + 1];
+            int count = 0;
+            long start = 0;
+            while (start < end) {
+                int read;
+                while (count < buffer.length
+                        && (read = in.read(buffer, count, buffer.length - count)) != -1) {
+                    count += read;
+                }
+                if (count == 0) {
+                    break;
+                }
+                String text = new String(buffer, 0, count);
+                int segmentEnd = NoteBodyCodec.segmentEnd(text, 0);
+                if (start + segmentEnd > begin) {
+                    reader.readSegment(start, text.substring(0, segmentEnd));
+                }
+
+                // The characters after the segment start the next one.
+                count -= segmentEnd;
+                System.arraycopy(buffer, segmentEnd, buffer, 0, count);
+                start += segmentEnd;
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Opens a file of contents for reading, as text.
+     *
+     * @throws FileNotFoundException if the file doesn't exist.
+     */
+    private Reader openBodyFile(String name) throws FileNotFoundException {
+        InputStreamReader reader;
+        try {
+            reader = new InputStreamReader(new BufferedInputStream(
+                    new FileInputStream(new File(mBodyFileDir, name)), PIPE_BUFFER_BYTES),
+                    "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+        return reader;
+    }
+
+    /**
+     * This is called when a client calls
+     * {@link android.content.ContentResolver#openFileDescriptor(Uri, String)}, or opens a stream
+     * on a URI. An import URI opened for writing starts an import (see {@link NotePad.Imports}):
+     * the client writes the stream to the returned pipe, and the provider reads it on a
+     * background thread. The contents URI of a note opened for reading returns its contents,
+     * as UTF-8 text (see {@link #openNoteBody(Uri, String)}). No other URI can be opened as a
+     * file.
+     *
+     * @return The end of the pipe that the client writes the stream to, or the descriptor that
+     * the client reads the contents from.
+     * @throws FileNotFoundException if the URI isn't an import or contents URI, the mode isn't
+     * the mode of the URI, or the note doesn't exist or is in the trash.
+     * @throws IllegalArgumentException if the type or batch size of the import isn't valid.
+     */
+    @Override
+    public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
+
+        // Times the call. A URI that can't be opened is recorded as an error.
+        long start = ProviderMetrics.start();
+        int match = sUriMatcher.match(uri);
+        ParcelFileDescriptor descriptor;
+        try {
+            descriptor = openFileInternal(uri, mode);
+        } catch (FileNotFoundException e) {
+            mMetrics.recordError(ProviderMetrics.OP_OPEN_FILE, match, start);
+            throw e;
+        } catch (RuntimeException e) {
+            mMetrics.recordError(ProviderMetrics.OP_OPEN_FILE, match, start);
+            throw e;
+        }
+        mMetrics.record(ProviderMetrics.OP_OPEN_FILE, match, 1, start);
+        return descriptor;
+    }
+
+    /**
+     * Does the work of {@link #openFile(Uri, String)}, without recording it in the metrics.
+     */
+    private ParcelFileDescriptor openFileInternal(Uri uri, String mode)
+            throws FileNotFoundException {
+        int match = sUriMatcher.match(uri);
+        if (match == NOTE_BODY) {
+            return openNoteBody(uri, mode);
+        }
+        if (match != IMPORT_NAME) {
+            return super.openFile(uri, mode);
+        }
+        if (!"w".equals(mode) && !"wt".equals(mode)) {
+            throw new FileNotFoundException("Imports can only be opened for writing: " + uri);
+        }
+
+        // Checks the parameters before anything is started, so that the client gets the error.
+        final String name = parseImportName(uri);
+        String type = uri.getQueryParameter(NotePad.Imports.QUERY_PARAMETER_TYPE);
+        final String importType = type == null ? NotePad.Notes.EXPORT_TYPE_NDJSON : type;
+        if (!NotePad.Notes.EXPORT_TYPE_NDJSON.equals(importType) &&
+                !ClipDescription.MIMETYPE_TEXT_PLAIN.equals(importType)) {
+            throw new IllegalArgumentException("Unsupported import type " + importType);
+        }
+        final int batchSize = parseBatchSize(uri);
+
+        // A reliable pipe tells the import whether the client closed its end normally, or
+        // failed or died before it wrote the whole stream.
+        final ParcelFileDescriptor[] pipe;
+        try {
+            pipe = ParcelFileDescriptor.createReliablePipe();
+        } catch (IOException e) {
+            throw new FileNotFoundException("Unable to create a pipe for " + uri);
+        }
+
+        // Imports run one at a time, in the order they were opened. The client's writes block
+        // once the pipe is full, until the import reads on.
+        mImporter.execute(new Runnable() {
+            @Override
+            public void run() {
+                runImport(name, importType, batchSize, pipe[0]);
+            }
+        });
+        return pipe[1];
+    }
+
+    /**
+     * Opens the contents of a note for reading, as UTF-8 text. Contents stored in a file are
+     * opened as the file itself, so the client reads, seeks, maps or transfers the file without
+     * the provider copying it, and with its length known. Other contents are written to a pipe,
+     * a chunk at a time, on another thread, with any pending edits applied. Nothing is written
+     * on the caller's thread: a file that doesn't hold the note's pending edits is passed over
+     * for a pipe, and the edits are folded in the background, for the next open.
+     *
+     * @param uri The contents URI of the note.
+     * @param mode The mode, which must be "r".
+     * @return The descriptor of the file, or the read end of the pipe.
+     * @throws FileNotFoundException if the mode isn't "r", or the note doesn't exist or is in
+     * the trash.
+     */
+    private ParcelFileDescriptor openNoteBody(Uri uri, String mode)
+            throws FileNotFoundException {
+        if (!"r".equals(mode)) {
+            throw new FileNotFoundException("Contents can only be opened for reading: " + uri);
+        }
+        long id = Long.parseLong(parseNoteId(uri));
+
+        // A write that replaces the file between the read of the row and the opening of the
+        // file deletes it, so the row is read again once.
+        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+        for (int attempt = 0; ; attempt++) {
+            String file;
+            Cursor c = db.rawQuery("SELECT " + BODIES_COLUMN_NOTE_FILE + " FROM " +
+                    NotePad.Notes.TABLE_NAME + BODIES_JOIN + " WHERE " +
+                    NotePad.Notes.TABLE_NAME + "." + NotePad.Notes._ID + " = ? AND " +
+                    NOT_DELETED, new String[] { Long.toString(id) });
+            try {
+                if (!c.moveToFirst()) {
+                    throw new FileNotFoundException("Unable to query " + uri);
+                }
+                file = c.getString(0);
+            } finally {
+                c.close();
+            }
+
+            if (file != null && hasEdits(db, Long.toString(id))) {
+                queueCompaction(id);
+                file = null;
+            }
+            if (file == null) {
+                return openPipeHelper(uri, ClipDescription.MIMETYPE_TEXT_PLAIN, null, null,
+                        this);
+            }
+            try {
+                return ParcelFileDescriptor.open(new File(mBodyFileDir, file),
+                        ParcelFileDescriptor.MODE_READ_ONLY);
+            } catch (FileNotFoundException e) {
+                if (attempt > 0) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the batch size of an import URI, or the default if it doesn't set one.
+     *
+     * @throws IllegalArgumentException if the batch size isn't a number from 1 to
+     * {@link NotePad.Imports#MAX_BATCH_SIZE}.
+     */
+    private static int parseBatchSize(Uri uri) {
+        String value = uri.getQueryParameter(NotePad.Imports.QUERY_PARAMETER_BATCH_SIZE);
+        if (value == null) {
+            return NotePad.Imports.DEFAULT_BATCH_SIZE;
+        }
+        int batchSize;
+        try {
+            batchSize = Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            batchSize = 0;
+        }
+        if (batchSize < 1 || batchSize > NotePad.Imports.MAX_BATCH_SIZE) {
+            throw new IllegalArgumentException("Invalid import batch size " + value);
+        }
+        return batchSize;
+    }
+
+    /**
+     * Imports a stream, on the importer's thread. Reads the import's checkpoint, skips the
+     * records that it says were already imported, and inserts the rest a batch at a time. Each
+     * batch is read from the stream before its transaction starts, so the database isn't held
+     * while the client writes. If the import fails, its error is stored with its checkpoint.
+     *
+     * The last batch is only committed if the client closed its end of the pipe normally. A
+     * stream that ends because the client failed may end on a whole record, so it is treated
+     * as an error, and the last batch is read again when the import resumes.
+     *
+     * @param name The name of the import.
+     * @param type The MIME type of the stream.
+     * @param batchSize The number of notes to insert in each transaction.
+     * @param input The read end of the pipe. It is closed when the import ends.
+     */
+    private void runImport(String name, String type, int batchSize, ParcelFileDescriptor input) {
+        Uri importUri = NotePad.Imports.buildImportUri(name);
+        NoteImport.NoteReader reader = NoteImport.newReader(type,
+                new ParcelFileDescriptor.AutoCloseInputStream(input));
+        try {
+            SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+            long records = startImport(db, name);
+
+            // Parses the records that were imported before, so that the rest of the stream is
+            // read from where the last run stopped.
+            for (long skipped = 0; skipped < records; skipped++) {
+                if (reader.next() == null) {
+                    break;
+                }
+            }
+
+            ArrayList<ContentValues> batch = new ArrayList<ContentValues>(batchSize);
+            boolean finished = false;
+            while (!finished) {
+                batch.clear();
+                ContentValues values;
+                while (batch.size() < batchSize && (values = reader.next()) != null) {
+                    batch.add(values);
+                }
+                finished = batch.size() < batchSize;
+                if (finished) {
+                    input.checkError();
+                }
+                records += batch.size();
+                commitImportBatch(db, name, batch, records, finished);
+            }
+        } catch (IOException e) {
+            failImport(name, e);
+        } catch (RuntimeException e) {
+            // The stream isn't in the format of its type, or a note couldn't be inserted.
+            failImport(name, e);
+        } finally {
+            try {
+                reader.close();
+            } catch (IOException e) {
+            }
+        }
+        notifyChange(importUri);
+    }
+
+    /**
+     * Creates the checkpoint of an import, unless it has one, and clears its last error.
+     *
+     * @return The number of records of the stream already imported.
+     */
+    private long startImport(SQLiteDatabase db, String name) {
+        String[] args = { name };
+        db.beginTransaction();
+        try {
+            ContentValues values = new ContentValues();
+            values.put(NotePad.Imports.COLUMN_NAME_NAME, name);
+            values.put(NotePad.Imports.COLUMN_NAME_MODIFICATION_DATE,
+                    System.currentTimeMillis());
+            db.insertWithOnConflict(NotePad.Imports.TABLE_NAME, null, values,
+                    SQLiteDatabase.CONFLICT_IGNORE);
+            values.clear();
+            values.putNull(NotePad.Imports.COLUMN_NAME_ERROR);
+            db.update(NotePad.Imports.TABLE_NAME, values,
+                    NotePad.Imports.COLUMN_NAME_NAME + " = ?", args);
+            long records = DatabaseUtils.longForQuery(db, "SELECT " +
+                    NotePad.Imports.COLUMN_NAME_RECORDS + " FROM " + NotePad.Imports.TABLE_NAME +
+                    " WHERE " + NotePad.Imports.COLUMN_NAME_NAME + " = ?", args);
+            db.setTransactionSuccessful();
+            return records;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Inserts a batch of imported notes and moves the import's checkpoint past them, in one
+     * transaction, so that a batch is either imported and counted, or neither. Then notifies
+     * the observers of the notes, if there were any, and of the import.
+     *
+     * @param batch The values of the notes, as read from the stream.
+     * @param records The number of records of the stream imported once the batch is.
+     * @param finished Whether the batch is the last of the stream.
+     * @throws SQLException if a note can't be inserted.
+     */
+    private void commitImportBatch(SQLiteDatabase db, String name,
+            ArrayList<ContentValues> batch, long records, boolean finished) {
+        long start = ProviderMetrics.start();
+        ContentValues[] notes = new ContentValues[batch.size()];
+        for (int i = 0; i < notes.length; i++) {
+            notes[i] = buildNewNoteValues(batch.get(i));
+        }
+        String[] files;
+        try {
+            files = writeBodyFiles(notes);
+        } catch (RuntimeException e) {
+            mMetrics.recordError(ProviderMetrics.OP_BULK_INSERT, IMPORT_NAME, start);
+            throw e;
+        }
+
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < notes.length; i++) {
+                if (insertNote(db, notes[i], files[i]) <= 0) {
+                    throw new SQLException("Failed to insert row into " +
+                            NotePad.Notes.CONTENT_URI);
+                }
+            }
+            SQLiteStatement statement = db.compileStatement("UPDATE " + NotePad.Imports.TABLE_NAME +
+                    " SET " + NotePad.Imports.COLUMN_NAME_RECORDS + " = ?, " +
+                    NotePad.Imports.COLUMN_NAME_FINISHED + " = ?, " +
+                    NotePad.Imports.COLUMN_NAME_MODIFICATION_DATE + " = ? WHERE " +
+                    NotePad.Imports.COLUMN_NAME_NAME + " = ?");
+            try {
+                statement.bindLong(1, records);
+                statement.bindLong(2, finished ? 1 : 0);
+                statement.bindLong(3, System.currentTimeMillis());
+                statement.bindString(4, name);
+                statement.executeUpdateDelete();
+            } finally {
+                statement.close();
+            }
+            db.setTransactionSuccessful();
+        } catch (RuntimeException e) {
+            mMetrics.recordError(ProviderMetrics.OP_BULK_INSERT, IMPORT_NAME, start);
+            throw e;
+        } finally {
+            db.endTransaction();
+        }
+        mMetrics.record(ProviderMetrics.OP_BULK_INSERT, IMPORT_NAME, batch.size(), start);
+
+        if (!batch.isEmpty()) {
+            // The IDs may have belonged to deleted notes, so any rows cached for them are
+            // dropped.
+            mRowCache.invalidateAll();
+            notifyChange(NotePad.Notes.CONTENT_URI);
+        }
+        notifyChange(NotePad.Imports.buildImportUri(name));
+    }
+
+    /**
+     * Stores the error that stopped an import with its checkpoint. The checkpoint itself stays
+     * at the last batch that was committed.
+     */
+    private void failImport(String name, Exception e) {
+        Log.w(TAG, "Import " + name + " failed", e);
+        try {
+            ContentValues values = new ContentValues();
+            values.put(NotePad.Imports.COLUMN_NAME_ERROR, String.valueOf(e.getMessage()));
+            values.put(NotePad.Imports.COLUMN_NAME_MODIFICATION_DATE,
+                    System.currentTimeMillis());
+            mOpenHelper.getWritableDatabase().update(NotePad.Imports.TABLE_NAME, values,
+                    NotePad.Imports.COLUMN_NAME_NAME + " = ?", new String[] { name });
+        } catch (RuntimeException e2) {
+            Log.w(TAG, "Failed to store the error of import " + name, e2);
+        }
+    }
+
+    /**
+     * This is called when a client calls
+     * {@link android.content.ContentResolver#insert(Uri, ContentValues)}.
+     * Inserts a new row into the database. This method sets up default values for any
+     * columns that are not included in the incoming map.
+     * If rows were inserted, then listeners are notified of the change.
+     * @return The row ID of the inserted row.
+     * @throws SQLException if the insertion fails.
+     */
+    @Override
+    public Uri insert(Uri uri, ContentValues initialValues) {
+
+        // Times the insert.
+        long start = ProviderMetrics.start();
+        int match = sUriMatcher.match(uri);
+        Uri result;
+        try {
+            result = insertInternal(uri, initialValues);
+        } catch (RuntimeException e) {
+            mMetrics.recordError(ProviderMetrics.OP_INSERT, match, start);
+            throw e;
+        }
+        mMetrics.record(ProviderMetrics.OP_INSERT, match, result == null ? 0 : 1, start);
+        return result;
+    }
+
+    /**
+     * Does the work of {@link #insert(Uri, ContentValues)}, without recording it in the metrics.
+     */
+    private Uri insertInternal(Uri uri, ContentValues initialValues) {
+
+        // Validates the incoming URI. Only the full notes, note edits and categories URIs are
+        // allowed for inserts.
+        int match = sUriMatcher.match(uri);
+        if (match == CATEGORIES) {
+            return insertCategory(initialValues);
+        }
+        if (match == NOTE_EDITS) {
+            insertEdits(uri, new ContentValues[] { initialValues });
+            return uri;
+        }
+        if (match != NOTES) {
+            throw new IllegalArgumentException("Unknown URI " + uri);
+        }
+
+        // Fills in the columns that the values don't set.
+        ContentValues values = buildNewNoteValues(initialValues);
+
+        // Opens the database object in "write" mode.
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+
+        // The longest contents are written to their file before the transaction, so that the
+        // database isn't held while the file is written.
+        String file = writeBodyFile(values.get(NotePad.Notes.COLUMN_NAME_NOTE));
+
+        // Inserts the note and its contents in one transaction.
+        long rowId;
+        db.beginTransaction();
+        try {
+            rowId = insertNote(db, values, file);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        // If the insert succeeded, the row ID exists.
+        if (rowId > 0) {
+            // The ID may have belonged to a deleted note, so any row cached for it is dropped.
+            mRowCache.invalidate(rowId);
+
+            // Creates a URI with the note ID pattern and the new row ID appended to it.
+            Uri noteUri = ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, rowId);
+
+            // Notifies observers registered against this provider that the data changed.
+            notifyChange(noteUri);
+            return noteUri;
+        }
+
+        // If the insert didn't succeed, then the rowID is <= 0. Throws an exception.
+        throw new SQLException("Failed to insert row into " + uri);
+    }
+
+    /**
+     * Returns the values of a new note: a copy of the incoming values, with defaults for the
+     * columns that they don't set.
+     */
+    private static ContentValues buildNewNoteValues(ContentValues initialValues) {
+
+        // A map to hold the new record's values.
+        ContentValues values;
+
+        // If the incoming values map is not null, uses it for the new values.
+        if (initialValues != null) {
+            values = new ContentValues(initialValues);
+
+        } else {
+            // Otherwise, create a new value map
+            values = new ContentValues();
+        }
+
+        // Gets the current system time in milliseconds
+        Long now = Long.valueOf(System.currentTimeMillis());
+
+        // If the values map doesn't contain the creation date, sets the value to the current time.
+        if (values.containsKey(NotePad.Notes.COLUMN_NAME_CREATE_DATE) == false) {
+            values.put(NotePad.Notes.COLUMN_NAME_CREATE_DATE, now);
+        }
+
+        // If the values map doesn't contain the modification date, sets the value to the current
+        // time.
+        if (values.containsKey(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE) == false) {
+            values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, now);
+        }
+
+        // If the values map doesn't contain a title, sets the value to the default title.
+        if (values.containsKey(NotePad.Notes.COLUMN_NAME_TITLE) == false) {
+            Resources r = Resources.getSystem();
+            values.put(NotePad.Notes.COLUMN_NAME_TITLE, r.getString(android.R.string.untitled));
+        }
+
+        // If the values map doesn't contain note text, sets the value to an empty string.
+        if (values.containsKey(NotePad.Notes.COLUMN_NAME_NOTE) == false) {
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE, "");
+        }
+
+        // If the values map doesn't contain a color, sets the value to -1 (no color).
+        if (values.containsKey(NotePad.Notes.COLUMN_NAME_COLOR) == false) {
+            values.put(NotePad.Notes.COLUMN_NAME_COLOR, -1);
+        }
+
+        return values;
+    }
+
+    /**
+     * Inserts a note and its contents with compiled statements. The statement that inserts into
+     * the notes table only depends on the set of columns of the note, so the connection's
+     * prepared statement cache compiles it once per set of columns. Must be called in a
+     * transaction, so that the note and its contents are inserted together. The longest
+     * contents are written to their file by the caller, before the transaction, so that the
+     * database isn't held while the file is written.
+     *
+     * @param values The values of the note, as returned by {@link #buildNewNoteValues}. They
+     * are changed by the insert.
+     * @param file The file that {@link #writeBodyFile(Object)} wrote the contents to, or null.
+     * @return The row ID of the new note.
+     * @throws SQLException if the insert fails.
+     */
+    private long insertNote(SQLiteDatabase db, ContentValues values, String file) {
+
+        // Replaces the category name with the _ID of the category, and splits the contents
+        // off from the columns of the notes table.
+        values = resolveCategory(db, values);
+        Object body = values.get(NotePad.Notes.COLUMN_NAME_NOTE);
+        values.remove(NotePad.Notes.COLUMN_NAME_NOTE);
+
+        // Sorts the columns so that the same set of columns always produces the same SQL.
+        Set<String> keys = values.keySet();
+        String[] columns = keys.toArray(new String[keys.size()]);
+        Arrays.sort(columns);
+
+        StringBuilder sql = new StringBuilder("INSERT INTO ").append(NotePad.Notes.TABLE_NAME)
+                .append(" (");
+        for (int i = 0; i < columns.length; i++) {
+            if (i > 0) {
+                sql.append(", ");
+            }
+            sql.append(columns[i]);
+        }
+        sql.append(") VALUES (");
+        for (int i = 0; i < columns.length; i++) {
+            sql.append(i > 0 ? ", ?" : "?");
+        }
+        sql.append(")");
+
+        long rowId;
+        SQLiteStatement statement = db.compileStatement(sql.toString());
+        try {
+            for (int i = 0; i < columns.length; i++) {
+                DatabaseUtils.bindObjectToProgram(statement, i + 1, values.get(columns[i]));
+            }
+            rowId = statement.executeInsert();
+        } finally {
+            statement.close();
+        }
+        if (rowId <= 0) {
+            return rowId;
+        }
+
+        Object stored = encodeBody(body);
+        statement = db.compileStatement(
+                "INSERT INTO " + BODIES_TABLE_NAME + " (" + BODIES_COLUMN_NOTE_ID + ", " +
+                        NotePad.Notes.COLUMN_NAME_NOTE + ", " + BODIES_COLUMN_NOTE_LENGTH +
+                        ", " + BODIES_COLUMN_NOTE_FILE + ") VALUES (?, ?, ?, ?)");
+        try {
+            statement.bindLong(1, rowId);
+            DatabaseUtils.bindObjectToProgram(statement, 2, stored);
+            DatabaseUtils.bindObjectToProgram(statement, 3,
+                    NoteBodyCodec.getSegmentedLength(body));
+            DatabaseUtils.bindObjectToProgram(statement, 4, file);
+            statement.executeInsert();
+        } finally {
+            statement.close();
+        }
+        if (stored != body) {
+            if (file == null) {
+                writeSegments(db, body, NotePad.Notes._ID + " = " + rowId);
+            }
+            indexCompressedBody(db, (String) body, Long.toString(rowId));
+        }
+        return rowId;
+    }
+
+    /**
+     * Writes the longest contents of new notes to their files, before the transaction that
+     * inserts the notes.
+     *
+     * @param notes The values of the notes, as returned by {@link #buildNewNoteValues}.
+     * @return The file of each note's contents, or null for contents stored in the database.
+     * @throws SQLException if a file can't be written.
+     */
+    private String[] writeBodyFiles(ContentValues[] notes) {
+        String[] files = new String[notes.length];
+        for (int i = 0; i < notes.length; i++) {
+            files[i] = writeBodyFile(notes[i].get(NotePad.Notes.COLUMN_NAME_NOTE));
+        }
+        return files;
+    }
+
+    /**
+     * Appends edits to a note's contents, in one transaction. Queues a compaction of the note
+     * once it has {@link #COMPACT_THRESHOLD_EDITS} edits. The edits of a note whose contents
+     * queries only read the first segment of are folded at once, since reads couldn't apply
+     * them to the part of the contents they read: in the same transaction, or right after it
+     * if the contents go to a file (see {@link #compactEdits(long)}). The full-text index of
+     * any other note is updated with its edits applied, so that searches see them without
+     * folding them.
+     *
+     * @param uri The edits URI of the note.
+     * @param edits The edits, in the order they apply.
+     * @return The number of edits inserted.
+     * @throws IllegalArgumentException if an edit has no position, or a negative one.
+     * @throws SQLException if the note doesn't exist.
+     */
+    private int insertEdits(Uri uri, ContentValues[] edits) {
+        String noteId = parseNoteId(uri);
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        long pending;
+        String replacedFile = null;
+        boolean foldLater = false;
+
+        db.beginTransaction();
+        try {
+            // Inserts nothing if the note doesn't exist or is in the trash.
+            SQLiteStatement statement = db.compileStatement(
+                    "INSERT INTO " + EDITS_TABLE_NAME + " (" + EDITS_COLUMN_NOTE_ID + ", " +
+                            NotePad.Notes.COLUMN_NAME_EDIT_POSITION + ", " +
+                            NotePad.Notes.COLUMN_NAME_EDIT_DELETE_LENGTH + ", " +
+                            NotePad.Notes.COLUMN_NAME_EDIT_TEXT + ") SELECT " +
+                            NotePad.Notes._ID + ", ?, ?, ? FROM " + NotePad.Notes.TABLE_NAME +
+                            " WHERE " + NotePad.Notes._ID + " = ? AND " + NOT_DELETED);
+            try {
+                for (ContentValues edit : edits) {
+                    Integer position = edit == null
+                            ? null : edit.getAsInteger(NotePad.Notes.COLUMN_NAME_EDIT_POSITION);
+                    if (position == null || position < 0) {
+                        throw new IllegalArgumentException("Invalid edit position in " + uri);
+                    }
+                    Integer deleteLength =
+                            edit.getAsInteger(NotePad.Notes.COLUMN_NAME_EDIT_DELETE_LENGTH);
+                    String text = edit.getAsString(NotePad.Notes.COLUMN_NAME_EDIT_TEXT);
+
+                    statement.bindLong(1, position);
+                    statement.bindLong(2, deleteLength == null ? 0 : Math.max(0, deleteLength));
+                    statement.bindString(3, text == null ? "" : text);
+                    statement.bindString(4, noteId);
+                    if (statement.executeInsert() <= 0) {
+                        throw new SQLException("Failed to insert row into " + uri);
+                    }
+                }
+            } finally {
+                statement.close();
+            }
+
+            statement = db.compileStatement("SELECT EXISTS (SELECT 1 FROM " + BODIES_TABLE_NAME +
+                    " WHERE " + BODIES_COLUMN_NOTE_ID + " = ? AND (" + IS_PARTIAL_BODY + "))");
+            boolean partial;
+            try {
+                statement.bindString(1, noteId);
+                partial = statement.simpleQueryForLong() != 0;
+            } finally {
+                statement.close();
+            }
+            if (partial) {
+                // Contents that go to a file are folded once the edits are committed, so that
+                // the file isn't written in the transaction.
+                replacedFile = queryBodyFile(db, noteId);
+                foldLater = foldEdits(db, Long.parseLong(noteId), null, null) < 0;
+                pending = 0;
+            } else {
+                // The full-text index holds the contents with their edits applied, so that
+                // searches and selections on the contents see the edits before they are folded.
+                // Contents that aren't partial are at most a segment long, so this reads little.
+                StringBuilder text = new StringBuilder(readWholeBody(db, Long.parseLong(noteId)));
+                pending = applyEdits(db, noteId, text);
+                indexCompressedBody(db, text.toString(), noteId);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        if (replacedFile != null && !foldLater && !db.inTransaction()) {
+            deleteBodyFileIfUnused(db, replacedFile);
+        }
+
+        long id = Long.parseLong(noteId);
+        if (foldLater) {
+            compactEdits(id);
+        }
+        if (edits.length > 0) {
+            // The note's contents changed, so its cached row is dropped and its observers are
+            // notified.
+            mRowCache.invalidate(id);
+            notifyChange(ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, id));
+        }
+        if (pending >= COMPACT_THRESHOLD_EDITS) {
+            queueCompaction(id);
+        }
+        return edits.length;
+    }
+
+    /**
+     * Queues a compaction of a note's edits on the compactor thread, unless one is already
+     * queued.
+     */
+    private void queueCompaction(final long id) {
+        synchronized (mCompactionsQueued) {
+            if (!mCompactionsQueued.add(id)) {
+                return;
+            }
+        }
+        mCompactor.execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (mCompactionsQueued) {
+                    mCompactionsQueued.remove(id);
+                }
+                try {
+                    compactEdits(id);
+                } catch (RuntimeException e) {
+                    // The edits are still applied on read, and folded by the next compaction.
+                    Log.w(TAG, "Failed to compact the edits of note " + id, e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Folds the edits of a note into its contents. Writing the contents deletes the edits and
+     * updates the full-text index, through the triggers or, if the contents are compressed,
+     * directly. Contents long enough to go to a file are written to it before the transaction
+     * that stores them, from a read of the note outside of any transaction; if another write
+     * changed the note in between, the file is dropped and the fold starts over. The note reads
+     * the same before and after, so observers aren't notified, and a row cached with the edits
+     * applied stays valid. Set to package visibility for testing purposes.
+     *
+     * @param id The _ID of the note.
+     * @return The number of edits folded.
+     */
+    int compactEdits(long id) {
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        String noteId = Long.toString(id);
+
+        // A note without edits, which is the usual case, costs one read and no transaction.
+        if (!hasEdits(db, noteId)) {
+            return 0;
+        }
+
+        String expected = null;
+        String file = null;
+        while (true) {
+            int count;
+            String replacedFile;
+            db.beginTransaction();
+            try {
+                replacedFile = queryBodyFile(db, noteId);
+                count = foldEdits(db, id, expected, file);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+
+            // A file that the fold didn't store, or that it replaced, is deleted once the fold
+            // is committed. Inside a caller's transaction, which may still roll back, it is left
+            // to the purge.
+            if (!db.inTransaction()) {
+                if (file != null) {
+                    deleteBodyFileIfUnused(db, file);
+                }
+                if (replacedFile != null && count > 0) {
+                    deleteBodyFileIfUnused(db, replacedFile);
+                }
+            }
+            if (count >= 0) {
+                return count;
+            }
+
+            // The contents go to a file, which is written before the next transaction.
+            expected = readEditedBody(db, id);
+            file = writeBodyFile(expected);
+        }
+    }
+
+    /**
+     * Folds the edits of a note into its contents in the caller's transaction, if the contents
+     * with the edits applied are stored in the database, or are the contents that the caller
+     * already wrote to a file.
+     *
+     * @param expected The contents with the edits applied that the caller wrote to a file, or
+     * null.
+     * @param file The file that the caller wrote them to, or null.
+     * @return The number of edits folded, or -1 if nothing was written because the contents go
+     * to a file that the caller hasn't written.
+     */
+    private int foldEdits(SQLiteDatabase db, long id, String expected, String file) {
+        // The contents are read whole, since the edits may apply anywhere in them. The contents
+        // of a note without edits aren't read at all.
+        String noteId = Long.toString(id);
+        if (!hasEdits(db, noteId)) {
+            return 0;
+        }
+        StringBuilder body = new StringBuilder(readWholeBody(db, id));
+        int count = applyEdits(db, noteId, body);
+
+        String text = body.toString();
+        if (!text.equals(expected)) {
+            if (isFileBody(text)) {
+                return -1;
+            }
+            file = null;
+        }
+
+        Object stored = encodeBody(text);
+        SQLiteStatement statement = db.compileStatement(
+                "INSERT OR REPLACE INTO " + BODIES_TABLE_NAME + " (" +
+                        BODIES_COLUMN_NOTE_ID + ", " + NotePad.Notes.COLUMN_NAME_NOTE +
+                        ", " + BODIES_COLUMN_NOTE_LENGTH + ", " +
+                        BODIES_COLUMN_NOTE_FILE + ") VALUES (?, ?, ?, ?)");
+        try {
+            statement.bindLong(1, id);
+            DatabaseUtils.bindObjectToProgram(statement, 2, stored);
+            DatabaseUtils.bindObjectToProgram(statement, 3,
+                    NoteBodyCodec.getSegmentedLength(text));
+            DatabaseUtils.bindObjectToProgram(statement, 4, file);
+            statement.executeInsert();
+        } finally {
+            statement.close();
+        }
+        if (stored != text) {
+            if (file == null) {
+                writeSegments(db, text, NotePad.Notes._ID + " = " + id);
+            }
+            indexCompressedBody(db, text, noteId);
+        }
+        return count;
+    }
+
+    /**
+     * Writes the contents of a note to a writer, with its pending edits applied. The contents
+     * of a note without edits are streamed as they are stored; those of a note with edits are
+     * read whole and the edits applied in memory. Nothing is written to the database.
+     *
+     * @throws IOException if the writer fails, or the file of the contents can't be read.
+     */
+    private void writeEditedNoteBody(SQLiteDatabase db, long id, Writer writer)
+            throws IOException {
+        String edited = readEditedBody(db, id);
+        if (edited == null) {
+            writeNoteBody(db, id, writer);
+        } else {
+            writer.write(edited);
+        }
+    }
+
+    /**
+     * Returns whether a note has pending edits.
+     */
+    private static boolean hasEdits(SQLiteDatabase db, String noteId) {
+        return DatabaseUtils.longForQuery(db, "SELECT EXISTS (SELECT 1 FROM " +
+                EDITS_TABLE_NAME + " WHERE " + EDITS_COLUMN_NOTE_ID + " = ?)",
+                new String[] { noteId }) != 0;
+    }
+
+    /**
+     * Reads the contents of a note whole, with its pending edits applied.
+     *
+     * @return The contents, or null if the note has no pending edits.
+     * @throws SQLException if the file of the contents can't be read.
+     */
+    private String readEditedBody(SQLiteDatabase db, long id) {
+        String noteId = Long.toString(id);
+        if (!hasEdits(db, noteId)) {
+            return null;
+        }
+        StringBuilder body = new StringBuilder(readWholeBody(db, id));
+        applyEdits(db, noteId, body);
+        return body.toString();
+    }
+
+    /**
+     * Reads the contents of a note whole, from their segments or their file if they have any,
+     * without the note's pending edits.
+     *
+     * @throws SQLException if the file of the contents can't be read.
+     */
+    private String readWholeBody(SQLiteDatabase db, long id) {
+        StringWriter writer = new StringWriter();
+        try {
+            writeNoteBody(db, id, writer);
+        } catch (IOException e) {
+            // A StringWriter doesn't throw, so the contents' file failed.
+            throw new SQLException("Unable to read the contents of note " + id, e);
+        }
+        return writer.toString();
     }
 
     /**
-     * Implementation of {@link android.content.ContentProvider.PipeDataWriter}
-     * to perform the actual work of converting the data in one of cursors to a
-     * stream of data for the client to read.
+     * Applies the pending edits of a note to its contents, in order.
+     *
+     * @param body The contents, without the edits. The edits are applied to it.
+     * @return The number of edits applied.
      */
-    @Override
-    public void writeDataToPipe(ParcelFileDescriptor output, Uri uri, String mimeType,
-                                Bundle opts, Cursor c) {
-        // We currently only support conversion-to-text from a single note entry,
-        // so no need for cursor data type checking here.
-        FileOutputStream fout = new FileOutputStream(output.getFileDescriptor());
-        PrintWriter pw = null;
+    private static int applyEdits(SQLiteDatabase db, String noteId, StringBuilder body) {
+        int count = 0;
+        Cursor c = db.rawQuery("SELECT " + NotePad.Notes.COLUMN_NAME_EDIT_POSITION + ", " +
+                NotePad.Notes.COLUMN_NAME_EDIT_DELETE_LENGTH + ", " +
+                NotePad.Notes.COLUMN_NAME_EDIT_TEXT + " FROM " + EDITS_TABLE_NAME +
+                " WHERE " + EDITS_COLUMN_NOTE_ID + " = ? ORDER BY " +
+                EDITS_COLUMN_SEQUENCE, new String[] { noteId });
         try {
-            pw = new PrintWriter(new OutputStreamWriter(fout, "UTF-8"));
-            pw.println(c.getString(READ_NOTE_TITLE_INDEX));
-            pw.println("");
-            pw.println(c.getString(READ_NOTE_NOTE_INDEX));
-        } catch (UnsupportedEncodingException e) {
-            Log.w(TAG, "Ooops", e);
+            while (c.moveToNext()) {
+                EditJournal.apply(body, c.getInt(0), c.getInt(1), c.getString(2));
+                count++;
+            }
         } finally {
             c.close();
-            if (pw != null) {
-                pw.flush();
-            }
-            try {
-                fout.close();
-            } catch (IOException e) {
+        }
+        return count;
+    }
+
+    /**
+     * Returns the _IDs of the notes that have pending edits. There are usually none, and never
+     * many, since the edits of a note are folded once there are enough of them.
+     */
+    private static Set<Long> queryEditedNoteIds(SQLiteDatabase db) {
+        Set<Long> ids = new HashSet<Long>();
+        Cursor c = db.rawQuery("SELECT DISTINCT " + EDITS_COLUMN_NOTE_ID + " FROM " +
+                EDITS_TABLE_NAME, null);
+        try {
+            while (c.moveToNext()) {
+                ids.add(c.getLong(0));
             }
+        } finally {
+            c.close();
+        }
+        return ids;
+    }
+
+    /**
+     * Folds the edits of every note that has any into its contents. Called after each purge of
+     * the trash, on the purger thread. Queries and exports never fold edits: they apply them
+     * as they read (see {@link EditedBodyCursor}). When no note has edits, which is the usual
+     * case, this costs one lookup.
+     */
+    private void compactAllEdits() {
+        for (long id : queryEditedNoteIds(mOpenHelper.getWritableDatabase())) {
+            compactEdits(id);
         }
     }
-//END_INCLUDE(stream)
 
     /**
      * This is called when a client calls
-     * {@link android.content.ContentResolver#insert(Uri, ContentValues)}.
-     * Inserts a new row into the database. This method sets up default values for any
-     * columns that are not included in the incoming map.
-     * If rows were inserted, then listeners are notified of the change.
-     * @return The row ID of the inserted row.
-     * @throws SQLException if the insertion fails.
+     * {@link android.content.ContentResolver#bulkInsert(Uri, ContentValues[])}.
+     * Inserts many notes at once. Each note gets the same defaults as in
+     * {@link #insert(Uri, ContentValues)}, but all of them are inserted in one transaction with
+     * compiled statements, and observers are notified once at the end rather than once per note.
+     * If any insert fails, none of the notes are inserted.
+     *
+     * @return The number of notes inserted.
+     * @throws IllegalArgumentException if the incoming URI pattern is invalid.
+     * @throws SQLException if an insert fails.
      */
     @Override
-    public Uri insert(Uri uri, ContentValues initialValues) {
+    public int bulkInsert(Uri uri, ContentValues[] values) {
 
-        // Validates the incoming URI. Only the full provider URI is allowed for inserts.
-        if (sUriMatcher.match(uri) != NOTES) {
-            throw new IllegalArgumentException("Unknown URI " + uri);
+        // Times the inserts and counts them.
+        long start = ProviderMetrics.start();
+        int match = sUriMatcher.match(uri);
+        int count;
+        try {
+            count = bulkInsertInternal(uri, values);
+        } catch (RuntimeException e) {
+            mMetrics.recordError(ProviderMetrics.OP_BULK_INSERT, match, start);
+            throw e;
         }
+        mMetrics.record(ProviderMetrics.OP_BULK_INSERT, match, count, start);
+        return count;
+    }
 
-        // A map to hold the new record's values.
-        ContentValues values;
-
-        // If the incoming values map is not null, uses it for the new values.
-        if (initialValues != null) {
-            values = new ContentValues(initialValues);
+    /**
+     * Does the work of {@link #bulkInsert(Uri, ContentValues[])}, without recording it in the
+     * metrics.
+     */
+    private int bulkInsertInternal(Uri uri, ContentValues[] values) {
 
-        } else {
-            // Otherwise, create a new value map
-            values = new ContentValues();
+        // Categories are few, so they are inserted one at a time. Only the full notes and note
+        // edits URIs are allowed otherwise.
+        int match = sUriMatcher.match(uri);
+        if (match == CATEGORIES) {
+            return super.bulkInsert(uri, values);
         }
-
-        // Gets the current system time in milliseconds
-        Long now = Long.valueOf(System.currentTimeMillis());
-
-        // If the values map doesn't contain the creation date, sets the value to the current time.
-        if (values.containsKey(NotePad.Notes.COLUMN_NAME_CREATE_DATE) == false) {
-            values.put(NotePad.Notes.COLUMN_NAME_CREATE_DATE, now);
+        if (match == NOTE_EDITS) {
+            return insertEdits(uri, values);
+        }
+        if (match != NOTES) {
+            throw new IllegalArgumentException("Unknown URI " + uri);
         }
 
-        // If the values map doesn't contain the modification date, sets the value to the current
-        // time.
-        if (values.containsKey(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE) == false) {
-            values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, now);
+        ContentValues[] notes = new ContentValues[values.length];
+        for (int i = 0; i < values.length; i++) {
+            notes[i] = buildNewNoteValues(values[i]);
         }
+        String[] files = writeBodyFiles(notes);
 
-        // If the values map doesn't contain a title, sets the value to the default title.
-        if (values.containsKey(NotePad.Notes.COLUMN_NAME_TITLE) == false) {
-            Resources r = Resources.getSystem();
-            values.put(NotePad.Notes.COLUMN_NAME_TITLE, r.getString(android.R.string.untitled));
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        int count = 0;
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < notes.length; i++) {
+                if (insertNote(db, notes[i], files[i]) <= 0) {
+                    throw new SQLException("Failed to insert row into " + uri);
+                }
+                count++;
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
         }
 
-        // If the values map doesn't contain note text, sets the value to an empty string.
-        if (values.containsKey(NotePad.Notes.COLUMN_NAME_NOTE) == false) {
-            values.put(NotePad.Notes.COLUMN_NAME_NOTE, "");
+        if (count > 0) {
+            // The IDs may have belonged to deleted notes, so any rows cached for them are
+            // dropped.
+            mRowCache.invalidateAll();
+
+            // Notifies observers once for all of the new notes.
+            notifyChange(uri);
         }
+        return count;
+    }
+
+    /**
+     * This is called when a client calls
+     * {@link android.content.ContentResolver#applyBatch(String, ArrayList)}.
+     * Applies the operations in one transaction, so that either all of them are applied or none
+     * are. Observers aren't notified while the batch runs. Each URI that the operations changed
+     * is notified once, after the batch is committed.
+     *
+     * A very large batch can hold the database for a long time. The caller may mark the
+     * operations after which other threads are allowed in with
+     * {@link ContentProviderOperation.Builder#withYieldAllowed(boolean)}. If another thread is
+     * waiting when such an operation is reached, the operations so far are committed, and their
+     * observers notified, before the batch goes on in a new transaction. The batch is then only
+     * atomic between yield points.
+     *
+     * @return The results of the operations.
+     * @throws OperationApplicationException if an operation fails. No operation since the last
+     * yield point is applied.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
 
-        // If the values map doesn't contain a category, sets the value to an empty string.
-        if (values.containsKey(NotePad.Notes.COLUMN_NAME_CATEGORY) == false) {
-            values.put(NotePad.Notes.COLUMN_NAME_CATEGORY, "");
+        // Times the batch and counts its operations, under the URI of its first operation. The
+        // operations are also recorded one by one under their own operation and URI.
+        long start = ProviderMetrics.start();
+        int match = operations.isEmpty()
+                ? UriMatcher.NO_MATCH : sUriMatcher.match(operations.get(0).getUri());
+        ContentProviderResult[] results;
+        try {
+            results = applyBatchInternal(operations);
+        } catch (OperationApplicationException e) {
+            mMetrics.recordError(ProviderMetrics.OP_APPLY_BATCH, match, start);
+            throw e;
+        } catch (RuntimeException e) {
+            mMetrics.recordError(ProviderMetrics.OP_APPLY_BATCH, match, start);
+            throw e;
         }
+        mMetrics.record(ProviderMetrics.OP_APPLY_BATCH, match, results.length, start);
+        return results;
+    }
 
-        // If the values map doesn't contain a color, sets the value to -1 (no color).
-        if (values.containsKey(NotePad.Notes.COLUMN_NAME_COLOR) == false) {
-            values.put(NotePad.Notes.COLUMN_NAME_COLOR, -1);
+    /**
+     * Does the work of {@link #applyBatch(ArrayList)}, without recording it in the metrics.
+     */
+    private ContentProviderResult[] applyBatchInternal(
+            ArrayList<ContentProviderOperation> operations) throws OperationApplicationException {
+
+        // A batch applied by an operation of another batch joins the outer batch.
+        if (mBatchNotifications.get() != null) {
+            return super.applyBatch(operations);
         }
 
-        // Opens the database object in "write" mode.
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        LinkedHashSet<Uri> notifications = new LinkedHashSet<Uri>();
+        mBatchNotifications.set(notifications);
+        boolean successful = false;
+        db.beginTransaction();
+        try {
+            ContentProviderResult[] results = new ContentProviderResult[operations.size()];
+            for (int i = 0; i < results.length; i++) {
+                ContentProviderOperation operation = operations.get(i);
 
-        // Performs the insert and returns the ID of the new note.
-        long rowId = db.insert(
-                NotePad.Notes.TABLE_NAME,        // The table to insert into.
-                NotePad.Notes.COLUMN_NAME_NOTE,  // A hack, SQLite sets this column value to null
-                // if values is empty.
-                values                           // A map of column names, and the values to insert
-                // into the columns.
-        );
+                // Lets waiting threads in, if the caller allows it here. The operations so far
+                // are committed, so their observers can be notified, and rows that other
+                // connections cached before the commit are dropped.
+                if (i > 0 && operation.isYieldAllowed() && db.yieldIfContendedSafely()) {
+                    mRowCache.invalidateAll();
+                    sendNotifications(notifications);
+                }
+                results[i] = operation.apply(this, results, i);
+            }
+            db.setTransactionSuccessful();
+            successful = true;
+            return results;
+        } finally {
+            db.endTransaction();
+            mBatchNotifications.remove();
 
-        // If the insert succeeded, the row ID exists.
-        if (rowId > 0) {
-            // Creates a URI with the note ID pattern and the new row ID appended to it.
-            Uri noteUri = ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, rowId);
+            // The operations invalidated the rows they changed before the commit. Until then,
+            // queries on other connections still read the old rows and may have cached them
+            // again. If the batch failed, reads during the batch may have cached rows that were
+            // rolled back.
+            mRowCache.invalidateAll();
+            if (successful) {
+                sendNotifications(notifications);
+            }
+        }
+    }
 
-            // Notifies observers registered against this provider that the data changed.
-            getContext().getContentResolver().notifyChange(noteUri, null);
-            return noteUri;
+    /**
+     * Notifies the observers of a URI that it changed. The notification goes through the
+     * coalescer, so a URI that changes several times within its window is notified once. While
+     * the current thread applies a batch, the notification is held until the batch is committed.
+     */
+    private void notifyChange(Uri uri) {
+        LinkedHashSet<Uri> notifications = mBatchNotifications.get();
+        if (notifications != null) {
+            notifications.add(uri);
+        } else {
+            mNotifier.notifyChange(uri);
         }
+    }
 
-        // If the insert didn't succeed, then the rowID is <= 0. Throws an exception.
-        throw new SQLException("Failed to insert row into " + uri);
+    /**
+     * Sends the notifications held by a batch to the coalescer, and forgets them.
+     */
+    private void sendNotifications(LinkedHashSet<Uri> notifications) {
+        for (Uri uri : notifications) {
+            mNotifier.notifyChange(uri);
+        }
+        notifications.clear();
+    }
+
+    /**
+     * Sends the pending change notifications now, rather than at the end of the coalescing
+     * window. Tests call this before they check what observers saw.
+     */
+    void flushNotifications() {
+        mNotifier.flush();
+    }
+
+    /**
+     * Inserts a category. If a category with the same name already exists, returns its URI
+     * instead, since names are unique.
+     *
+     * @return The URI of the category.
+     * @throws IllegalArgumentException if the values have no name.
+     */
+    private Uri insertCategory(ContentValues values) {
+        String name = values == null
+                ? null : values.getAsString(NotePad.Categories.COLUMN_NAME_NAME);
+        if (TextUtils.isEmpty(name)) {
+            throw new IllegalArgumentException("Empty category name");
+        }
+
+        long id = getOrCreateCategory(mOpenHelper.getWritableDatabase(), name);
+        Uri categoryUri = ContentUris.withAppendedId(NotePad.Categories.CONTENT_ID_URI_BASE, id);
+
+        // Notifies observers registered against this provider that the data changed.
+        notifyChange(categoryUri);
+        return categoryUri;
     }
 
     /**
@@ -596,6 +4867,26 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
     @Override
     public int delete(Uri uri, String where, String[] whereArgs) {
 
+        // Times the delete and counts the deleted rows.
+        long start = ProviderMetrics.start();
+        int match = sUriMatcher.match(uri);
+        int count;
+        try {
+            count = deleteInternal(uri, where, whereArgs);
+        } catch (RuntimeException e) {
+            mMetrics.recordError(ProviderMetrics.OP_DELETE, match, start);
+            throw e;
+        }
+        mMetrics.record(ProviderMetrics.OP_DELETE, match, count, start);
+        return count;
+    }
+
+    /**
+     * Does the work of {@link #delete(Uri, String, String[])}, without recording it in the
+     * metrics.
+     */
+    private int deleteInternal(Uri uri, String where, String[] whereArgs) {
+
         // Opens the database object in "write" mode.
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         String finalWhere;
@@ -603,22 +4894,30 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         int count;
 
         // Does the delete based on the incoming URI pattern.
-        switch (sUriMatcher.match(uri)) {
+        int match = sUriMatcher.match(uri);
 
-            // If the incoming pattern matches the general pattern for notes, does a delete
-            // based on the incoming "where" columns and arguments.
+        switch (match) {
+
+            // If the incoming pattern matches the general pattern for notes, moves the notes
+            // selected by the incoming "where" columns and arguments to the trash.
             case NOTES:
-                count = db.delete(
-                        NotePad.Notes.TABLE_NAME,  // The database table name
-                        where,                     // The incoming where clause column names
+                count = trashNotes(
+                        db,
+                        liveNotesWhere(where),     // The incoming where clause column names
                         whereArgs                  // The incoming where clause values
                 );
                 break;
 
-            // If the incoming URI matches a single note ID, does the delete based on the
-            // incoming data, but modifies the where clause to restrict it to the
+            // If the incoming URI matches a single note ID, moves the note to the trash based on
+            // the incoming data, but modifies the where clause to restrict it to the
             // particular note ID.
             case NOTE_ID:
+                // Without other criteria, moves the note with a compiled statement.
+                if (where == null && mSingleNoteFastPathEnabled) {
+                    count = deleteNoteById(uri);
+                    break;
+                }
+
                 /*
                  * Starts a final WHERE clause by restricting it to the
                  * desired note ID.
@@ -636,24 +4935,72 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
                     finalWhere = finalWhere + " AND " + where;
                 }
 
-                // Performs the delete.
-                count = db.delete(
-                        NotePad.Notes.TABLE_NAME,  // The database table name.
-                        finalWhere,                // The final WHERE clause
-                        whereArgs                  // The incoming where clause values.
+                // Moves the note to the trash.
+                count = trashNotes(
+                        db,
+                        liveNotesWhere(finalWhere), // The final WHERE clause
+                        whereArgs                   // The incoming where clause values.
                 );
                 break;
 
+            // If the incoming pattern matches the trash, empties the notes selected by the
+            // incoming "where" columns and arguments from it.
+            case NOTES_TRASH:
+                count = emptyTrash(db, where, whereArgs);
+                break;
+
+            // If the incoming pattern matches the general pattern for categories, deletes the
+            // categories. Their notes keep the category's _ID, which no longer has a name, so
+            // deleting a category only deletes its own row.
+            case CATEGORIES:
+                count = db.delete(NotePad.Categories.TABLE_NAME, where, whereArgs);
+                break;
+
+            // If the incoming URI matches a single category ID, deletes that category.
+            case CATEGORY_ID:
+                count = db.delete(NotePad.Categories.TABLE_NAME,
+                        buildCategoryIdWhere(uri, where), whereArgs);
+                break;
+
+            // If the incoming URI matches the imports, forgets their checkpoints. The notes
+            // that they imported stay.
+            case IMPORTS:
+                count = db.delete(NotePad.Imports.TABLE_NAME, where, whereArgs);
+                break;
+
+            // If the incoming URI matches a single import, forgets its checkpoint, so that
+            // writing a stream to it imports the stream from the start.
+            case IMPORT_NAME:
+                finalWhere = NotePad.Imports.COLUMN_NAME_NAME + " = " +
+                        DatabaseUtils.sqlEscapeString(parseImportName(uri));
+                if (where != null) {
+                    finalWhere = finalWhere + " AND " + where;
+                }
+                count = db.delete(NotePad.Imports.TABLE_NAME, finalWhere, whereArgs);
+                break;
+
             // If the incoming pattern is invalid, throws an exception.
             default:
                 throw new IllegalArgumentException("Unknown URI " + uri);
         }
 
-        /*Gets a handle to the content resolver object for the current context, and notifies it
-         * that the incoming URI changed. The object passes this along to the resolver framework,
-         * and observers that have registered themselves for the provider are notified.
-         */
-        getContext().getContentResolver().notifyChange(uri, null);
+        // If nothing changed, there is nothing to invalidate and nobody to notify.
+        if (count > 0) {
+            // Drops the cached rows of the notes that may have changed.
+            invalidateRowCache(uri);
+
+            /*Gets a handle to the content resolver object for the current context, and notifies
+             * it that the incoming URI changed. The object passes this along to the resolver
+             * framework, and observers that have registered themselves for the provider are
+             * notified.
+             */
+            notifyChange(uri);
+
+            // The notes show the names of their categories, so they change with them.
+            if (match == CATEGORIES || match == CATEGORY_ID) {
+                notifyChange(NotePad.Notes.CONTENT_URI);
+            }
+        }
 
         // Returns the number of rows deleted.
         return count;
@@ -682,23 +5029,47 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
     @Override
     public int update(Uri uri, ContentValues values, String where, String[] whereArgs) {
 
+        // Times the update and counts the updated rows.
+        long start = ProviderMetrics.start();
+        int match = sUriMatcher.match(uri);
+        int count;
+        try {
+            count = updateInternal(uri, values, where, whereArgs);
+        } catch (RuntimeException e) {
+            mMetrics.recordError(ProviderMetrics.OP_UPDATE, match, start);
+            throw e;
+        }
+        mMetrics.record(ProviderMetrics.OP_UPDATE, match, count, start);
+        return count;
+    }
+
+    /**
+     * Does the work of {@link #update(Uri, ContentValues, String, String[])}, without recording
+     * it in the metrics.
+     */
+    private int updateInternal(Uri uri, ContentValues values, String where, String[] whereArgs) {
+
         // Opens the database object in "write" mode.
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         int count;
         String finalWhere;
 
         // Does the update based on the incoming URI pattern
-        switch (sUriMatcher.match(uri)) {
+        int match = sUriMatcher.match(uri);
+
+        switch (match) {
 
             // If the incoming URI matches the general notes pattern, does the update based on
             // the incoming data.
             case NOTES:
+                // Replaces the category name with the _ID of the category.
+                values = resolveCategory(db, values);
 
                 // Does the update and returns the number of rows updated.
-                count = db.update(
-                        NotePad.Notes.TABLE_NAME, // The database table name.
+                count = updateNotes(
+                        db,
                         values,                   // A map of column names and new values to use.
-                        where,                    // The where clause column names.
+                        liveNotesWhere(where),    // The where clause column names.
                         whereArgs                 // The where clause column values to select on.
                 );
                 break;
@@ -706,8 +5077,14 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
             // If the incoming URI matches a single note ID, does the update based on the incoming
             // data, but modifies the where clause to restrict it to the particular note ID.
             case NOTE_ID:
-                // From the incoming URI, get the note ID
-                String noteId = uri.getPathSegments().get(NotePad.Notes.NOTE_ID_PATH_POSITION);
+                // Replaces the category name with the _ID of the category.
+                values = resolveCategory(db, values);
+
+                // Without other criteria, updates the note with a compiled statement.
+                if (where == null && mSingleNoteFastPathEnabled) {
+                    count = updateNoteById(uri, values);
+                    break;
+                }
 
                 /*
                  * Starts creating the final WHERE clause by restricting it to the incoming
@@ -728,25 +5105,51 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
 
 
                 // Does the update and returns the number of rows updated.
-                count = db.update(
-                        NotePad.Notes.TABLE_NAME, // The database table name.
+                count = updateNotes(
+                        db,
                         values,                   // A map of column names and new values to use.
-                        finalWhere,               // The final WHERE clause to use
+                        liveNotesWhere(finalWhere), // The final WHERE clause to use
                         // placeholders for whereArgs
                         whereArgs                 // The where clause column values to select on, or
                         // null if the values are in the where argument.
                 );
                 break;
+
+            // If the incoming URI matches the general categories pattern, updates the
+            // categories. The notes refer to their category by _ID, so renaming a category
+            // only updates its own row.
+            case CATEGORIES:
+                count = db.update(NotePad.Categories.TABLE_NAME, values, where, whereArgs);
+                break;
+
+            // If the incoming URI matches a single category ID, updates that category.
+            case CATEGORY_ID:
+                count = db.update(NotePad.Categories.TABLE_NAME, values,
+                        buildCategoryIdWhere(uri, where), whereArgs);
+                break;
+
             // If the incoming pattern is invalid, throws an exception.
             default:
                 throw new IllegalArgumentException("Unknown URI " + uri);
         }
 
-        /*Gets a handle to the content resolver object for the current context, and notifies it
-         * that the incoming URI changed. The object passes this along to the resolver framework,
-         * and observers that have registered themselves for the provider are notified.
-         */
-        getContext().getContentResolver().notifyChange(uri, null);
+        // If nothing changed, there is nothing to invalidate and nobody to notify.
+        if (count > 0) {
+            // Drops the cached rows of the notes that may have changed.
+            invalidateRowCache(uri);
+
+            /*Gets a handle to the content resolver object for the current context, and notifies
+             * it that the incoming URI changed. The object passes this along to the resolver
+             * framework, and observers that have registered themselves for the provider are
+             * notified.
+             */
+            notifyChange(uri);
+
+            // The notes show the names of their categories, so they change with them.
+            if (match == CATEGORIES || match == CATEGORY_ID) {
+                notifyChange(NotePad.Notes.CONTENT_URI);
+            }
+        }
 
         // Returns the number of rows updated.
         return count;
@@ -763,5 +5166,163 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
     DatabaseHelper getOpenHelperForTest() {
         return mOpenHelper;
     }
+
+    /**
+     * A test package can call this to read how many changes were reported and how many
+     * notifications were sent.
+     */
+    NotificationCoalescer getNotifierForTest() {
+        return mNotifier;
+    }
+
+    /**
+     * A stress test can call this to turn write-ahead logging on or off, so that it can compare
+     * the two journal modes. Must not be called while a transaction is open.
+     *
+     * @param enabled True to use write-ahead logging, which is the default.
+     */
+    void setWriteAheadLoggingEnabledForTest(boolean enabled) {
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        if (enabled) {
+            db.enableWriteAheadLogging();
+        } else {
+            db.disableWriteAheadLogging();
+        }
+    }
+
+    /**
+     * A test package can call this to wait for the imports that have been started to end.
+     *
+     * @param timeoutMillis How long to wait, in milliseconds.
+     * @return True if the imports ended in time.
+     */
+    boolean awaitImportsForTest(long timeoutMillis) {
+        Future<?> marker = mImporter.submit(new Runnable() {
+            @Override
+            public void run() {
+            }
+        });
+        try {
+            marker.get(timeoutMillis, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            return false;
+        } catch (TimeoutException e) {
+            return false;
+        }
+    }
+
+    /**
+     * A test package can call this to read the hit and miss counts of the row cache.
+     *
+     * @return the cache of note rows.
+     */
+    NoteRowCache getRowCacheForTest() {
+        return mRowCache;
+    }
+
+    /**
+     * Returns the provider's metrics, or clears them, depending on the method. See
+     * {@link NotePad.Metrics} for the methods and the format of the result.
+     *
+     * @throws SecurityException if a caller in another process tries to clear the metrics.
+     */
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        if (NotePad.Metrics.METHOD_GET.equals(method)) {
+            return mMetrics.toBundle();
+        }
+        if (NotePad.Metrics.METHOD_RESET.equals(method)) {
+
+            // Other applications may read the metrics, but only the application itself may
+            // clear them, so that a regression run can't be thrown off by another caller.
+            if (Binder.getCallingPid() != Process.myPid()) {
+                throw new SecurityException("Only the provider's own process may reset metrics");
+            }
+            mMetrics.reset();
+            return null;
+        }
+        return super.call(method, arg, extras);
+    }
+
+    /**
+     * Prints the provider's metrics and the hit rate of the row cache. Called by
+     * <code>adb shell dumpsys activity provider NotePadProvider</code>.
+     */
+    @Override
+    public void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        mMetrics.dump(writer);
+        writer.println("Row cache: " + mRowCache);
+        writer.println("Notifications: " + mNotifier.getChangeCount() + " changes, " +
+                mNotifier.getNotificationCount() + " sent");
+        synchronized (mCompactionsQueued) {
+            writer.println("Compactions queued: " + mCompactionsQueued.size());
+        }
+    }
+
+    /**
+     * A benchmark can call this to turn the single note fast path on or off, so that it can
+     * compare the fast path with the general path.
+     *
+     * @param enabled True to use the fast path for single note operations without a selection.
+     */
+    void setSingleNoteFastPathEnabledForTest(boolean enabled) {
+        mSingleNoteFastPathEnabled = enabled;
+    }
+
+    /**
+     * A benchmark can call this to turn the row cache on or off, so that the reads it times query
+     * the database on both paths. Rows already cached stay cached, but aren't used while the
+     * cache is off.
+     *
+     * @param enabled True to serve note rows from the cache, which is the default.
+     */
+    void setRowCacheEnabledForTest(boolean enabled) {
+        mRowCacheEnabled = enabled;
+    }
+
+    /**
+     * A benchmark can call this to turn the compression of large contents on or off, so that it
+     * can compare compressed contents with uncompressed ones. Contents already written stay as
+     * they are, and are read either way.
+     *
+     * @param enabled True to compress large contents when they are written, which is the default.
+     */
+    void setBodyCompressionEnabledForTest(boolean enabled) {
+        mBodyCompressionEnabled = enabled;
+    }
+
+    /**
+     * Sends the pending notifications, stops the compactor, the purger and the importer, waits
+     * briefly for the work they are running to end, and closes the database. Called by the test
+     * framework when it is done with the provider.
+     */
+    @Override
+    public void shutdown() {
+        mNotifier.flush();
+
+        // Lets a running compaction finish, and drops the queued ones. Their edits are still
+        // applied on read, and folded the next time the notes are compacted.
+        mCompactor.shutdownNow();
+
+        // Likewise lets a running purge finish. The notes left in the trash are purged the next
+        // time the provider starts.
+        mPurger.shutdownNow();
+
+        // Likewise lets the running batch of an import finish. The import resumes after it
+        // when its stream is written again.
+        mImporter.shutdownNow();
+        try {
+            mCompactor.awaitTermination(COMPACTOR_SHUTDOWN_MILLIS, TimeUnit.MILLISECONDS);
+            mPurger.awaitTermination(COMPACTOR_SHUTDOWN_MILLIS, TimeUnit.MILLISECONDS);
+            mImporter.awaitTermination(COMPACTOR_SHUTDOWN_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mOpenHelper.close();
+    }
 }
 
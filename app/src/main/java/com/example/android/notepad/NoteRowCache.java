@@ -0,0 +1,293 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.database.AbstractCursor;
+import android.database.Cursor;
+import android.util.LruCache;
+
+/**
+ * Caches the rows of recently read notes in memory, keyed by the note's _ID. Each row holds the
+ * values of every column of the note, in the order of the column names passed to the
+ * constructor, so that it can serve any projection. The cache is bounded by an estimate of the
+ * memory its rows use rather than by their number, since a note's contents can be of any size.
+ *
+ * Writes must invalidate the rows they change. A row read from the database is only cached if
+ * no invalidation happened while it was being read, so a slow read can't put back a row that a
+ * concurrent write has just changed.
+ *
+ * The hit and miss counts of {@link LruCache#hitCount()} and {@link LruCache#missCount()}
+ * report how well the cache works.
+ */
+class NoteRowCache extends LruCache<Long, Object[]> {
+
+    // The estimated overhead of a row, and of each of its values, in bytes
+    private static final int ROW_OVERHEAD = 64;
+    private static final int VALUE_OVERHEAD = 16;
+
+    // The column names of a row
+    private final String[] mColumns;
+
+    // Incremented by every invalidation
+    private long mGeneration;
+
+    /**
+     * Creates a new cache.
+     *
+     * @param columns The column names of the cached rows.
+     * @param maxBytes The estimated memory that the cached rows may use, in bytes.
+     */
+    NoteRowCache(String[] columns, int maxBytes) {
+        super(maxBytes);
+        mColumns = columns;
+    }
+
+    /**
+     * Returns the column names of the cached rows.
+     */
+    String[] getColumns() {
+        return mColumns;
+    }
+
+    /**
+     * Returns the current generation, to pass to {@link #putIfCurrent(long, Object[], long)}
+     * after the row has been read.
+     */
+    synchronized long generation() {
+        return mGeneration;
+    }
+
+    /**
+     * Caches a row, unless the cache was invalidated since the given generation.
+     *
+     * @param id The _ID of the note.
+     * @param row The values of the note's columns.
+     * @param generation The generation returned by {@link #generation()} before the row was read.
+     */
+    synchronized void putIfCurrent(long id, Object[] row, long generation) {
+        if (generation == mGeneration) {
+            put(id, row);
+        }
+    }
+
+    /**
+     * Removes the row of a note, if it is cached.
+     */
+    synchronized void invalidate(long id) {
+        mGeneration++;
+        remove(id);
+    }
+
+    /**
+     * Removes every row. Used for writes that may change any number of notes.
+     */
+    synchronized void invalidateAll() {
+        mGeneration++;
+        evictAll();
+    }
+
+    /**
+     * Reads the current row of the cursor.
+     */
+    Object[] readRow(Cursor c) {
+        Object[] row = new Object[mColumns.length];
+        for (int i = 0; i < row.length; i++) {
+            switch (c.getType(i)) {
+                case Cursor.FIELD_TYPE_INTEGER:
+                    row[i] = c.getLong(i);
+                    break;
+                case Cursor.FIELD_TYPE_FLOAT:
+                    row[i] = c.getDouble(i);
+                    break;
+                case Cursor.FIELD_TYPE_STRING:
+                    row[i] = c.getString(i);
+                    break;
+                case Cursor.FIELD_TYPE_BLOB:
+                    row[i] = c.getBlob(i);
+                    break;
+                default:
+                    row[i] = null;
+                    break;
+            }
+        }
+        return row;
+    }
+
+    /**
+     * Estimates the memory used by a row. Strings count two bytes per character.
+     */
+    @Override
+    protected int sizeOf(Long id, Object[] row) {
+        int size = ROW_OVERHEAD;
+        for (Object value : row) {
+            size += VALUE_OVERHEAD;
+            if (value instanceof String) {
+                size += ((String) value).length() * 2;
+            } else if (value instanceof byte[]) {
+                size += ((byte[]) value).length;
+            } else if (value != null) {
+                size += 8;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Loads the row of a note, from the cache or from the database.
+     */
+    interface RowLoader {
+        /**
+         * Returns the row of the note, or null if the note doesn't exist.
+         */
+        Object[] loadRow(long id);
+    }
+
+    /**
+     * A cursor over the cached row of a single note, returning the columns of a projection.
+     * Requerying it loads the row again, so activities that requery their cursor see the note's
+     * current values.
+     */
+    static class RowCursor extends AbstractCursor {
+
+        private final RowLoader mLoader;
+        private final long mId;
+        private final String[] mProjection;
+
+        // The positions of the projection's columns in a row
+        private final int[] mColumnIndexes;
+
+        // The row of the note, or null if the note doesn't exist
+        private Object[] mRow;
+
+        /**
+         * Creates a cursor over a row.
+         *
+         * @param loader Loads the row when the cursor is requeried.
+         * @param id The _ID of the note.
+         * @param row The row of the note, or null if it doesn't exist.
+         * @param projection The columns to return.
+         * @param columnIndexes The position in the row of each column of the projection.
+         */
+        RowCursor(RowLoader loader, long id, Object[] row, String[] projection,
+                int[] columnIndexes) {
+            mLoader = loader;
+            mId = id;
+            mRow = row;
+            mProjection = projection;
+            mColumnIndexes = columnIndexes;
+        }
+
+        @Override
+        public int getCount() {
+            return mRow == null ? 0 : 1;
+        }
+
+        @Override
+        public String[] getColumnNames() {
+            return mProjection;
+        }
+
+        @Override
+        public boolean requery() {
+            mRow = mLoader.loadRow(mId);
+            return super.requery();
+        }
+
+        // Returns the value of a column of the current row
+        private Object get(int column) {
+            if (column < 0 || column >= mColumnIndexes.length) {
+                throw new IllegalArgumentException("Invalid column " + column);
+            }
+            if (mRow == null || getPosition() != 0) {
+                throw new IllegalStateException("Cursor is not on a row");
+            }
+            return mRow[mColumnIndexes[column]];
+        }
+
+        @Override
+        public int getType(int column) {
+            Object value = get(column);
+            if (value == null) {
+                return Cursor.FIELD_TYPE_NULL;
+            } else if (value instanceof String) {
+                return Cursor.FIELD_TYPE_STRING;
+            } else if (value instanceof Double) {
+                return Cursor.FIELD_TYPE_FLOAT;
+            } else if (value instanceof byte[]) {
+                return Cursor.FIELD_TYPE_BLOB;
+            }
+            return Cursor.FIELD_TYPE_INTEGER;
+        }
+
+        @Override
+        public String getString(int column) {
+            Object value = get(column);
+            return value == null ? null : value.toString();
+        }
+
+        @Override
+        public byte[] getBlob(int column) {
+            Object value = get(column);
+            if (value == null || value instanceof byte[]) {
+                return (byte[]) value;
+            }
+            throw new IllegalStateException("Column " + column + " is not a blob");
+        }
+
+        @Override
+        public short getShort(int column) {
+            return (short) getLong(column);
+        }
+
+        @Override
+        public int getInt(int column) {
+            return (int) getLong(column);
+        }
+
+        @Override
+        public long getLong(int column) {
+            Object value = get(column);
+            if (value == null) {
+                return 0;
+            } else if (value instanceof Number) {
+                return ((Number) value).longValue();
+            }
+            return Long.parseLong(value.toString());
+        }
+
+        @Override
+        public float getFloat(int column) {
+            return (float) getDouble(column);
+        }
+
+        @Override
+        public double getDouble(int column) {
+            Object value = get(column);
+            if (value == null) {
+                return 0;
+            } else if (value instanceof Number) {
+                return ((Number) value).doubleValue();
+            }
+            return Double.parseDouble(value.toString());
+        }
+
+        @Override
+        public boolean isNull(int column) {
+            return get(column) == null;
+        }
+    }
+}
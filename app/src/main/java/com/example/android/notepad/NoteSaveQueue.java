@@ -0,0 +1,381 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.ComponentCallbacks2;
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.content.res.Configuration;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+
+/**
+ * Writes the editors' saves to the provider on a background thread, so that leaving an editor
+ * doesn't wait for the database. There is one queue per process, shared by the editors, and one
+ * thread that writes everything, so the writes to a note are applied in the order they were
+ * saved.
+ *
+ * A save waits in the queue for up to {@link #WRITE_DELAY_MILLIS}. Saves to a note that is
+ * already waiting are merged into its pending write, so only the latest state of the note is
+ * written. The editors flush the queue when they stop, and the queue flushes itself when the
+ * system is low on memory, since the process may be killed after either.
+ *
+ * An editor that reads a note lays the values of the note's queued and unfinished writes,
+ * from {@link #getPendingValues(Uri)}, over what it reads from the provider, so that it doesn't
+ * show what the note held before the last save, and doesn't wait for the writer thread either.
+ */
+final class NoteSaveQueue {
+
+    private static final String TAG = "NoteSaveQueue";
+
+    /**
+     * How long a save waits for more saves to merge with, in milliseconds. Long enough to cover
+     * going from one editor to another, short enough that the notes list soon shows the change.
+     */
+    static final long WRITE_DELAY_MILLIS = 1000;
+
+    private static NoteSaveQueue sInstance;
+
+    /**
+     * A write waiting in the queue for one note: the columns to update, the edits to append to
+     * the contents after them, or a delete. The contents that the write leaves are kept for
+     * readers, if they are known.
+     */
+    private static final class PendingWrite {
+        final ContentValues values = new ContentValues();
+        final ArrayList<ContentValues> edits = new ArrayList<ContentValues>();
+        String contents;
+        boolean delete;
+    }
+
+    private final ContentResolver mResolver;
+    private final Handler mHandler;
+
+    // The writes waiting in the queue, in the order their notes were first saved. Guarded by
+    // itself, which is also notified when writes complete.
+    private final LinkedHashMap<Uri, PendingWrite> mPending = new LinkedHashMap<Uri, PendingWrite>();
+
+    // The writes that the writer thread took from the queue and is writing. Guarded by mPending.
+    private final LinkedHashMap<Uri, PendingWrite> mWriting =
+            new LinkedHashMap<Uri, PendingWrite>();
+
+    // The number of saves accepted, and the number written or merged into a written one
+    private long mSaved;
+    private long mWritten;
+
+    // Writes everything in the queue
+    private final Runnable mWrite = new Runnable() {
+        @Override
+        public void run() {
+            writePending();
+        }
+    };
+
+    /**
+     * Returns the queue of the process, creating it the first time.
+     */
+    static synchronized NoteSaveQueue getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new NoteSaveQueue(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private NoteSaveQueue(Context context) {
+        mResolver = context.getContentResolver();
+
+        HandlerThread thread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        mHandler = new Handler(thread.getLooper());
+
+        // The process may be killed when memory runs low, so the queue is written out first.
+        context.registerComponentCallbacks(new ComponentCallbacks2() {
+            @Override
+            public void onTrimMemory(int level) {
+                flush();
+            }
+
+            @Override
+            public void onLowMemory() {
+                flush();
+            }
+
+            @Override
+            public void onConfigurationChanged(Configuration newConfig) {
+                // Writes don't depend on the configuration.
+            }
+        });
+    }
+
+    /**
+     * Queues an update of a note. Columns that a pending write of the note also updates take
+     * the new values. New contents replace any edits still pending.
+     *
+     * @param uri The note ID URI of the note.
+     * @param values The columns to update.
+     */
+    void update(Uri uri, ContentValues values) {
+        update(uri, values, null, null);
+    }
+
+    /**
+     * Queues an update of a note's columns, and edits of its contents that apply after it (see
+     * {@link NotePad.Notes#buildEditsUri(Uri)}).
+     *
+     * @param uri The note ID URI of the note.
+     * @param values The columns to update.
+     * @param edits The edits to append, in order, or null for none.
+     * @param contents The contents of the note once the edits are applied, which readers are
+     *        given until the edits are written, or null if they aren't known. Ignored if there
+     *        are no edits.
+     */
+    void update(Uri uri, ContentValues values, ContentValues[] edits, String contents) {
+        synchronized (mPending) {
+            PendingWrite write = getPendingWrite(uri);
+            if (write.delete) {
+                // The note is about to be deleted, so there is nothing to update.
+                return;
+            }
+            if (values.containsKey(NotePad.Notes.COLUMN_NAME_NOTE)) {
+                write.edits.clear();
+                write.contents = values.getAsString(NotePad.Notes.COLUMN_NAME_NOTE);
+            }
+            write.values.putAll(values);
+            if (edits != null && edits.length > 0) {
+                for (ContentValues edit : edits) {
+                    write.edits.add(edit);
+                }
+                write.contents = contents;
+            }
+        }
+    }
+
+    /**
+     * Queues the delete of a note. Any update of the note still pending is dropped.
+     *
+     * @param uri The note ID URI of the note.
+     */
+    void delete(Uri uri) {
+        synchronized (mPending) {
+            PendingWrite write = getPendingWrite(uri);
+            write.values.clear();
+            write.edits.clear();
+            write.contents = null;
+            write.delete = true;
+        }
+    }
+
+    /**
+     * Returns the pending write of a note, adding one if there is none, and counts a save.
+     * The caller holds the lock on mPending.
+     */
+    private PendingWrite getPendingWrite(Uri uri) {
+        mSaved++;
+        PendingWrite write = mPending.get(uri);
+        if (write == null) {
+            write = new PendingWrite();
+            mPending.put(uri, write);
+
+            // The first pending write starts the delay.
+            if (mPending.size() == 1) {
+                mHandler.postDelayed(mWrite, WRITE_DELAY_MILLIS);
+            }
+        }
+        return write;
+    }
+
+    /**
+     * Starts writing everything in the queue now, in order, without waiting for it to be
+     * written.
+     */
+    void flush() {
+        mHandler.removeCallbacks(mWrite);
+        mHandler.post(mWrite);
+    }
+
+    /**
+     * Flushes the queue, and waits until the saves made so far are written.
+     *
+     * @param uri The note whose saves to wait for, or null to wait for every save.
+     * @param timeoutMillis How long to wait at most, in milliseconds.
+     * @return True if the saves are written, false if the wait timed out.
+     */
+    boolean awaitWrites(Uri uri, long timeoutMillis) {
+        long deadline = SystemClock.uptimeMillis() + timeoutMillis;
+        synchronized (mPending) {
+            long target = mSaved;
+            if (!isWaiting(uri, target)) {
+                return true;
+            }
+            flush();
+            while (isWaiting(uri, target)) {
+                long remaining = deadline - SystemClock.uptimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                try {
+                    mPending.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Returns the values that the queued and unfinished writes of a note will leave in its
+     * columns. A reader lays them over what it reads from the provider, instead of waiting for
+     * the writes. Since the values replace the columns rather than change them, it doesn't
+     * matter whether the provider already holds them. For that reason the reader gets them
+     * before it queries the provider: a write that completes in between is then in both.
+     *
+     * {@link NotePad.Notes#COLUMN_NAME_NOTE} holds the whole contents that the writes leave, if
+     * they change the contents and the contents are known.
+     *
+     * @param uri The note ID URI of the note.
+     * @return The values, which are empty if no write of the note is pending, or null if the
+     *         note is being deleted.
+     */
+    ContentValues getPendingValues(Uri uri) {
+        ContentValues values = new ContentValues();
+        synchronized (mPending) {
+            // The write being written is older than the one in the queue, so it goes first.
+            if (!addPendingValues(values, mWriting.get(uri))
+                    || !addPendingValues(values, mPending.get(uri))) {
+                return null;
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Adds the values that a write leaves to those of the writes before it. The caller holds
+     * the lock on mPending.
+     *
+     * @return False if the write is a delete.
+     */
+    private static boolean addPendingValues(ContentValues values, PendingWrite write) {
+        if (write == null) {
+            return true;
+        }
+        if (write.delete) {
+            return false;
+        }
+        values.putAll(write.values);
+        if (!write.edits.isEmpty()) {
+            if (write.contents != null) {
+                values.put(NotePad.Notes.COLUMN_NAME_NOTE, write.contents);
+            } else {
+                values.remove(NotePad.Notes.COLUMN_NAME_NOTE);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Tests whether saves are still to be written. The caller holds the lock on mPending.
+     *
+     * @param uri The note whose saves to check, or null for every save.
+     * @param target The number of saves that have to be written, for every save.
+     */
+    private boolean isWaiting(Uri uri, long target) {
+        if (uri == null) {
+            return mWritten < target;
+        }
+        return mPending.containsKey(uri) || mWriting.containsKey(uri);
+    }
+
+    /**
+     * Writes every pending write, in order. Runs on the writer thread.
+     */
+    private void writePending() {
+        ArrayList<Uri> uris;
+        ArrayList<PendingWrite> writes;
+        long saved;
+        synchronized (mPending) {
+            mHandler.removeCallbacks(mWrite);
+            uris = new ArrayList<Uri>(mPending.keySet());
+            writes = new ArrayList<PendingWrite>(mPending.values());
+            mWriting.putAll(mPending);
+            mPending.clear();
+            saved = mSaved;
+        }
+
+        for (int i = 0; i < uris.size(); i++) {
+            write(uris.get(i), writes.get(i));
+        }
+
+        synchronized (mPending) {
+            mWriting.clear();
+            mWritten = saved;
+            mPending.notifyAll();
+        }
+    }
+
+    /**
+     * Writes one pending write. A write that fails is logged and dropped, since the note it
+     * was for may have been deleted in the meantime.
+     */
+    private void write(Uri uri, PendingWrite write) {
+        try {
+            if (write.delete) {
+                mResolver.delete(uri, null, null);
+            } else if (write.edits.isEmpty()) {
+                if (write.values.size() > 0) {
+                    mResolver.update(uri, write.values, null, null);
+                }
+            } else {
+                // The columns and the edits are written in one batch, so that either both are
+                // saved or neither is.
+                ArrayList<ContentProviderOperation> operations =
+                        new ArrayList<ContentProviderOperation>(write.edits.size() + 1);
+                if (write.values.size() > 0) {
+                    operations.add(ContentProviderOperation.newUpdate(uri)
+                            .withValues(write.values)
+                            .withExpectedCount(1)
+                            .build());
+                }
+                Uri editsUri = NotePad.Notes.buildEditsUri(uri);
+                for (ContentValues edit : write.edits) {
+                    operations.add(ContentProviderOperation.newInsert(editsUri)
+                            .withValues(edit)
+                            .build());
+                }
+                mResolver.applyBatch(NotePad.AUTHORITY, operations);
+            }
+        } catch (RemoteException e) {
+            Log.e(TAG, "Failed to save " + uri, e);
+        } catch (OperationApplicationException e) {
+            Log.w(TAG, "Failed to save " + uri, e);
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Failed to save " + uri, e);
+        }
+    }
+}
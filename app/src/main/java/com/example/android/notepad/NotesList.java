@@ -27,10 +27,13 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.DialogInterface;
+import android.database.ContentObserver;
 import android.database.Cursor;
+import android.database.MergeCursor;
 import android.graphics.Color;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
 import android.util.Log;
 import android.view.ContextMenu;
 import android.view.Menu;
@@ -38,14 +41,18 @@ import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
 import android.view.ContextMenu.ContextMenuInfo;
+import android.widget.AbsListView;
 import android.widget.AdapterView;
+import android.widget.CursorAdapter;
 import android.widget.ListView;
 import android.widget.SimpleCursorAdapter;
 import android.widget.TextView;
 import android.app.AlertDialog;
 
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.Locale;
 import android.widget.SearchView;
 import android.widget.SearchView.OnQueryTextListener;
@@ -83,6 +90,36 @@ public class NotesList extends ListActivity {
     /** 标题列的索引 */
     private static final int COLUMN_INDEX_TITLE = 1;
 
+    /** ID 列的索引 */
+    private static final int COLUMN_INDEX_ID = 0;
+
+    /** 分页加载时每页的笔记数量 */
+    private static final int PAGE_SIZE = 50;
+
+    /** 距离列表末尾还剩多少项时加载下一页 */
+    private static final int PAGE_PREFETCH_DISTANCE = PAGE_SIZE / 2;
+
+    // 未搜索时，列表按页加载。这里保存已加载的各页游标，按顺序排列。
+    private final List<Cursor> mPages = new ArrayList<Cursor>();
+
+    // 是否已加载到最后一页
+    private boolean mLastPageLoaded;
+
+    // 列表当前使用的适配器
+    private SimpleCursorAdapter mAdapter;
+
+    // 当前适配器是否显示分页数据（否则显示搜索结果）
+    private boolean mPaged;
+
+    // 笔记变化时重新加载已显示的分页
+    private ContentObserver mPagesObserver;
+
+    // Activity 是否处于启动（可见）状态
+    private boolean mStarted;
+
+    // Activity 停止期间笔记是否发生过变化，需要在重新启动时重新加载分页
+    private boolean mPagesStale;
+
     /**
      * 当 Android 从头开始启动此 Activity 时调用 onCreate。
      */
@@ -117,6 +154,39 @@ public class NotesList extends ListActivity {
         // 为 ListView 设置上下文菜单激活的回调。
         getListView().setOnCreateContextMenuListener(this);
 
+        // 滚动接近已加载部分的末尾时，加载下一页。
+        getListView().setOnScrollListener(new AbsListView.OnScrollListener() {
+            @Override
+            public void onScrollStateChanged(AbsListView view, int scrollState) {
+            }
+
+            @Override
+            public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+                                 int totalItemCount) {
+                if (mPaged && firstVisibleItem + visibleItemCount
+                        >= totalItemCount - PAGE_PREFETCH_DISTANCE) {
+                    loadNextPage();
+                }
+            }
+        });
+
+        // 分页游标不会自动重新查询，因此自行监听笔记的变化。Activity 停止时（例如在
+        // NoteEditor 后面，自动保存不断写入笔记）只记下变化，等重新启动时再加载一次。
+        mPagesObserver = new ContentObserver(new Handler()) {
+            @Override
+            public void onChange(boolean selfChange) {
+                if (!mPaged) {
+                    return;
+                }
+                if (mStarted) {
+                    reloadPages();
+                } else {
+                    mPagesStale = true;
+                }
+            }
+        };
+        getContentResolver().registerContentObserver(intent.getData(), true, mPagesObserver);
+
         // 初始化搜索视图
         initSearchView();
 
@@ -124,6 +194,40 @@ public class NotesList extends ListActivity {
         performQuery();
     }
 
+    @Override
+    protected void onStart() {
+        super.onStart();
+        mStarted = true;
+
+        // 停止期间笔记有变化时，只重新加载一次。
+        if (mPagesStale) {
+            mPagesStale = false;
+            if (mPaged) {
+                reloadPages();
+            }
+        }
+    }
+
+    @Override
+    protected void onStop() {
+        mStarted = false;
+        super.onStop();
+    }
+
+    /**
+     * 重新加载与当前已显示数量相同的笔记，保持滚动位置可用。
+     */
+    private void reloadPages() {
+        loadFirstPage(Math.max(PAGE_SIZE, mAdapter.getCount()));
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        getContentResolver().unregisterContentObserver(mPagesObserver);
+        closePages();
+    }
+
     // 添加保存状态的方法
     @Override
     protected void onSaveInstanceState(Bundle outState) {
@@ -162,25 +266,135 @@ public class NotesList extends ListActivity {
 
     // 添加执行查询的方法
     private void performQuery() {
-        String selection = null;
-        String[] selectionArgs = null;
-
-        // 如果有搜索查询，则添加筛选条件
-        if (!currentSearchQuery.isEmpty()) {
-            selection = NotePad.Notes.COLUMN_NAME_TITLE + " LIKE ?";
-            selectionArgs = new String[]{"%" + currentSearchQuery + "%"};
+        // 没有搜索时，按页加载笔记列表，首屏只需读取一页。
+        if (NotePadProvider.buildMatchExpression(currentSearchQuery) == null) {
+            loadFirstPage(PAGE_SIZE);
+            return;
         }
 
+        // 如果有搜索查询，则使用全文搜索 URI，同时匹配标题和内容，结果按相关度排序
+        Uri uri = NotePad.Notes.CONTENT_SEARCH_URI.buildUpon()
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_SEARCH, currentSearchQuery)
+                .build();
+
         /* 执行托管查询。Activity 在需要时处理关闭和重新查询游标。
          */
         Cursor cursor = managedQuery(
-                getIntent().getData(),            // 使用提供者的默认内容 URI。
+                uri,                              // 全文搜索 URI。
                 PROJECTION,                       // 返回每个笔记的 ID 和标题。
-                selection,                        // 筛选条件
-                selectionArgs,                    // 筛选参数
-                NotePad.Notes.DEFAULT_SORT_ORDER  // 使用默认排序顺序。
+                null,                             // 不需要额外的筛选条件
+                null,                             // 不需要筛选参数
+                null                              // 使用相关度排序。
         );
 
+        // 搜索结果的游标由 Activity 管理并自动重新查询，不再需要已加载的分页。
+        mPaged = false;
+        setListAdapter(createAdapter(cursor));
+        closePages();
+    }
+
+    /**
+     * 重新加载列表的第一页，替换所有已加载的分页。
+     * @param limit 第一页的笔记数量
+     */
+    private void loadFirstPage(int limit) {
+        List<Cursor> oldPages = new ArrayList<Cursor>(mPages);
+        mPages.clear();
+
+        Cursor page = queryPage(null, limit);
+        mLastPageLoaded = page == null || page.getCount() < limit;
+        if (page != null) {
+            mPages.add(page);
+        }
+
+        Cursor merged = mergePages();
+        if (mPaged) {
+            mAdapter.swapCursor(merged);
+        } else {
+            mPaged = true;
+            setListAdapter(createAdapter(merged));
+        }
+
+        // 适配器已切换到新的游标，可以关闭旧的分页。
+        for (Cursor old : oldPages) {
+            old.close();
+        }
+    }
+
+    /**
+     * 从最后一页的末尾继续加载下一页。
+     */
+    private void loadNextPage() {
+        if (mLastPageLoaded || mPages.isEmpty()) {
+            return;
+        }
+
+        Cursor page = queryPage(mPages.get(mPages.size() - 1), PAGE_SIZE);
+        mLastPageLoaded = page == null || page.getCount() < PAGE_SIZE;
+        if (page == null || page.getCount() == 0) {
+            if (page != null) {
+                page.close();
+            }
+            return;
+        }
+
+        // 交换游标时不能关闭旧的 MergeCursor，它包含的分页仍在使用中。
+        mPages.add(page);
+        mAdapter.swapCursor(mergePages());
+    }
+
+    /**
+     * 将已加载的分页合并为一个游标，供适配器使用。
+     */
+    private Cursor mergePages() {
+        // MergeCursor 需要至少一个元素，元素可以为 null。
+        if (mPages.isEmpty()) {
+            return new MergeCursor(new Cursor[] { null });
+        }
+        return new MergeCursor(mPages.toArray(new Cursor[mPages.size()]));
+    }
+
+    /**
+     * 查询一页笔记。使用提供者的键集分页：下一页从上一页最后一条笔记之后开始，
+     * 而不是跳过前面的所有行。
+     * @param previous 上一页的游标；为 null 时查询第一页
+     * @param limit 本页的笔记数量
+     * @return 本页的游标
+     */
+    private Cursor queryPage(Cursor previous, int limit) {
+        Uri.Builder builder = getIntent().getData().buildUpon()
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_LIMIT, Integer.toString(limit));
+        if (previous != null && previous.moveToLast()) {
+            builder.appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_AFTER,
+                    NotePad.Notes.buildPageAfter(
+                            previous.getLong(COLUMN_INDEX_MODIFICATION_DATE),
+                            previous.getLong(COLUMN_INDEX_ID)));
+        }
+        return getContentResolver().query(
+                builder.build(),                  // 带分页参数的列表 URI
+                PROJECTION,                       // 返回每个笔记的 ID 和标题。
+                null,                             // 不需要额外的筛选条件
+                null,                             // 不需要筛选参数
+                NotePad.Notes.DEFAULT_SORT_ORDER  // 分页只支持默认排序顺序。
+        );
+    }
+
+    /**
+     * 关闭所有已加载的分页。
+     */
+    private void closePages() {
+        for (Cursor page : mPages) {
+            page.close();
+        }
+        mPages.clear();
+    }
+
+    /**
+     * 创建 ListView 的适配器，并设置时间戳和颜色的格式化器。
+     * @param cursor 适配器的游标
+     * @return 新的适配器
+     */
+    private SimpleCursorAdapter createAdapter(Cursor cursor) {
         String[] dataColumns = {
                 NotePad.Notes.COLUMN_NAME_TITLE,
                 NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
@@ -193,13 +407,14 @@ public class NotesList extends ListActivity {
                 R.id.note_color
         };
 
-        // 创建 ListView 的后备适配器。
+        // 创建 ListView 的后备适配器。分页游标不需要适配器自动重新查询。
         SimpleCursorAdapter adapter = new SimpleCursorAdapter(
                 this,                             // ListView 的上下文
                 R.layout.noteslist_item,          // 指向列表项的 XML
                 cursor,                           // 获取项目的游标
                 dataColumns,
-                viewIDs
+                viewIDs,
+                mPaged ? 0 : CursorAdapter.FLAG_AUTO_REQUERY
         );
 
         // 添加时间戳和颜色格式化器
@@ -226,8 +441,8 @@ public class NotesList extends ListActivity {
             }
         });
 
-        // 将 ListView 的适配器设置为刚刚创建的游标适配器。
-        setListAdapter(adapter);
+        mAdapter = adapter;
+        return adapter;
     }
 
     /**
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.LinkedHashSet;
+
+/**
+ * Merges bursts of change notifications. The first change after a quiet period starts a window;
+ * every URI that changes before the window ends is notified once, when it ends. Each
+ * notification makes the observing cursors requery, so a burst of writes to the same URI costs
+ * one requery instead of one per write.
+ *
+ * The window is timed on the main thread's looper. {@link #flush()} sends the pending
+ * notifications at once, for tests and for when the provider shuts down.
+ */
+class NotificationCoalescer {
+
+    private final ContentResolver mResolver;
+    private final long mWindowMillis;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    // The URIs that changed in the current window, in the order they first changed
+    private final LinkedHashSet<Uri> mPending = new LinkedHashSet<Uri>();
+
+    // The number of changes reported, and of notifications sent
+    private long mChanges;
+    private long mNotifications;
+
+    // Ends the current window
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     * Creates a coalescer.
+     *
+     * @param resolver The resolver that sends the notifications.
+     * @param windowMillis How long changes are merged after the first one, in milliseconds.
+     */
+    NotificationCoalescer(ContentResolver resolver, long windowMillis) {
+        mResolver = resolver;
+        mWindowMillis = windowMillis;
+    }
+
+    /**
+     * Reports that the data at a URI changed. Its observers are notified when the current
+     * window ends, or when one starts and ends if there is no current window.
+     */
+    void notifyChange(Uri uri) {
+        synchronized (mPending) {
+            mChanges++;
+            if (mPending.isEmpty()) {
+                mHandler.postDelayed(mFlush, mWindowMillis);
+            }
+            mPending.add(uri);
+        }
+    }
+
+    /**
+     * Ends the current window, and notifies the observers of every URI that changed in it.
+     */
+    void flush() {
+        Uri[] uris;
+        synchronized (mPending) {
+            mHandler.removeCallbacks(mFlush);
+            uris = mPending.toArray(new Uri[mPending.size()]);
+            mPending.clear();
+            mNotifications += uris.length;
+        }
+
+        // Notifies outside of the lock, so that writers aren't held up by the observers.
+        for (Uri uri : uris) {
+            mResolver.notifyChange(uri, null);
+        }
+    }
+
+    /**
+     * Returns the number of changes reported so far.
+     */
+    long getChangeCount() {
+        synchronized (mPending) {
+            return mChanges;
+        }
+    }
+
+    /**
+     * Returns the number of notifications sent so far. The difference with
+     * {@link #getChangeCount()} is the number of notifications saved.
+     */
+    long getNotificationCount() {
+        synchronized (mPending) {
+            return mNotifications;
+        }
+    }
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.os.Bundle;
+import android.os.SystemClock;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+
+/**
+ * Counts the calls, the rows and the latency of each operation of the provider, separately for
+ * each type of URI. The types of URI are numbered by the codes of the provider's URI matcher.
+ *
+ * Recording a call only updates preallocated arrays, so it doesn't allocate and can be done on
+ * every call. Latencies are counted in fixed buckets rather than kept one by one, and the
+ * percentiles are estimated from the buckets when the metrics are read.
+ */
+class ProviderMetrics {
+
+    /*
+     * The operations that are measured
+     */
+    static final int OP_QUERY = 0;
+    static final int OP_INSERT = 1;
+    static final int OP_UPDATE = 2;
+    static final int OP_DELETE = 3;
+    static final int OP_OPEN_TYPED_ASSET_FILE = 4;
+    static final int OP_BULK_INSERT = 5;
+    static final int OP_APPLY_BATCH = 6;
+    static final int OP_OPEN_FILE = 7;
+
+    // The names of the operations, indexed by operation
+    private static final String[] OPERATION_NAMES = {
+        "query",
+        "insert",
+        "update",
+        "delete",
+        "openTypedAssetFile",
+        "bulkInsert",
+        "applyBatch",
+        "openFile"
+    };
+
+    /*
+     * The upper bounds of the latency buckets, in microseconds. A call falls in the first bucket
+     * whose bound is greater than its latency. One more bucket holds the calls that are slower
+     * than the last bound.
+     */
+    private static final long[] BUCKET_BOUNDS_MICROS = {
+        10, 20, 50,
+        100, 200, 500,
+        1000, 2000, 5000,
+        10000, 20000, 50000,
+        100000, 200000, 500000,
+        1000000, 2000000, 5000000
+    };
+
+    private static final int BUCKET_COUNT = BUCKET_BOUNDS_MICROS.length + 1;
+
+    // The names of the types of URI, indexed by URI type
+    private final String[] mUriTypeNames;
+
+    /*
+     * The metrics of each operation on each type of URI, at index
+     * operation * mUriTypeNames.length + uri type. The latency buckets of each are stored one
+     * after the other in mBuckets.
+     */
+    private final long[] mCalls;
+    private final long[] mErrors;
+    private final long[] mRows;
+    private final long[] mTotalNanos;
+    private final long[] mBuckets;
+
+    /**
+     * Creates empty metrics.
+     *
+     * @param uriTypeNames The name of each type of URI, indexed by its type.
+     */
+    ProviderMetrics(String[] uriTypeNames) {
+        mUriTypeNames = uriTypeNames;
+        int size = OPERATION_NAMES.length * uriTypeNames.length;
+        mCalls = new long[size];
+        mErrors = new long[size];
+        mRows = new long[size];
+        mTotalNanos = new long[size];
+        mBuckets = new long[size * BUCKET_COUNT];
+    }
+
+    /**
+     * Returns the start time of a call, to pass to {@link #record(int, int, long, long)} when
+     * the call returns.
+     */
+    static long start() {
+        return SystemClock.elapsedRealtimeNanos();
+    }
+
+    /**
+     * Records a call that returned normally.
+     *
+     * @param operation The operation, one of the OP_ constants.
+     * @param uriType The type of the URI. Types out of range are recorded as type 0.
+     * @param rows The number of rows that the call returned or changed.
+     * @param startNanos The time returned by {@link #start()} when the call began.
+     */
+    void record(int operation, int uriType, long rows, long startNanos) {
+        add(operation, uriType, rows, SystemClock.elapsedRealtimeNanos() - startNanos, false);
+    }
+
+    /**
+     * Records a call that threw an exception.
+     *
+     * @param operation The operation, one of the OP_ constants.
+     * @param uriType The type of the URI. Types out of range are recorded as type 0.
+     * @param startNanos The time returned by {@link #start()} when the call began.
+     */
+    void recordError(int operation, int uriType, long startNanos) {
+        add(operation, uriType, 0, SystemClock.elapsedRealtimeNanos() - startNanos, true);
+    }
+
+    // Adds a call to the metrics of its operation and type of URI
+    private synchronized void add(int operation, int uriType, long rows, long nanos,
+            boolean error) {
+        if (uriType < 0 || uriType >= mUriTypeNames.length) {
+            uriType = 0;
+        }
+        int index = operation * mUriTypeNames.length + uriType;
+        mCalls[index]++;
+        if (error) {
+            mErrors[index]++;
+        }
+        mRows[index] += rows;
+        mTotalNanos[index] += nanos;
+        mBuckets[index * BUCKET_COUNT + bucketOf(nanos / 1000)]++;
+    }
+
+    // Returns the bucket of a latency in microseconds
+    private static int bucketOf(long micros) {
+        int bucket = 0;
+        while (bucket < BUCKET_BOUNDS_MICROS.length && micros >= BUCKET_BOUNDS_MICROS[bucket]) {
+            bucket++;
+        }
+        return bucket;
+    }
+
+    /**
+     * Clears the metrics.
+     */
+    synchronized void reset() {
+        Arrays.fill(mCalls, 0);
+        Arrays.fill(mErrors, 0);
+        Arrays.fill(mRows, 0);
+        Arrays.fill(mTotalNanos, 0);
+        Arrays.fill(mBuckets, 0);
+    }
+
+    /**
+     * Returns the metrics in the format described by {@link NotePad.Metrics#METHOD_GET}.
+     */
+    synchronized Bundle toBundle() {
+        Bundle result = new Bundle();
+        for (int index = 0; index < mCalls.length; index++) {
+            if (mCalls[index] == 0) {
+                continue;
+            }
+            Bundle metrics = new Bundle();
+            metrics.putLong(NotePad.Metrics.KEY_CALLS, mCalls[index]);
+            metrics.putLong(NotePad.Metrics.KEY_ERRORS, mErrors[index]);
+            metrics.putLong(NotePad.Metrics.KEY_ROWS, mRows[index]);
+            metrics.putLong(NotePad.Metrics.KEY_TOTAL_MICROS, mTotalNanos[index] / 1000);
+            metrics.putLong(NotePad.Metrics.KEY_P50_MICROS, percentile(index, 50));
+            metrics.putLong(NotePad.Metrics.KEY_P95_MICROS, percentile(index, 95));
+            metrics.putLong(NotePad.Metrics.KEY_P99_MICROS, percentile(index, 99));
+            result.putBundle(nameOf(index), metrics);
+        }
+        return result;
+    }
+
+    /**
+     * Prints the metrics, one line for each operation and type of URI that was called.
+     */
+    synchronized void dump(PrintWriter writer) {
+        writer.println("Provider metrics (latencies in microseconds):");
+        boolean empty = true;
+        for (int index = 0; index < mCalls.length; index++) {
+            if (mCalls[index] == 0) {
+                continue;
+            }
+            empty = false;
+            writer.println(String.format(
+                    "  %-40s calls=%d errors=%d rows=%d mean=%d p50=%d p95=%d p99=%d",
+                    nameOf(index), mCalls[index], mErrors[index], mRows[index],
+                    mTotalNanos[index] / 1000 / mCalls[index],
+                    percentile(index, 50), percentile(index, 95), percentile(index, 99)));
+        }
+        if (empty) {
+            writer.println("  No calls");
+        }
+    }
+
+    // Returns the key of the metrics at an index: the operation and the type of URI
+    private String nameOf(int index) {
+        return OPERATION_NAMES[index / mUriTypeNames.length] + " "
+                + mUriTypeNames[index % mUriTypeNames.length];
+    }
+
+    /*
+     * Estimates a percentile of the latencies at an index, in microseconds, as the upper bound of
+     * the bucket that holds it. Calls slower than the last bound are reported as twice the last
+     * bound, since their latency isn't known.
+     */
+    private long percentile(int index, int percent) {
+        long calls = mCalls[index];
+
+        // The number of calls at or below the percentile, rounded up
+        long rank = (calls * percent + 99) / 100;
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKET_COUNT; bucket++) {
+            seen += mBuckets[index * BUCKET_COUNT + bucket];
+            if (seen >= rank && bucket < BUCKET_BOUNDS_MICROS.length) {
+                return BUCKET_BOUNDS_MICROS[bucket];
+            }
+        }
+        return BUCKET_BOUNDS_MICROS[BUCKET_BOUNDS_MICROS.length - 1] * 2;
+    }
+}
@@ -28,10 +28,11 @@ import android.widget.EditText;
  * This Activity allows the user to edit a note's title. It displays a floating window
  * containing an EditText.
  *
- * NOTE: Notice that the provider operations in this Activity are taking place on the UI thread.
- * This is not a good practice. It is only done here to make the code more readable. A real
- * application should use the {@link android.content.AsyncQueryHandler}
- * or {@link android.os.AsyncTask} object to perform operations asynchronously on a separate thread.
+ * NOTE: Notice that the query in this Activity is taking place on the UI thread. This is not a
+ * good practice. It is only done here to make the code more readable. A real application should
+ * use the {@link android.content.AsyncQueryHandler} or {@link android.os.AsyncTask} object to
+ * perform operations asynchronously on a separate thread. The title is saved through
+ * {@link NoteSaveQueue}, which writes it on a background thread.
  */
 public class TitleEditor extends Activity {
 
@@ -58,6 +59,9 @@ public class TitleEditor extends Activity {
     // A URI object for the note whose title is being edited.
     private Uri mUri;
 
+    // The title as the provider last stored it. Saving the same title again is skipped.
+    private String mSavedTitle;
+
     /**
      * This method is called by Android when the Activity is first started. From the incoming
      * Intent, it determines what kind of editing is desired, and then does it.
@@ -108,12 +112,28 @@ public class TitleEditor extends Activity {
         // Cursor object is not null. If it is *empty*, then mCursor.getCount() == 0.
         if (mCursor != null) {
 
+            // Gets the saves of the note that aren't written yet, before requerying, so that a
+            // save written in between is in one or the other.
+            ContentValues pending = NoteSaveQueue.getInstance(this).getPendingValues(mUri);
+            if (pending == null) {
+                // The note is being deleted, so there is no title to edit.
+                finish();
+                return;
+            }
+            mCursor.requery();
+
             // The Cursor was just retrieved, so its index is set to one record *before* the first
             // record retrieved. This moves it to the first record.
             mCursor.moveToFirst();
 
-            // Displays the current title text in the EditText object.
-            mText.setText(mCursor.getString(COLUMN_INDEX_TITLE));
+            // Displays the current title text in the EditText object. A title that is saved but
+            // not written yet is shown instead of the one in the provider.
+            if (pending.containsKey(NotePad.Notes.COLUMN_NAME_TITLE)) {
+                mSavedTitle = pending.getAsString(NotePad.Notes.COLUMN_NAME_TITLE);
+            } else {
+                mSavedTitle = mCursor.getString(COLUMN_INDEX_TITLE);
+            }
+            mText.setText(mSavedTitle);
         }
     }
 
@@ -137,30 +157,40 @@ public class TitleEditor extends Activity {
 
         if (mCursor != null) {
 
+            // If the title wasn't changed, there is nothing to write.
+            String title = mText.getText().toString();
+            if (title.equals(mSavedTitle)) {
+                return;
+            }
+
             // Creates a values map for updating the provider.
             ContentValues values = new ContentValues();
 
             // In the values map, sets the title to the current contents of the edit box.
-            values.put(NotePad.Notes.COLUMN_NAME_TITLE, mText.getText().toString());
+            values.put(NotePad.Notes.COLUMN_NAME_TITLE, title);
 
             /*
-             * Updates the provider with the note's new title.
-             *
-             * Note: This is being done on the UI thread. It will block the thread until the
-             * update completes. In a sample app, going against a simple provider based on a
-             * local database, the block will be momentary, but in a real app you should use
-             * android.content.AsyncQueryHandler or android.os.AsyncTask.
+             * Queues the update of the provider with the note's new title. The queue writes it
+             * on a background thread, so the UI thread doesn't wait for the database.
              */
-            getContentResolver().update(
-                mUri,    // The URI for the note to update.
-                values,  // The values map containing the columns to update and the values to use.
-                null,    // No selection criteria is used, so no "where" columns are needed.
-                null     // No "where" columns are used, so no "where" values are needed.
-            );
+            NoteSaveQueue.getInstance(this).update(mUri, values);
+
+            // The note will have this title once the queue writes it.
+            mSavedTitle = title;
 
         }
     }
 
+    /**
+     * This method is called when the Activity is no longer visible. The process may be killed
+     * from now on, so the saves that are still queued are written now.
+     */
+    @Override
+    protected void onStop() {
+        super.onStop();
+        NoteSaveQueue.getInstance(this).flush();
+    }
+
     public void onClickOk(View v) {
         finish();
     }